@@ -0,0 +1,147 @@
+package com.collabeditor.backend.benchmark;
+
+import com.collabeditor.backend.service.CrdtDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The edit paths of CrdtDocument on documents of 1k to 1M chars.
+ *
+ * Insert benchmarks grow the document as they run, so the score is for
+ * "about N chars". The document is rebuilt every iteration to keep that drift
+ * small.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CrdtDocumentBenchmark {
+
+    /** Deletes per delete-benchmark invocation; every size has at least this many chars. */
+    static final int DELETE_BATCH = 1000;
+    /** Chars per pasteRun. */
+    static final int PASTE = 1000;
+    /** Sites inserting after the same char with the same clock in one sibling storm. */
+    private static final int STORM_SITES = 32;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int chars;
+
+    private CrdtDocument doc;
+    private SplittableRandom random;
+    private int clock;
+    private String lastTyped;
+
+    private String stormParent;
+    private int stormClock;
+    private int stormSite;
+
+    private List<String> deleteOrder;
+    private int nextDelete;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        doc = Documents.typed(chars);
+        random = new SplittableRandom(42);
+        clock = chars;
+        lastTyped = "typist-" + chars;
+        stormSite = STORM_SITES;
+
+        deleteOrder = new ArrayList<>(chars);
+        for (int i = 1; i <= chars; i++) {
+            deleteOrder.add("typist-" + i);
+        }
+        Collections.shuffle(deleteOrder, new Random(42));
+        nextDelete = 0;
+    }
+
+    /** One user typing at the end of the document. */
+    @Benchmark
+    public boolean sequentialTyping() {
+        clock++;
+        String id = "typist-" + clock;
+        boolean applied = doc.applyOperation(Documents.insert(id, lastTyped, clock, "typist"));
+        lastTyped = id;
+        return applied;
+    }
+
+    /** Inserts after a random visible char. */
+    @Benchmark
+    public boolean randomPositionInsert() {
+        clock++;
+        String parent = doc.charIdAtVisible(random.nextInt(doc.getVisibleLength()));
+        return doc.applyOperation(Documents.insert("editor-" + clock, parent, clock, "editor"));
+    }
+
+    /** A PASTE-char paste after a random visible char, sent as one INSERT_RUN. */
+    @Benchmark
+    public boolean pasteRun() {
+        int counter = clock + 1;
+        clock += PASTE;
+        String parent = doc.charIdAtVisible(random.nextInt(doc.getVisibleLength()));
+        return doc.applyOperation(Documents.run("editor", counter, parent, PASTE));
+    }
+
+    /**
+     * STORM_SITES sites inserting after the same char with the same clock —
+     * every insert in a storm scans past the siblings already placed.
+     */
+    @Benchmark
+    public boolean concurrentSiblingStorm() {
+        if (stormSite == STORM_SITES) {
+            stormSite = 0;
+            stormClock = ++clock;
+            stormParent = doc.charIdAtVisible(random.nextInt(doc.getVisibleLength()));
+        }
+        String site = "s" + (stormSite++);
+        return doc.applyOperation(Documents.insert(site + "-" + stormClock, stormParent, stormClock, site));
+    }
+
+    /** DELETE_BATCH deletes of random chars; the next iteration starts from a fresh document. */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 3, batchSize = 1)
+    @Measurement(iterations = 10, batchSize = 1)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int deleteBatch() {
+        int deleted = 0;
+        for (int i = 0; i < DELETE_BATCH; i++) {
+            if (doc.applyOperation(Documents.delete(deleteOrder.get(nextDelete++), "typist"))) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /** One insert plus rebuilding the text it invalidated. */
+    @Benchmark
+    public String getTextAfterEdit() {
+        sequentialTyping();
+        return doc.getText();
+    }
+
+    /** Text with nothing changed since the last call — the cached path. */
+    @Benchmark
+    public String getTextCached() {
+        return doc.getText();
+    }
+}
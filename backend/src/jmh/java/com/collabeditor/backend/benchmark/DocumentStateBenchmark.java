@@ -0,0 +1,88 @@
+package com.collabeditor.backend.benchmark;
+
+import com.collabeditor.backend.model.CrdtChar;
+import com.collabeditor.backend.service.CrdtDocument;
+import com.collabeditor.backend.service.CrdtStateCodec;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole-state paths: what the state endpoint, snapshots and document loads
+ * do. Jackson is the legacy snapshot format and still the JSON wire format;
+ * CrdtStateCodec is what snapshots are written in now.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DocumentStateBenchmark {
+
+    private static final TypeReference<List<CrdtChar>> STATE_TYPE = new TypeReference<>() {};
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int chars;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private List<CrdtChar> state;
+    private CrdtDocument doc;
+    private byte[] json;
+    private byte[] binary;
+
+    @Setup
+    public void setUp() throws IOException {
+        state = Documents.editedState(chars, 7);
+        doc = Documents.newDocument();
+        doc.loadFromState(state);
+        json = objectMapper.writeValueAsBytes(state);
+        binary = CrdtStateCodec.encode(state);
+    }
+
+    @Benchmark
+    public List<CrdtChar> getFullState() {
+        return doc.getFullState();
+    }
+
+    @Benchmark
+    public CrdtDocument loadFromState() {
+        CrdtDocument loaded = Documents.newDocument();
+        loaded.loadFromState(state);
+        return loaded;
+    }
+
+    @Benchmark
+    public byte[] jacksonSerialize() throws IOException {
+        return objectMapper.writeValueAsBytes(state);
+    }
+
+    @Benchmark
+    public List<CrdtChar> jacksonDeserialize() throws IOException {
+        return objectMapper.readValue(json, STATE_TYPE);
+    }
+
+    @Benchmark
+    public byte[] binaryEncode() {
+        return CrdtStateCodec.encode(state);
+    }
+
+    @Benchmark
+    public List<CrdtChar> binaryDecode() {
+        return CrdtStateCodec.decode(binary);
+    }
+}
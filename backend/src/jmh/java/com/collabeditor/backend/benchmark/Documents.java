@@ -0,0 +1,72 @@
+package com.collabeditor.backend.benchmark;
+
+import com.collabeditor.backend.model.CrdtChar;
+import com.collabeditor.backend.model.CrdtOperation;
+import com.collabeditor.backend.service.CrdtDocument;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/** Document builders shared by the benchmarks. */
+final class Documents {
+
+    private Documents() {}
+
+    static CrdtOperation insert(String id, String parent, int clock, String site) {
+        return new CrdtOperation(CrdtOperation.Type.INSERT,
+            new CrdtChar(id, 'x', parent, clock, site, false), "bench", site, clock);
+    }
+
+    /** An INSERT_RUN of `length` chars, ids id-counter .. id-(counter + length - 1). */
+    static CrdtOperation run(String site, int counter, String parent, int length) {
+        return new CrdtOperation(CrdtOperation.Type.INSERT_RUN,
+            new CrdtChar(site + "-" + counter, 'x', parent, counter, site, false), "bench", site, counter,
+            "x".repeat(length));
+    }
+
+    static CrdtOperation delete(String id, String site) {
+        return new CrdtOperation(CrdtOperation.Type.DELETE,
+            new CrdtChar(id, 'x', null, 0, site, true), "bench", site, 0);
+    }
+
+    static CrdtDocument newDocument() {
+        return new CrdtDocument("bench");
+    }
+
+    /** One site typing `chars` chars front to back — ids typist-1 .. typist-N. */
+    static CrdtDocument typed(int chars) {
+        CrdtDocument doc = newDocument();
+        String parent = null;
+        for (int clock = 1; clock <= chars; clock++) {
+            String id = "typist-" + clock;
+            doc.applyOperation(insert(id, parent, clock, "typist"));
+            parent = id;
+        }
+        return doc;
+    }
+
+    /**
+     * A more realistic state: four sites editing at random spots, with about
+     * a fifth of the chars tombstoned. Used for the state/serialization paths.
+     */
+    static List<CrdtChar> editedState(int chars, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        CrdtDocument doc = newDocument();
+        int clock = 0;
+        int inserted = 0;
+        while (inserted < chars) {
+            String site = "site" + random.nextInt(4);
+            clock++;
+            int length = doc.getVisibleLength();
+            if (length > 0 && random.nextInt(5) == 0) {
+                doc.applyOperation(delete(doc.charIdAtVisible(random.nextInt(length)), site));
+            } else {
+                String parent = length == 0 ? null : doc.charIdAtVisible(random.nextInt(length));
+                doc.applyOperation(insert(site + "-" + clock, parent, clock, site));
+                inserted++;
+            }
+        }
+        return new ArrayList<>(doc.getFullState());
+    }
+}
@@ -0,0 +1,105 @@
+package com.collabeditor.backend.benchmark;
+
+import com.collabeditor.backend.service.CrdtDocument;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.ManagementFactory;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Object storage (a node per run) vs the columnar store, on the same document.
+ *
+ * Insert latency is what JMH measures. buildDocument also reports the heap
+ * a freshly built document retains per char, as the secondary result
+ * "bytesPerChar".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StorageBenchmark {
+
+    @Param({"object", "columnar"})
+    public String storage;
+
+    @Param({"10000", "200000"})
+    public int chars;
+
+    private CrdtDocument doc;
+    private SplittableRandom random;
+    private int clock;
+
+    /** Heap retained by the document buildDocument built, per char. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Retained {
+        public double bytesPerChar;
+    }
+
+    @Setup
+    public void setUp() {
+        doc = build();
+        clock = chars;
+        random = new SplittableRandom(42);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    public CrdtDocument buildDocument(Retained retained) {
+        long before = usedHeap();
+        CrdtDocument built = build();
+        retained.bytesPerChar = (usedHeap() - before) / (double) chars;
+        return built;
+    }
+
+    @Benchmark
+    public boolean insertAtRandomPosition() {
+        int length = doc.getVisibleLength();
+        String parent = doc.charIdAtVisible(random.nextInt(length));
+        clock++;
+        return doc.applyOperation(Documents.insert("editor-" + clock, parent, clock, "editor"));
+    }
+
+    @Benchmark
+    public boolean typeAtEnd() {
+        String parent = doc.charIdAtVisible(doc.getVisibleLength() - 1);
+        clock++;
+        return doc.applyOperation(Documents.insert("editor-" + clock, parent, clock, "editor"));
+    }
+
+    private CrdtDocument build() {
+        CrdtDocument built = new CrdtDocument("bench", CrdtDocument.DEFAULT_MAX_PENDING_OPS,
+            CrdtDocument.DEFAULT_PENDING_TTL_MS, storage.equals("columnar") ? 1 : 0);
+        String parent = null;
+        for (int c = 1; c <= chars; c++) {
+            String id = "typist-" + c;
+            built.applyOperation(Documents.insert(id, parent, c, "typist"));
+            parent = id;
+        }
+        return built;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,324 @@
+package com.collabeditor.backend.load;
+
+import com.collabeditor.backend.BackendApplication;
+import com.collabeditor.backend.config.CrdtMessageConverter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import io.micrometer.core.instrument.Gauge;
+import jakarta.websocket.ContainerProvider;
+import jakarta.websocket.WebSocketContainer;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.CompositeMessageConverter;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+import org.springframework.web.socket.sockjs.client.SockJsClient;
+import org.springframework.web.socket.sockjs.client.WebSocketTransport;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Starts the app on a random port and drives simulated STOMP/SockJS clients
+ * against /ws: join, type, move cursors, drop and reconnect. Reports
+ * edit-to-broadcast latency (every subscriber's copy of every edit),
+ * throughput and heap as JSON, so two runs can be compared.
+ *
+ * Arguments are key=value; anything starting with -- goes to the app, e.g.
+ * --collab.broadcast.window-ms=0. See Options for the keys.
+ *
+ * Clients share the JVM with the server, so the heap figures include them.
+ */
+public final class LoadGenerator {
+
+    /**
+     * Run parameters. hot = everyone in one document; cold = clients-per-document
+     * each across many. codec=binary connects over raw WebSocket and opts into
+     * binary frames; transport=websocket does the same for JSON, for a like-for-like comparison.
+     */
+    record Options(String scenario, String codec, String transport, int clients, int documents,
+                   double typeRate, double cursorRate,
+                   double reconnectRate, int warmupSeconds, int durationSeconds, int maxConnecting, int maxFrameKb,
+                   String out) {
+
+        static Options parse(Map<String, String> args) {
+            String scenario = args.getOrDefault("scenario", "hot");
+            if (!scenario.equals("hot") && !scenario.equals("cold")) {
+                throw new IllegalArgumentException("scenario must be hot or cold: " + scenario);
+            }
+            String codec = args.getOrDefault("codec", "json");
+            if (!codec.equals("json") && !codec.equals("binary")) {
+                throw new IllegalArgumentException("codec must be json or binary: " + codec);
+            }
+            // SockJS can't carry binary frames
+            String transport = codec.equals("binary") ? "websocket" : args.getOrDefault("transport", "sockjs");
+            if (!transport.equals("sockjs") && !transport.equals("websocket")) {
+                throw new IllegalArgumentException("transport must be sockjs or websocket: " + transport);
+            }
+            int clients = Integer.parseInt(args.getOrDefault("clients", "200"));
+            int perDocument = Integer.parseInt(args.getOrDefault("clients-per-document", "2"));
+            int defaultDocuments = scenario.equals("hot") ? 1 : Math.max(1, clients / Math.max(1, perDocument));
+            return new Options(
+                scenario,
+                codec,
+                transport,
+                clients,
+                Integer.parseInt(args.getOrDefault("documents", String.valueOf(defaultDocuments))),
+                Double.parseDouble(args.getOrDefault("type-rate", "5")),           // chars/s per client
+                Double.parseDouble(args.getOrDefault("cursor-rate", "2")),         // moves/s per client
+                Double.parseDouble(args.getOrDefault("reconnect-rate", "1")),      // reconnects/min per client
+                Integer.parseInt(args.getOrDefault("warmup-s", "5")),
+                Integer.parseInt(args.getOrDefault("duration-s", "30")),
+                Integer.parseInt(args.getOrDefault("max-connecting", "50")),
+                Integer.parseInt(args.getOrDefault("max-frame-kb", "256")),     // allocated per session, keep it modest
+                args.getOrDefault("out", "load-results.json"));
+        }
+    }
+
+    // How often each client decides whether to reconnect
+    private static final long RECONNECT_TICK_MS = 1000;
+
+    private final Options options;
+    private final LoadStats stats = new LoadStats();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final AtomicLong peakHeap = new AtomicLong();
+
+    LoadGenerator(Options options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        Map<String, String> appArgs = new LinkedHashMap<>();
+        appArgs.put("server.port", "0");
+        appArgs.put("spring.datasource.url", "jdbc:h2:mem:load;DB_CLOSE_DELAY=-1");
+        appArgs.put("logging.level.root", "WARN");
+        for (String arg : args) {
+            boolean forApp = arg.startsWith("--");
+            String kv = forApp ? arg.substring(2) : arg;
+            int eq = kv.indexOf('=');
+            if (eq < 0) throw new IllegalArgumentException("expected key=value: " + arg);
+            (forApp ? appArgs : options).put(kv.substring(0, eq), kv.substring(eq + 1));
+        }
+
+        Options parsed = Options.parse(options);
+        Map<String, Object> results = new LoadGenerator(parsed).run(appArgs);
+        ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+        File out = new File(parsed.out());
+        mapper.writeValue(out, results);
+        System.out.println(mapper.writeValueAsString(results));
+        System.out.println("Results written to " + out.getAbsolutePath());
+        System.exit(0);
+    }
+
+    Map<String, Object> run(Map<String, String> appArgs) throws Exception {
+        String[] springArgs = appArgs.entrySet().stream().map(e -> "--" + e.getKey() + "=" + e.getValue()).toArray(String[]::new);
+        ConfigurableApplicationContext app = new SpringApplicationBuilder(BackendApplication.class).run(springArgs);
+        int port = ((WebServerApplicationContext) app).getWebServer().getPort();
+
+        // Browsers take frames of any size; the JSR-356 client stops at 8KB unless told otherwise
+        int maxFrameBytes = options.maxFrameKb() * 1024;
+        WebSocketContainer container = ContainerProvider.getWebSocketContainer();
+        container.setDefaultMaxTextMessageBufferSize(maxFrameBytes);
+        container.setDefaultMaxBinaryMessageBufferSize(maxFrameBytes);
+        boolean raw = options.transport().equals("websocket");
+        StandardWebSocketClient webSocketClient = new StandardWebSocketClient(container);
+        WebSocketStompClient stompClient = new WebSocketStompClient(
+            raw ? webSocketClient : new SockJsClient(List.of(new WebSocketTransport(webSocketClient))));
+        stompClient.setInboundMessageSizeLimit(maxFrameBytes);
+        // Frames are received as bytes (to count them) and decoded by the client; sends go binary or JSON by content-type
+        stompClient.setMessageConverter(new CompositeMessageConverter(List.of(
+            new RawPayloads(), new CrdtMessageConverter(), new MappingJackson2MessageConverter())));
+        String url = "ws://localhost:" + port + (raw ? "/ws/websocket" : "/ws");
+        boolean binary = options.codec().equals("binary");
+
+        // Sends can block on a busy socket; the sampler gets its own thread so it keeps time regardless
+        int threads = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+        ScheduledExecutorService ticks = Executors.newScheduledThreadPool(threads, r -> {
+            Thread t = new Thread(r, "load-tick");
+            t.setDaemon(true);
+            return t;
+        });
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "load-sampler");
+            t.setDaemon(true);
+            return t;
+        });
+
+        List<SimulatedClient> clients = new ArrayList<>();
+        for (int i = 0; i < options.clients(); i++) {
+            String documentId = "load-doc-" + (i % options.documents());
+            clients.add(new SimulatedClient(i, documentId, url, stompClient, binary, stats));
+        }
+
+        long connectStart = System.nanoTime();
+        connectAll(clients);
+        long connectMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStart);
+
+        for (SimulatedClient client : clients) {
+            every(ticks, options.typeRate(), client::type);
+            every(ticks, options.cursorRate(), client::moveCursor);
+            every(ticks, 0.1, client::heartbeat);  // as the browser does, so idle clients aren't swept
+        }
+        double reconnectChance = options.reconnectRate() * RECONNECT_TICK_MS / 60_000.0;
+        ticks.scheduleAtFixedRate(() -> {
+            for (SimulatedClient client : clients) {
+                if (ThreadLocalRandom.current().nextDouble() < reconnectChance) client.reconnect();
+            }
+        }, RECONNECT_TICK_MS, RECONNECT_TICK_MS, TimeUnit.MILLISECONDS);
+        sampler.scheduleAtFixedRate(() -> {
+            stats.expire(System.nanoTime());
+            peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+        }, 1, 1, TimeUnit.SECONDS);
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(options.warmupSeconds()));
+        stats.reset();
+        peakHeap.set(0);
+        long measureStart = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(options.durationSeconds()));
+        ticks.shutdownNow();
+        sampler.shutdownNow();
+        double seconds = (System.nanoTime() - measureStart) / 1e9;
+        // Broadcasts still in flight count toward the run
+        Thread.sleep(1000);
+        Histogram latency = stats.interval();
+
+        Map<String, Object> results = new LinkedHashMap<>();
+        results.put("timestamp", Instant.now().toString());
+        results.put("options", options);
+        results.put("app", appArgs);
+        results.put("connectMillis", connectMillis);
+        results.put("measuredSeconds", round(seconds));
+        results.put("latencyMillis", latency(latency));
+        results.put("throughput", throughput(seconds));
+        results.put("counts", counts());
+        results.put("heap", heap(app));
+
+        for (SimulatedClient client : clients) {
+            client.disconnect();
+        }
+        stompClient.stop();
+        app.close();
+        return results;
+    }
+
+    /** Connect everyone, at most max-connecting handshakes at a time. */
+    private void connectAll(List<SimulatedClient> clients) throws InterruptedException {
+        Semaphore inFlight = new Semaphore(options.maxConnecting());
+        List<CompletableFuture<Void>> connecting = new ArrayList<>();
+        for (SimulatedClient client : clients) {
+            inFlight.acquire();
+            connecting.add(client.connect().whenComplete((ignored, error) -> inFlight.release()));
+        }
+        for (CompletableFuture<Void> future : connecting) {
+            try {
+                future.get(30, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                // Counted as an error; the client retries on its first tick
+            }
+        }
+    }
+
+    /** Run the action `perSecond` times a second, from a random phase so clients don't tick in lockstep. */
+    private static void every(ScheduledExecutorService ticks, double perSecond, Runnable action) {
+        if (perSecond <= 0) return;
+        long periodMicros = (long) (1_000_000 / perSecond);
+        long initialDelay = ThreadLocalRandom.current().nextLong(periodMicros);
+        ticks.scheduleAtFixedRate(() -> {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                // A thrown tick would cancel the schedule
+            }
+        }, initialDelay, periodMicros, TimeUnit.MICROSECONDS);
+    }
+
+    private static Map<String, Object> latency(Histogram histogram) {
+        Map<String, Object> latency = new LinkedHashMap<>();
+        latency.put("samples", histogram.getTotalCount());
+        latency.put("mean", round(histogram.getMean() / 1e6));
+        latency.put("p50", round(histogram.getValueAtPercentile(50) / 1e6));
+        latency.put("p90", round(histogram.getValueAtPercentile(90) / 1e6));
+        latency.put("p99", round(histogram.getValueAtPercentile(99) / 1e6));
+        latency.put("p999", round(histogram.getValueAtPercentile(99.9) / 1e6));
+        latency.put("max", round(histogram.getMaxValue() / 1e6));
+        return latency;
+    }
+
+    private Map<String, Object> throughput(double seconds) {
+        Map<String, Object> throughput = new LinkedHashMap<>();
+        throughput.put("editsSentPerSecond", round(stats.editsSent.sum() / seconds));
+        throughput.put("editsDeliveredPerSecond", round(stats.editsDelivered.sum() / seconds));
+        throughput.put("framesReceivedPerSecond", round(stats.framesReceived.sum() / seconds));
+        throughput.put("payloadMbReceivedPerSecond", round(stats.bytesReceived.sum() / seconds / (1024.0 * 1024.0)));
+        throughput.put("cursorMovesPerSecond", round(stats.cursorsSent.sum() / seconds));
+        return throughput;
+    }
+
+    private Map<String, Object> counts() {
+        Map<String, Object> counts = new LinkedHashMap<>();
+        counts.put("editsSent", stats.editsSent.sum());
+        counts.put("editsDelivered", stats.editsDelivered.sum());
+        counts.put("unmatchedDeliveries", stats.unmatched.sum());
+        counts.put("framesReceived", stats.framesReceived.sum());
+        counts.put("payloadBytesReceived", stats.bytesReceived.sum());
+        counts.put("connects", stats.connects.sum());
+        counts.put("reconnects", stats.reconnects.sum());
+        counts.put("connectionsLost", stats.connectionsLost.sum());
+        counts.put("errors", stats.errors.sum());
+        return counts;
+    }
+
+    private Map<String, Object> heap(ConfigurableApplicationContext app) {
+        Map<String, Object> heap = new LinkedHashMap<>();
+        heap.put("peakUsedMb", mb(peakHeap.get()));
+        System.gc();
+        heap.put("usedAfterGcMb", mb(memory.getHeapMemoryUsage().getUsed()));
+        heap.put("maxMb", mb(memory.getHeapMemoryUsage().getMax()));
+        // The server's own estimate for resident documents, without the clients
+        Gauge resident = app.getBean(MeterRegistry.class).find("collab.documents.resident.bytes").gauge();
+        heap.put("residentDocumentsMb", resident == null ? null : mb((long) resident.value()));
+        return heap;
+    }
+
+    /** Hands frame payloads over as they came; never used for sending. */
+    private static final class RawPayloads implements MessageConverter {
+        @Override
+        public Object fromMessage(Message<?> message, Class<?> targetClass) {
+            return targetClass == byte[].class && message.getPayload() instanceof byte[] ? message.getPayload() : null;
+        }
+
+        @Override
+        public Message<?> toMessage(Object payload, MessageHeaders headers) {
+            return null;
+        }
+    }
+
+    private static double mb(long bytes) {
+        return round(bytes / (1024.0 * 1024.0));
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+}
@@ -0,0 +1,84 @@
+package com.collabeditor.backend.load;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and the latency histogram shared by every simulated client.
+ *
+ * A sent edit is remembered by its char id; each subscriber that gets it
+ * back in a broadcast records send-to-receive time. Edits nobody has seen
+ * after a while are forgotten by expire().
+ */
+final class LoadStats {
+
+    // Sent edits are forgotten after this long (late ones are counted, not timed)
+    private static final long FORGET_AFTER_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final Recorder latency = new Recorder(TimeUnit.MINUTES.toNanos(1), 3);
+    private final Map<Long, Long> sentAt = new ConcurrentHashMap<>();
+
+    final LongAdder editsSent = new LongAdder();
+    final LongAdder cursorsSent = new LongAdder();
+    final LongAdder editsDelivered = new LongAdder();
+    final LongAdder unmatched = new LongAdder();
+    final LongAdder framesReceived = new LongAdder();
+    final LongAdder bytesReceived = new LongAdder();
+    final LongAdder connects = new LongAdder();
+    final LongAdder reconnects = new LongAdder();
+    final LongAdder connectionsLost = new LongAdder();
+    final LongAdder errors = new LongAdder();
+
+    void sent(long key, long nanos) {
+        sentAt.put(key, nanos);
+        editsSent.increment();
+    }
+
+    void delivered(long key, long nanos) {
+        Long sent = sentAt.get(key);
+        if (sent == null) {
+            unmatched.increment();
+            return;
+        }
+        latency.recordValue(Math.max(0, nanos - sent));
+        editsDelivered.increment();
+    }
+
+    void expire(long now) {
+        sentAt.values().removeIf(sent -> now - sent > FORGET_AFTER_NANOS);
+    }
+
+    /** Latencies since the last call; the warm-up interval is thrown away this way. */
+    Histogram interval() {
+        return latency.getIntervalHistogram();
+    }
+
+    void reset() {
+        latency.reset();
+        for (LongAdder counter : new LongAdder[] {editsSent, cursorsSent, editsDelivered, unmatched,
+                framesReceived, bytesReceived, connects, reconnects, connectionsLost, errors}) {
+            counter.reset();
+        }
+    }
+
+    /** Key of char id "L{client}-{counter}". */
+    static long key(int client, int counter) {
+        return ((long) client << 32) | (counter & 0xFFFFFFFFL);
+    }
+
+    /** Key of a load client's char id, or -1 for anyone else's. */
+    static long key(String charId) {
+        int dash = charId == null ? -1 : charId.lastIndexOf('-');
+        if (dash < 2 || charId.charAt(0) != 'L') return -1;
+        try {
+            return key(Integer.parseInt(charId, 1, dash, 10), Integer.parseInt(charId, dash + 1, charId.length(), 10));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.collabeditor.backend.load;
+
+import com.collabeditor.backend.controller.CrdtWireCodec;
+import com.collabeditor.backend.controller.DocumentController;
+import com.collabeditor.backend.handler.WireFormats;
+import com.collabeditor.backend.model.CrdtChar;
+import com.collabeditor.backend.model.CrdtOperation;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
+import org.springframework.web.socket.WebSocketHttpHeaders;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * One browser tab: joins a document, types at the end of its own text,
+ * moves its cursor, and now and then drops the connection and comes back
+ * as the same site — the way a flaky network or a laptop lid does.
+ */
+final class SimulatedClient {
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private final int index;
+    private final String siteId;
+    private final String documentId;
+    private final String url;
+    private final WebSocketStompClient stompClient;
+    private final boolean binary;
+    private final LoadStats stats;
+
+    private volatile StompSession session;
+    private volatile boolean connecting;
+    private int clock;
+    private String lastId;
+
+    SimulatedClient(int index, String documentId, String url, WebSocketStompClient stompClient, boolean binary,
+                    LoadStats stats) {
+        this.index = index;
+        this.siteId = "L" + index;
+        this.documentId = documentId;
+        this.url = url;
+        this.stompClient = stompClient;
+        this.binary = binary;
+        this.stats = stats;
+    }
+
+    /** Connect, subscribe and join. Completes once the STOMP session is up. */
+    CompletableFuture<Void> connect() {
+        connecting = true;
+        StompHeaders connectHeaders = new StompHeaders();
+        if (binary) {
+            connectHeaders.set(WireFormats.CODEC_HEADER, WireFormats.BINARY);
+        }
+        return stompClient.connectAsync(url, new WebSocketHttpHeaders(), connectHeaders, new Handler())
+            .thenAccept(connected -> {
+                subscribe(connected, "/topic/document/" + documentId, true);
+                subscribe(connected, "/topic/cursor/" + documentId, false);
+                subscribe(connected, "/topic/presence/" + documentId, false);
+
+                DocumentController.JoinMessage join = new DocumentController.JoinMessage();
+                join.setDocumentId(documentId);
+                join.setSiteId(siteId);
+                join.setUserName("load-" + index);
+                connected.send("/app/document.join", join);
+
+                session = connected;
+                stats.connects.increment();
+            })
+            .whenComplete((ignored, error) -> {
+                if (error != null) stats.errors.increment();
+                connecting = false;
+            });
+    }
+
+    /** Type one char after the last one this client typed. */
+    synchronized void type() {
+        StompSession current = session;
+        if (current == null || !current.isConnected()) {
+            reconnect();
+            return;
+        }
+        clock++;
+        String id = siteId + "-" + clock;
+        char value = (char) ('a' + ThreadLocalRandom.current().nextInt(26));
+        DocumentController.EditMessage edit = new DocumentController.EditMessage();
+        edit.setDocumentId(documentId);
+        edit.setOperation(new CrdtOperation(CrdtOperation.Type.INSERT,
+            new CrdtChar(id, value, lastId, clock, siteId, false), documentId, siteId, clock));
+        stats.sent(LoadStats.key(index, clock), System.nanoTime());
+        try {
+            current.send(headers("/app/document.edit"), edit);
+            lastId = id;
+        } catch (RuntimeException e) {
+            // The char never left; the next one takes its clock
+            clock--;
+            stats.errors.increment();
+        }
+    }
+
+    synchronized void moveCursor() {
+        StompSession current = session;
+        if (current == null || !current.isConnected()) return;
+        DocumentController.CursorMessage cursor = new DocumentController.CursorMessage();
+        cursor.setDocumentId(documentId);
+        cursor.setSiteId(siteId);
+        cursor.setUserName("load-" + index);
+        cursor.setColor("#888888");
+        cursor.setAnchorId(lastId);
+        try {
+            current.send(headers("/app/document.cursor"), cursor);
+            stats.cursorsSent.increment();
+        } catch (RuntimeException e) {
+            stats.errors.increment();
+        }
+    }
+
+    void heartbeat() {
+        StompSession current = session;
+        if (current == null || !current.isConnected()) return;
+        DocumentController.PresenceRequest heartbeat = new DocumentController.PresenceRequest();
+        heartbeat.setDocumentId(documentId);
+        heartbeat.setSiteId(siteId);
+        try {
+            current.send("/app/document.heartbeat", heartbeat);
+        } catch (RuntimeException e) {
+            stats.errors.increment();
+        }
+    }
+
+    /** Drop the connection without a leave, then come back. No-op while a connect is in flight. */
+    synchronized void reconnect() {
+        if (connecting) return;
+        StompSession current = session;
+        session = null;
+        if (current != null && current.isConnected()) {
+            current.disconnect();
+        }
+        stats.reconnects.increment();
+        connect();
+    }
+
+    void disconnect() {
+        StompSession current = session;
+        session = null;
+        if (current != null && current.isConnected()) {
+            current.disconnect();
+        }
+    }
+
+    private StompHeaders headers(String destination) {
+        StompHeaders headers = new StompHeaders();
+        headers.setDestination(destination);
+        if (binary) {
+            headers.setContentType(WireFormats.MIME_TYPE);
+        }
+        return headers;
+    }
+
+    /** Raw payloads, so bytes can be counted; edits are decoded here by content-type. */
+    private void subscribe(StompSession connected, String destination, boolean edits) {
+        connected.subscribe(destination, new StompFrameHandler() {
+            @Override
+            public Type getPayloadType(StompHeaders headers) {
+                return byte[].class;
+            }
+
+            @Override
+            public void handleFrame(StompHeaders headers, Object payload) {
+                long now = System.nanoTime();
+                byte[] bytes = (byte[]) payload;
+                stats.framesReceived.increment();
+                stats.bytesReceived.add(bytes.length);
+                if (!edits) return;
+                try {
+                    if (headers.getContentType() != null && WireFormats.MIME_TYPE.equalsTypeAndSubtype(headers.getContentType())) {
+                        deliveredDecoded(CrdtWireCodec.decode(bytes), now);
+                    } else {
+                        delivered(JSON.readTree(bytes), now);
+                    }
+                } catch (IOException | IllegalArgumentException e) {
+                    stats.errors.increment();
+                }
+            }
+        });
+    }
+
+    /** A decoded binary frame; only inserts are timed, as with JSON. */
+    private void deliveredDecoded(Object frame, long now) {
+        if (frame instanceof DocumentController.EditBatchMessage batch) {
+            for (CrdtOperation op : batch.getOperations()) {
+                deliveredOp(op, now);
+            }
+        } else if (frame instanceof DocumentController.EditMessage edit) {
+            deliveredOp(edit.getOperation(), now);
+        }
+    }
+
+    private void deliveredOp(CrdtOperation op, long now) {
+        if (op.getType() != CrdtOperation.Type.INSERT) return;
+        long key = LoadStats.key(op.getCharacter().getId());
+        if (key >= 0) {
+            stats.delivered(key, now);
+        }
+    }
+
+    /** A lone EditMessage or an EditBatchMessage; only inserts are timed. */
+    private void delivered(JsonNode frame, long now) {
+        if (frame.has("operations")) {
+            for (JsonNode op : frame.get("operations")) {
+                deliveredOp(op, now);
+            }
+        } else if (frame.has("operation")) {
+            deliveredOp(frame.get("operation"), now);
+        }
+    }
+
+    private void deliveredOp(JsonNode op, long now) {
+        if (!"INSERT".equals(op.path("type").asText())) return;
+        long key = LoadStats.key(op.path("character").path("id").asText(null));
+        if (key >= 0) {
+            stats.delivered(key, now);
+        }
+    }
+
+    private class Handler extends StompSessionHandlerAdapter {
+        @Override
+        public void handleException(StompSession s, StompCommand command, StompHeaders headers, byte[] payload, Throwable exception) {
+            stats.errors.increment();
+        }
+
+        @Override
+        public void handleTransportError(StompSession s, Throwable exception) {
+            // Includes the server closing a session that fell behind; the next tick reconnects
+            if (s == session) {
+                session = null;
+                stats.connectionsLost.increment();
+            }
+        }
+    }
+}
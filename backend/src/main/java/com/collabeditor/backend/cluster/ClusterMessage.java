@@ -0,0 +1,52 @@
+package com.collabeditor.backend.cluster;
+
+/**
+ * One message between nodes. Which fields are set depends on the type.
+ *
+ * @param destination STOMP destination of a relayed frame
+ * @param sessionId   the sender's WebSocket session, for INBOUND and SESSION_CLOSED
+ * @param payload     frame body (INBOUND, BROADCAST), encoded state (STATE) or the users handed over (RELEASED)
+ * @param requestId   pairs RELEASE with RELEASED and STATE_REQUEST with STATE
+ * @param revision    document revision of a STATE reply
+ */
+public record ClusterMessage(Type type, String from, String documentId, String destination, String sessionId,
+                             String contentType, byte[] payload, long requestId, long revision) {
+
+    public enum Type {
+        /** A client frame for a document the sender doesn't own. */
+        INBOUND,
+        /** A /topic frame the owner sent, for the receiver's own subscribers. */
+        BROADCAST,
+        /** A client session that sent INBOUND frames has disconnected. */
+        SESSION_CLOSED,
+        /** "Flush and unload this document, I own it now." */
+        RELEASE,
+        RELEASED,
+        /** Read-only copy of a document, for REST reads on a non-owner. */
+        STATE_REQUEST,
+        STATE,
+        /** Delete the document (REST DELETE on a non-owner). */
+        CLEAR
+    }
+
+    static ClusterMessage inbound(String from, String documentId, String destination, String sessionId,
+                                  String contentType, byte[] payload) {
+        return new ClusterMessage(Type.INBOUND, from, documentId, destination, sessionId, contentType, payload, 0, 0);
+    }
+
+    static ClusterMessage broadcast(String from, String destination, String contentType, byte[] payload) {
+        return new ClusterMessage(Type.BROADCAST, from, null, destination, null, contentType, payload, 0, 0);
+    }
+
+    static ClusterMessage sessionClosed(String from, String sessionId) {
+        return new ClusterMessage(Type.SESSION_CLOSED, from, null, null, sessionId, null, null, 0, 0);
+    }
+
+    static ClusterMessage request(Type type, String from, String documentId, long requestId) {
+        return new ClusterMessage(type, from, documentId, null, null, null, null, requestId, 0);
+    }
+
+    static ClusterMessage reply(ClusterMessage request, Type type, String from, byte[] payload, long revision) {
+        return new ClusterMessage(type, from, request.documentId(), null, null, null, payload, request.requestId(), revision);
+    }
+}
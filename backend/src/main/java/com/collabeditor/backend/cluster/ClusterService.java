@@ -0,0 +1,512 @@
+package com.collabeditor.backend.cluster;
+
+import com.collabeditor.backend.controller.CrdtWireCodec;
+import com.collabeditor.backend.controller.DocumentController;
+import com.collabeditor.backend.handler.WebSocketEventHandler;
+import com.collabeditor.backend.handler.WireFormats;
+import com.collabeditor.backend.model.CrdtOperation;
+import com.collabeditor.backend.service.CrdtDocument;
+import com.collabeditor.backend.service.CrdtStateCodec;
+import com.collabeditor.backend.service.DocumentExecutor;
+import com.collabeditor.backend.service.DocumentLoadGate;
+import com.collabeditor.backend.service.DocumentService;
+import com.collabeditor.backend.service.SessionManager;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.event.EventListener;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageDeliveryException;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Service;
+import org.springframework.util.MimeType;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Clustering: every document is owned by one node, picked by consistent
+ * hashing over the members. Only the owner holds the CRDT; the other nodes
+ * are gateways for the clients connected to them.
+ *
+ * - Client frames (/app/document.*) for a document owned elsewhere are
+ *   forwarded to the owner, which feeds them through its own inbound channel
+ *   as if the client were connected there.
+ * - Everything the owner publishes on /topic is relayed to the other nodes
+ *   and handed to their brokers, so subscribers anywhere get it.
+ * - REST reads on a gateway fetch a read-only copy from the owner.
+ *
+ * When the members change, each node unloads (snapshot + evict, on the
+ * document's lane) the documents it no longer owns. A new owner loading a
+ * document for the first time since the change first asks every other
+ * member to release it and waits for them, so it never reads the database
+ * before the old owner's last edits are in it. Ops still waiting for a
+ * parent on the old owner are forwarded along with the release, and the
+ * reply carries the document's users (with their acks, which tombstone GC
+ * goes by) and sessions, so the new owner takes them over. Client frames
+ * still queued on the old owner's lane follow the document there rather than
+ * loading it back. A member that doesn't answer in time fails the load; the
+ * next one asks again.
+ *
+ * With collab.cluster.enabled=false every document is local and none of
+ * this does anything.
+ */
+@Service
+public class ClusterService implements DocumentLoadGate {
+
+    private static final Logger log = LoggerFactory.getLogger(ClusterService.class);
+
+    /** Marks a /topic frame that came from another node, so it isn't relayed again. */
+    static final String RELAYED_HEADER = "clusterRelayed";
+
+    private final ClusterTransport transport;
+    private final DocumentService documentService;
+    private final DocumentExecutor documentExecutor;
+    private final WebSocketEventHandler eventHandler;
+    private final SessionManager sessionManager;
+    private final ObjectMapper objectMapper;
+    private final MessageChannel clientInboundChannel;
+    private final MessageChannel brokerChannel;
+    private final boolean enabled;
+    private final String nodeId;
+    private final long handoffTimeoutMillis;
+
+    private volatile HashRing ring;
+    private volatile HashRing previousRing;  // before the last membership change; null = no change yet
+    private final Set<String> loadableSinceChange = ConcurrentHashMap.newKeySet();
+    // Local session → owners it has sent frames to, told when it disconnects
+    private final Map<String, Set<String>> remoteSessions = new ConcurrentHashMap<>();
+    private final Map<Long, CompletableFuture<ClusterMessage>> replies = new ConcurrentHashMap<>();
+    private final AtomicLong requestIds = new AtomicLong();
+
+    public ClusterService(ClusterTransport transport,
+                          DocumentService documentService,
+                          DocumentExecutor documentExecutor,
+                          WebSocketEventHandler eventHandler,
+                          SessionManager sessionManager,
+                          ObjectMapper objectMapper,
+                          @Lazy @Qualifier("clientInboundChannel") MessageChannel clientInboundChannel,
+                          @Lazy @Qualifier("brokerChannel") MessageChannel brokerChannel,
+                          @Value("${collab.cluster.enabled:false}") boolean enabled,
+                          @Value("${collab.cluster.node-id:node-1}") String nodeId,
+                          @Value("${collab.cluster.members:}") String members,
+                          @Value("${collab.cluster.handoff-timeout-ms:5000}") long handoffTimeoutMillis) {
+        this.transport = transport;
+        this.documentService = documentService;
+        this.documentExecutor = documentExecutor;
+        this.eventHandler = eventHandler;
+        this.sessionManager = sessionManager;
+        this.objectMapper = objectMapper;
+        this.clientInboundChannel = clientInboundChannel;
+        this.brokerChannel = brokerChannel;
+        this.enabled = enabled;
+        this.nodeId = nodeId;
+        this.handoffTimeoutMillis = handoffTimeoutMillis;
+
+        List<String> memberList = Arrays.stream(members.split(",")).map(String::trim).filter(m -> !m.isEmpty()).toList();
+        this.ring = new HashRing(memberList.isEmpty() ? List.of(nodeId) : memberList);
+        if (enabled) {
+            transport.register(nodeId, this::receive);
+            documentService.setLoadGate(this);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (enabled) {
+            transport.unregister(nodeId);
+        }
+    }
+
+    public boolean isEnabled() { return enabled; }
+    public String getNodeId() { return nodeId; }
+    public List<String> getMembers() { return ring.getMembers(); }
+
+    public String ownerOf(String documentId) {
+        return ring.ownerOf(documentId);
+    }
+
+    @Override
+    public boolean isLocal(String documentId) {
+        return !enabled || nodeId.equals(ownerOf(documentId));
+    }
+
+    /**
+     * Switch to a new member list. Call it on every node; documents this
+     * node no longer owns are unloaded in the background.
+     */
+    public synchronized void setMembers(List<String> members) {
+        previousRing = ring;
+        ring = new HashRing(members);
+        loadableSinceChange.clear();
+        for (CrdtDocument doc : documentService.getActiveDocuments()) {
+            if (!isLocal(doc.getDocumentId())) {
+                releaseOnLane(doc.getDocumentId(), ownerOf(doc.getDocumentId()), null);
+            }
+        }
+        log.info("Cluster members now {} (node {})", members, nodeId);
+    }
+
+    /**
+     * The document for a read: the resident copy, or a read-only copy of the
+     * owner's. The owner holds tombstone GC back to it for a while either way
+     * (SessionManager.stateServed).
+     */
+    public CrdtDocument documentForRead(String documentId) {
+        if (isLocal(documentId)) {
+            CrdtDocument doc = documentService.getOrLoadDocument(documentId);
+            sessionManager.stateServed(documentId, doc.getRevision());
+            return doc;
+        }
+        String owner = ownerOf(documentId);
+        ClusterMessage reply = await(List.of(request(owner, ClusterMessage.Type.STATE_REQUEST, documentId))).get(0);
+        if (reply == null) {
+            throw new IllegalStateException("No state for " + documentId + " from node " + owner);
+        }
+        CrdtDocument copy = new CrdtDocument(documentId);
+        CrdtStateCodec.State state = CrdtStateCodec.decodeState(reply.payload());
+        copy.loadFromState(state.chars(), reply.revision(), state.collected(), state.forwards());
+        return copy;
+    }
+
+    public void clearDocument(String documentId) {
+        if (isLocal(documentId)) {
+            documentService.clearDocument(documentId);
+        } else {
+            transport.send(ownerOf(documentId), ClusterMessage.request(ClusterMessage.Type.CLEAR, nodeId, documentId, 0));
+        }
+    }
+
+    // --- Handoff ---
+
+    /**
+     * New owner, first load since the members changed: wait until nobody
+     * else still has it loaded. Nobody but the owner loads it at all — a
+     * stale copy here would take edits the owner never sees.
+     */
+    @Override
+    public void awaitLoadable(String documentId) {
+        if (!isLocal(documentId)) {
+            throw new IllegalStateException("Document " + documentId + " is owned by node " + ownerOf(documentId));
+        }
+        if (previousRing == null || loadableSinceChange.contains(documentId)) return;
+
+        Set<String> others = new LinkedHashSet<>(previousRing.getMembers());
+        others.addAll(ring.getMembers());
+        others.remove(nodeId);
+        List<CompletableFuture<ClusterMessage>> releases = new ArrayList<>();
+        for (String node : others) {
+            releases.add(request(node, ClusterMessage.Type.RELEASE, documentId));
+        }
+        List<ClusterMessage> released = await(releases);
+        for (int i = 0; i < releases.size(); i++) {
+            if (released.get(i) == null && !releases.get(i).isDone()) {
+                // It may still hold edits the database doesn't have
+                throw new IllegalStateException("Handoff of document " + documentId + " timed out; not loading it here yet");
+            }
+        }
+        for (ClusterMessage reply : released) {
+            if (reply != null) adopt(reply);
+        }
+        loadableSinceChange.add(documentId);
+    }
+
+    /** The users and sessions a RELEASED reply carries over. */
+    private void adopt(ClusterMessage released) {
+        if (released.payload() == null) return;
+        try {
+            Handoff handoff = objectMapper.readValue(released.payload(), Handoff.class);
+            eventHandler.adopt(released.documentId(), handoff.users(), handoff.sessions());
+        } catch (IOException e) {
+            log.warn("Unreadable handoff of document {} from node {}", released.documentId(), released.from(), e);
+        }
+    }
+
+    /** Old owner, after the release: the document's users and sessions, removed here, for the new owner. */
+    private byte[] handOver(String documentId) {
+        List<SessionManager.Member> users = sessionManager.takeUsers(documentId);
+        Map<String, String> sessions = new HashMap<>();
+        eventHandler.takeSessions(documentId).forEach((sessionId, siteId) -> sessions.put(portableSessionId(sessionId), siteId));
+        if (users.isEmpty() && sessions.isEmpty()) return null;
+        try {
+            return objectMapper.writeValueAsBytes(new Handoff(users, sessions));
+        } catch (JsonProcessingException e) {
+            log.warn("Lost the users of document {} in handoff", documentId, e);
+            return null;
+        }
+    }
+
+    /** Users, and wsSessionId → siteId of the sessions in the document, as the new owner will know them. */
+    record Handoff(List<SessionManager.Member> users, Map<String, String> sessions) {}
+
+    /** `to` is the node taking the document over; it gets any ops still waiting for a parent. */
+    private void releaseOnLane(String documentId, String to, Runnable then) {
+        documentExecutor.execute(documentId, () -> {
+            try {
+                release(documentId, to);
+            } finally {
+                if (then != null) then.run();
+            }
+        });
+    }
+
+    /** Runs on the document's lane, so every edit queued before it is already applied. */
+    private void release(String documentId, String to) {
+        if (!documentService.isResident(documentId)) return;
+        List<CrdtOperation> pending = documentService.getOrLoadDocument(documentId).drainPending();
+        documentService.evictDocument(documentId);  // snapshots it first if dirty
+        log.debug("Released document {} to node {}", documentId, to);
+
+        if (!pending.isEmpty()) {
+            DocumentController.EditBatchMessage batch = new DocumentController.EditBatchMessage();
+            batch.setDocumentId(documentId);
+            batch.setOperations(pending);
+            try {
+                transport.send(to, ClusterMessage.inbound(nodeId, documentId, "/app/document.editBatch",
+                    "handoff", "application/json", objectMapper.writeValueAsBytes(batch)));
+            } catch (JsonProcessingException e) {
+                log.warn("Lost {} buffered ops of document {} in handoff", pending.size(), documentId, e);
+            }
+        }
+    }
+
+    // --- Requests and replies ---
+
+    private CompletableFuture<ClusterMessage> request(String node, ClusterMessage.Type type, String documentId) {
+        long requestId = requestIds.incrementAndGet();
+        CompletableFuture<ClusterMessage> reply = new CompletableFuture<>();
+        replies.put(requestId, reply);
+        if (!transport.send(node, ClusterMessage.request(type, nodeId, documentId, requestId))) {
+            replies.remove(requestId);
+            reply.complete(null);  // node is gone; nothing to wait for
+        }
+        return reply;
+    }
+
+    /** Replies in order, null for any that didn't come within the handoff timeout. */
+    private List<ClusterMessage> await(List<CompletableFuture<ClusterMessage>> pending) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(handoffTimeoutMillis);
+        List<ClusterMessage> results = new ArrayList<>(pending.size());
+        for (CompletableFuture<ClusterMessage> future : pending) {
+            try {
+                results.add(future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            } catch (TimeoutException e) {
+                log.warn("Cluster request timed out after {} ms", handoffTimeoutMillis);
+                results.add(null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                results.add(null);
+            } catch (ExecutionException e) {
+                results.add(null);
+            }
+        }
+        replies.values().removeAll(pending);  // timed out; a late reply is ignored
+        return results;
+    }
+
+    private void receive(ClusterMessage message) {
+        switch (message.type()) {
+            case INBOUND -> injectInbound(message);
+            case BROADCAST -> injectBroadcast(message);
+            case SESSION_CLOSED -> eventHandler.sessionClosed(remoteSessionId(message.from(), message.sessionId()));
+            case RELEASE -> {
+                // Only nodes that own the document under their own members load it, so the sender does; if
+                // we haven't been told those members yet, we still flush and let go, but our ring decides
+                // where our own clients' frames go until we are
+                releaseOnLane(message.documentId(), message.from(), () -> transport.send(message.from(),
+                    ClusterMessage.reply(message, ClusterMessage.Type.RELEASED, nodeId, handOver(message.documentId()), 0)));
+            }
+            case STATE_REQUEST -> documentExecutor.execute(message.documentId(),
+                    documentService.loadDocument(message.documentId()), () -> {
+                CrdtDocument.Snapshot snapshot = documentService.getOrLoadDocument(message.documentId()).snapshot();
+                sessionManager.stateServed(message.documentId(), snapshot.revision());
+                transport.send(message.from(), ClusterMessage.reply(message, ClusterMessage.Type.STATE, nodeId,
+                    CrdtStateCodec.encode(snapshot.chars(), snapshot.collected(), snapshot.forwards()), snapshot.revision()));
+            });
+            case CLEAR -> documentExecutor.execute(message.documentId(), () -> documentService.clearDocument(message.documentId()));
+            case RELEASED -> {
+                CompletableFuture<ClusterMessage> reply = replies.remove(message.requestId());
+                if (reply != null) {
+                    reply.complete(message);
+                } else {
+                    adopt(message);  // too late for its load, but the users it hands over are still ours
+                }
+            }
+            case STATE -> {
+                CompletableFuture<ClusterMessage> reply = replies.remove(message.requestId());
+                if (reply != null) reply.complete(message);
+            }
+        }
+    }
+
+    // --- STOMP routing ---
+
+    /**
+     * clientInboundChannel: frames for a document owned elsewhere go there
+     * instead. The document id is read from the JSON or binary payload; a
+     * frame it can't be read from is rejected.
+     */
+    public Message<?> routeInbound(Message<?> message) {
+        if (!enabled || !(message.getPayload() instanceof byte[] payload)) return message;
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.wrap(message);
+        String destination = accessor.getDestination();
+        if (accessor.getMessageType() != SimpMessageType.MESSAGE
+                || destination == null || !destination.startsWith("/app/document.")) {
+            return message;
+        }
+        MimeType contentType = accessor.getContentType();
+        String documentId = documentIdOf(payload, contentType);
+        if (documentId == null) {
+            // Handling it here could apply it to a copy this node doesn't own
+            throw new MessageDeliveryException(message, "No document id in frame for " + destination);
+        }
+        if (isLocal(documentId)) return message;
+
+        String owner = ownerOf(documentId);
+        String sessionId = accessor.getSessionId();
+        if (sessionId != null) {
+            remoteSessions.computeIfAbsent(sessionId, k -> ConcurrentHashMap.newKeySet()).add(owner);
+        }
+        transport.send(owner, ClusterMessage.inbound(nodeId, documentId, destination, sessionId,
+            contentType != null ? contentType.toString() : null, payload));
+        return null;  // handled by the owner
+    }
+
+    /**
+     * For a lane task whose document stopped being local while it was queued
+     * (the members changed): sends its frame on to the owner, as the client's
+     * gateway would have, and returns true so the task doesn't load the
+     * document back here. False if the document is local.
+     */
+    public boolean forwardIfMoved(String documentId, String destination, String sessionId, Object payload) {
+        if (isLocal(documentId)) return false;
+        String owner = ownerOf(documentId);
+        String gateway = forwardingNode(sessionId);
+        String from = nodeId;
+        if (gateway != null) {
+            // Keeps the id the session has everywhere else
+            from = gateway;
+            sessionId = sessionId.substring(gateway.length() + 1);
+        } else if (sessionId != null) {
+            remoteSessions.computeIfAbsent(sessionId, k -> ConcurrentHashMap.newKeySet()).add(owner);
+        }
+        try {
+            transport.send(owner, ClusterMessage.inbound(from, documentId, destination, sessionId,
+                "application/json", objectMapper.writeValueAsBytes(payload)));
+        } catch (JsonProcessingException e) {
+            log.warn("Lost a frame for document {} on its way to node {}", documentId, owner, e);
+        }
+        return true;
+    }
+
+    /** brokerChannel: copy what this node publishes on /topic to the other nodes. */
+    public Message<?> relayOutbound(Message<?> message) {
+        if (!enabled || message.getHeaders().containsKey(RELAYED_HEADER)
+                || !(message.getPayload() instanceof byte[] payload)) {
+            return message;
+        }
+        String destination = SimpMessageHeaderAccessor.getDestination(message.getHeaders());
+        if (destination == null || !destination.startsWith("/topic/")) return message;
+
+        MimeType contentType = SimpMessageHeaderAccessor.wrap(message).getContentType();
+        ClusterMessage relayed = ClusterMessage.broadcast(nodeId, destination,
+            contentType != null ? contentType.toString() : null, payload);
+        Set<String> nodes = new LinkedHashSet<>(ring.getMembers());
+        if (previousRing != null) {
+            nodes.addAll(previousRing.getMembers());  // leaving nodes may still have clients
+        }
+        nodes.remove(nodeId);
+        for (String node : nodes) {
+            transport.send(node, relayed);
+        }
+        return message;
+    }
+
+    @EventListener
+    public void handleDisconnect(SessionDisconnectEvent event) {
+        Set<String> owners = remoteSessions.remove(event.getSessionId());
+        if (owners == null) return;
+        for (String owner : owners) {
+            transport.send(owner, ClusterMessage.sessionClosed(nodeId, event.getSessionId()));
+        }
+    }
+
+    private void injectInbound(ClusterMessage message) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setDestination(message.destination());
+        accessor.setSessionId(remoteSessionId(message.from(), message.sessionId()));
+        accessor.setSessionAttributes(new ConcurrentHashMap<>());
+        if (message.contentType() != null) {
+            accessor.setContentType(MimeType.valueOf(message.contentType()));
+        }
+        clientInboundChannel.send(MessageBuilder.createMessage(message.payload(), accessor.getMessageHeaders()));
+    }
+
+    private void injectBroadcast(ClusterMessage message) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setDestination(message.destination());
+        if (message.contentType() != null) {
+            accessor.setContentType(MimeType.valueOf(message.contentType()));
+        }
+        accessor.setHeader(RELAYED_HEADER, Boolean.TRUE);
+        brokerChannel.send(MessageBuilder.createMessage(message.payload(), accessor.getMessageHeaders()));
+    }
+
+    /** A session id as another node knows it: a forwarded one already is, a local one gets this node's prefix. */
+    private String portableSessionId(String sessionId) {
+        return forwardingNode(sessionId) != null ? sessionId : remoteSessionId(nodeId, sessionId);
+    }
+
+    /** The gateway a forwarded session id came from, or null for a session of this node's own. */
+    private String forwardingNode(String sessionId) {
+        int colon = sessionId == null ? -1 : sessionId.indexOf(':');
+        if (colon <= 0) return null;
+        String node = sessionId.substring(0, colon);
+        boolean member = ring.getMembers().contains(node) || previousRing != null && previousRing.getMembers().contains(node);
+        return member ? node : null;
+    }
+
+    /** Session id a forwarded client gets on the owner — unique across gateways. */
+    private static String remoteSessionId(String node, String sessionId) {
+        return node + ":" + sessionId;
+    }
+
+    /** Null if the frame can't be read or names no document. */
+    private String documentIdOf(byte[] payload, MimeType contentType) {
+        if (contentType != null && WireFormats.MIME_TYPE.equalsTypeAndSubtype(contentType)) {
+            try {
+                return CrdtWireCodec.documentIdOf(payload);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+        try {
+            JsonNode documentId = objectMapper.readTree(payload).get("documentId");
+            return documentId != null && documentId.isTextual() ? documentId.asText() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
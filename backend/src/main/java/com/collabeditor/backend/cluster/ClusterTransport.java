@@ -0,0 +1,22 @@
+package com.collabeditor.backend.cluster;
+
+import java.util.function.Consumer;
+
+/**
+ * How nodes reach each other. Implementations must deliver the messages from
+ * one sender to one receiver in the order they were sent, and must not run
+ * the receiver on the sender's thread.
+ */
+public interface ClusterTransport {
+
+    /** Start delivering messages addressed to nodeId. */
+    void register(String nodeId, Consumer<ClusterMessage> receiver);
+
+    void unregister(String nodeId);
+
+    /**
+     * Fire and forget. Returns false if the node is known to be unreachable
+     * (the message is dropped); true only means it was handed off.
+     */
+    boolean send(String nodeId, ClusterMessage message);
+}
@@ -0,0 +1,56 @@
+package com.collabeditor.backend.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing of document ids onto cluster nodes.
+ *
+ * Each node gets VIRTUAL_NODES points on a 64-bit ring; a document belongs to
+ * the first point at or after its own hash. Adding or removing a node only
+ * moves the documents in the arcs that node gains or loses.
+ */
+public final class HashRing {
+
+    static final int VIRTUAL_NODES = 128;
+
+    private final TreeMap<Long, String> points = new TreeMap<>();
+    private final List<String> members;
+
+    public HashRing(List<String> members) {
+        this.members = List.copyOf(members);
+        for (String node : this.members) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                points.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    /** Owning node, or null for an empty ring. */
+    public String ownerOf(String documentId) {
+        if (points.isEmpty()) return null;
+        Map.Entry<Long, String> point = points.ceilingEntry(hash(documentId));
+        return point != null ? point.getValue() : points.firstEntry().getValue();
+    }
+
+    public List<String> getMembers() {
+        return members;
+    }
+
+    /** FNV-1a over the UTF-8 bytes, then a 64-bit finalizer to spread nearby keys. */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
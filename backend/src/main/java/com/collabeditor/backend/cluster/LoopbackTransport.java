@@ -0,0 +1,71 @@
+package com.collabeditor.backend.cluster;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * In-process transport: every node registered in this JVM can reach every
+ * other one, whichever application context it lives in. Each node gets one
+ * delivery thread, so messages arrive in send order.
+ *
+ * Good for tests and single-machine clusters; real deployments plug in a
+ * network transport instead.
+ */
+public class LoopbackTransport implements ClusterTransport {
+
+    private static final Logger log = LoggerFactory.getLogger(LoopbackTransport.class);
+
+    // Shared by every instance — this is the "network"
+    private static final Map<String, Endpoint> NODES = new ConcurrentHashMap<>();
+
+    private record Endpoint(ExecutorService delivery, Consumer<ClusterMessage> receiver) {}
+
+    @Override
+    public void register(String nodeId, Consumer<ClusterMessage> receiver) {
+        ExecutorService delivery = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "cluster-loopback-" + nodeId);
+            t.setDaemon(true);
+            return t;
+        });
+        Endpoint previous = NODES.put(nodeId, new Endpoint(delivery, receiver));
+        if (previous != null) {
+            previous.delivery().shutdown();
+        }
+    }
+
+    @Override
+    public void unregister(String nodeId) {
+        Endpoint endpoint = NODES.remove(nodeId);
+        if (endpoint != null) {
+            endpoint.delivery().shutdown();
+        }
+    }
+
+    @Override
+    public boolean send(String nodeId, ClusterMessage message) {
+        Endpoint endpoint = NODES.get(nodeId);
+        if (endpoint == null) {
+            log.debug("Dropping {} for unknown node {}", message.type(), nodeId);
+            return false;
+        }
+        try {
+            endpoint.delivery().execute(() -> {
+                try {
+                    endpoint.receiver().accept(message);
+                } catch (Exception e) {
+                    log.warn("Node {} failed to handle {}", nodeId, message.type(), e);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;  // unregistered while we were sending
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.collabeditor.backend.config;
+
+import com.collabeditor.backend.cluster.ClusterTransport;
+import com.collabeditor.backend.cluster.LoopbackTransport;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class ClusterConfig {
+
+    /** Nodes in the same JVM only; define another ClusterTransport bean to span machines. */
+    @Bean
+    @ConditionalOnMissingBean
+    public ClusterTransport clusterTransport() {
+        return new LoopbackTransport();
+    }
+}
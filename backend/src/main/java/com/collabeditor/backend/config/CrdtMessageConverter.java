@@ -0,0 +1,50 @@
+package com.collabeditor.backend.config;
+
+import com.collabeditor.backend.controller.CrdtWireCodec;
+import com.collabeditor.backend.controller.DocumentController;
+import com.collabeditor.backend.handler.WireFormats;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.AbstractMessageConverter;
+import org.springframework.messaging.converter.MessageConversionException;
+
+import java.util.List;
+
+/**
+ * Reads and writes CrdtWireCodec frames. Only used for messages that say
+ * they're binary (content-type application/octet-stream), so JSON stays the
+ * default both ways.
+ */
+public class CrdtMessageConverter extends AbstractMessageConverter {
+
+    public CrdtMessageConverter() {
+        super(WireFormats.MIME_TYPE);
+        setStrictContentTypeMatch(true);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return CrdtWireCodec.supports(clazz);
+    }
+
+    @Override
+    protected Object convertFromInternal(Message<?> message, Class<?> targetClass, Object conversionHint) {
+        if (!(message.getPayload() instanceof byte[] payload)) return null;
+        Object frame;
+        try {
+            frame = CrdtWireCodec.decode(payload);
+        } catch (IllegalArgumentException e) {
+            throw new MessageConversionException(message, "Malformed binary frame: " + e.getMessage(), e);
+        }
+        // A client sends its cursor as a table of one
+        if (targetClass == DocumentController.CursorMessage.class && frame instanceof List<?> cursors) {
+            return cursors.size() == 1 ? cursors.get(0) : null;
+        }
+        return targetClass.isInstance(frame) ? frame : null;
+    }
+
+    @Override
+    protected Object convertToInternal(Object payload, MessageHeaders headers, Object conversionHint) {
+        return CrdtWireCodec.encode(payload);
+    }
+}
@@ -1,19 +1,86 @@
 package com.collabeditor.backend.config;
 
+import com.collabeditor.backend.cluster.ClusterService;
+import com.collabeditor.backend.handler.OutboundQueues;
+import com.collabeditor.backend.handler.WireFormats;
+import com.collabeditor.backend.metrics.EditMetrics;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.messaging.simp.config.ChannelRegistration;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
+import org.springframework.messaging.support.ChannelInterceptor;
 import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
 import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
+
+import java.util.List;
 
 @Configuration
 @EnableWebSocketMessageBroker
 public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
 
+    private final ClusterService clusterService;
+    private final EditMetrics metrics;
+    private final OutboundQueues outboundQueues;
+    private final WireFormats wireFormats;
+
+    public WebSocketConfig(@Lazy ClusterService clusterService, EditMetrics metrics, OutboundQueues outboundQueues,
+                           WireFormats wireFormats) {
+        this.clusterService = clusterService;
+        this.metrics = metrics;
+        this.outboundQueues = outboundQueues;
+        this.wireFormats = wireFormats;
+    }
+
     @Override
     public void configureMessageBroker(MessageBrokerRegistry config) {
         config.enableSimpleBroker("/topic", "/queue");
         config.setApplicationDestinationPrefixes("/app");
+        // A session's frames reach the document lanes in the order it sent them (edits, then the ack covering them)
+        config.setPreserveReceiveOrder(true);
+        // Relay what this node publishes to the rest of the cluster
+        config.configureBrokerChannel().interceptors(new ChannelInterceptor() {
+            @Override
+            public Message<?> preSend(Message<?> message, MessageChannel channel) {
+                return clusterService.relayOutbound(message);
+            }
+        });
+    }
+
+    @Override
+    public void configureClientInboundChannel(ChannelRegistration registration) {
+        // CONNECT picks the wire format; frames for documents owned by another node are forwarded there
+        registration.interceptors(wireFormats.inboundInterceptor(), new ChannelInterceptor() {
+            @Override
+            public Message<?> preSend(Message<?> message, MessageChannel channel) {
+                return clusterService.routeInbound(message);
+            }
+        }, metrics.inboundInterceptor());
+    }
+
+    @Override
+    public void configureClientOutboundChannel(ChannelRegistration registration) {
+        // Binary clients get the encoding the broadcaster attached instead of the JSON payload
+        registration.interceptors(wireFormats.outboundInterceptor());
+    }
+
+    @Override
+    public boolean configureMessageConverters(List<MessageConverter> messageConverters) {
+        // Binary frames for clients that send them; the default JSON converters follow
+        messageConverters.add(new CrdtMessageConverter());
+        return true;
+    }
+
+    @Override
+    public void configureWebSocketTransport(WebSocketTransportRegistration registration) {
+        // Each session gets its own bounded queue, so a slow reader can't hold up the broker
+        registration.addDecoratorFactory(outboundQueues);
+        // Tells raw WebSocket sessions (which can take binary frames) from SockJS ones
+        registration.addDecoratorFactory(wireFormats);
     }
 
     @Override
@@ -22,4 +89,4 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
                 .setAllowedOriginPatterns("*")
                 .withSockJS();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,428 @@
+package com.collabeditor.backend.controller;
+
+import com.collabeditor.backend.model.CrdtChar;
+import com.collabeditor.backend.model.CrdtOperation;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary encoding of edit, batch and cursor frames, for clients that opt in
+ * (see WireFormats).
+ *
+ * Layout: magic "CW", version, frame kind, string table, then the frame.
+ * Every string a frame repeats — document id, site ids, user names — is in
+ * the table once and referenced by a varint. The table is per frame, so the
+ * same bytes can go to every subscriber. Ids of the form "site-counter" are a
+ * site reference plus a counter, and a parent on the same site is a one-byte
+ * delta. Anything else is spelled out, so every frame round-trips exactly.
+ */
+public final class CrdtWireCodec {
+
+    private static final byte MAGIC_0 = 'C';
+    private static final byte MAGIC_1 = 'W';
+    private static final byte VERSION = 1;
+
+    private static final int EDIT = 1;
+    private static final int BATCH = 2;
+    private static final int CURSORS = 3;
+
+    private static final CrdtOperation.Type[] TYPES = CrdtOperation.Type.values();
+
+    // Op flags; bits 0-1 are the op type
+    private static final int TOMBSTONE = 1 << 2;
+    private static final int CLOCK_IS_COUNTER = 1 << 3;   // char clock == id counter
+    private static final int OP_CLOCK_SAME = 1 << 4;      // op clock == char clock
+    private static final int ID_LITERAL = 1 << 5;         // id isn't charSite-counter
+    private static final int PARENT_SHIFT = 6;            // bits 6-7: an id kind
+
+    // How an id that refers to another char (parent, cursor anchor) is written
+    private static final int ID_NONE = 0;
+    private static final int ID_SAME_SITE = 1;   // zigzag counter delta from the context
+    private static final int ID_OTHER_SITE = 2;  // site ref + counter
+    private static final int ID_RAW = 3;         // string
+
+    private CrdtWireCodec() {}
+
+    /** Whether this frame type has a binary form. */
+    public static boolean supports(Class<?> type) {
+        return type == DocumentController.EditMessage.class
+            || type == DocumentController.EditBatchMessage.class
+            || type == DocumentController.CursorMessage.class
+            || List.class.isAssignableFrom(type);
+    }
+
+    /**
+     * Encodes an EditMessage, an EditBatchMessage, a CursorMessage or a list
+     * of them (the cursor table). Returns null for anything else.
+     */
+    public static byte[] encode(Object frame) {
+        Writer out = new Writer();
+        if (frame instanceof DocumentController.EditMessage edit) {
+            out.kind = EDIT;
+            out.ref(edit.getDocumentId());
+            out.varlong(edit.getRevision());
+            operation(out, edit.getOperation());
+        } else if (frame instanceof DocumentController.EditBatchMessage batch) {
+            out.kind = BATCH;
+            out.ref(batch.getDocumentId());
+            out.varlong(batch.getRevision());
+            List<CrdtOperation> ops = batch.getOperations() != null ? batch.getOperations() : List.of();
+            out.varint(ops.size());
+            for (CrdtOperation op : ops) {
+                operation(out, op);
+            }
+        } else if (frame instanceof DocumentController.CursorMessage cursor) {
+            out.kind = CURSORS;
+            out.varint(1);
+            cursor(out, cursor);
+        } else if (frame instanceof List<?> list && list.stream().allMatch(DocumentController.CursorMessage.class::isInstance)) {
+            out.kind = CURSORS;
+            out.varint(list.size());
+            for (Object cursor : list) {
+                cursor(out, (DocumentController.CursorMessage) cursor);
+            }
+        } else {
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    /** The document a client frame is for; null if it doesn't name one. Throws IllegalArgumentException if malformed. */
+    public static String documentIdOf(byte[] data) {
+        Object frame = decode(data);
+        if (frame instanceof DocumentController.EditMessage edit) return edit.getDocumentId();
+        if (frame instanceof DocumentController.EditBatchMessage batch) return batch.getDocumentId();
+        if (frame instanceof List<?> cursors && !cursors.isEmpty()
+                && cursors.get(0) instanceof DocumentController.CursorMessage cursor) {
+            return cursor.getDocumentId();
+        }
+        return null;
+    }
+
+    /** Decodes a frame: an EditMessage, an EditBatchMessage or a List of CursorMessage. */
+    public static Object decode(byte[] data) {
+        Reader in = new Reader(data);
+        if (in.u8() != MAGIC_0 || in.u8() != MAGIC_1) {
+            throw new IllegalArgumentException("Not a CRDT wire frame");
+        }
+        int version = in.u8();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported CRDT wire version " + version);
+        }
+        int kind = in.u8();
+        in.strings = new String[in.varint()];
+        for (int i = 0; i < in.strings.length; i++) {
+            in.strings[i] = in.string();
+        }
+
+        switch (kind) {
+            case EDIT -> {
+                DocumentController.EditMessage edit = new DocumentController.EditMessage();
+                edit.setDocumentId(in.ref());
+                edit.setRevision(in.varlong());
+                edit.setOperation(operation(in));
+                return edit;
+            }
+            case BATCH -> {
+                DocumentController.EditBatchMessage batch = new DocumentController.EditBatchMessage();
+                batch.setDocumentId(in.ref());
+                batch.setRevision(in.varlong());
+                int count = in.count();
+                List<CrdtOperation> ops = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    ops.add(operation(in));
+                }
+                batch.setOperations(ops);
+                return batch;
+            }
+            case CURSORS -> {
+                int count = in.count();
+                List<DocumentController.CursorMessage> cursors = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    cursors.add(cursor(in));
+                }
+                return cursors;
+            }
+            default -> throw new IllegalArgumentException("Unknown CRDT wire frame kind " + kind);
+        }
+    }
+
+    private static void operation(Writer out, CrdtOperation op) {
+        CrdtChar c = op == null ? null : op.getCharacter();
+        if (c == null || op.getType() == null || c.getId() == null) {
+            throw new IllegalArgumentException("Operation without a type or character id");
+        }
+        int counter = counterOf(c.getId(), c.getSiteId());
+        int flags = op.getType().ordinal();
+        if (c.isTombstone()) flags |= TOMBSTONE;
+        if (counter < 0) flags |= ID_LITERAL;
+        else if (c.getClock() == counter) flags |= CLOCK_IS_COUNTER;
+        if (op.getClock() == c.getClock()) flags |= OP_CLOCK_SAME;
+        int parentKind = idKind(c.getParentId(), c.getSiteId());
+        flags |= parentKind << PARENT_SHIFT;
+
+        out.body.write(flags);
+        out.ref(op.getDocumentId());
+        out.ref(op.getSiteId());
+        if ((flags & OP_CLOCK_SAME) == 0) out.varint(op.getClock());
+        out.ref(c.getSiteId());
+        if (counter < 0) out.string(c.getId());
+        else out.varint(counter);
+        if ((flags & CLOCK_IS_COUNTER) == 0) out.varint(c.getClock());
+        id(out, parentKind, c.getParentId(), c.getSiteId(), Math.max(counter, 0));
+        out.varint(c.getValue());
+        if (op.getType() == CrdtOperation.Type.INSERT_RUN) {
+            out.nullableString(op.getText());
+        }
+    }
+
+    private static CrdtOperation operation(Reader in) {
+        int flags = in.u8();
+        int typeIndex = flags & 0x3;
+        if (typeIndex >= TYPES.length) throw new IllegalArgumentException("Unknown operation type " + typeIndex);
+        CrdtOperation.Type type = TYPES[typeIndex];
+        String documentId = in.ref();
+        String opSite = in.ref();
+        int opClock = (flags & OP_CLOCK_SAME) == 0 ? in.varint() : 0;
+        String site = in.ref();
+
+        String id;
+        int counter = 0;
+        if ((flags & ID_LITERAL) != 0) {
+            id = in.string();
+        } else {
+            counter = in.varint();
+            id = site + "-" + counter;
+        }
+        int clock = (flags & CLOCK_IS_COUNTER) != 0 ? counter : in.varint();
+        String parentId = id(in, (flags >>> PARENT_SHIFT) & 0x3, site, counter);
+        char value = (char) in.varint();
+        String text = type == CrdtOperation.Type.INSERT_RUN ? in.nullableString() : null;
+
+        CrdtChar c = new CrdtChar(id, value, parentId, clock, site, (flags & TOMBSTONE) != 0);
+        return new CrdtOperation(type, c, documentId, opSite, (flags & OP_CLOCK_SAME) != 0 ? clock : opClock, text);
+    }
+
+    private static void cursor(Writer out, DocumentController.CursorMessage cursor) {
+        out.ref(cursor.getDocumentId());
+        out.ref(cursor.getSiteId());
+        out.ref(cursor.getUserName());
+        out.ref(cursor.getColor());
+        out.varint(cursor.getPosition());
+        int anchorKind = idKind(cursor.getAnchorId(), cursor.getSiteId());
+        out.body.write(anchorKind);
+        id(out, anchorKind, cursor.getAnchorId(), cursor.getSiteId(), 0);
+    }
+
+    private static DocumentController.CursorMessage cursor(Reader in) {
+        DocumentController.CursorMessage cursor = new DocumentController.CursorMessage();
+        cursor.setDocumentId(in.ref());
+        cursor.setSiteId(in.ref());
+        cursor.setUserName(in.ref());
+        cursor.setColor(in.ref());
+        cursor.setPosition(in.varint());
+        cursor.setAnchorId(id(in, in.u8(), cursor.getSiteId(), 0));
+        return cursor;
+    }
+
+    /** How `id` is best written next to a char (or cursor) of `site`. */
+    private static int idKind(String id, String site) {
+        if (id == null) return ID_NONE;
+        if (counterOf(id, site) >= 0) return ID_SAME_SITE;
+        int dash = id.lastIndexOf('-');
+        if (dash > 0 && digits(id, dash + 1) >= 0) return ID_OTHER_SITE;
+        return ID_RAW;
+    }
+
+    private static void id(Writer out, int kind, String id, String site, int base) {
+        switch (kind) {
+            case ID_SAME_SITE -> out.varint(zigzag(counterOf(id, site) - base));
+            case ID_OTHER_SITE -> {
+                int dash = id.lastIndexOf('-');
+                out.ref(id.substring(0, dash));
+                out.varint(digits(id, dash + 1));
+            }
+            case ID_RAW -> out.string(id);
+            default -> { }
+        }
+    }
+
+    private static String id(Reader in, int kind, String site, int base) {
+        return switch (kind) {
+            case ID_SAME_SITE -> site + "-" + (base + unzigzag(in.varint()));
+            case ID_OTHER_SITE -> in.ref() + "-" + in.varint();
+            case ID_RAW -> in.string();
+            default -> null;
+        };
+    }
+
+    /** The counter in "site-counter", or -1 if the id isn't in that form. */
+    private static int counterOf(String id, String site) {
+        if (site == null || id.length() <= site.length() + 1 || !id.startsWith(site)
+                || id.charAt(site.length()) != '-') {
+            return -1;
+        }
+        return digits(id, site.length() + 1);
+    }
+
+    /** The number id[start..] spells, or -1. */
+    private static int digits(String id, int start) {
+        int counter = 0;
+        for (int i = start; i < id.length(); i++) {
+            char ch = id.charAt(i);
+            if (ch < '0' || ch > '9' || counter > (Integer.MAX_VALUE - 9) / 10) return -1;
+            counter = counter * 10 + (ch - '0');
+        }
+        // Leading zeros wouldn't survive the round trip
+        return start < id.length() && Integer.toString(counter).length() == id.length() - start ? counter : -1;
+    }
+
+    private static int zigzag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    private static int unzigzag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /** Writes the frame body first and the string table it built up in front of it. */
+    private static final class Writer {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream(64);
+        final Map<String, Integer> strings = new LinkedHashMap<>();
+        int kind;
+
+        /** A string from the table: 0 = null, i + 1 = entry i. */
+        void ref(String s) {
+            if (s == null) {
+                body.write(0);
+                return;
+            }
+            Integer index = strings.putIfAbsent(s, strings.size());
+            varint(body, (index != null ? index : strings.size() - 1) + 1);
+        }
+
+        void varint(int v) {
+            varint(body, v);
+        }
+
+        void varlong(long v) {
+            while ((v & ~0x7FL) != 0) {
+                body.write((int) (v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            body.write((int) v);
+        }
+
+        void string(String s) {
+            string(body, s);
+        }
+
+        void nullableString(String s) {
+            if (s == null) {
+                body.write(0);
+                return;
+            }
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            varint(body, bytes.length + 1);
+            body.write(bytes, 0, bytes.length);
+        }
+
+        byte[] toByteArray() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.size() + 16 * strings.size() + 8);
+            out.write(MAGIC_0);
+            out.write(MAGIC_1);
+            out.write(VERSION);
+            out.write(kind);
+            varint(out, strings.size());
+            for (String s : strings.keySet()) {
+                string(out, s);
+            }
+            out.write(body.toByteArray(), 0, body.size());
+            return out.toByteArray();
+        }
+
+        private static void varint(ByteArrayOutputStream out, int v) {
+            while ((v & ~0x7F) != 0) {
+                out.write((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            out.write(v);
+        }
+
+        private static void string(ByteArrayOutputStream out, String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            varint(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static final class Reader {
+        final byte[] data;
+        String[] strings;
+        int pos;
+
+        Reader(byte[] data) {
+            this.data = data;
+        }
+
+        int u8() {
+            if (pos >= data.length) throw new IllegalArgumentException("Truncated CRDT wire frame");
+            return data[pos++] & 0xFF;
+        }
+
+        int varint() {
+            int result = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = u8();
+                result |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return result;
+            }
+            throw new IllegalArgumentException("Malformed varint in CRDT wire frame");
+        }
+
+        long varlong() {
+            long result = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                int b = u8();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return result;
+            }
+            throw new IllegalArgumentException("Malformed varint in CRDT wire frame");
+        }
+
+        /** An element count; each element takes at least a byte, so a bigger one is garbage. */
+        int count() {
+            int count = varint();
+            if (count < 0 || count > data.length - pos) throw new IllegalArgumentException("Truncated CRDT wire frame");
+            return count;
+        }
+
+        String ref() {
+            int ref = varint();
+            if (ref == 0) return null;
+            if (ref < 0 || ref > strings.length) throw new IllegalArgumentException("Bad string reference " + ref);
+            return strings[ref - 1];
+        }
+
+        String string() {
+            return string(varint());
+        }
+
+        String nullableString() {
+            int len = varint();
+            return len == 0 ? null : string(len - 1);
+        }
+
+        private String string(int len) {
+            if (len < 0 || pos + len > data.length) throw new IllegalArgumentException("Truncated CRDT wire frame");
+            String s = new String(data, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+    }
+}
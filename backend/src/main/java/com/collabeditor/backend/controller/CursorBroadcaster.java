@@ -0,0 +1,198 @@
+package com.collabeditor.backend.controller;
+
+import com.collabeditor.backend.handler.WireFormats;
+import com.collabeditor.backend.service.CrdtDocument;
+import com.collabeditor.backend.service.DocumentService;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-document cursor table, fanned out on /topic/cursor/{id} at most once
+ * per interval.
+ *
+ * Cursors are kept as the id of the char the caret sits after, not as an
+ * offset, so they stay put while other people type. A flush sends one frame
+ * holding the latest position of every cursor that moved, or whose offset
+ * shifted because of an edit — instead of one frame per mouse move.
+ */
+@Component
+public class CursorBroadcaster {
+
+    private final SimpMessagingTemplate messagingTemplate;
+    private final DocumentService documentService;
+    private final WireFormats wireFormats;
+    private final long intervalMillis;
+    private final ScheduledExecutorService timer;
+    private final Map<String, CursorTable> tables = new ConcurrentHashMap<>();
+
+    public CursorBroadcaster(SimpMessagingTemplate messagingTemplate,
+                             DocumentService documentService,
+                             WireFormats wireFormats,
+                             @Value("${collab.cursor.interval-ms:50}") long intervalMillis) {
+        this.messagingTemplate = messagingTemplate;
+        this.documentService = documentService;
+        this.wireFormats = wireFormats;
+        this.intervalMillis = intervalMillis;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "cursor-broadcast-flush");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Record a cursor move. Clients that only send an offset get it turned
+     * into an anchor against the server's copy here. Runs on the inbound
+     * thread, so it never loads: for a document that isn't resident the
+     * offset goes out as is, and is anchored once the load finishes.
+     */
+    public void update(DocumentController.CursorMessage message) {
+        String documentId = message.getDocumentId();
+        String anchorId = message.getAnchorId();
+        boolean unanchored = anchorId == null && message.getPosition() > 0;
+        CrdtDocument doc = unanchored ? documentService.getResidentDocument(documentId) : null;
+        if (doc != null) {
+            anchorId = doc.anchorAt(message.getPosition());
+            unanchored = false;
+        }
+        String resolvedAnchor = anchorId;
+        boolean anchorPending = unanchored;
+        tables.compute(documentId, (id, table) -> {
+            if (table == null) table = new CursorTable(id);
+            synchronized (table) {
+                Cursor cursor = table.cursors.computeIfAbsent(message.getSiteId(), k -> new Cursor());
+                cursor.userName = message.getUserName();
+                cursor.color = message.getColor();
+                cursor.anchorId = resolvedAnchor;
+                cursor.anchorPending = anchorPending;
+                cursor.fallbackPosition = message.getPosition();
+                cursor.moved = true;
+                table.schedule();
+            }
+            return table;
+        });
+        if (anchorPending) {
+            documentService.loadDocument(documentId).thenAccept(loaded -> anchorPending(documentId, loaded));
+        }
+    }
+
+    /** The document came in: anchor the cursors that only had an offset. */
+    private void anchorPending(String documentId, CrdtDocument doc) {
+        CursorTable table = tables.get(documentId);
+        if (table == null) return;
+        synchronized (table) {
+            table.anchor(doc);
+        }
+    }
+
+    /** Edits landed; cursors whose offset shifted get re-sent on the next flush. */
+    public void documentChanged(String documentId) {
+        CursorTable table = tables.get(documentId);
+        if (table == null) return;
+        synchronized (table) {
+            table.edited = true;
+            table.schedule();
+        }
+    }
+
+    public void remove(String documentId, String siteId) {
+        tables.computeIfPresent(documentId, (id, table) -> {
+            synchronized (table) {
+                table.cursors.remove(siteId);
+                return table.cursors.isEmpty() ? null : table;
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timer.shutdown();
+    }
+
+    private static final class Cursor {
+        String userName;
+        String color;
+        String anchorId;          // null = front of the document
+        boolean anchorPending;    // only an offset so far; anchored once the document is loaded
+        int fallbackPosition;     // used while the anchor hasn't reached the server
+        int sentPosition = -1;
+        boolean moved;
+    }
+
+    private final class CursorTable {
+        final String documentId;
+        final Map<String, Cursor> cursors = new LinkedHashMap<>();
+        boolean edited;
+        boolean timerArmed;
+
+        CursorTable(String documentId) {
+            this.documentId = documentId;
+        }
+
+        void schedule() {
+            if (intervalMillis <= 0) {
+                flush();
+            } else if (!timerArmed) {
+                timerArmed = true;
+                timer.schedule(this::timerFired, intervalMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        synchronized void timerFired() {
+            timerArmed = false;
+            flush();
+        }
+
+        void anchor(CrdtDocument doc) {
+            for (Cursor cursor : cursors.values()) {
+                if (cursor.anchorPending) {
+                    cursor.anchorId = doc.anchorAt(cursor.fallbackPosition);
+                    cursor.anchorPending = false;
+                }
+            }
+        }
+
+        /** On the timer thread; a document that isn't resident (evicted, still loading) isn't loaded for it. */
+        void flush() {
+            if (cursors.isEmpty()) return;
+            CrdtDocument doc = documentService.getResidentDocument(documentId);
+            if (doc != null) {
+                anchor(doc);
+            }
+            List<DocumentController.CursorMessage> frame = new ArrayList<>();
+            for (Map.Entry<String, Cursor> entry : cursors.entrySet()) {
+                Cursor cursor = entry.getValue();
+                if (!cursor.moved && !edited) continue;
+                int position = doc != null ? doc.caretAfter(cursor.anchorId) : -1;
+                if (position < 0) position = cursor.fallbackPosition;
+                if (!cursor.moved && position == cursor.sentPosition) continue;
+
+                DocumentController.CursorMessage message = new DocumentController.CursorMessage();
+                message.setDocumentId(documentId);
+                message.setSiteId(entry.getKey());
+                message.setUserName(cursor.userName);
+                message.setColor(cursor.color);
+                message.setAnchorId(cursor.anchorId);
+                message.setPosition(position);
+                frame.add(message);
+                cursor.sentPosition = position;
+                cursor.moved = false;
+            }
+            edited = false;
+            if (!frame.isEmpty()) {
+                messagingTemplate.convertAndSend("/topic/cursor/" + documentId, frame, wireFormats.headersFor(frame));
+            }
+        }
+    }
+}
@@ -1,73 +1,189 @@
 package com.collabeditor.backend.controller;
 
+import com.collabeditor.backend.cluster.ClusterService;
+import com.collabeditor.backend.metrics.EditMetrics;
 import com.collabeditor.backend.model.CrdtOperation;
+import com.collabeditor.backend.service.CrdtDocument;
+import com.collabeditor.backend.service.DocumentExecutor;
 import com.collabeditor.backend.service.DocumentService;
 import com.collabeditor.backend.service.SessionManager;
 import com.collabeditor.backend.handler.WebSocketEventHandler;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import org.springframework.messaging.handler.annotation.MessageMapping;
 import org.springframework.messaging.handler.annotation.Payload;
 import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
-import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.stereotype.Controller;
 
+import java.util.List;
+
 @Controller
 public class DocumentController {
 
-    private final SimpMessagingTemplate messagingTemplate;
     private final DocumentService documentService;
     private final SessionManager sessionManager;
     private final WebSocketEventHandler eventHandler;
+    private final DocumentExecutor documentExecutor;
+    private final EditBroadcaster editBroadcaster;
+    private final CursorBroadcaster cursorBroadcaster;
+    private final PresenceBroadcaster presenceBroadcaster;
+    private final EditMetrics metrics;
+    private final ClusterService clusterService;
 
-    public DocumentController(SimpMessagingTemplate messagingTemplate, DocumentService documentService, SessionManager sessionManager, WebSocketEventHandler eventHandler) {
-        this.messagingTemplate = messagingTemplate;
+    public DocumentController(DocumentService documentService, SessionManager sessionManager, WebSocketEventHandler eventHandler, DocumentExecutor documentExecutor, EditBroadcaster editBroadcaster, CursorBroadcaster cursorBroadcaster, PresenceBroadcaster presenceBroadcaster, EditMetrics metrics, ClusterService clusterService) {
         this.documentService = documentService;
         this.sessionManager = sessionManager;
         this.eventHandler = eventHandler;
+        this.documentExecutor = documentExecutor;
+        this.editBroadcaster = editBroadcaster;
+        this.cursorBroadcaster = cursorBroadcaster;
+        this.presenceBroadcaster = presenceBroadcaster;
+        this.metrics = metrics;
+        this.clusterService = clusterService;
     }
 
+    /**
+     * Hand the edit to the document's lane and return — the inbound thread
+     * never waits on a busy document, or on one still loading. Apply +
+     * broadcast run in order there, once the document is in (and not at all
+     * if it fails to load; the client resyncs). If the members
+     * changed while it waited and the document went to another node, it goes
+     * on to that node instead.
+     */
     @MessageMapping("/document.edit")
-    public void handleEdit(@Payload EditMessage message) {
+    public void handleEdit(@Payload EditMessage message, SimpMessageHeaderAccessor headerAccessor) {
         String docId = message.getDocumentId();
-        boolean applied = documentService.applyOperation(docId, message.getOperation());
-        if (applied) {
-            messagingTemplate.convertAndSend("/topic/document/" + docId, message);
-        }
+        String wsSessionId = headerAccessor.getSessionId();
+        long queued = System.nanoTime();
+        // Usually just this op; more if it unblocked ops that arrived ahead of their parent
+        documentExecutor.execute(docId, documentService.loadDocument(docId), () -> {
+            if (clusterService.forwardIfMoved(docId, "/app/document.edit", wsSessionId, message)) return;
+            long start = System.nanoTime();
+            List<CrdtDocument.Applied> applied = documentService.applyOperation(docId, message.getOperation());
+            metrics.recordEdit(queued, start, System.nanoTime());
+            broadcast(docId, applied);
+        });
+    }
+
+    /** A burst of ops (paste, fast typing) applied under one document lock. */
+    @MessageMapping("/document.editBatch")
+    public void handleEditBatch(@Payload EditBatchMessage message, SimpMessageHeaderAccessor headerAccessor) {
+        String docId = message.getDocumentId();
+        List<CrdtOperation> ops = message.getOperations();
+        if (ops == null || ops.isEmpty()) return;
+        String wsSessionId = headerAccessor.getSessionId();
+        long queued = System.nanoTime();
+        documentExecutor.execute(docId, documentService.loadDocument(docId), () -> {
+            if (clusterService.forwardIfMoved(docId, "/app/document.editBatch", wsSessionId, message)) return;
+            long start = System.nanoTime();
+            List<CrdtDocument.Applied> applied = documentService.applyOperations(docId, ops);
+            metrics.recordEdit(queued, start, System.nanoTime());
+            broadcast(docId, applied);
+        });
+    }
+
+    private void broadcast(String docId, List<CrdtDocument.Applied> applied) {
+        if (applied.isEmpty()) return;
+        editBroadcaster.broadcast(docId, applied);
+        cursorBroadcaster.documentChanged(docId);
     }
 
+    /**
+     * Client has received every edit up to message.revision — feeds tombstone GC.
+     * Queued behind the client's earlier edits: an ack that took effect first
+     * could let GC collect a tombstone one of them still needs as a neighbour.
+     */
+    @MessageMapping("/document.ack")
+    public void handleAck(@Payload AckMessage message, SimpMessageHeaderAccessor headerAccessor) {
+        String docId = message.getDocumentId();
+        String wsSessionId = headerAccessor.getSessionId();
+        documentExecutor.execute(docId, () -> {
+            if (clusterService.forwardIfMoved(docId, "/app/document.ack", wsSessionId, message)) return;
+            sessionManager.acknowledge(docId, message.getSiteId(), message.getRevision());
+        });
+    }
+
+    /** On the lane too, so a join of a cold document doesn't hold the inbound thread while it loads. */
     @MessageMapping("/document.join")
     public void handleJoin(@Payload JoinMessage message, SimpMessageHeaderAccessor headerAccessor) {
         String wsSessionId = headerAccessor.getSessionId();
-        sessionManager.userJoined(message.getDocumentId(), message.getSiteId(), message.getUserName());
-        eventHandler.registerSession(wsSessionId, message.getDocumentId(), message.getSiteId());
-        messagingTemplate.convertAndSend(
-            "/topic/presence/" + message.getDocumentId(),
-            sessionManager.getUsers(message.getDocumentId())
-        );
+        String docId = message.getDocumentId();
+        documentExecutor.execute(docId, documentService.loadDocument(docId), () -> {
+            if (clusterService.forwardIfMoved(docId, "/app/document.join", wsSessionId, message)) return;
+            // Deletes after the state the client loaded aren't seen until it acks them; no revision, nothing seen
+            long current = documentService.getOrLoadDocument(docId).getRevision();
+            long loaded = message.getRevision() == null ? 0 : Math.max(0, Math.min(message.getRevision(), current));
+            sessionManager.userJoined(docId, message.getSiteId(), message.getUserName(), loaded);
+            eventHandler.registerSession(wsSessionId, docId, message.getSiteId());
+            // Everyone else gets a join delta; the joiner needs the whole list
+            presenceBroadcaster.changed(docId);
+            presenceBroadcaster.snapshotRequested(docId);
+        });
     }
 
     @MessageMapping("/document.leave")
     public void handleLeave(@Payload LeaveMessage message) {
-        sessionManager.userLeft(message.getDocumentId(), message.getSiteId());
-        messagingTemplate.convertAndSend(
-            "/topic/presence/" + message.getDocumentId(),
-            sessionManager.getUsers(message.getDocumentId())
-        );
+        if (sessionManager.userLeft(message.getDocumentId(), message.getSiteId()) != null) {
+            cursorBroadcaster.remove(message.getDocumentId(), message.getSiteId());
+            presenceBroadcaster.changed(message.getDocumentId());
+        }
+    }
+
+    /** Keeps the user from being swept as gone; clients send one every few seconds. */
+    @MessageMapping("/document.heartbeat")
+    public void handleHeartbeat(@Payload PresenceRequest message) {
+        sessionManager.touch(message.getDocumentId(), message.getSiteId());
+    }
+
+    /** A client saw a gap in the presence sequence and wants the full list. */
+    @MessageMapping("/document.presence")
+    public void handlePresenceRequest(@Payload PresenceRequest message) {
+        presenceBroadcaster.snapshotRequested(message.getDocumentId());
     }
 
     public static class EditMessage {
         private String documentId;
         private CrdtOperation operation;
+        private long revision;  // set by the server on broadcast
         public EditMessage() {}
         public String getDocumentId() { return documentId; }
         public void setDocumentId(String documentId) { this.documentId = documentId; }
         public CrdtOperation getOperation() { return operation; }
         public void setOperation(CrdtOperation operation) { this.operation = operation; }
+        public long getRevision() { return revision; }
+        public void setRevision(long revision) { this.revision = revision; }
+    }
+
+    public static class EditBatchMessage {
+        private String documentId;
+        private List<CrdtOperation> operations;
+        private long revision;  // revision of the last op, set by the server on broadcast
+        public EditBatchMessage() {}
+        public String getDocumentId() { return documentId; }
+        public void setDocumentId(String documentId) { this.documentId = documentId; }
+        public List<CrdtOperation> getOperations() { return operations; }
+        public void setOperations(List<CrdtOperation> operations) { this.operations = operations; }
+        public long getRevision() { return revision; }
+        public void setRevision(long revision) { this.revision = revision; }
+    }
+
+    public static class AckMessage {
+        private String documentId;
+        private String siteId;
+        private long revision;
+        public AckMessage() {}
+        public String getDocumentId() { return documentId; }
+        public void setDocumentId(String documentId) { this.documentId = documentId; }
+        public String getSiteId() { return siteId; }
+        public void setSiteId(String siteId) { this.siteId = siteId; }
+        public long getRevision() { return revision; }
+        public void setRevision(long revision) { this.revision = revision; }
     }
 
     public static class JoinMessage {
         private String documentId;
         private String siteId;
         private String userName;
+        private Long revision;  // of the state the client loaded (X-Document-Revision), or last received
         public JoinMessage() {}
         public String getDocumentId() { return documentId; }
         public void setDocumentId(String documentId) { this.documentId = documentId; }
@@ -75,6 +191,8 @@ public class DocumentController {
         public void setSiteId(String siteId) { this.siteId = siteId; }
         public String getUserName() { return userName; }
         public void setUserName(String userName) { this.userName = userName; }
+        public Long getRevision() { return revision; }
+        public void setRevision(Long revision) { this.revision = revision; }
     }
 
     public static class LeaveMessage {
@@ -87,11 +205,45 @@ public class DocumentController {
         public void setSiteId(String siteId) { this.siteId = siteId; }
     }
 
+    public static class PresenceRequest {
+        private String documentId;
+        private String siteId;
+        public PresenceRequest() {}
+        public String getDocumentId() { return documentId; }
+        public void setDocumentId(String documentId) { this.documentId = documentId; }
+        public String getSiteId() { return siteId; }
+        public void setSiteId(String siteId) { this.siteId = siteId; }
+    }
+
+    /** Presence on /topic/presence/{id}: a delta (changes, oldest first) or a snapshot (everyone as of seq). */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class PresenceFrame {
+        public static final String DELTA = "delta";
+        public static final String SNAPSHOT = "snapshot";
+
+        private String documentId;
+        private String type;
+        private long seq;  // of the last change included
+        private List<SessionManager.Change> changes;  // delta
+        private List<SessionManager.UserInfo> users;  // snapshot
+        public PresenceFrame() {}
+        public String getDocumentId() { return documentId; }
+        public void setDocumentId(String documentId) { this.documentId = documentId; }
+        public String getType() { return type; }
+        public void setType(String type) { this.type = type; }
+        public long getSeq() { return seq; }
+        public void setSeq(long seq) { this.seq = seq; }
+        public List<SessionManager.Change> getChanges() { return changes; }
+        public void setChanges(List<SessionManager.Change> changes) { this.changes = changes; }
+        public List<SessionManager.UserInfo> getUsers() { return users; }
+        public void setUsers(List<SessionManager.UserInfo> users) { this.users = users; }
+    }
+
+    /** Stored as an anchor; CursorBroadcaster sends the latest positions out in batches. */
     @MessageMapping("/document.cursor")
     public void handleCursor(@Payload CursorMessage message) {
-        messagingTemplate.convertAndSend(
-            "/topic/cursor/" + message.getDocumentId(), message
-        );
+        sessionManager.touch(message.getDocumentId(), message.getSiteId());
+        cursorBroadcaster.update(message);
     }
 
     public static class CursorMessage {
@@ -100,6 +252,7 @@ public class DocumentController {
         private String userName;
         private String color;
         private int position;
+        private String anchorId;  // char the caret sits after; null = front (or offset-only client)
         public CursorMessage() {}
         public String getDocumentId() { return documentId; }
         public void setDocumentId(String documentId) { this.documentId = documentId; }
@@ -111,5 +264,7 @@ public class DocumentController {
         public void setColor(String color) { this.color = color; }
         public int getPosition() { return position; }
         public void setPosition(int position) { this.position = position; }
+        public String getAnchorId() { return anchorId; }
+        public void setAnchorId(String anchorId) { this.anchorId = anchorId; }
     }
 }
\ No newline at end of file
@@ -1,28 +1,179 @@
 package com.collabeditor.backend.controller;
 
+import com.collabeditor.backend.cluster.ClusterService;
 import com.collabeditor.backend.model.CrdtChar;
-import com.collabeditor.backend.service.DocumentService;
+import com.collabeditor.backend.service.CrdtDocument;
+import com.collabeditor.backend.service.CrdtStateCodec;
+import com.collabeditor.backend.service.VersionHistory;
+import com.collabeditor.backend.repository.DocumentCheckpointRepository;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
 import java.util.List;
+import java.util.Map;
 
 @RestController
 @RequestMapping("/api/documents")
 public class DocumentRestController {
 
-    private final DocumentService documentService;
+    /** Chars written between flushes while streaming a whole state. */
+    static final int STREAM_CHUNK = 4096;
+    static final int MAX_PAGE = 10_000;
 
-    public DocumentRestController(DocumentService documentService) {
-        this.documentService = documentService;
+    private final ClusterService clusterService;
+    private final ObjectMapper objectMapper;
+    private final VersionHistory versionHistory;
+
+    public DocumentRestController(ClusterService clusterService, ObjectMapper objectMapper, VersionHistory versionHistory) {
+        this.clusterService = clusterService;
+        this.objectMapper = objectMapper;
+        this.versionHistory = versionHistory;
     }
 
+    /**
+     * The sequence as a JSON array, tombstones included, written to the
+     * response as it is read rather than buffered whole.
+     *
+     * With `limit` this is one page: the chars after `after` (or from the
+     * front), read under a single lock, with X-Next-Cursor naming the char to
+     * pass as `after` for the next page. Without it the whole rest of the
+     * document is sent, frozen as of one revision (CrdtDocument.freeze, flat
+     * arrays rather than char objects) and turned into JSON outside the lock,
+     * so writers are never held up by a slow reader.
+     *
+     * Either way the body is the document exactly as of X-Document-Revision;
+     * edits after it are delivered over the WebSocket as usual.
+     *
+     * On a node that doesn't own the document this reads a copy fetched
+     * from the owner.
+     */
     @GetMapping("/{documentId}/state")
-    public List<CrdtChar> getDocumentState(@PathVariable String documentId) {
-        return documentService.getOrLoadDocument(documentId).getFullState();
+    public ResponseEntity<StreamingResponseBody> getDocumentState(@PathVariable String documentId,
+                                                                  @RequestParam(required = false) String after,
+                                                                  @RequestParam(required = false) Integer limit) {
+        CrdtDocument doc = clusterService.documentForRead(documentId);
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON);
+        if (limit == null) {
+            CrdtDocument.Frozen state = doc.freeze(after);
+            if (state == null) {
+                return ResponseEntity.notFound().build();
+            }
+            return response.header("X-Document-Revision", Long.toString(state.revision()))
+                .body(out -> writeChars(out, state));
+        }
+
+        CrdtDocument.Page page = doc.page(after, Math.max(1, Math.min(limit, MAX_PAGE)));
+        if (page == null) {
+            return ResponseEntity.notFound().build();
+        }
+        response.header("X-Document-Revision", Long.toString(page.revision()));
+        if (page.more()) {
+            response.header("X-Next-Cursor", lastId(page));
+        }
+        return response.body(out -> writeChars(out, page.chars()));
+    }
+
+    private void writeChars(OutputStream out, CrdtDocument.Frozen state) throws IOException {
+        try (JsonGenerator json = objectMapper.getFactory().createGenerator(out)) {
+            json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            // A write that fails part way must not be closed off into a valid, shorter array
+            json.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+            json.writeStartArray();
+            for (int i = 0; i < state.size(); i++) {
+                json.writeObject(state.get(i));
+                if ((i + 1) % STREAM_CHUNK == 0) {
+                    json.flush();  // let the client start rendering
+                }
+            }
+            json.writeEndArray();
+        }
+    }
+
+    private void writeChars(OutputStream out, List<CrdtChar> chars) throws IOException {
+        try (JsonGenerator json = objectMapper.getFactory().createGenerator(out)) {
+            json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            json.writeStartArray();
+            for (CrdtChar c : chars) {
+                json.writeObject(c);
+            }
+            json.writeEndArray();
+        }
+    }
+
+    private static String lastId(CrdtDocument.Page page) {
+        return page.chars().get(page.chars().size() - 1).getId();
+    }
+
+    /** Same state in the CrdtStateCodec format, for clients sending Accept: application/octet-stream. */
+    @GetMapping(value = "/{documentId}/state", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public byte[] getDocumentStateBinary(@PathVariable String documentId) {
+        return CrdtStateCodec.encode(clusterService.documentForRead(documentId).getFullState());
+    }
+
+    /**
+     * Catch-up for a client that already has part of the document: it sends
+     * the highest counter it has seen per site and the last revision it saw,
+     * and gets back only what it is missing.
+     */
+    @PostMapping("/{documentId}/sync")
+    public CrdtDocument.Delta sync(@PathVariable String documentId, @RequestBody SyncRequest request) {
+        Map<String, Long> vector = request.getVector() == null ? Map.of() : request.getVector();
+        return clusterService.documentForRead(documentId).deltaSince(vector, request.getSince());
+    }
+
+    /**
+     * The text as of `revision`, or as of `at` (ISO-8601 instant or epoch
+     * millis). The revision in the response is the one actually shown:
+     * the latest if asked for one past it, or, with exact=false, the nearest
+     * checkpoint before it once retention has dropped the ops in between.
+     */
+    @GetMapping("/{documentId}/history")
+    public ResponseEntity<VersionHistory.Version> getVersion(@PathVariable String documentId,
+                                                             @RequestParam(required = false) Long revision,
+                                                             @RequestParam(required = false) String at) {
+        if ((revision == null) == (at == null)) {
+            return ResponseEntity.badRequest().build();
+        }
+        VersionHistory.Version version;
+        if (revision != null) {
+            version = versionHistory.versionAt(documentId, revision);
+        } else {
+            long time;
+            try {
+                time = at.chars().allMatch(Character::isDigit) ? Long.parseLong(at) : Instant.parse(at).toEpochMilli();
+            } catch (RuntimeException e) {
+                return ResponseEntity.badRequest().build();
+            }
+            version = versionHistory.versionAtTime(documentId, time);
+        }
+        return version != null ? ResponseEntity.ok(version) : ResponseEntity.notFound().build();
+    }
+
+    /** Revisions (and times) versions can be rebuilt from cheaply. */
+    @GetMapping("/{documentId}/history/checkpoints")
+    public List<DocumentCheckpointRepository.Info> getCheckpoints(@PathVariable String documentId) {
+        return versionHistory.getCheckpoints(documentId);
     }
 
     @DeleteMapping("/{documentId}")
     public void clearDocument(@PathVariable String documentId) {
-        documentService.clearDocument(documentId);
+        clusterService.clearDocument(documentId);
+    }
+
+    public static class SyncRequest {
+        private Map<String, Long> vector;  // siteId → highest counter seen
+        private long since;                 // last revision seen
+        public SyncRequest() {}
+        public Map<String, Long> getVector() { return vector; }
+        public void setVector(Map<String, Long> vector) { this.vector = vector; }
+        public long getSince() { return since; }
+        public void setSince(long since) { this.since = since; }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,148 @@
+package com.collabeditor.backend.controller;
+
+import com.collabeditor.backend.handler.WireFormats;
+import com.collabeditor.backend.metrics.EditMetrics;
+import com.collabeditor.backend.model.CrdtOperation;
+import com.collabeditor.backend.service.CrdtDocument;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces applied ops into batch frames on /topic/document/{id}.
+ *
+ * Ops are held for up to windowMillis (or until maxBatch pile up) and then go
+ * out as one EditBatchMessage — one serialization and one frame per subscriber
+ * instead of one per keystroke. A lone op still goes out as a plain EditMessage.
+ * A document's buffer only exists while it has ops waiting.
+ */
+@Component
+public class EditBroadcaster {
+
+    private final SimpMessagingTemplate messagingTemplate;
+    private final EditMetrics metrics;
+    private final WireFormats wireFormats;
+    private final long windowMillis;
+    private final int maxBatch;
+    private final ScheduledExecutorService timer;
+    private final Map<String, Outbox> outboxes = new ConcurrentHashMap<>();
+
+    public EditBroadcaster(SimpMessagingTemplate messagingTemplate,
+                           EditMetrics metrics,
+                           WireFormats wireFormats,
+                           @Value("${collab.broadcast.window-ms:5}") long windowMillis,
+                           @Value("${collab.broadcast.max-batch:64}") int maxBatch) {
+        this.messagingTemplate = messagingTemplate;
+        this.metrics = metrics;
+        this.wireFormats = wireFormats;
+        this.windowMillis = windowMillis;
+        this.maxBatch = maxBatch;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "edit-broadcast-flush");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** Queue applied ops for broadcast. Callers pass them in revision order. */
+    public void broadcast(String documentId, List<CrdtDocument.Applied> applied) {
+        if (applied.isEmpty()) return;
+        if (windowMillis <= 0) {
+            send(documentId, applied);
+            return;
+        }
+
+        while (true) {
+            Outbox outbox = outboxes.computeIfAbsent(documentId, Outbox::new);
+            synchronized (outbox) {
+                if (outbox.removed) continue;  // flushed and dropped meanwhile
+                outbox.ops.addAll(applied);
+                if (outbox.ops.size() >= maxBatch) {
+                    outbox.flush();
+                } else if (!outbox.timerArmed) {
+                    outbox.timerArmed = true;
+                    timer.schedule(outbox::timerFired, windowMillis, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+        }
+    }
+
+    /** Documents with ops waiting for their window to close. */
+    public int getOutboxCount() {
+        return outboxes.size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timer.shutdown();
+        for (Outbox outbox : outboxes.values()) {
+            synchronized (outbox) {
+                outbox.flush();
+            }
+        }
+    }
+
+    private void send(String documentId, List<CrdtDocument.Applied> applied) {
+        long start = System.nanoTime();
+        Object frame;
+        if (applied.size() == 1) {
+            DocumentController.EditMessage single = new DocumentController.EditMessage();
+            single.setDocumentId(documentId);
+            single.setOperation(applied.get(0).operation());
+            single.setRevision(applied.get(0).revision());
+            frame = single;
+        } else {
+            List<CrdtOperation> ops = new ArrayList<>(applied.size());
+            for (CrdtDocument.Applied a : applied) {
+                ops.add(a.operation());
+            }
+            DocumentController.EditBatchMessage batch = new DocumentController.EditBatchMessage();
+            batch.setDocumentId(documentId);
+            batch.setOperations(ops);
+            batch.setRevision(applied.get(applied.size() - 1).revision());
+            frame = batch;
+        }
+        // Serialized once here, JSON and (if anyone takes it) binary, not once per subscriber
+        messagingTemplate.convertAndSend("/topic/document/" + documentId, frame, wireFormats.headersFor(frame));
+        metrics.recordBroadcast(System.nanoTime() - start);
+    }
+
+    /** Per-document buffer. Sends happen under its lock so frames never overtake each other. */
+    private final class Outbox {
+        final String documentId;
+        final List<CrdtDocument.Applied> ops = new ArrayList<>();
+        boolean timerArmed;
+        boolean removed;
+
+        Outbox(String documentId) {
+            this.documentId = documentId;
+        }
+
+        synchronized void timerFired() {
+            timerArmed = false;
+            flush();
+        }
+
+        void flush() {
+            if (!ops.isEmpty()) {
+                send(documentId, ops);  // serialized right away, so the list can be reused
+                ops.clear();
+            }
+            // Nothing left and no timer coming: forget the document until its next edit
+            if (!timerArmed) {
+                removed = true;
+                outboxes.remove(documentId, this);
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.collabeditor.backend.controller;
+
+import com.collabeditor.backend.service.SessionManager;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Presence on /topic/presence/{id}: joins, leaves and renames go out as
+ * deltas, batched per interval like cursor moves; the full list only goes
+ * out as a snapshot when someone needs to (re)sync.
+ *
+ * Snapshots are sent when a user joins, when a client saw a gap in the
+ * sequence numbers (a dropped frame — presence is droppable under
+ * backpressure), and every snapshot-ms while the list keeps changing. They
+ * go out at most once per snapshot-min-ms per document, so a wave of joins
+ * costs a handful of full lists rather than one per joiner. Changes made
+ * while a snapshot waits for its turn wait with it, since it covers them.
+ *
+ * Users not heard from (join, ack, cursor, heartbeat) for timeout-ms are
+ * swept out, for connections that vanished without a disconnect event.
+ */
+@Component
+public class PresenceBroadcaster {
+
+    private final SimpMessagingTemplate messagingTemplate;
+    private final SessionManager sessionManager;
+    private final CursorBroadcaster cursorBroadcaster;
+    private final long intervalMillis;
+    private final long snapshotMinMillis;
+    private final long snapshotMillis;
+    private final long timeoutMillis;
+    private final ScheduledExecutorService timer;
+    private final Map<String, Outbox> outboxes = new ConcurrentHashMap<>();
+
+    public PresenceBroadcaster(SimpMessagingTemplate messagingTemplate,
+                               SessionManager sessionManager,
+                               CursorBroadcaster cursorBroadcaster,
+                               @Value("${collab.presence.interval-ms:50}") long intervalMillis,
+                               @Value("${collab.presence.snapshot-min-ms:1000}") long snapshotMinMillis,
+                               @Value("${collab.presence.snapshot-ms:30000}") long snapshotMillis,
+                               @Value("${collab.presence.timeout-ms:30000}") long timeoutMillis) {
+        this.messagingTemplate = messagingTemplate;
+        this.sessionManager = sessionManager;
+        this.cursorBroadcaster = cursorBroadcaster;
+        this.intervalMillis = intervalMillis;
+        this.snapshotMinMillis = snapshotMinMillis;
+        this.snapshotMillis = snapshotMillis;
+        this.timeoutMillis = timeoutMillis;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "presence-broadcast-flush");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** SessionManager has new changes for the document. */
+    public void changed(String documentId) {
+        Outbox outbox = outboxes.computeIfAbsent(documentId, Outbox::new);
+        synchronized (outbox) {
+            outbox.schedule(0);
+        }
+    }
+
+    /** Someone needs the full list: they just joined, or missed a delta. */
+    public void snapshotRequested(String documentId) {
+        Outbox outbox = outboxes.computeIfAbsent(documentId, Outbox::new);
+        synchronized (outbox) {
+            outbox.snapshotWanted = true;
+            outbox.schedule(outbox.untilSnapshotAllowed(System.nanoTime()));
+        }
+    }
+
+    /** Drops users that stopped sending heartbeats; also sends the periodic snapshots. */
+    @Scheduled(fixedDelayString = "${collab.presence.sweep-ms:5000}")
+    public void sweep() {
+        if (timeoutMillis > 0) {
+            Map<String, List<SessionManager.UserInfo>> expired =
+                sessionManager.expire(System.currentTimeMillis() - timeoutMillis);
+            expired.forEach((documentId, users) -> {
+                users.forEach(user -> cursorBroadcaster.remove(documentId, user.getSiteId()));
+                changed(documentId);
+            });
+        }
+        long now = System.nanoTime();
+        for (Outbox outbox : outboxes.values()) {
+            synchronized (outbox) {
+                if (outbox.changedSinceSnapshot && now - outbox.lastSnapshotNanos >= TimeUnit.MILLISECONDS.toNanos(snapshotMillis)) {
+                    outbox.snapshotWanted = true;
+                    outbox.schedule(0);
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timer.shutdown();
+    }
+
+    private final class Outbox {
+        final String documentId;
+        boolean snapshotWanted;
+        boolean changedSinceSnapshot;
+        boolean timerArmed;
+        long lastSnapshotNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(snapshotMinMillis);
+
+        Outbox(String documentId) {
+            this.documentId = documentId;
+        }
+
+        long untilSnapshotAllowed(long now) {
+            long next = lastSnapshotNanos + TimeUnit.MILLISECONDS.toNanos(snapshotMinMillis);
+            return Math.max(0, (next - now + 999_999) / 1_000_000);
+        }
+
+        void schedule(long notBeforeMillis) {
+            long delay = Math.max(intervalMillis, notBeforeMillis);
+            if (delay <= 0) {
+                flush();
+            } else if (!timerArmed) {
+                timerArmed = true;
+                timer.schedule(this::timerFired, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        synchronized void timerFired() {
+            timerArmed = false;
+            flush();
+        }
+
+        void flush() {
+            long now = System.nanoTime();
+            boolean snapshotDue = snapshotWanted && untilSnapshotAllowed(now) == 0;
+            if (!snapshotWanted) {
+                List<SessionManager.Change> changes = sessionManager.drainChanges(documentId);
+                if (changes == null) {
+                    snapshotDue = true;  // too many to list; everyone gets the full list instead
+                } else if (!changes.isEmpty()) {
+                    DocumentController.PresenceFrame frame = new DocumentController.PresenceFrame();
+                    frame.setDocumentId(documentId);
+                    frame.setType(DocumentController.PresenceFrame.DELTA);
+                    frame.setSeq(changes.get(changes.size() - 1).seq());
+                    frame.setChanges(changes);
+                    messagingTemplate.convertAndSend("/topic/presence/" + documentId, frame);
+                    changedSinceSnapshot = true;
+                }
+            }
+            if (snapshotDue) {
+                SessionManager.Snapshot snapshot = sessionManager.snapshot(documentId);
+                DocumentController.PresenceFrame frame = new DocumentController.PresenceFrame();
+                frame.setDocumentId(documentId);
+                frame.setType(DocumentController.PresenceFrame.SNAPSHOT);
+                frame.setSeq(snapshot.seq());
+                frame.setUsers(snapshot.users());
+                messagingTemplate.convertAndSend("/topic/presence/" + documentId, frame);
+                snapshotWanted = false;
+                changedSinceSnapshot = false;
+                lastSnapshotNanos = now;
+            }
+
+            if (snapshotWanted) {
+                schedule(untilSnapshotAllowed(now));
+            } else if (!sessionManager.hasUsers(documentId)) {
+                outboxes.remove(documentId, this);
+            }
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package com.collabeditor.backend.handler;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+import org.springframework.web.socket.handler.WebSocketHandlerDecoratorFactory;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded outbound queue per WebSocket session.
+ *
+ * The broker hands frames to a session and moves on; a pool of senders
+ * writes them to the socket. A client that stops reading only backs up its
+ * own queue, not the threads fanning a document's frames out to everyone
+ * else. Socket writes are blocking, so a sender waits on a session's write
+ * for at most send-time-limit-ms: past that the write is left to finish on
+ * its own thread and the sender moves on to other sessions. However many
+ * clients are stuck in a write, the senders keep serving the rest.
+ *
+ * Once drop-threshold frames are queued for a session, droppable frames
+ * (cursor and presence by default — the next one supersedes them) are
+ * dropped, queued ones first when an edit needs the room. A session that
+ * is still over max-messages / max-bytes, or whose oldest frame has waited
+ * time-limit-ms, is closed with RESYNC. Closes can block on the socket
+ * too, so they have threads of their own. The client catches up through
+ * /sync when it reconnects.
+ */
+@Component
+public class OutboundQueues implements WebSocketHandlerDecoratorFactory {
+
+    private static final Logger log = LoggerFactory.getLogger(OutboundQueues.class);
+
+    /** Close status for a session that fell too far behind: reconnect and sync. */
+    public static final CloseStatus RESYNC = new CloseStatus(4000, "resync");
+
+    // Frames a sender writes for one session before giving others a turn
+    private static final int DRAIN_BATCH = 64;
+    // Where a STOMP frame's headers are looked for
+    private static final int HEADER_SCAN = 512;
+
+    private final int maxMessages;
+    private final long maxBytes;
+    private final long timeLimitNanos;
+    private final long sendTimeLimitNanos;
+    private final int dropThreshold;
+    private final List<String> droppable;
+    private final ExecutorService senders;
+    private final ExecutorService writers;  // the writes themselves; a stuck one only holds its own thread
+    private final ExecutorService closers;
+    private final Map<String, QueuedSession> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong terminated = new AtomicLong();
+
+    public OutboundQueues(@Value("${collab.outbound.threads:0}") int threads,
+                          @Value("${collab.outbound.max-messages:1000}") int maxMessages,
+                          @Value("${collab.outbound.max-bytes:1048576}") long maxBytes,
+                          @Value("${collab.outbound.time-limit-ms:10000}") long timeLimitMillis,
+                          @Value("${collab.outbound.send-time-limit-ms:1000}") long sendTimeLimitMillis,
+                          @Value("${collab.outbound.drop-threshold:16}") int dropThreshold,
+                          @Value("${collab.outbound.droppable:/topic/cursor/,/topic/presence/}") String droppable) {
+        this.maxMessages = Math.max(1, maxMessages);
+        this.maxBytes = maxBytes;
+        this.timeLimitNanos = TimeUnit.MILLISECONDS.toNanos(timeLimitMillis);
+        this.sendTimeLimitNanos = TimeUnit.MILLISECONDS.toNanos(sendTimeLimitMillis);
+        this.dropThreshold = dropThreshold;
+        this.droppable = Arrays.stream(droppable.split(",")).map(String::trim).filter(d -> !d.isEmpty()).toList();
+        int poolSize = threads > 0 ? threads : Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+        this.senders = Executors.newFixedThreadPool(poolSize, daemonThreads("ws-outbound-"));
+        this.writers = Executors.newCachedThreadPool(daemonThreads("ws-write-"));
+        this.closers = Executors.newCachedThreadPool(daemonThreads("ws-close-"));
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    @Override
+    public WebSocketHandler decorate(WebSocketHandler handler) {
+        return new WebSocketHandlerDecorator(handler) {
+            @Override
+            public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+                QueuedSession queued = new QueuedSession(session);
+                sessions.put(session.getId(), queued);
+                super.afterConnectionEstablished(queued);
+            }
+
+            @Override
+            public void handleMessage(WebSocketSession session, WebSocketMessage<?> message) throws Exception {
+                super.handleMessage(queued(session), message);
+            }
+
+            @Override
+            public void handleTransportError(WebSocketSession session, Throwable exception) throws Exception {
+                super.handleTransportError(queued(session), exception);
+            }
+
+            @Override
+            public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+                QueuedSession queued = sessions.remove(session.getId());
+                if (queued != null) {
+                    queued.discard();
+                }
+                super.afterConnectionClosed(queued != null ? queued : session, closeStatus);
+            }
+        };
+    }
+
+    private WebSocketSession queued(WebSocketSession session) {
+        QueuedSession queued = sessions.get(session.getId());
+        return queued != null ? queued : session;
+    }
+
+    /** Close sessions whose oldest frame, or the write in progress, is over the time limit. */
+    @Scheduled(fixedDelayString = "${collab.outbound.sweep-ms:1000}")
+    public void sweep() {
+        long now = System.nanoTime();
+        for (QueuedSession session : sessions.values()) {
+            session.checkStalled(now);
+        }
+    }
+
+    /** Frames queued across all sessions. */
+    public int getQueuedCount() {
+        int total = 0;
+        for (QueuedSession session : sessions.values()) {
+            total += session.queuedCount();
+        }
+        return total;
+    }
+
+    /** Droppable frames dropped because their session was behind. */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /** Sessions closed with RESYNC. */
+    public long getTerminatedCount() {
+        return terminated.get();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        senders.shutdownNow();
+        writers.shutdownNow();
+        closers.shutdown();
+    }
+
+    private boolean isDroppable(WebSocketMessage<?> message) {
+        String destination = destinationOf(message);
+        if (destination == null) return false;
+        for (String prefix : droppable) {
+            if (destination.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    /** Destination header of a STOMP MESSAGE frame, or null for anything else. */
+    static String destinationOf(WebSocketMessage<?> message) {
+        String head;
+        if (message instanceof TextMessage text) {
+            String payload = text.getPayload();
+            head = payload.substring(0, Math.min(HEADER_SCAN, payload.length()));
+        } else if (message instanceof BinaryMessage binary) {
+            ByteBuffer payload = binary.getPayload().duplicate();
+            byte[] bytes = new byte[Math.min(HEADER_SCAN, payload.remaining())];
+            payload.get(bytes);
+            head = new String(bytes, StandardCharsets.ISO_8859_1);
+        } else {
+            return null;
+        }
+        if (!head.startsWith("MESSAGE\n")) return null;
+        int headersEnd = head.indexOf("\n\n");
+        int at = head.indexOf("\ndestination:");
+        if (at < 0 || (headersEnd >= 0 && at > headersEnd)) return null;
+        int from = at + "\ndestination:".length();
+        int to = head.indexOf('\n', from);
+        return to < 0 ? null : head.substring(from, to);
+    }
+
+    private record Queued(WebSocketMessage<?> message, boolean droppable, int bytes, long enqueuedNanos) {}
+
+    /**
+     * sendMessage() only queues. One drain at a time writes from the queue,
+     * so frames still go out in order.
+     */
+    private final class QueuedSession extends WebSocketSessionDecorator {
+
+        private final ArrayDeque<Queued> queue = new ArrayDeque<>();  // guarded by this
+        private long queuedBytes;
+        private boolean draining;
+        private boolean closed;
+        private volatile long writeStartedNanos;  // 0 = no write in progress
+
+        QueuedSession(WebSocketSession delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public void sendMessage(WebSocketMessage<?> message) {
+            boolean isDroppable = isDroppable(message);
+            int bytes = message.getPayloadLength();
+            synchronized (this) {
+                if (closed) return;
+                if (isDroppable && queue.size() >= dropThreshold) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                if (!isDroppable && !fits(bytes)) {
+                    dropQueuedDroppable();
+                }
+                if (!fits(bytes)) {
+                    terminate("outbound queue full (" + queue.size() + " frames, " + queuedBytes + " bytes)");
+                    return;
+                }
+                queue.addLast(new Queued(message, isDroppable, bytes, System.nanoTime()));
+                queuedBytes += bytes;
+                if (!draining) {
+                    draining = true;
+                    senders.execute(this::drain);
+                }
+            }
+        }
+
+        private boolean fits(int bytes) {
+            return queue.size() < maxMessages && queuedBytes + bytes <= maxBytes;
+        }
+
+        private void dropQueuedDroppable() {
+            for (Iterator<Queued> it = queue.iterator(); it.hasNext(); ) {
+                Queued queued = it.next();
+                if (queued.droppable()) {
+                    it.remove();
+                    queuedBytes -= queued.bytes();
+                    dropped.incrementAndGet();
+                }
+            }
+        }
+
+        /** On a sender: write a batch, waiting for it no longer than the send time limit. */
+        private void drain() {
+            CompletableFuture<Boolean> batch = CompletableFuture.supplyAsync(this::writeBatch, writers);
+            boolean more;
+            try {
+                more = batch.get(sendTimeLimitNanos, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                // Stuck in the socket: the write keeps its thread, the sender goes back to the others.
+                // If it ever finishes the queue carries on; otherwise the sweep closes the session.
+                batch.thenAccept(this::resume);
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                return;  // writeBatch handles its own failures
+            }
+            resume(more);
+        }
+
+        private void resume(boolean more) {
+            if (!more) return;
+            try {
+                // Let other sessions' senders run, then carry on
+                senders.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                log.debug("Outbound senders stopped; not draining session {}", getId());
+            }
+        }
+
+        /** Up to DRAIN_BATCH frames to the socket; true if there are more to write. */
+        private boolean writeBatch() {
+            for (int sent = 0; sent < DRAIN_BATCH; sent++) {
+                Queued next;
+                synchronized (this) {
+                    next = queue.pollFirst();
+                    if (next == null) {
+                        draining = false;
+                        return false;
+                    }
+                    queuedBytes -= next.bytes();
+                }
+                writeStartedNanos = System.nanoTime();
+                try {
+                    getDelegate().sendMessage(next.message());
+                } catch (Exception e) {
+                    synchronized (this) {
+                        terminate("send failed: " + e.getMessage());
+                        draining = false;
+                    }
+                    return false;
+                } finally {
+                    writeStartedNanos = 0;
+                }
+            }
+            return true;
+        }
+
+        void checkStalled(long now) {
+            long writeStarted = writeStartedNanos;
+            synchronized (this) {
+                if (closed) return;
+                Queued oldest = queue.peekFirst();
+                if ((writeStarted != 0 && now - writeStarted > timeLimitNanos)
+                        || (oldest != null && now - oldest.enqueuedNanos() > timeLimitNanos)) {
+                    terminate("no progress for over " + TimeUnit.NANOSECONDS.toMillis(timeLimitNanos) + "ms");
+                }
+            }
+        }
+
+        synchronized int queuedCount() {
+            return queue.size();
+        }
+
+        synchronized void discard() {
+            closed = true;
+            queue.clear();
+            queuedBytes = 0;
+        }
+
+        /** Called holding the lock. The close itself may block on the socket, so it runs on a closer. */
+        private void terminate(String reason) {
+            if (closed) return;
+            closed = true;
+            queue.clear();
+            queuedBytes = 0;
+            terminated.incrementAndGet();
+            log.info("Closing WebSocket session {}: {}", getId(), reason);
+            closers.execute(() -> {
+                try {
+                    getDelegate().close(RESYNC);
+                } catch (IOException e) {
+                    log.debug("Failed to close session {}", getId(), e);
+                }
+            });
+        }
+    }
+}
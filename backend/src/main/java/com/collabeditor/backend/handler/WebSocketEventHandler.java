@@ -1,13 +1,17 @@
 package com.collabeditor.backend.handler;
 
+import com.collabeditor.backend.controller.CursorBroadcaster;
+import com.collabeditor.backend.controller.PresenceBroadcaster;
 import com.collabeditor.backend.service.SessionManager;
 import org.springframework.context.event.EventListener;
-import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.messaging.SessionConnectEvent;
 import org.springframework.web.socket.messaging.SessionDisconnectEvent;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -15,34 +19,64 @@ import java.util.concurrent.ConcurrentHashMap;
 public class WebSocketEventHandler {
 
     private final SessionManager sessionManager;
-    private final SimpMessagingTemplate messagingTemplate;
+    private final CursorBroadcaster cursorBroadcaster;
+    private final PresenceBroadcaster presenceBroadcaster;
 
     // Track which WebSocket session belongs to which user/document
     private final Map<String, String[]> sessionMap = new ConcurrentHashMap<>();
 
-    public WebSocketEventHandler(SessionManager sessionManager, SimpMessagingTemplate messagingTemplate) {
+    public WebSocketEventHandler(SessionManager sessionManager, CursorBroadcaster cursorBroadcaster, PresenceBroadcaster presenceBroadcaster) {
         this.sessionManager = sessionManager;
-        this.messagingTemplate = messagingTemplate;
+        this.cursorBroadcaster = cursorBroadcaster;
+        this.presenceBroadcaster = presenceBroadcaster;
     }
 
     public void registerSession(String wsSessionId, String documentId, String siteId) {
         sessionMap.put(wsSessionId, new String[]{documentId, siteId});
     }
 
+    /**
+     * The document's sessions (wsSessionId → siteId), forgotten here: the
+     * document is moving to another node, which takes them over.
+     */
+    public Map<String, String> takeSessions(String documentId) {
+        Map<String, String> taken = new HashMap<>();
+        for (Iterator<Map.Entry<String, String[]>> it = sessionMap.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, String[]> entry = it.next();
+            if (entry.getValue()[0].equals(documentId)) {
+                taken.put(entry.getKey(), entry.getValue()[1]);
+                it.remove();
+            }
+        }
+        return taken;
+    }
+
+    /** Users and sessions handed over with a document by the node that owned it before. */
+    public void adopt(String documentId, List<SessionManager.Member> users, Map<String, String> sessions) {
+        sessionManager.adoptUsers(documentId, users);
+        sessions.forEach((wsSessionId, siteId) -> registerSession(wsSessionId, documentId, siteId));
+        if (!users.isEmpty()) {
+            presenceBroadcaster.changed(documentId);
+        }
+    }
+
     @EventListener
     public void handleDisconnect(SessionDisconnectEvent event) {
         StompHeaderAccessor accessor = StompHeaderAccessor.wrap(event.getMessage());
-        String wsSessionId = accessor.getSessionId();
+        sessionClosed(accessor.getSessionId());
+    }
 
+    /** A session went away — here, or on the node it was connected to (clustered). */
+    public void sessionClosed(String wsSessionId) {
         String[] info = sessionMap.remove(wsSessionId);
         if (info != null) {
             String documentId = info[0];
             String siteId = info[1];
-            sessionManager.userLeft(documentId, siteId);
-            messagingTemplate.convertAndSend(
-                "/topic/presence/" + documentId,
-                sessionManager.getUsers(documentId)
-            );
+            // Already gone if they sent a leave, or were swept
+            if (sessionManager.userLeft(documentId, siteId) != null) {
+                cursorBroadcaster.remove(documentId, siteId);
+                presenceBroadcaster.changed(documentId);
+            }
         }
     }
 }
\ No newline at end of file
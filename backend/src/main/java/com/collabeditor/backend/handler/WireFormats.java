@@ -0,0 +1,133 @@
+package com.collabeditor.backend.handler;
+
+import com.collabeditor.backend.controller.CrdtWireCodec;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.messaging.support.NativeMessageHeaderAccessor;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeType;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+import org.springframework.web.socket.handler.WebSocketHandlerDecoratorFactory;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+import org.springframework.web.socket.sockjs.transport.SockJsSession;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Which sessions get edit and cursor frames as CrdtWireCodec bytes instead
+ * of JSON.
+ *
+ * A client opts in with a "collab-codec: binary" header on CONNECT. SockJS
+ * can only carry text, so only raw WebSocket sessions (/ws/websocket) are
+ * switched; everyone else keeps JSON. Broadcasters attach the binary form
+ * once per broadcast (headersFor); the outbound interceptor swaps it in for
+ * the sessions that asked, so neither format is serialized per subscriber.
+ * Frames without a binary form (presence, relayed from another node) go out
+ * as JSON to everyone — clients go by each frame's content-type.
+ */
+@Component
+public class WireFormats implements WebSocketHandlerDecoratorFactory {
+
+    public static final String CODEC_HEADER = "collab-codec";
+    public static final String BINARY = "binary";
+
+    /** Content type of binary frames; octet-stream is what makes Spring send them as binary WebSocket frames. */
+    public static final MimeType MIME_TYPE = new MimeType("application", "octet-stream", Map.of("codec", "crdt"));
+
+    // Message header carrying a frame's binary form alongside the JSON payload; never written to the wire
+    static final String BINARY_PAYLOAD_HEADER = "collabBinaryPayload";
+
+    private final Set<String> rawSessions = ConcurrentHashMap.newKeySet();
+    private final Set<String> binarySessions = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public WebSocketHandler decorate(WebSocketHandler handler) {
+        return new WebSocketHandlerDecorator(handler) {
+            @Override
+            public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+                if (!(WebSocketSessionDecorator.unwrap(session) instanceof SockJsSession)) {
+                    rawSessions.add(session.getId());
+                }
+                super.afterConnectionEstablished(session);
+            }
+
+            @Override
+            public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+                rawSessions.remove(session.getId());
+                binarySessions.remove(session.getId());
+                super.afterConnectionClosed(session, closeStatus);
+            }
+        };
+    }
+
+    /**
+     * Headers for convertAndSend: the frame's binary form if anyone will use
+     * it, else null. Message headers rather than a plain map, which the
+     * template would turn into STOMP headers.
+     */
+    public Map<String, Object> headersFor(Object frame) {
+        if (binarySessions.isEmpty()) return null;
+        byte[] binary = CrdtWireCodec.encode(frame);
+        if (binary == null) return null;
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setHeader(BINARY_PAYLOAD_HEADER, binary);
+        accessor.setLeaveMutable(true);
+        return accessor.getMessageHeaders();
+    }
+
+    public boolean isBinary(String sessionId) {
+        return sessionId != null && binarySessions.contains(sessionId);
+    }
+
+    /** Sessions receiving binary frames. */
+    public int getBinarySessionCount() {
+        return binarySessions.size();
+    }
+
+    /** Notes who asked for binary on CONNECT. */
+    public ChannelInterceptor inboundInterceptor() {
+        return new ChannelInterceptor() {
+            @Override
+            public Message<?> preSend(Message<?> message, MessageChannel channel) {
+                MessageHeaders headers = message.getHeaders();
+                if (SimpMessageHeaderAccessor.getMessageType(headers) == SimpMessageType.CONNECT
+                        && BINARY.equals(NativeMessageHeaderAccessor.getFirstNativeHeader(CODEC_HEADER, headers))) {
+                    String sessionId = SimpMessageHeaderAccessor.getSessionId(headers);
+                    if (sessionId != null && rawSessions.contains(sessionId)) {
+                        binarySessions.add(sessionId);
+                    }
+                }
+                return message;
+            }
+        };
+    }
+
+    /** Swaps in the binary payload for sessions that asked for it. */
+    public ChannelInterceptor outboundInterceptor() {
+        return new ChannelInterceptor() {
+            @Override
+            public Message<?> preSend(Message<?> message, MessageChannel channel) {
+                // JSON subscribers get the message as is; the header isn't a STOMP header, so it isn't sent
+                if (!(message.getHeaders().get(BINARY_PAYLOAD_HEADER) instanceof byte[] binary)
+                        || !isBinary(SimpMessageHeaderAccessor.getSessionId(message.getHeaders()))
+                        || SimpMessageHeaderAccessor.getMessageType(message.getHeaders()) != SimpMessageType.MESSAGE) {
+                    return message;
+                }
+                SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.wrap(message);
+                accessor.removeHeader(BINARY_PAYLOAD_HEADER);
+                accessor.setContentType(MIME_TYPE);
+                return MessageBuilder.createMessage(binary, accessor.getMessageHeaders());
+            }
+        };
+    }
+}
@@ -0,0 +1,170 @@
+package com.collabeditor.backend.metrics;
+
+import com.collabeditor.backend.handler.OutboundQueues;
+import com.collabeditor.backend.service.CrdtDocument;
+import com.collabeditor.backend.service.DocumentEvictor;
+import com.collabeditor.backend.service.DocumentExecutor;
+import com.collabeditor.backend.service.DocumentService;
+import com.collabeditor.backend.service.OperationLog;
+import com.collabeditor.backend.service.SnapshotWriter;
+import com.collabeditor.backend.service.TombstoneCollector;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.MultiGauge;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gauges over the resident documents and the queues between the stages.
+ *
+ * Anything that needs a document's lock is sampled every refresh-ms rather
+ * than on scrape, so scraping never contends with edits. Per-document rows
+ * (size, tombstone ratio, op rate) are limited to the largest
+ * per-document-limit documents to keep the tag count bounded.
+ */
+@Component
+public class DocumentMetrics implements MeterBinder {
+
+    private final DocumentService documentService;
+    private final DocumentExecutor documentExecutor;
+    private final DocumentEvictor documentEvictor;
+    private final TombstoneCollector tombstoneCollector;
+    private final SnapshotWriter snapshotWriter;
+    private final OperationLog operationLog;
+    private final OutboundQueues outboundQueues;
+    private final int perDocumentLimit;
+
+    private volatile MultiGauge documentChars;
+    private volatile MultiGauge tombstoneRatio;
+    private volatile MultiGauge opRate;
+    private volatile long pendingOps;
+    private volatile long tombstones;
+    // Revision and time of the last sample, per document, for op rates
+    private final Map<String, long[]> lastSample = new HashMap<>();
+
+    private record Row(String documentId, int size, int tombstones, double opsPerSecond) {}
+
+    public DocumentMetrics(DocumentService documentService,
+                           DocumentExecutor documentExecutor,
+                           DocumentEvictor documentEvictor,
+                           TombstoneCollector tombstoneCollector,
+                           SnapshotWriter snapshotWriter,
+                           OperationLog operationLog,
+                           OutboundQueues outboundQueues,
+                           @Value("${collab.metrics.per-document-limit:20}") int perDocumentLimit) {
+        this.documentService = documentService;
+        this.documentExecutor = documentExecutor;
+        this.documentEvictor = documentEvictor;
+        this.tombstoneCollector = tombstoneCollector;
+        this.snapshotWriter = snapshotWriter;
+        this.operationLog = operationLog;
+        this.outboundQueues = outboundQueues;
+        this.perDocumentLimit = perDocumentLimit;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("collab.documents.resident", documentService, s -> s.getActiveDocuments().size())
+            .register(registry);
+        Gauge.builder("collab.documents.resident.bytes", documentEvictor, DocumentEvictor::getResidentBytes)
+            .description("Estimated heap of resident documents, as of the last eviction sweep")
+            .baseUnit("bytes")
+            .register(registry);
+        Gauge.builder("collab.documents.dirty", documentService, DocumentService::getDirtyCount)
+            .description("Documents with changes not in their snapshot yet")
+            .register(registry);
+        Gauge.builder("collab.snapshot.queued", snapshotWriter, SnapshotWriter::getQueueDepth)
+            .description("Documents due for a snapshot, waiting for a writer")
+            .register(registry);
+        Gauge.builder("collab.oplog.unflushed", operationLog, OperationLog::getUnflushedCount)
+            .register(registry);
+        Gauge.builder("collab.executor.queued", documentExecutor, DocumentExecutor::getTotalQueueDepth)
+            .description("Tasks waiting on document lanes")
+            .register(registry);
+        Gauge.builder("collab.executor.lanes", documentExecutor, DocumentExecutor::getLaneCount)
+            .register(registry);
+        Gauge.builder("collab.outbound.queued", outboundQueues, OutboundQueues::getQueuedCount)
+            .description("Frames waiting in per-session outbound queues")
+            .register(registry);
+        Gauge.builder("collab.pending.ops", this, m -> m.pendingOps)
+            .description("Ops buffered for a missing parent, all documents")
+            .register(registry);
+        Gauge.builder("collab.tombstones", this, m -> m.tombstones)
+            .description("Tombstones in resident documents")
+            .register(registry);
+
+        FunctionCounter.builder("collab.cache.hits", documentService, DocumentService::getCacheHits).register(registry);
+        FunctionCounter.builder("collab.cache.misses", documentService, DocumentService::getCacheMisses).register(registry);
+        FunctionCounter.builder("collab.cache.evictions", documentEvictor, DocumentEvictor::getEvictionCount).register(registry);
+        FunctionCounter.builder("collab.outbound.dropped", outboundQueues, OutboundQueues::getDroppedCount)
+            .description("Cursor/presence frames dropped for sessions that were behind")
+            .register(registry);
+        FunctionCounter.builder("collab.outbound.resyncs", outboundQueues, OutboundQueues::getTerminatedCount)
+            .description("Sessions closed for falling too far behind")
+            .register(registry);
+        FunctionCounter.builder("collab.gc.collected", tombstoneCollector, TombstoneCollector::getCharsCollected)
+            .baseUnit("chars")
+            .register(registry);
+        FunctionCounter.builder("collab.gc.reclaimed", tombstoneCollector, TombstoneCollector::getBytesReclaimed)
+            .description("Approximate bytes collected tombstones took up in the binary snapshot")
+            .baseUnit("bytes")
+            .register(registry);
+
+        documentChars = MultiGauge.builder("collab.document.chars")
+            .description("Chars in the sequence, tombstones included")
+            .register(registry);
+        tombstoneRatio = MultiGauge.builder("collab.document.tombstone.ratio").register(registry);
+        opRate = MultiGauge.builder("collab.document.op.rate")
+            .baseUnit("ops/s")
+            .register(registry);
+    }
+
+    @Scheduled(fixedDelayString = "${collab.metrics.refresh-ms:10000}")
+    public synchronized void refresh() {
+        long now = System.nanoTime();
+        long pending = 0;
+        long dead = 0;
+        List<Row> rows = new ArrayList<>();
+        Map<String, long[]> seen = new HashMap<>();
+        for (CrdtDocument doc : documentService.getActiveDocuments()) {
+            long revision = doc.getRevision();
+            int size = doc.size();
+            int docTombstones = size - doc.getVisibleLength();
+            pending += doc.getPendingCount();
+            dead += docTombstones;
+
+            long[] last = lastSample.get(doc.getDocumentId());
+            double rate = last == null || revision < last[0] ? 0
+                : (revision - last[0]) * 1e9 / Math.max(1, now - last[1]);
+            seen.put(doc.getDocumentId(), new long[] {revision, now});
+            rows.add(new Row(doc.getDocumentId(), size, docTombstones, rate));
+        }
+        lastSample.clear();  // unloaded documents drop out
+        lastSample.putAll(seen);
+        pendingOps = pending;
+        tombstones = dead;
+
+        if (documentChars == null || perDocumentLimit <= 0) return;
+        rows.sort(Comparator.comparingInt(Row::size).reversed());
+        List<Row> top = rows.subList(0, Math.min(perDocumentLimit, rows.size()));
+        documentChars.register(top.stream()
+            .map(r -> MultiGauge.Row.of(Tags.of("document", r.documentId()), r.size()))
+            .toList(), true);
+        tombstoneRatio.register(top.stream()
+            .map(r -> MultiGauge.Row.of(Tags.of("document", r.documentId()), r.size() == 0 ? 0 : (double) r.tombstones() / r.size()))
+            .toList(), true);
+        opRate.register(top.stream()
+            .map(r -> MultiGauge.Row.of(Tags.of("document", r.documentId()), r.opsPerSecond()))
+            .toList(), true);
+    }
+}
@@ -0,0 +1,129 @@
+package com.collabeditor.backend.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.annotation.support.SimpAnnotationMethodMessageHandler;
+import org.springframework.messaging.support.ExecutorChannelInterceptor;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * Timers and histograms for the hot paths: the stages an edit goes
+ * through, sibling scans in the CRDT, and writes to the database.
+ *
+ * Everything here is recorded inline, so it sticks to plain Micrometer
+ * meters with fixed buckets — no per-document tags, no allocation per
+ * record. Per-document numbers are sampled instead, see DocumentMetrics.
+ */
+@Component
+public class EditMetrics {
+
+    private final Timer deserialize;
+    private final Timer queued;
+    private final Timer apply;
+    private final Timer broadcast;
+    private final DistributionSummary siblingScan;
+    private final Timer snapshotSave;
+    private final DistributionSummary snapshotBytes;
+    private final DistributionSummary snapshotBatch;
+    private final Timer oplogFlush;
+    private final DistributionSummary oplogBatch;
+
+    // Start of the inbound frame being handled on this thread, 0 = not an edit
+    private final ThreadLocal<long[]> inboundStart = ThreadLocal.withInitial(() -> new long[1]);
+
+    public EditMetrics(MeterRegistry registry) {
+        this.deserialize = stage(registry, "deserialize", "Inbound edit frame: decode and hand to the document's lane");
+        this.queued = stage(registry, "queue", "Wait on the document's lane");
+        this.apply = stage(registry, "apply", "Apply to the CRDT and append to the operation log");
+        this.broadcast = stage(registry, "broadcast", "Serialize a frame and hand it to the broker");
+        this.siblingScan = DistributionSummary.builder("collab.crdt.sibling.scan")
+            .description("Siblings stepped over to place an insert")
+            .serviceLevelObjectives(1, 2, 4, 8, 16, 64, 256, 1024)
+            .register(registry);
+        this.snapshotSave = Timer.builder("collab.snapshot.save")
+            .description("Writing a batch of document snapshots, log truncation included")
+            .register(registry);
+        this.snapshotBytes = DistributionSummary.builder("collab.snapshot.bytes")
+            .description("Encoded snapshot bytes per batch")
+            .baseUnit("bytes")
+            .register(registry);
+        this.snapshotBatch = DistributionSummary.builder("collab.snapshot.batch")
+            .baseUnit("documents")
+            .register(registry);
+        this.oplogFlush = Timer.builder("collab.oplog.flush")
+            .description("Writing a batch of operation log entries")
+            .register(registry);
+        this.oplogBatch = DistributionSummary.builder("collab.oplog.batch")
+            .baseUnit("entries")
+            .register(registry);
+    }
+
+    private static Timer stage(MeterRegistry registry, String stage, String description) {
+        return Timer.builder("collab.edit.stage")
+            .description(description)
+            .tag("stage", stage)
+            .register(registry);
+    }
+
+    /** Times of one edit on its lane: queued, started, applied. */
+    public void recordEdit(long queuedNanos, long startNanos, long appliedNanos) {
+        queued.record(startNanos - queuedNanos, TimeUnit.NANOSECONDS);
+        apply.record(appliedNanos - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordBroadcast(long nanos) {
+        broadcast.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Sink for CrdtDocument's scan lengths. */
+    public IntConsumer siblingScans() {
+        return siblingScan::record;
+    }
+
+    public void recordSnapshot(long nanos, int documents, int bytes) {
+        snapshotSave.record(nanos, TimeUnit.NANOSECONDS);
+        snapshotBatch.record(documents);
+        snapshotBytes.record(bytes);
+    }
+
+    public void recordOplogFlush(long nanos, int entries) {
+        oplogFlush.record(nanos, TimeUnit.NANOSECONDS);
+        oplogBatch.record(entries);
+    }
+
+    /**
+     * Times edit frames on clientInboundChannel. The handler only decodes the
+     * payload and queues it on the lane, so this is mostly deserialization.
+     */
+    public ExecutorChannelInterceptor inboundInterceptor() {
+        return new ExecutorChannelInterceptor() {
+            @Override
+            public Message<?> beforeHandle(Message<?> message, MessageChannel channel, MessageHandler handler) {
+                // Every subscriber of the channel sees the frame; only the @MessageMapping one decodes it
+                if (!(handler instanceof SimpAnnotationMethodMessageHandler)) return message;
+                String destination = SimpMessageHeaderAccessor.getDestination(message.getHeaders());
+                if (destination != null && destination.startsWith("/app/document.edit")) {
+                    inboundStart.get()[0] = System.nanoTime();
+                }
+                return message;
+            }
+
+            @Override
+            public void afterMessageHandled(Message<?> message, MessageChannel channel, MessageHandler handler, Exception ex) {
+                long[] start = inboundStart.get();
+                if (start[0] != 0) {
+                    deserialize.record(System.nanoTime() - start[0], TimeUnit.NANOSECONDS);
+                    start[0] = 0;
+                }
+            }
+        };
+    }
+}
@@ -1,10 +1,17 @@
 package com.collabeditor.backend.model;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 public class CrdtOperation {
 
     public enum Type {
         INSERT,
-        DELETE
+        DELETE,
+        /**
+         * A run of chars typed or pasted in one go. character is the first one;
+         * char i of text has counter + i, clock + i, and sits after char i - 1.
+         */
+        INSERT_RUN
     }
 
     private Type type;
@@ -12,6 +19,8 @@ public class CrdtOperation {
     private String documentId;
     private String siteId;
     private int clock;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String text;  // INSERT_RUN only
 
     public CrdtOperation() {}
 
@@ -23,6 +32,11 @@ public class CrdtOperation {
         this.clock = clock;
     }
 
+    public CrdtOperation(Type type, CrdtChar character, String documentId, String siteId, int clock, String text) {
+        this(type, character, documentId, siteId, clock);
+        this.text = text;
+    }
+
     // Getters and setters
     public Type getType() { return type; }
     public void setType(Type type) { this.type = type; }
@@ -38,4 +52,7 @@ public class CrdtOperation {
 
     public int getClock() { return clock; }
     public void setClock(int clock) { this.clock = clock; }
-}
\ No newline at end of file
+
+    public String getText() { return text; }
+    public void setText(String text) { this.text = text; }
+}
@@ -0,0 +1,56 @@
+package com.collabeditor.backend.model;
+
+import jakarta.persistence.*;
+
+/**
+ * A document's full state at one revision, kept for version history.
+ * The version at any later revision is this plus the logged ops after it.
+ */
+@Entity
+@Table(name = "document_checkpoints", indexes = {
+    @Index(name = "idx_document_checkpoints_doc_rev", columnList = "documentId, revision")
+})
+public class DocumentCheckpoint {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "document_checkpoints_seq")
+    @SequenceGenerator(name = "document_checkpoints_seq", sequenceName = "document_checkpoints_seq", allocationSize = 10)
+    private Long id;
+
+    @Column(nullable = false)
+    private String documentId;
+
+    @Column(nullable = false)
+    private long revision;
+
+    @Column(nullable = false)
+    private long createdAt;  // epoch millis
+
+    @Lob
+    @Column(columnDefinition = "BLOB", nullable = false)
+    private byte[] state;  // CrdtStateCodec
+
+    public DocumentCheckpoint() {}
+
+    public DocumentCheckpoint(String documentId, long revision, long createdAt, byte[] state) {
+        this.documentId = documentId;
+        this.revision = revision;
+        this.createdAt = createdAt;
+        this.state = state;
+    }
+
+    public Long getId() { return id; }
+    public void setId(Long id) { this.id = id; }
+
+    public String getDocumentId() { return documentId; }
+    public void setDocumentId(String documentId) { this.documentId = documentId; }
+
+    public long getRevision() { return revision; }
+    public void setRevision(long revision) { this.revision = revision; }
+
+    public long getCreatedAt() { return createdAt; }
+    public void setCreatedAt(long createdAt) { this.createdAt = createdAt; }
+
+    public byte[] getState() { return state; }
+    public void setState(byte[] state) { this.state = state; }
+}
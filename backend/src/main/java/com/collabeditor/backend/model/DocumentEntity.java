@@ -10,7 +10,17 @@ public class DocumentEntity {
     private String id;
 
     @Column(columnDefinition = "TEXT")
-    private String crdtState;
+    private String crdtState;  // legacy JSON snapshot, only read for rows not yet rewritten
+
+    @Lob
+    @Column(columnDefinition = "BLOB")
+    private byte[] crdtStateBinary;  // CrdtStateCodec snapshot
+
+    // Revision the snapshot was taken at; the operation log holds everything after it
+    private Long lastRevision;
+
+    // When the snapshot was written (epoch millis); null for rows from before it was kept
+    private Long updatedAt;
 
     @Version
     private Integer version;
@@ -28,6 +38,15 @@ public class DocumentEntity {
     public String getCrdtState() { return crdtState; }
     public void setCrdtState(String crdtState) { this.crdtState = crdtState; }
 
+    public byte[] getCrdtStateBinary() { return crdtStateBinary; }
+    public void setCrdtStateBinary(byte[] crdtStateBinary) { this.crdtStateBinary = crdtStateBinary; }
+
+    public long getLastRevision() { return lastRevision != null ? lastRevision : 0; }
+    public void setLastRevision(long lastRevision) { this.lastRevision = lastRevision; }
+
+    public Long getUpdatedAt() { return updatedAt; }
+    public void setUpdatedAt(Long updatedAt) { this.updatedAt = updatedAt; }
+
     public Integer getVersion() { return version; }
     public void setVersion(Integer version) { this.version = version; }
 }
\ No newline at end of file
@@ -0,0 +1,54 @@
+package com.collabeditor.backend.model;
+
+import jakarta.persistence.*;
+
+/**
+ * One applied CrdtOperation in a document's append-only log.
+ * A document is its snapshot in DocumentEntity plus every entry after snapshot's lastRevision.
+ */
+@Entity
+@Table(name = "operation_log", indexes = {
+    @Index(name = "idx_operation_log_doc_rev", columnList = "documentId, revision")
+})
+public class OperationLogEntry {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "operation_log_seq")
+    @SequenceGenerator(name = "operation_log_seq", sequenceName = "operation_log_seq", allocationSize = 100)
+    private Long id;
+
+    @Column(nullable = false)
+    private String documentId;
+
+    @Column(nullable = false)
+    private long revision;
+
+    @Column(columnDefinition = "TEXT", nullable = false)
+    private String operation;  // CrdtOperation as JSON, captured at apply time
+
+    private Long appliedAt;  // epoch millis; null on entries logged before version history
+
+    public OperationLogEntry() {}
+
+    public OperationLogEntry(String documentId, long revision, String operation, long appliedAt) {
+        this.documentId = documentId;
+        this.revision = revision;
+        this.operation = operation;
+        this.appliedAt = appliedAt;
+    }
+
+    public Long getId() { return id; }
+    public void setId(Long id) { this.id = id; }
+
+    public String getDocumentId() { return documentId; }
+    public void setDocumentId(String documentId) { this.documentId = documentId; }
+
+    public long getRevision() { return revision; }
+    public void setRevision(long revision) { this.revision = revision; }
+
+    public String getOperation() { return operation; }
+    public void setOperation(String operation) { this.operation = operation; }
+
+    public Long getAppliedAt() { return appliedAt; }
+    public void setAppliedAt(Long appliedAt) { this.appliedAt = appliedAt; }
+}
@@ -0,0 +1,42 @@
+package com.collabeditor.backend.repository;
+
+import com.collabeditor.backend.model.DocumentCheckpoint;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+public interface DocumentCheckpointRepository extends JpaRepository<DocumentCheckpoint, Long> {
+
+    /** A checkpoint without its state. */
+    record Info(long id, long revision, long createdAt) {}
+
+    Optional<DocumentCheckpoint> findFirstByDocumentIdAndRevisionLessThanEqualOrderByRevisionDesc(String documentId, long revision);
+
+    @Query("select new com.collabeditor.backend.repository.DocumentCheckpointRepository$Info(c.id, c.revision, c.createdAt)"
+        + " from DocumentCheckpoint c where c.documentId = ?1 order by c.revision")
+    List<Info> findInfoByDocumentId(String documentId);
+
+    @Query("select max(c.revision) from DocumentCheckpoint c where c.documentId = ?1")
+    Long findLastRevision(String documentId);
+
+    @Query("select max(c.revision) from DocumentCheckpoint c where c.documentId = ?1 and c.createdAt <= ?2")
+    Long findLastRevisionAt(String documentId, long time);
+
+    @Query("select distinct c.documentId from DocumentCheckpoint c")
+    List<String> findDocumentIds();
+
+    @Modifying
+    @Transactional
+    @Query("delete from DocumentCheckpoint c where c.id in ?1")
+    int deleteByIds(Collection<Long> ids);
+
+    @Modifying
+    @Transactional
+    @Query("delete from DocumentCheckpoint c where c.documentId = ?1")
+    int deleteByDocument(String documentId);
+}
@@ -1,7 +1,23 @@
 package com.collabeditor.backend.repository;
 
 import com.collabeditor.backend.model.DocumentEntity;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
 
 public interface DocumentRepository extends JpaRepository<DocumentEntity, String> {
-}
\ No newline at end of file
+
+    /** Documents snapshotted since the time (epoch millis), most recent first. */
+    @Query("select d.id from DocumentEntity d where d.updatedAt >= ?1 order by d.updatedAt desc")
+    List<String> findIdsUpdatedSince(long since, Pageable page);
+
+    /** Rows from before the version column existed have it null; Spring Data would take them for new ones. */
+    @Modifying
+    @Transactional
+    @Query("update DocumentEntity d set d.version = 0 where d.version is null")
+    int fillMissingVersions();
+}
@@ -0,0 +1,39 @@
+package com.collabeditor.backend.repository;
+
+import com.collabeditor.backend.model.OperationLogEntry;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+
+public interface OperationLogRepository extends JpaRepository<OperationLogEntry, Long> {
+
+    List<OperationLogEntry> findByDocumentIdAndRevisionGreaterThanOrderByRevisionAsc(String documentId, long revision);
+
+    List<OperationLogEntry> findByDocumentIdAndRevisionGreaterThanAndRevisionLessThanEqualOrderByRevisionAsc(
+        String documentId, long after, long upTo);
+
+    /** Revision of the last op applied at or before the time; null if none is logged. */
+    @Query("select max(e.revision) from OperationLogEntry e where e.documentId = ?1 and e.appliedAt <= ?2")
+    Long findLastRevisionAt(String documentId, long time);
+
+    @Query("select max(e.revision) from OperationLogEntry e where e.documentId = ?1")
+    Long findLastRevision(String documentId);
+
+    @Query("select e.documentId from OperationLogEntry e where e.appliedAt >= ?1"
+        + " group by e.documentId order by max(e.appliedAt) desc")
+    List<String> findDocumentIdsActiveSince(long since, Pageable page);
+
+    @Modifying
+    @Transactional
+    @Query("delete from OperationLogEntry e where e.documentId = ?1 and e.revision <= ?2")
+    int deleteUpTo(String documentId, long revision);
+
+    @Modifying
+    @Transactional
+    @Query("delete from OperationLogEntry e where e.documentId = ?1")
+    int deleteByDocument(String documentId);
+}
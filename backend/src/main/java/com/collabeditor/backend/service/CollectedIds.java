@@ -0,0 +1,132 @@
+package com.collabeditor.backend.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Every char id tombstone GC has removed from a document, as ranges of
+ * counters per site, so a collected char is still recognised (a re-delivered
+ * insert is a duplicate, an op naming it is stale) without keeping an entry
+ * per char. Deleting a word or a selection collects consecutive counters,
+ * which collapse into one range.
+ *
+ * Written with the snapshot, so it survives unloads and restarts.
+ */
+final class CollectedIds {
+
+    // Per site: sorted, disjoint, non-adjacent [from, to] pairs, flattened
+    private final List<long[]> bySite = new ArrayList<>();
+    private int[] counts = new int[0];  // longs in use per site
+    private int ranges;
+
+    void add(long id) {
+        int s = (int) (id >>> 32);
+        long counter = id & SiteRegistry.OPAQUE;
+        long[] r = site(s);
+        int n = counts[s];
+        // First range ending at or after counter - 1 (the one it may extend or fall in)
+        int lo = 0;
+        int hi = n / 2;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (r[mid * 2 + 1] < counter - 1) lo = mid + 1;
+            else hi = mid;
+        }
+        int at = lo * 2;
+        if (at < n && r[at] <= counter + 1) {
+            if (counter >= r[at] && counter <= r[at + 1]) return;
+            if (counter == r[at + 1] + 1) {
+                r[at + 1] = counter;
+                // Closed the gap to the next range
+                if (at + 2 < n && r[at + 2] == counter + 1) {
+                    r[at + 1] = r[at + 3];
+                    System.arraycopy(r, at + 4, r, at + 2, n - at - 4);
+                    counts[s] = n - 2;
+                    ranges--;
+                }
+            } else {
+                r[at] = counter;
+            }
+            return;
+        }
+        if (n + 2 > r.length) {
+            r = Arrays.copyOf(r, Math.max(4, r.length + (r.length >> 1) + 2));
+            bySite.set(s, r);
+        }
+        System.arraycopy(r, at, r, at + 2, n - at);
+        r[at] = counter;
+        r[at + 1] = counter;
+        counts[s] = n + 2;
+        ranges++;
+    }
+
+    boolean contains(long id) {
+        if (id < 0) return false;
+        int s = (int) (id >>> 32);
+        if (s >= bySite.size()) return false;
+        long counter = id & SiteRegistry.OPAQUE;
+        long[] r = bySite.get(s);
+        int lo = 0;
+        int hi = counts[s] / 2;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (r[mid * 2 + 1] < counter) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo * 2 < counts[s] && r[lo * 2] <= counter;
+    }
+
+    /** Restore one saved range of a site's counters; saved ranges come in order, so this appends. */
+    void addRange(int site, long from, long to) {
+        long[] r = site(site);
+        int n = counts[site];
+        if (n > 0 && r[n - 1] >= from - 1) {
+            for (long counter = from; counter <= to; counter++) {
+                add(((long) site << 32) | counter);
+            }
+            return;
+        }
+        if (n + 2 > r.length) {
+            r = Arrays.copyOf(r, Math.max(4, r.length + (r.length >> 1) + 2));
+            bySite.set(site, r);
+        }
+        r[n] = from;
+        r[n + 1] = to;
+        counts[site] = n + 2;
+        ranges++;
+    }
+
+    /** Number of ranges held, for sizing. */
+    int rangeCount() {
+        return ranges;
+    }
+
+    /** The ranges as (site, from, to), site by site in counter order. */
+    List<long[]> toList() {
+        List<long[]> out = new ArrayList<>(ranges);
+        for (int s = 0; s < bySite.size(); s++) {
+            long[] r = bySite.get(s);
+            for (int i = 0; i < counts[s]; i += 2) {
+                out.add(new long[]{s, r[i], r[i + 1]});
+            }
+        }
+        return out;
+    }
+
+    void clear() {
+        bySite.clear();
+        counts = new int[0];
+        ranges = 0;
+    }
+
+    private long[] site(int s) {
+        while (bySite.size() <= s) {
+            bySite.add(new long[0]);
+        }
+        if (counts.length < bySite.size()) {
+            counts = Arrays.copyOf(counts, bySite.size());
+        }
+        return bySite.get(s);
+    }
+}
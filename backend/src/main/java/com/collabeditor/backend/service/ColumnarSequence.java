@@ -0,0 +1,390 @@
+package com.collabeditor.backend.service;
+
+import java.util.Arrays;
+
+/**
+ * The same treap as CrdtSequence, laid out as parallel primitive arrays.
+ *
+ * A handle is an index into every array, so a char costs its fields and
+ * nothing else — no object header, no references, tombstones in a bitset.
+ * Priorities are a hash of the handle rather than a stored column. Big
+ * documents move here once they cross collab.storage.columnar-threshold.
+ */
+final class ColumnarSequence implements SequenceStore {
+
+    private int[] left;
+    private int[] right;
+    private int[] up;
+    private int[] size;
+    private int[] visible;
+    private long[] ids;
+    private long[] parentIds;
+    private int[] sites;
+    private int[] clocks;
+    private char[] values;
+    private long[] liveBits;
+
+    private int root = NONE;
+    private int nextHandle;
+    private int[] freeHandles = new int[0];
+    private int freeCount;
+
+    ColumnarSequence() {
+        allocate(16);
+    }
+
+    @Override
+    public int size() {
+        return root == NONE ? 0 : size[root];
+    }
+
+    @Override
+    public int visibleSize() {
+        return root == NONE ? 0 : visible[root];
+    }
+
+    @Override
+    public int indexOf(int handle) {
+        int rank = sizeOf(left[handle]);
+        for (int n = handle; up[n] != NONE; n = up[n]) {
+            if (n == right[up[n]]) {
+                rank += sizeOf(left[up[n]]) + 1;
+            }
+        }
+        return rank;
+    }
+
+    @Override
+    public int visibleIndexOf(int handle) {
+        int rank = visibleOf(left[handle]);
+        for (int n = handle; up[n] != NONE; n = up[n]) {
+            int p = up[n];
+            if (n == right[p]) {
+                rank += visibleOf(left[p]) + (isLive(p) ? 1 : 0);
+            }
+        }
+        return rank;
+    }
+
+    @Override
+    public int nodeAtVisible(int visibleIndex) {
+        if (visibleIndex < 0 || visibleIndex >= visibleSize()) {
+            throw new IndexOutOfBoundsException("Visible index: " + visibleIndex + ", Visible size: " + visibleSize());
+        }
+        int n = root;
+        while (true) {
+            int leftVisible = visibleOf(left[n]);
+            boolean live = isLive(n);
+            if (visibleIndex < leftVisible) {
+                n = left[n];
+            } else if (visibleIndex == leftVisible && live) {
+                return n;
+            } else {
+                visibleIndex -= leftVisible + (live ? 1 : 0);
+                n = right[n];
+            }
+        }
+    }
+
+    @Override
+    public boolean isLive(int handle) {
+        return (liveBits[handle >>> 6] & (1L << handle)) != 0;
+    }
+
+    @Override
+    public void setLive(int handle, boolean live) {
+        if (isLive(handle) == live) return;
+        setLiveBit(handle, live);
+        int delta = live ? 1 : -1;
+        for (int n = handle; n != NONE; n = up[n]) {
+            visible[n] += delta;
+        }
+    }
+
+    @Override public long id(int handle) { return ids[handle]; }
+    @Override public long parentId(int handle) { return parentIds[handle]; }
+    @Override public int site(int handle) { return sites[handle]; }
+    @Override public int clock(int handle) { return clocks[handle]; }
+    @Override public char value(int handle) { return values[handle]; }
+
+    @Override
+    public int first() {
+        return root == NONE ? NONE : leftmost(root);
+    }
+
+    @Override
+    public int next(int handle) {
+        if (right[handle] != NONE) {
+            return leftmost(right[handle]);
+        }
+        int n = handle;
+        while (up[n] != NONE && n == right[up[n]]) {
+            n = up[n];
+        }
+        return up[n];
+    }
+
+    @Override
+    public int prev(int handle) {
+        if (left[handle] != NONE) {
+            int n = left[handle];
+            while (right[n] != NONE) {
+                n = right[n];
+            }
+            return n;
+        }
+        int n = handle;
+        while (up[n] != NONE && n == left[up[n]]) {
+            n = up[n];
+        }
+        return up[n];
+    }
+
+    @Override
+    public int insertAfter(int prev, long id, long parentId, int site, int clock, char value, boolean live) {
+        int node = newNode(id, parentId, site, clock, value, live);
+        if (root == NONE) {
+            root = node;
+            return node;
+        }
+
+        int attachTo;
+        if (prev == NONE) {
+            attachTo = leftmost(root);
+            left[attachTo] = node;
+        } else if (right[prev] == NONE) {
+            attachTo = prev;
+            right[attachTo] = node;
+        } else {
+            attachTo = leftmost(right[prev]);
+            left[attachTo] = node;
+        }
+        up[node] = attachTo;
+
+        int visibleDelta = live ? 1 : 0;
+        for (int n = attachTo; n != NONE; n = up[n]) {
+            size[n]++;
+            visible[n] += visibleDelta;
+        }
+        while (up[node] != NONE && priority(node) > priority(up[node])) {
+            rotateUp(node);
+        }
+        return node;
+    }
+
+    @Override
+    public void remove(int handle) {
+        while (left[handle] != NONE || right[handle] != NONE) {
+            int child;
+            if (left[handle] == NONE) {
+                child = right[handle];
+            } else if (right[handle] == NONE) {
+                child = left[handle];
+            } else {
+                child = priority(left[handle]) > priority(right[handle]) ? left[handle] : right[handle];
+            }
+            rotateUp(child);
+        }
+
+        int p = up[handle];
+        if (p == NONE) {
+            root = NONE;
+        } else if (left[p] == handle) {
+            left[p] = NONE;
+        } else {
+            right[p] = NONE;
+        }
+        up[handle] = NONE;
+        int visibleDelta = isLive(handle) ? 1 : 0;
+        for (int n = p; n != NONE; n = up[n]) {
+            size[n]--;
+            visible[n] -= visibleDelta;
+        }
+
+        if (freeCount == freeHandles.length) {
+            freeHandles = Arrays.copyOf(freeHandles, Math.max(16, freeCount * 2));
+        }
+        freeHandles[freeCount++] = handle;
+    }
+
+    /** Cartesian tree over the hashed priorities, in O(n); char i gets handle i. */
+    @Override
+    public void load(Chars chars) {
+        allocate(Math.max(16, chars.count));
+        root = NONE;
+        nextHandle = 0;
+        freeCount = 0;
+        int[] rightSpine = new int[64];
+        int spineDepth = 0;
+        for (int i = 0; i < chars.count; i++) {
+            int node = newNode(chars.ids[i], chars.parentIds[i], chars.sites[i], chars.clocks[i],
+                chars.values[i], chars.live[i]);
+            int lastPopped = NONE;
+            while (spineDepth > 0 && priority(rightSpine[spineDepth - 1]) < priority(node)) {
+                lastPopped = rightSpine[--spineDepth];
+            }
+            if (lastPopped != NONE) {
+                left[node] = lastPopped;
+                up[lastPopped] = node;
+            }
+            if (spineDepth == 0) {
+                root = node;
+            } else {
+                right[rightSpine[spineDepth - 1]] = node;
+                up[node] = rightSpine[spineDepth - 1];
+            }
+            if (spineDepth == rightSpine.length) {
+                rightSpine = Arrays.copyOf(rightSpine, spineDepth * 2);
+            }
+            rightSpine[spineDepth++] = node;
+        }
+        if (root != NONE) {
+            recomputeSizes();
+        }
+    }
+
+    // --- Tree maintenance ---
+
+    private void allocate(int capacity) {
+        left = new int[capacity];
+        right = new int[capacity];
+        up = new int[capacity];
+        size = new int[capacity];
+        visible = new int[capacity];
+        ids = new long[capacity];
+        parentIds = new long[capacity];
+        sites = new int[capacity];
+        clocks = new int[capacity];
+        values = new char[capacity];
+        liveBits = new long[(capacity + 63) >>> 6];
+    }
+
+    private void grow() {
+        int capacity = left.length + (left.length >> 1);
+        left = Arrays.copyOf(left, capacity);
+        right = Arrays.copyOf(right, capacity);
+        up = Arrays.copyOf(up, capacity);
+        size = Arrays.copyOf(size, capacity);
+        visible = Arrays.copyOf(visible, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        parentIds = Arrays.copyOf(parentIds, capacity);
+        sites = Arrays.copyOf(sites, capacity);
+        clocks = Arrays.copyOf(clocks, capacity);
+        values = Arrays.copyOf(values, capacity);
+        liveBits = Arrays.copyOf(liveBits, (capacity + 63) >>> 6);
+    }
+
+    private int newNode(long id, long parentId, int site, int clock, char value, boolean live) {
+        int node;
+        if (freeCount > 0) {
+            node = freeHandles[--freeCount];
+        } else {
+            if (nextHandle == left.length) {
+                grow();
+            }
+            node = nextHandle++;
+        }
+        left[node] = NONE;
+        right[node] = NONE;
+        up[node] = NONE;
+        size[node] = 1;
+        visible[node] = live ? 1 : 0;
+        ids[node] = id;
+        parentIds[node] = parentId;
+        sites[node] = site;
+        clocks[node] = clock;
+        values[node] = value;
+        setLiveBit(node, live);
+        return node;
+    }
+
+    private void setLiveBit(int handle, boolean live) {
+        if (live) {
+            liveBits[handle >>> 6] |= 1L << handle;
+        } else {
+            liveBits[handle >>> 6] &= ~(1L << handle);
+        }
+    }
+
+    /** Fixed pseudo-random priority per handle (murmur3 finalizer). */
+    private static int priority(int handle) {
+        int h = handle * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ (h >>> 16);
+    }
+
+    private int sizeOf(int n) {
+        return n == NONE ? 0 : size[n];
+    }
+
+    private int visibleOf(int n) {
+        return n == NONE ? 0 : visible[n];
+    }
+
+    private int leftmost(int n) {
+        while (left[n] != NONE) {
+            n = left[n];
+        }
+        return n;
+    }
+
+    private void update(int n) {
+        size[n] = 1 + sizeOf(left[n]) + sizeOf(right[n]);
+        visible[n] = (isLive(n) ? 1 : 0) + visibleOf(left[n]) + visibleOf(right[n]);
+    }
+
+    private void rotateUp(int x) {
+        int p = up[x];
+        int g = up[p];
+
+        if (x == left[p]) {
+            left[p] = right[x];
+            if (right[x] != NONE) up[right[x]] = p;
+            right[x] = p;
+        } else {
+            right[p] = left[x];
+            if (left[x] != NONE) up[left[x]] = p;
+            left[x] = p;
+        }
+        up[p] = x;
+        up[x] = g;
+
+        if (g == NONE) {
+            root = x;
+        } else if (left[g] == p) {
+            left[g] = x;
+        } else {
+            right[g] = x;
+        }
+        update(p);
+        update(x);
+    }
+
+    /** Post-order fix-up of size/visible, iterative like CrdtSequence's. */
+    private void recomputeSizes() {
+        int[] stack = new int[64];
+        int depth = 0;
+        int last = NONE;
+        int n = root;
+        while (n != NONE || depth > 0) {
+            if (n != NONE) {
+                if (depth == stack.length) {
+                    stack = Arrays.copyOf(stack, depth * 2);
+                }
+                stack[depth++] = n;
+                n = left[n];
+            } else {
+                int peek = stack[depth - 1];
+                if (right[peek] != NONE && last != right[peek]) {
+                    n = right[peek];
+                } else {
+                    update(peek);
+                    last = stack[--depth];
+                }
+            }
+        }
+    }
+}
@@ -2,33 +2,278 @@ package com.collabeditor.backend.service;
 
 import com.collabeditor.backend.model.CrdtChar;
 import com.collabeditor.backend.model.CrdtOperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.IntConsumer;
+import java.util.stream.LongStream;
 
 public class CrdtDocument {
 
-    private final List<CrdtChar> sequence;
-    private final Map<String, Integer> idIndex;  // charId → position in sequence
+    private static final Logger log = LoggerFactory.getLogger(CrdtDocument.class);
+
+    // Cap on remembered neighbours of collected chars — only stragglers still
+    // reference them; one naming an older collected char is rejected. They are
+    // saved with the snapshot, so a logged op that used one replays the same way
+    private static final int MAX_COLLECTED_FORWARDS = 100_000;
+    public static final int DEFAULT_MAX_PENDING_OPS = 10_000;
+    public static final long DEFAULT_PENDING_TTL_MS = 30_000;
+    /** Size at which a document may move to columnar storage (if that's smaller); 0 = never. */
+    public static final int DEFAULT_COLUMNAR_THRESHOLD = 100_000;
+    // Retained heap as measured by StorageBenchmark, id index included. Object
+    // storage costs a bit per char plus a lot per run: typed text is one run,
+    // random single-char inserts are a run each.
+    private static final int OBJECT_BYTES_PER_CHAR = 60;
+    private static final int OBJECT_BYTES_PER_RUN = 155;
+    private static final int COLUMNAR_BYTES_PER_CHAR = 94;
+    // findSlot() result when the parent hasn't arrived
+    private static final int UNPLACED = -2;
+    // resolveCollected() result for a collected char whose neighbour is forgotten (past the cap)
+    private static final long COLLECTED = -4;
+
+    private SequenceStore sequence;
+    private final int columnarThreshold;
+    private final SiteRegistry sites = new SiteRegistry();
+    private final LongIntMap idIndex;  // packed charId → handle in sequence
+    private final SiteIndex siteIndex = new SiteIndex();  // every id in the sequence, by site and counter
+    private final CollectedIds collectedIds = new CollectedIds();  // every id GC removed; saved with the snapshot
     private final String documentId;
+    private String textCache;  // visible text, rebuilt lazily after the text changes
+
+    private long revision;  // bumped on every applied op; clients ack these for GC
+    // Newest revision whose chars may be gone (collected, or from before the loaded snapshot)
+    private long collectedThrough;
+    private volatile long lastAccessMillis = System.currentTimeMillis();  // for the document cache
+    private final Deque<PendingTombstone> tombstones = new ArrayDeque<>();  // in delete order
+    // collected charId → id of the char it sat after (EMPTY_PARENT = front of document)
+    private final Map<Long, Long> collectedForwards = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            return size() > MAX_COLLECTED_FORWARDS;
+        }
+    };
+
+    // Ops whose parent / target hasn't arrived yet
+    private final PendingOperations pending;
+    private long rejectedOps;  // malformed, or named a collected char nobody remembers the place of
+    private IntConsumer scanObserver = steps -> {};  // siblings stepped over per insert, for metrics
+
+    private record PendingTombstone(int handle, long revision) {}
+
+    /** An op that made it into the document, and the revision it got. */
+    public record Applied(CrdtOperation operation, long revision) {}
+
+    /** A point-in-time copy of the document, safe to serialize outside the lock. */
+    public record Snapshot(List<CrdtChar> chars, long revision, List<CollectedRange> collected,
+                           List<CollectedForward> forwards) {}
+
+    /** Counters from..to of a site, all collected. An id that isn't "site-counter" is its own site, counter OPAQUE. */
+    public record CollectedRange(String site, long from, long to) {}
+
+    /** A collected char and the one it sat after ("" = front of the document). */
+    public record CollectedForward(String id, String after) {}
+
+    /** A run of the sequence read under one lock; more = chars follow the last one. */
+    public record Page(List<CrdtChar> chars, long revision, boolean more) {}
+
+    /**
+     * What a replica is missing: chars to insert, in sequence order, and ids
+     * deleted since it last synced. If full is set the delta couldn't be
+     * worked out; inserts is then the whole state and replaces the replica's.
+     */
+    public record Delta(List<Insert> inserts, List<String> deletes, long revision, boolean full) {}
+
+    /**
+     * A char and the char it sits right after here (null = front). Splicing in
+     * place, like loadFromState, rather than re-running the insert rule keeps
+     * the replica's order identical to this one whatever order it saw ops in.
+     */
+    public record Insert(CrdtChar character, String after) {}
 
     public CrdtDocument(String documentId) {
+        this(documentId, DEFAULT_MAX_PENDING_OPS, DEFAULT_PENDING_TTL_MS);
+    }
+
+    public CrdtDocument(String documentId, int maxPendingOps, long pendingTtlMillis) {
+        this(documentId, maxPendingOps, pendingTtlMillis, DEFAULT_COLUMNAR_THRESHOLD);
+    }
+
+    public CrdtDocument(String documentId, int maxPendingOps, long pendingTtlMillis, int columnarThreshold) {
         this.documentId = documentId;
-        this.sequence = new ArrayList<>();
-        this.idIndex = new HashMap<>();
+        this.columnarThreshold = columnarThreshold;
+        this.sequence = new CrdtSequence();
+        this.idIndex = new LongIntMap();
+        this.pending = new PendingOperations(maxPendingOps, pendingTtlMillis);
     }
 
     /**
      * Apply an operation (insert or delete).
-     * Returns true if it was new, false if duplicate.
+     * Returns true if it was applied now; false if duplicate or buffered.
      */
     public synchronized boolean applyOperation(CrdtOperation op) {
-        return switch (op.getType()) {
+        return !apply(op).isEmpty();
+    }
+
+    /**
+     * Apply an operation, plus any buffered ops it unblocks.
+     *
+     * An op whose parent (insert) or target (delete) hasn't arrived yet is
+     * buffered instead of dropped. Returns everything that was applied, in
+     * order — empty if the op was a duplicate, had to wait or was malformed.
+     */
+    public synchronized List<Applied> apply(CrdtOperation op) {
+        // Checked before anything changes: a char without ids would sit in the sequence
+        // under no id, and no snapshot of the document could be written after it
+        String malformed = malformed(op);
+        if (malformed != null) {
+            rejectedOps++;
+            log.warn("Rejected op on document {}: {}", documentId, malformed);
+            return List.of();
+        }
+        long now = System.currentTimeMillis();
+        pending.expire(now);
+
+        String missing = missingDependency(op);
+        if (missing != null) {
+            pending.buffer(op, missing, now);
+            return List.of();
+        }
+
+        List<Applied> applied = new ArrayList<>(1);
+        Deque<CrdtOperation> work = new ArrayDeque<>();
+        work.add(op);
+        while (!work.isEmpty()) {
+            CrdtOperation next = work.pollFirst();
+            if (!applyNow(next)) continue;
+
+            applied.add(new Applied(next, revision));
+            // Released ops now have their dependency, so they run straight through
+            if (next.getType() == CrdtOperation.Type.INSERT) {
+                work.addAll(pending.release(next.getCharacter().getId()));
+            } else if (next.getType() == CrdtOperation.Type.INSERT_RUN && pending.size() > 0) {
+                long first = sites.findId(next.getCharacter().getId());
+                for (int i = 0; i < next.getText().length(); i++) {
+                    work.addAll(pending.release(sites.idString(first + i)));
+                }
+            }
+        }
+        return applied;
+    }
+
+    /** Apply a batch under one lock acquisition. Same result as apply() on each op in turn. */
+    public synchronized List<Applied> applyAll(List<CrdtOperation> ops) {
+        List<Applied> applied = new ArrayList<>(ops.size());
+        for (CrdtOperation op : ops) {
+            applied.addAll(apply(op));
+        }
+        return applied;
+    }
+
+    /** What's wrong with the op, or null if it can be applied. */
+    private static String malformed(CrdtOperation op) {
+        if (op == null || op.getType() == null) return "no type";
+        CrdtChar c = op.getCharacter();
+        if (c == null) return op.getType() + " without a character";
+        if (c.getId() == null || c.getId().isEmpty()) return op.getType() + " of a char without an id";
+        // A delete only names its target; inserts are placed (and stored) by site
+        if (op.getType() != CrdtOperation.Type.DELETE && c.getSiteId() == null) {
+            return op.getType() + " of char " + c.getId() + " without a site id";
+        }
+        if (op.getType() == CrdtOperation.Type.INSERT_RUN && (op.getText() == null || op.getText().isEmpty())) {
+            return "INSERT_RUN of char " + c.getId() + " without text";
+        }
+        return null;
+    }
+
+    private boolean applyNow(CrdtOperation op) {
+        boolean applied = switch (op.getType()) {
             case INSERT -> applyInsert(op.getCharacter());
+            case INSERT_RUN -> applyInsertRun(op.getCharacter(), op.getText());
             case DELETE -> applyDelete(op.getCharacter());
         };
+        if (applied) {
+            revision++;
+            switch (op.getType()) {
+                case INSERT -> siteIndex.add(sites.findId(op.getCharacter().getId()), revision);
+                case INSERT_RUN -> {
+                    long first = sites.findId(op.getCharacter().getId());
+                    for (int i = 0; i < op.getText().length(); i++) {
+                        siteIndex.add(first + i, revision);
+                    }
+                }
+                case DELETE -> tombstones.addLast(new PendingTombstone(lookup(op.getCharacter().getId()), revision));
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * The char id this op is waiting for, or null if it can be applied (or is
+     * a duplicate). A run only ever waits on its first char's parent.
+     */
+    private String missingDependency(CrdtOperation op) {
+        CrdtChar c = op.getCharacter();
+        if (isKnown(sites.findId(c.getId()))) {
+            return null; // insert duplicate, or delete of a char we know
+        }
+        if (op.getType() == CrdtOperation.Type.DELETE) {
+            return c.getId();
+        }
+        long parentId = sites.findId(c.getParentId());
+        if (SiteRegistry.isRoot(parentId) || resolveCollected(parentId) != SiteRegistry.UNKNOWN) {
+            return null;
+        }
+        return c.getParentId();
+    }
+
+    /** In the sequence now, or was and got collected. */
+    private boolean isKnown(long id) {
+        return id >= 0 && (idIndex.containsKey(id) || collectedIds.contains(id));
+    }
+
+    /**
+     * Re-apply a logged op, making it land at its original revision so the
+     * revisions stay aligned with what the log (and clients) already saw.
+     */
+    public synchronized void replay(CrdtOperation op, long opRevision) {
+        revision = Math.max(revision, opRevision - 1);
+        apply(op);
+        revision = Math.max(revision, opRevision);
+    }
+
+    /** Called with the number of siblings each insert had to step over. */
+    public synchronized void setScanObserver(IntConsumer scanObserver) {
+        this.scanObserver = scanObserver;
+    }
+
+    /** Drop buffered ops older than the TTL. Returns how many expired. */
+    public synchronized int expirePending(long nowMillis) {
+        return pending.expire(nowMillis);
+    }
+
+    /** Take the buffered ops out, e.g. to hand them to whoever owns the document next. */
+    public synchronized List<CrdtOperation> drainPending() { return pending.drain(); }
+
+    public synchronized int getPendingCount() { return pending.size(); }
+    public synchronized long getBufferedOpCount() { return pending.getBufferedCount(); }
+    public synchronized long getReleasedOpCount() { return pending.getReleasedCount(); }
+    /** Buffered ops dropped without ever being applied — TTL or the size cap. */
+    public synchronized long getExpiredOpCount() { return pending.getExpiredCount() + pending.getOverflowCount(); }
+    /** Ops dropped as malformed, or because their parent was collected and where it sat is no longer known. */
+    public synchronized long getRejectedOpCount() { return rejectedOps; }
+
+    /** Number of ops applied since this document was loaded. */
+    public synchronized long getRevision() {
+        return revision;
     }
 
     /**
@@ -38,59 +283,177 @@ public class CrdtDocument {
      * 3. Scan siblings — higher clock goes LEFT
      * 4. Insert where we stop
      */
-    private boolean applyInsert(CrdtChar newChar) {
-        // Duplicate check
-        if (idIndex.containsKey(newChar.getId())) {
+    private boolean applyInsert(CrdtChar c) {
+        // Duplicate check (a collected char was obviously seen before too)
+        if (isKnown(sites.findId(c.getId()))) {
+            return false;
+        }
+
+        long parentId = sites.findId(c.getParentId());
+        int site = sites.internSite(c.getSiteId());
+        int prev = findSlot(parentId, c.getClock(), site);
+        if (prev == UNPLACED) {
+            return false; // parent hasn't arrived yet
+        }
+
+        long id = sites.internId(c.getId());
+        int handle = sequence.insertAfter(prev, id, parentId, site, c.getClock(), c.getValue(), c.isVisible());
+        idIndex.put(id, handle);
+        inserted(c.isVisible());
+        return true;
+    }
+
+    /**
+     * A run goes where its first char would, and the rest follow it: each is
+     * parented to the one before, which nothing else can be parented to yet.
+     * Rejected whole if it's a duplicate, or if its ids would run past what
+     * a "site-counter" id can hold.
+     */
+    private boolean applyInsertRun(CrdtChar c, String text) {
+        if (text == null || text.isEmpty() || isKnown(sites.findId(c.getId()))) {
+            return false;
+        }
+        long id = sites.internId(c.getId());
+        long counter = id & SiteRegistry.OPAQUE;
+        if (counter == SiteRegistry.OPAQUE || counter + text.length() > SiteRegistry.OPAQUE
+                || (long) c.getClock() + text.length() - 1 > Integer.MAX_VALUE) {
+            return false;
+        }
+        for (int i = 1; i < text.length(); i++) {
+            if (isKnown(id + i)) return false;
+        }
+
+        long parentId = sites.findId(c.getParentId());
+        int site = sites.internSite(c.getSiteId());
+        int prev = findSlot(parentId, c.getClock(), site);
+        if (prev == UNPLACED) {
             return false;
         }
 
-        int insertIdx;
+        int handle = sequence.insertRunAfter(prev, id, parentId, site, c.getClock(), text, c.isVisible());
+        for (int i = 0; i < text.length(); i++) {
+            idIndex.put(id + i, handle);
+            handle = sequence.next(handle);
+        }
+        inserted(c.isVisible());
+        return true;
+    }
 
-        if (newChar.getParentId() == null || newChar.getParentId().isEmpty()) {
+    /**
+     * The char a new one with this parent, clock and site goes right after
+     * (NONE = front of the document), or UNPLACED if the parent is unknown.
+     */
+    private int findSlot(long parentId, int clock, int site) {
+        // We insert right after `prev` (NONE = front of the document)
+        int prev;
+        if (SiteRegistry.isRoot(parentId)) {
             // No parent — insert at the beginning
-            insertIdx = 0;
+            prev = SequenceStore.NONE;
+        } else {
+            // Find parent's node (following GC forwards if the parent was collected)
+            long resolved = resolveCollected(parentId);
+            if (resolved == SiteRegistry.UNKNOWN) {
+                return UNPLACED;
+            }
+            if (resolved == COLLECTED) {
+                // Stale sender; guessing a spot could put it somewhere its replica doesn't have it
+                rejectedOps++;
+                return UNPLACED;
+            }
+            prev = SiteRegistry.isRoot(resolved) ? SequenceStore.NONE : idIndex.get(resolved);
+        }
 
-            // But still check siblings at position 0
-            while (insertIdx < sequence.size()) {
-                CrdtChar existing = sequence.get(insertIdx);
-                if (existing.getParentId() != null && !existing.getParentId().isEmpty()) {
-                    break; // different parent
-                }
-                if (shouldGoBeforeExisting(newChar, existing)) {
-                    break;
-                }
-                insertIdx++;
+        // Start scanning from right of parent (or from the start for root chars)
+        int cursor = prev == SequenceStore.NONE ? sequence.first() : sequence.next(prev);
+        int steps = 0;
+
+        while (cursor != SequenceStore.NONE) {
+            // Different parent — we've passed all siblings, stop
+            if (!sameParent(parentId, sequence.parentId(cursor))) {
+                break;
             }
-        } else {
-            // Find parent's position
-            Integer parentIdx = idIndex.get(newChar.getParentId());
-            if (parentIdx == null) {
-                return false; // parent hasn't arrived yet
+
+            // Same parent — compare to determine order
+            if (shouldGoBeforeExisting(clock, site, cursor)) {
+                break;
             }
 
-            // Start scanning from right of parent
-            insertIdx = parentIdx + 1;
+            prev = cursor;
+            cursor = sequence.next(cursor);
+            steps++;
+        }
+        scanObserver.accept(steps);
+        return prev;
+    }
 
-            while (insertIdx < sequence.size()) {
-                CrdtChar existing = sequence.get(insertIdx);
+    private void inserted(boolean visible) {
+        if (visible) {
+            textCache = null;
+        }
+        if (columnarIsSmaller()) {
+            switchToColumnar();
+        }
+    }
 
-                // Different parent — we've passed all siblings, stop
-                if (!newChar.getParentId().equals(existing.getParentId())) {
-                    break;
-                }
+    /**
+     * Past the threshold, and fragmented enough that the runs cost more heap
+     * than parallel arrays would. Typed or pasted text stays in a few runs
+     * and keeps the object storage however long it gets.
+     */
+    private boolean columnarIsSmaller() {
+        return columnarThreshold > 0 && sequence instanceof CrdtSequence objects
+            && objects.size() >= columnarThreshold
+            && objectHeapBytes(objects) > (long) objects.size() * COLUMNAR_BYTES_PER_CHAR;
+    }
 
-                // Same parent — compare to determine order
-                if (shouldGoBeforeExisting(newChar, existing)) {
-                    break;
-                }
+    private static long objectHeapBytes(CrdtSequence objects) {
+        return (long) objects.size() * OBJECT_BYTES_PER_CHAR + (long) objects.nodeCount() * OBJECT_BYTES_PER_RUN;
+    }
+
+    /**
+     * Move every char into a ColumnarSequence. Handles change, so the id index
+     * and the tombstone queue are rebuilt against the new ones.
+     */
+    private void switchToColumnar() {
+        SequenceStore.Chars chars = new SequenceStore.Chars(sequence.size());
+        for (int h = sequence.first(); h != SequenceStore.NONE; h = sequence.next(h)) {
+            idIndex.put(sequence.id(h), chars.count);
+            chars.add(sequence.id(h), sequence.parentId(h), sequence.site(h), sequence.clock(h),
+                sequence.value(h), sequence.isLive(h));
+        }
+        List<PendingTombstone> queued = new ArrayList<>(tombstones);
+        tombstones.clear();
+        for (PendingTombstone t : queued) {
+            tombstones.addLast(new PendingTombstone(idIndex.get(sequence.id(t.handle())), t.revision()));
+        }
+        ColumnarSequence columnar = new ColumnarSequence();
+        columnar.load(chars);
+        sequence = columnar;
+    }
 
-                insertIdx++;
+    /**
+     * Map a parent id onto a char that is still in the sequence.
+     * Returns EMPTY_PARENT for the front of the document, UNKNOWN if the id
+     * was never seen, or COLLECTED if it was collected but the char it sat
+     * after is no longer remembered (past the cap).
+     */
+    private long resolveCollected(long parentId) {
+        while (parentId >= 0 && !idIndex.containsKey(parentId)) {
+            Long forward = collectedForwards.get(parentId);
+            if (forward == null) {
+                return collectedIds.contains(parentId) ? COLLECTED : SiteRegistry.UNKNOWN;
             }
+            parentId = forward;
         }
+        return parentId;
+    }
 
-        sequence.add(insertIdx, newChar);
-        rebuildIndex();
-        return true;
+    /** Root chars (null or empty parent) are all siblings of each other. */
+    private static boolean sameParent(long parentId, long existingParentId) {
+        if (SiteRegistry.isRoot(parentId)) {
+            return SiteRegistry.isRoot(existingParentId);
+        }
+        return parentId == existingParentId;
     }
 
     /**
@@ -98,62 +461,392 @@ public class CrdtDocument {
      * Higher clock goes LEFT (closer to parent).
      * Equal clock → higher siteId goes LEFT.
      */
-    private boolean shouldGoBeforeExisting(CrdtChar newChar, CrdtChar existing) {
-        if (newChar.getClock() != existing.getClock()) {
-            return newChar.getClock() > existing.getClock();
+    private boolean shouldGoBeforeExisting(int clock, int site, int existing) {
+        int existingClock = sequence.clock(existing);
+        if (clock != existingClock) {
+            return clock > existingClock;
         }
-        return newChar.getSiteId().compareTo(existing.getSiteId()) > 0;
+        return sites.compareSites(site, sequence.site(existing)) > 0;
     }
 
     /**
      * Delete = mark as tombstone. Don't remove it.
      */
     private boolean applyDelete(CrdtChar deleteChar) {
-        Integer idx = idIndex.get(deleteChar.getId());
-        if (idx == null) return false;
+        int handle = lookup(deleteChar.getId());
+        if (handle == SequenceStore.NONE) return false;
 
-        CrdtChar existing = sequence.get(idx);
-        if (existing.isTombstone()) return false; // already deleted
+        if (!sequence.isLive(handle)) return false; // already deleted
 
-        existing.setTombstone(true);
+        sequence.setLive(handle, false);
+        textCache = null;
         return true;
     }
 
-    /** Get visible text (skip tombstones) */
-    public String getText() {
-        StringBuilder sb = new StringBuilder();
-        for (CrdtChar c : sequence) {
-            if (c.isVisible()) {
-                sb.append(c.getValue());
+    /** Get visible text (skip tombstones). Cached until the next visible change. */
+    public synchronized String getText() {
+        if (textCache == null) {
+            StringBuilder sb = new StringBuilder(sequence.visibleSize());
+            for (int h = sequence.first(); h != SequenceStore.NONE; h = sequence.next(h)) {
+                if (sequence.isLive(h)) {
+                    sb.append(sequence.value(h));
+                }
             }
+            textCache = sb.toString();
+        }
+        return textCache;
+    }
+
+    /** Length of the visible text, without building it. */
+    public synchronized int getVisibleLength() {
+        return sequence.visibleSize();
+    }
+
+    /**
+     * Visible offset of a char (what editor cursors use), or -1 if unknown.
+     * A tombstoned char maps to the offset its neighbours collapsed onto.
+     */
+    public synchronized int visibleIndexOf(String charId) {
+        int handle = lookup(charId);
+        return handle == SequenceStore.NONE ? -1 : sequence.visibleIndexOf(handle);
+    }
+
+    /**
+     * Caret offset just after a char (null = front of the document), for
+     * cursors anchored to a char id. A deleted or collected anchor gives the
+     * offset its neighbours collapsed onto. -1 if the char was never here,
+     * or was collected too long ago to tell.
+     */
+    public synchronized int caretAfter(String anchorId) {
+        long id = resolveCollected(sites.findId(anchorId));
+        if (id == SiteRegistry.UNKNOWN || id == COLLECTED) return -1;
+        if (SiteRegistry.isRoot(id)) return 0;
+        int handle = idIndex.get(id);
+        return sequence.visibleIndexOf(handle) + (sequence.isLive(handle) ? 1 : 0);
+    }
+
+    /** The anchor for a caret offset: id of the visible char before it, null at the front. */
+    public synchronized String anchorAt(int caret) {
+        int before = Math.min(caret, sequence.visibleSize()) - 1;
+        return before < 0 ? null : charIdAtVisible(before);
+    }
+
+    /** Id of the visible char at a visible offset, or null if out of range. */
+    public synchronized String charIdAtVisible(int position) {
+        if (position < 0 || position >= sequence.visibleSize()) {
+            return null;
         }
-        return sb.toString();
+        return sites.idString(sequence.id(sequence.nodeAtVisible(position)));
     }
 
     /** Get full state including tombstones (for saving/syncing) */
-    public List<CrdtChar> getFullState() {
-        return new ArrayList<>(sequence);
+    public synchronized List<CrdtChar> getFullState() {
+        List<CrdtChar> chars = new ArrayList<>(sequence.size());
+        for (int h = sequence.first(); h != SequenceStore.NONE; h = sequence.next(h)) {
+            chars.add(toChar(h));
+        }
+        return chars;
+    }
+
+    /**
+     * Up to `limit` chars (tombstones included) right after the char afterId,
+     * or from the front if it is null. A cursor char collected since the last
+     * page resumes from where it used to be. Null if afterId was never here,
+     * or was collected too long ago to tell where.
+     */
+    public synchronized Page page(String afterId, int limit) {
+        int h;
+        if (afterId == null) {
+            h = sequence.first();
+        } else {
+            long resolved = resolveCollected(sites.findId(afterId));
+            if (resolved == SiteRegistry.UNKNOWN || resolved == COLLECTED) {
+                return null;
+            }
+            h = SiteRegistry.isRoot(resolved) ? sequence.first() : sequence.next(idIndex.get(resolved));
+        }
+        List<CrdtChar> chars = new ArrayList<>(Math.min(limit, sequence.size()));
+        for (; h != SequenceStore.NONE && chars.size() < limit; h = sequence.next(h)) {
+            chars.add(toChar(h));
+        }
+        return new Page(chars, revision, h != SequenceStore.NONE);
+    }
+
+    /**
+     * The chars after afterId (or all of them, if null) as of this revision,
+     * copied under one lock into flat arrays — a few dozen bytes a char and
+     * no CrdtChar objects — to be read out afterwards without the lock.
+     * A collected afterId resumes from where it used to be, as with page().
+     * Null if afterId was never here.
+     */
+    public synchronized Frozen freeze(String afterId) {
+        int h;
+        if (afterId == null) {
+            h = sequence.first();
+        } else {
+            long resolved = resolveCollected(sites.findId(afterId));
+            if (resolved == SiteRegistry.UNKNOWN || resolved == COLLECTED) {
+                return null;
+            }
+            h = SiteRegistry.isRoot(resolved) ? sequence.first() : sequence.next(idIndex.get(resolved));
+        }
+        SequenceStore.Chars chars = new SequenceStore.Chars(afterId == null ? sequence.size() : 16);
+        for (; h != SequenceStore.NONE; h = sequence.next(h)) {
+            chars.add(sequence.id(h), sequence.parentId(h), sequence.site(h), sequence.clock(h),
+                sequence.value(h), sequence.isLive(h));
+        }
+        return new Frozen(chars, sites.names(), revision);
+    }
+
+    /** A run of the sequence as of one revision; see freeze(). */
+    public static final class Frozen {
+        private final SequenceStore.Chars chars;
+        private final String[] siteNames;
+        private final long revision;
+
+        private Frozen(SequenceStore.Chars chars, String[] siteNames, long revision) {
+            this.chars = chars;
+            this.siteNames = siteNames;
+            this.revision = revision;
+        }
+
+        public int size() { return chars.count; }
+        public long revision() { return revision; }
+
+        public CrdtChar get(int i) {
+            return new CrdtChar(SiteRegistry.idString(chars.ids[i], siteNames), chars.values[i],
+                SiteRegistry.idString(chars.parentIds[i], siteNames), chars.clocks[i],
+                siteNames[chars.sites[i]], !chars.live[i]);
+        }
+    }
+
+    /** Copy of the state plus the revision it reflects, taken under the document lock. */
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(getFullState(), revision, getCollected(), getCollectedForwards());
+    }
+
+    /** Ids collected so far, as ranges — saved alongside the state. */
+    public synchronized List<CollectedRange> getCollected() {
+        List<CollectedRange> ranges = new ArrayList<>(collectedIds.rangeCount());
+        for (long[] r : collectedIds.toList()) {
+            ranges.add(new CollectedRange(sites.siteName((int) r[0]), r[1], r[2]));
+        }
+        return ranges;
+    }
+
+    /** Where collected chars sat, oldest first — saved alongside the state so late ops replay the same way. */
+    public synchronized List<CollectedForward> getCollectedForwards() {
+        List<CollectedForward> forwards = new ArrayList<>(collectedForwards.size());
+        for (Map.Entry<Long, Long> e : collectedForwards.entrySet()) {
+            forwards.add(new CollectedForward(sites.idString(e.getKey()), sites.idString(e.getValue())));
+        }
+        return forwards;
+    }
+
+    /**
+     * The delta for a replica that has seen, per site, every char up to the
+     * given counter, and every op up to sinceRevision.
+     *
+     * Inserts come from the site index, so this costs O(sites + missing * log n)
+     * rather than a pass over the sequence. Deletes come from the tombstone
+     * queue. A replica that synced before chars were collected (or before the
+     * snapshot this document was loaded from) may be missing chars that are
+     * gone now, so it gets the full state instead.
+     */
+    public synchronized Delta deltaSince(Map<String, Long> seen, long sinceRevision) {
+        if (sinceRevision < collectedThrough || sinceRevision > revision) {
+            List<Insert> all = new ArrayList<>(sequence.size());
+            for (int h = sequence.first(); h != SequenceStore.NONE; h = sequence.next(h)) {
+                all.add(placed(h));
+            }
+            return new Delta(all, List.of(), revision, true);
+        }
+
+        long[] bounds = new long[sites.size()];
+        for (int s = 0; s < bounds.length; s++) {
+            Long counter = seen.get(sites.siteName(s));
+            bounds[s] = counter == null ? -1 : Math.max(-1, Math.min(counter, SiteRegistry.OPAQUE - 1));
+        }
+        // (position << 32 | handle), so sorting puts them in sequence order
+        LongStream.Builder found = LongStream.builder();
+        siteIndex.missing(bounds, sinceRevision, id -> {
+            int h = idIndex.get(id);
+            if (h != SequenceStore.NONE) {
+                found.add(((long) sequence.indexOf(h) << 32) | h);
+            }
+        });
+        long[] order = found.build().sorted().toArray();
+        List<Insert> inserts = new ArrayList<>(order.length);
+        for (long o : order) {
+            inserts.add(placed((int) o));
+        }
+
+        List<String> deletes = new ArrayList<>();
+        for (Iterator<PendingTombstone> it = tombstones.descendingIterator(); it.hasNext(); ) {
+            PendingTombstone t = it.next();
+            if (t.revision() <= sinceRevision) break;
+            deletes.add(sites.idString(sequence.id(t.handle())));
+        }
+        Collections.reverse(deletes);
+        return new Delta(inserts, deletes, revision, false);
+    }
+
+    private Insert placed(int h) {
+        int before = sequence.prev(h);
+        return new Insert(toChar(h), before == SequenceStore.NONE ? null : sites.idString(sequence.id(before)));
+    }
+
+    /** Position of a char in the full sequence (tombstones included), or -1 if unknown. */
+    public synchronized int indexOf(String charId) {
+        int handle = lookup(charId);
+        return handle == SequenceStore.NONE ? -1 : sequence.indexOf(handle);
+    }
+
+    /** Mark the document as used now (LRU / idle eviction). */
+    public void touch() {
+        lastAccessMillis = System.currentTimeMillis();
+    }
+
+    public long getLastAccessMillis() {
+        return lastAccessMillis;
+    }
+
+    /** Rough resident heap of the char storage, for the document cache's budget. */
+    public synchronized long estimatedHeapBytes() {
+        if (sequence instanceof CrdtSequence objects) {
+            return objectHeapBytes(objects);
+        }
+        return (long) sequence.size() * COLUMNAR_BYTES_PER_CHAR;
+    }
+
+    /** Nodes the chars are stored in: one per run for object storage, one per char once columnar. */
+    public synchronized int getRunCount() {
+        return sequence instanceof CrdtSequence objects ? objects.nodeCount() : sequence.size();
+    }
+
+    /** Whether the chars are held in parallel arrays rather than one object each. */
+    public synchronized boolean isColumnar() {
+        return sequence instanceof ColumnarSequence;
+    }
+
+    /** Handle of a char currently in the sequence, or NONE. */
+    private int lookup(String charId) {
+        long id = sites.findId(charId);
+        return id >= 0 ? idIndex.get(id) : SequenceStore.NONE;
+    }
+
+    private CrdtChar toChar(int h) {
+        return new CrdtChar(sites.idString(sequence.id(h)), sequence.value(h), sites.idString(sequence.parentId(h)),
+            sequence.clock(h), sites.siteName(sequence.site(h)), !sequence.isLive(h));
+    }
+
+    /** Number of chars in the sequence, tombstones included. */
+    public synchronized int size() {
+        return sequence.size();
     }
 
     public String getDocumentId() {
         return documentId;
     }
 
-    private void rebuildIndex() {
-        idIndex.clear();
-        for (int i = 0; i < sequence.size(); i++) {
-            idIndex.put(sequence.get(i).getId(), i);
+    /**
+     * Physically remove tombstones deleted at or before stableRevision — i.e.
+     * deletes every connected replica has acknowledged. Because every replica
+     * has seen them, any future insert carries a higher clock and sorts ahead
+     * of them, so dropping them doesn't change where new chars land.
+     *
+     * A late insert that still names a collected parent is placed after the
+     * char the parent used to follow, while that is remembered (the last
+     * MAX_COLLECTED_FORWARDS, kept across reloads); after that it is rejected.
+     * Collected ids themselves are kept as ranges, so a re-delivered insert
+     * is still a duplicate. Chars whose parentId names a collected char keep
+     * it, so sibling comparisons still match the clients' replicas.
+     *
+     * Returns the collected chars (for metrics).
+     */
+    public synchronized List<CrdtChar> collectTombstones(long stableRevision) {
+        List<CrdtChar> collected = new ArrayList<>();
+        long[] ids = new long[16];
+        while (!tombstones.isEmpty() && tombstones.peekFirst().revision() <= stableRevision) {
+            PendingTombstone tombstone = tombstones.pollFirst();
+            collectedThrough = Math.max(collectedThrough, tombstone.revision());
+            int handle = tombstone.handle();
+            int before = sequence.prev(handle);
+            long id = sequence.id(handle);
+            collectedForwards.put(id, before == SequenceStore.NONE ? SiteRegistry.EMPTY_PARENT : sequence.id(before));
+            collectedIds.add(id);
+            if (collected.size() == ids.length) {
+                ids = Arrays.copyOf(ids, ids.length * 2);
+            }
+            ids[collected.size()] = id;
+            collected.add(toChar(handle));
+            sequence.remove(handle);
+            idIndex.remove(id);
         }
+        siteIndex.removeAll(ids, collected.size());
+        siteIndex.dropLateThrough(collectedThrough);
+        return collected;
+    }
+
+    /** Tombstones still waiting for every replica to acknowledge them. */
+    public synchronized int getPendingTombstoneCount() {
+        return tombstones.size();
     }
 
     /**
      * Load state directly from a saved sequence.
      * No need to replay the insert algorithm — the order is already correct.
      */
-    public void loadFromState(List<CrdtChar> chars) {
-        sequence.clear();
-        sequence.addAll(chars);
-        rebuildIndex();
+    public synchronized void loadFromState(List<CrdtChar> chars) {
+        loadFromState(chars, 0);
+    }
+
+    /** Same, for a snapshot taken at the given revision. */
+    public synchronized void loadFromState(List<CrdtChar> chars, long snapshotRevision) {
+        loadFromState(chars, snapshotRevision, List.of());
+    }
+
+    /** Same, plus the ids collected before the snapshot (see getCollected). */
+    public synchronized void loadFromState(List<CrdtChar> chars, long snapshotRevision, List<CollectedRange> collected) {
+        loadFromState(chars, snapshotRevision, collected, List.of());
+    }
+
+    /** Same, plus where those collected chars sat (see getCollectedForwards). */
+    public synchronized void loadFromState(List<CrdtChar> chars, long snapshotRevision, List<CollectedRange> collected,
+                                           List<CollectedForward> forwards) {
+        revision = snapshotRevision;
+        collectedThrough = snapshotRevision;
+        idIndex.clear();
+        tombstones.clear();
+        SequenceStore.Chars loaded = new SequenceStore.Chars(chars.size());
+        for (CrdtChar c : chars) {
+            long id = sites.internId(c.getId());
+            idIndex.put(id, loaded.count);  // load() hands out handles in order
+            if (c.isTombstone()) {
+                // Deleted before this load — stable as soon as anyone has seen revision 0
+                tombstones.addLast(new PendingTombstone(loaded.count, 0));
+            }
+            loaded.add(id, sites.internId(c.getParentId()), sites.internSite(c.getSiteId()), c.getClock(),
+                c.getValue(), c.isVisible());
+        }
+        // Into runs first: only they tell whether the document is fragmented enough for columnar
+        if (!(sequence instanceof CrdtSequence)) {
+            sequence = new CrdtSequence();
+        }
+        sequence.load(loaded);
+        if (columnarIsSmaller()) {
+            switchToColumnar();
+        }
+        siteIndex.load(loaded.ids, loaded.count);
+        collectedForwards.clear();
+        collectedIds.clear();
+        for (CollectedRange range : collected) {
+            collectedIds.addRange(sites.internSite(range.site()), range.from(), range.to());
+        }
+        for (CollectedForward forward : forwards) {
+            collectedForwards.put(sites.internId(forward.id()), sites.internId(forward.after()));
+        }
+        textCache = null;
     }
 
 }
\ No newline at end of file
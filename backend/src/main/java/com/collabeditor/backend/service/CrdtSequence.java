@@ -0,0 +1,626 @@
+package com.collabeditor.backend.service;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.SplittableRandom;
+
+/**
+ * Position-indexed sequence of chars, backed by a treap with subtree sizes.
+ *
+ * A tree node holds a run: chars from one site with consecutive counters and
+ * clocks, each parented to the one before it. That's what typing and pasting
+ * produce, so a 50 KB paste is one node rather than 50,000. A run is split
+ * lazily, when something is inserted after a char in its middle or a char in
+ * it is removed. Tombstoning a char only flips a bit.
+ *
+ * Every char still has its own int handle that stays put while the char is
+ * in the sequence (handle → node, plus the char's slot in the node), so
+ * CrdtDocument can keep charId → handle and never has to re-index after an
+ * insert. Insert, remove and indexOf are all O(log n) plus the run copied
+ * by a split.
+ *
+ * Each subtree also counts its visible (non-tombstone) chars, which gives the
+ * same O(log n) lookups in visible-offset space — what editors and cursors use.
+ */
+public class CrdtSequence implements SequenceStore {
+
+    /**
+     * A run of chars, flattened into primitives: ids are SiteRegistry longs and
+     * the site is an index into the same registry. The run is slots
+     * [start, start + length) of the arrays; char i of it has id id + i,
+     * clock clock + i, and (for i > 0) parent id + i - 1. CrdtChars are only
+     * built at the edges (state endpoints, snapshots).
+     */
+    static final class Node {
+        final int site;
+        final int priority;
+        long id;          // first char's
+        long parentId;    // first char's
+        int clock;        // first char's
+        int[] handles;
+        char[] values;
+        long[] live;      // bit per slot; owned by the sequence, so counts can't drift
+        int start;
+        int length;
+        int liveCount;
+        Node left;
+        Node right;
+        Node parent;
+        int size;         // chars in this subtree
+        int visible;      // non-tombstone chars in this subtree
+
+        Node(long id, long parentId, int site, int clock, int capacity, int priority) {
+            this.id = id;
+            this.parentId = parentId;
+            this.site = site;
+            this.clock = clock;
+            this.handles = new int[capacity];
+            this.values = new char[capacity];
+            this.live = new long[(capacity + 63) >>> 6];
+            this.priority = priority;
+        }
+
+        int end() {
+            return start + length;
+        }
+
+        boolean isLive(int slot) {
+            return (live[slot >>> 6] & (1L << slot)) != 0;
+        }
+
+        /** Live chars in slots [from, to). */
+        int liveBetween(int from, int to) {
+            int count = 0;
+            for (int slot = from; slot < to; ) {
+                int word = slot >>> 6;
+                int wordEnd = Math.min(to, (word + 1) << 6);
+                long bits = live[word] >>> (slot & 63);
+                if (wordEnd - slot < 64) {
+                    bits &= (1L << (wordEnd - slot)) - 1;
+                }
+                count += Long.bitCount(bits);
+                slot = wordEnd;
+            }
+            return count;
+        }
+
+        /** Slot of the n-th (0-based) live char. */
+        int nthLive(int n) {
+            for (int slot = start; ; slot++) {
+                if (isLive(slot) && n-- == 0) {
+                    return slot;
+                }
+            }
+        }
+    }
+
+    private final SplittableRandom random = new SplittableRandom();
+    private Node root;
+    private Node[] nodes = new Node[16];  // handle → node
+    private int[] slots = new int[16];    // handle → slot in its node
+    private int nextHandle;
+    private int[] freeHandles = new int[0];
+    private int freeCount;
+    private int nodeCount;
+    private final char[] one = new char[1];
+
+    @Override
+    public int size() {
+        return size(root);
+    }
+
+    @Override
+    public int visibleSize() {
+        return visible(root);
+    }
+
+    /** Tree nodes, i.e. runs — what the heap cost mostly depends on. */
+    public int nodeCount() {
+        return nodeCount;
+    }
+
+    @Override
+    public int indexOf(int handle) {
+        Node node = nodes[handle];
+        int rank = size(node.left) + slots[handle] - node.start;
+        Node n = node;
+        while (n.parent != null) {
+            if (n == n.parent.right) {
+                rank += size(n.parent.left) + n.parent.length;
+            }
+            n = n.parent;
+        }
+        return rank;
+    }
+
+    @Override
+    public int visibleIndexOf(int handle) {
+        Node node = nodes[handle];
+        int rank = visible(node.left) + node.liveBetween(node.start, slots[handle]);
+        Node n = node;
+        while (n.parent != null) {
+            if (n == n.parent.right) {
+                Node p = n.parent;
+                rank += visible(p.left) + p.liveCount;
+            }
+            n = n.parent;
+        }
+        return rank;
+    }
+
+    /** The visible char at a visible offset — tombstoned subtrees are skipped wholesale. */
+    @Override
+    public int nodeAtVisible(int visibleIndex) {
+        if (visibleIndex < 0 || visibleIndex >= visibleSize()) {
+            throw new IndexOutOfBoundsException("Visible index: " + visibleIndex + ", Visible size: " + visibleSize());
+        }
+        Node n = root;
+        while (true) {
+            int leftVisible = visible(n.left);
+            if (visibleIndex < leftVisible) {
+                n = n.left;
+            } else if (visibleIndex < leftVisible + n.liveCount) {
+                return n.handles[n.nthLive(visibleIndex - leftVisible)];
+            } else {
+                visibleIndex -= leftVisible + n.liveCount;
+                n = n.right;
+            }
+        }
+    }
+
+    @Override
+    public boolean isLive(int handle) {
+        return nodes[handle].isLive(slots[handle]);
+    }
+
+    /** Flip a char between visible and tombstoned, keeping the subtree counts in step. */
+    @Override
+    public void setLive(int handle, boolean live) {
+        Node node = nodes[handle];
+        int slot = slots[handle];
+        if (node.isLive(slot) == live) return;
+        node.live[slot >>> 6] ^= 1L << slot;
+        int delta = live ? 1 : -1;
+        node.liveCount += delta;
+        for (Node n = node; n != null; n = n.parent) {
+            n.visible += delta;
+        }
+    }
+
+    @Override public long id(int handle) { return nodes[handle].id + offset(handle); }
+    @Override public int site(int handle) { return nodes[handle].site; }
+    @Override public int clock(int handle) { return nodes[handle].clock + offset(handle); }
+    @Override public char value(int handle) { return nodes[handle].values[slots[handle]]; }
+
+    @Override
+    public long parentId(int handle) {
+        int offset = offset(handle);
+        Node node = nodes[handle];
+        return offset == 0 ? node.parentId : node.id + offset - 1;
+    }
+
+    private int offset(int handle) {
+        return slots[handle] - nodes[handle].start;
+    }
+
+    @Override
+    public int first() {
+        return root == null ? NONE : firstHandle(leftmost(root));
+    }
+
+    /** Amortized O(1) when scanning; O(1) within a run. */
+    @Override
+    public int next(int handle) {
+        Node node = nodes[handle];
+        int slot = slots[handle];
+        if (slot + 1 < node.end()) {
+            return node.handles[slot + 1];
+        }
+        if (node.right != null) {
+            return firstHandle(leftmost(node.right));
+        }
+        Node n = node;
+        while (n.parent != null && n == n.parent.right) {
+            n = n.parent;
+        }
+        return n.parent == null ? NONE : firstHandle(n.parent);
+    }
+
+    @Override
+    public int prev(int handle) {
+        Node node = nodes[handle];
+        int slot = slots[handle];
+        if (slot > node.start) {
+            return node.handles[slot - 1];
+        }
+        if (node.left != null) {
+            Node n = node.left;
+            while (n.right != null) {
+                n = n.right;
+            }
+            return lastHandle(n);
+        }
+        Node n = node;
+        while (n.parent != null && n == n.parent.left) {
+            n = n.parent;
+        }
+        return n.parent == null ? NONE : lastHandle(n.parent);
+    }
+
+    @Override
+    public int insertAfter(int prevHandle, long id, long parentId, int site, int clock, char value, boolean live) {
+        one[0] = value;
+        return insert(prevHandle, id, parentId, site, clock, one, 1, live);
+    }
+
+    @Override
+    public int insertRunAfter(int prevHandle, long id, long parentId, int site, int clock, CharSequence text, boolean live) {
+        char[] values = text.toString().toCharArray();
+        return insert(prevHandle, id, parentId, site, clock, values, values.length, live);
+    }
+
+    /**
+     * Chars that carry on prev's run (next id, next clock, parented to prev)
+     * are appended to it. Anything else becomes a new node, attached as a
+     * leaf and rotated up by priority — after splitting prev's run if prev
+     * is in its middle.
+     */
+    private int insert(int prevHandle, long id, long parentId, int site, int clock, char[] values, int count, boolean live) {
+        Node prev = prevHandle == NONE ? null : nodes[prevHandle];
+        if (prev != null && slots[prevHandle] + 1 < prev.end()) {
+            split(prev, slots[prevHandle] + 1 - prev.start);
+        } else if (prev != null && continuesRun(prev, id, parentId, site, clock)) {
+            return append(prev, values, count, live);
+        }
+
+        Node node = newNode(id, parentId, site, clock, values, count, live);
+        attachAfter(prev, node);
+        return firstHandle(node);
+    }
+
+    /** Whether a char can go on the end of node's run. */
+    private static boolean continuesRun(Node node, long id, long parentId, int site, int clock) {
+        long last = node.id + node.length - 1;
+        return parentId == last
+            && id == last + 1
+            && (id >>> 32) == (node.id >>> 32)
+            && (id & SiteRegistry.OPAQUE) != SiteRegistry.OPAQUE
+            && site == node.site
+            && clock == node.clock + node.length;
+    }
+
+    private int append(Node node, char[] values, int count, boolean live) {
+        int end = node.end();
+        if (end + count > node.values.length) {
+            int capacity = Math.max(end + count, end + (end >> 1) + 1);
+            node.handles = Arrays.copyOf(node.handles, capacity);
+            node.values = Arrays.copyOf(node.values, capacity);
+            node.live = Arrays.copyOf(node.live, (capacity + 63) >>> 6);
+        }
+        System.arraycopy(values, 0, node.values, end, count);
+        for (int slot = end; slot < end + count; slot++) {
+            int handle = allocateHandle();
+            node.handles[slot] = handle;
+            nodes[handle] = node;
+            slots[handle] = slot;
+            // Slots past the end can hold stale bits from a split or a removal
+            if (live) {
+                node.live[slot >>> 6] |= 1L << slot;
+            } else {
+                node.live[slot >>> 6] &= ~(1L << slot);
+            }
+        }
+        node.length += count;
+        int visibleDelta = live ? count : 0;
+        node.liveCount += visibleDelta;
+        for (Node n = node; n != null; n = n.parent) {
+            n.size += count;
+            n.visible += visibleDelta;
+        }
+        return node.handles[end];
+    }
+
+    /** Attach a detached node (counts already set) right after prev's run, or at the front. */
+    private void attachAfter(Node prev, Node node) {
+        nodeCount++;
+        if (root == null) {
+            root = node;
+            return;
+        }
+        Node attachTo;
+        if (prev == null) {
+            attachTo = leftmost(root);
+            attachTo.left = node;
+        } else if (prev.right == null) {
+            attachTo = prev;
+            attachTo.right = node;
+        } else {
+            attachTo = leftmost(prev.right);
+            attachTo.left = node;
+        }
+        node.parent = attachTo;
+
+        for (Node n = attachTo; n != null; n = n.parent) {
+            n.size += node.length;
+            n.visible += node.liveCount;
+        }
+        while (node.parent != null && node.priority > node.parent.priority) {
+            rotateUp(node);
+        }
+    }
+
+    /** Move chars from offset `at` onwards into a new node right after this one. */
+    private void split(Node node, int at) {
+        int from = node.start + at;
+        int count = node.length - at;
+        Node tail = new Node(node.id + at, node.id + at - 1, node.site, node.clock + at, count, random.nextInt());
+        System.arraycopy(node.handles, from, tail.handles, 0, count);
+        System.arraycopy(node.values, from, tail.values, 0, count);
+        for (int i = 0; i < count; i++) {
+            int handle = tail.handles[i];
+            nodes[handle] = tail;
+            slots[handle] = i;
+            if (node.isLive(from + i)) {
+                tail.live[i >>> 6] |= 1L << i;
+            }
+        }
+        tail.length = count;
+        tail.liveCount = node.liveBetween(from, node.end());
+        tail.size = count;
+        tail.visible = tail.liveCount;
+
+        node.length = at;
+        node.liveCount -= tail.liveCount;
+        for (Node n = node; n != null; n = n.parent) {
+            n.size -= count;
+            n.visible -= tail.liveCount;
+        }
+        attachAfter(node, tail);
+    }
+
+    /**
+     * Take one char out. The ends of a run just shrink it; a char in the
+     * middle splits the run first so it ends up last.
+     */
+    @Override
+    public void remove(int handle) {
+        Node node = nodes[handle];
+        int offset = offset(handle);
+        if (offset > 0 && offset < node.length - 1) {
+            split(node, offset + 1);
+        }
+        int visibleDelta = isLive(handle) ? 1 : 0;
+        if (node.length == 1) {
+            unlink(node);
+        } else {
+            if (offset == 0) {
+                node.parentId = node.id;
+                node.id++;
+                node.clock++;
+                node.start++;
+            }
+            node.length--;
+            node.liveCount -= visibleDelta;
+            for (Node n = node; n != null; n = n.parent) {
+                n.size--;
+                n.visible -= visibleDelta;
+            }
+        }
+
+        nodes[handle] = null;
+        if (freeCount == freeHandles.length) {
+            freeHandles = Arrays.copyOf(freeHandles, Math.max(16, freeCount * 2));
+        }
+        freeHandles[freeCount++] = handle;
+    }
+
+    /** Unlink a node: rotate it down to a leaf, then detach it. */
+    private void unlink(Node node) {
+        while (node.left != null || node.right != null) {
+            Node child;
+            if (node.left == null) {
+                child = node.right;
+            } else if (node.right == null) {
+                child = node.left;
+            } else {
+                child = node.left.priority > node.right.priority ? node.left : node.right;
+            }
+            rotateUp(child);
+        }
+
+        Node p = node.parent;
+        if (p == null) {
+            root = null;
+        } else if (p.left == node) {
+            p.left = null;
+        } else {
+            p.right = null;
+        }
+        node.parent = null;
+        for (Node n = p; n != null; n = n.parent) {
+            n.size -= node.length;
+            n.visible -= node.liveCount;
+        }
+        nodeCount--;
+    }
+
+    /**
+     * Replace the contents with an already-ordered list in O(n), coalescing
+     * runs as it goes. Builds a Cartesian tree on random priorities, so the
+     * result is a valid treap.
+     */
+    @Override
+    public void load(Chars chars) {
+        root = null;
+        nodes = new Node[Math.max(16, chars.count)];
+        slots = new int[nodes.length];
+        nextHandle = chars.count;
+        freeCount = 0;
+        nodeCount = 0;
+        Deque<Node> rightSpine = new ArrayDeque<>();
+        for (int from = 0; from < chars.count; ) {
+            int to = from + 1;
+            while (to < chars.count && carriesOn(chars, to)) {
+                to++;
+            }
+            Node node = new Node(chars.ids[from], chars.parentIds[from], chars.sites[from], chars.clocks[from],
+                to - from, random.nextInt());
+            System.arraycopy(chars.values, from, node.values, 0, to - from);
+            for (int i = from; i < to; i++) {
+                node.handles[i - from] = i;
+                nodes[i] = node;
+                slots[i] = i - from;
+                if (chars.live[i]) {
+                    node.live[(i - from) >>> 6] |= 1L << (i - from);
+                    node.liveCount++;
+                }
+            }
+            node.length = to - from;
+            nodeCount++;
+            from = to;
+
+            Node lastPopped = null;
+            while (!rightSpine.isEmpty() && rightSpine.peek().priority < node.priority) {
+                lastPopped = rightSpine.pop();
+            }
+            if (lastPopped != null) {
+                node.left = lastPopped;
+                lastPopped.parent = node;
+            }
+            if (rightSpine.isEmpty()) {
+                root = node;
+            } else {
+                rightSpine.peek().right = node;
+                node.parent = rightSpine.peek();
+            }
+            rightSpine.push(node);
+        }
+        if (root != null) {
+            recomputeSizes(root);
+        }
+    }
+
+    /** Whether char i continues the run char i - 1 is in. */
+    private static boolean carriesOn(Chars chars, int i) {
+        long id = chars.ids[i];
+        return chars.parentIds[i] == chars.ids[i - 1]
+            && id == chars.ids[i - 1] + 1
+            && (id >>> 32) == (chars.ids[i - 1] >>> 32)
+            && (id & SiteRegistry.OPAQUE) != SiteRegistry.OPAQUE
+            && chars.sites[i] == chars.sites[i - 1]
+            && chars.clocks[i] == chars.clocks[i - 1] + 1;
+    }
+
+    // --- Tree maintenance ---
+
+    private Node newNode(long id, long parentId, int site, int clock, char[] values, int count, boolean live) {
+        Node node = new Node(id, parentId, site, clock, count, random.nextInt());
+        System.arraycopy(values, 0, node.values, 0, count);
+        for (int slot = 0; slot < count; slot++) {
+            int handle = allocateHandle();
+            node.handles[slot] = handle;
+            nodes[handle] = node;
+            slots[handle] = slot;
+        }
+        if (live) {
+            for (int slot = 0; slot < count; slot++) {
+                node.live[slot >>> 6] |= 1L << slot;
+            }
+        }
+        node.length = count;
+        node.liveCount = live ? count : 0;
+        node.size = count;
+        node.visible = node.liveCount;
+        return node;
+    }
+
+    private int allocateHandle() {
+        if (freeCount > 0) {
+            return freeHandles[--freeCount];
+        }
+        int handle = nextHandle++;
+        if (handle == nodes.length) {
+            nodes = Arrays.copyOf(nodes, handle + (handle >> 1));
+            slots = Arrays.copyOf(slots, nodes.length);
+        }
+        return handle;
+    }
+
+    private static int firstHandle(Node n) {
+        return n.handles[n.start];
+    }
+
+    private static int lastHandle(Node n) {
+        return n.handles[n.end() - 1];
+    }
+
+    private static int size(Node n) {
+        return n == null ? 0 : n.size;
+    }
+
+    private static int visible(Node n) {
+        return n == null ? 0 : n.visible;
+    }
+
+    private static Node leftmost(Node n) {
+        while (n.left != null) {
+            n = n.left;
+        }
+        return n;
+    }
+
+    private static void update(Node n) {
+        n.size = n.length + size(n.left) + size(n.right);
+        n.visible = n.liveCount + visible(n.left) + visible(n.right);
+    }
+
+    /** Rotate x above its parent, keeping in-order position intact. */
+    private void rotateUp(Node x) {
+        Node p = x.parent;
+        Node g = p.parent;
+
+        if (x == p.left) {
+            p.left = x.right;
+            if (x.right != null) x.right.parent = p;
+            x.right = p;
+        } else {
+            p.right = x.left;
+            if (x.left != null) x.left.parent = p;
+            x.left = p;
+        }
+        p.parent = x;
+        x.parent = g;
+
+        if (g == null) {
+            root = x;
+        } else if (g.left == p) {
+            g.left = x;
+        } else {
+            g.right = x;
+        }
+        update(p);
+        update(x);
+    }
+
+    /** Post-order size fix-up without recursion (treaps from load() can be deep-ish). */
+    private static void recomputeSizes(Node top) {
+        Deque<Node> stack = new ArrayDeque<>();
+        Node last = null;
+        Node n = top;
+        while (n != null || !stack.isEmpty()) {
+            if (n != null) {
+                stack.push(n);
+                n = n.left;
+            } else {
+                Node peek = stack.peek();
+                if (peek.right != null && last != peek.right) {
+                    n = peek.right;
+                } else {
+                    update(peek);
+                    last = stack.pop();
+                }
+            }
+        }
+    }
+}
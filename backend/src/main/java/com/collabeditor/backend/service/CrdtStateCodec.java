@@ -0,0 +1,381 @@
+package com.collabeditor.backend.service;
+
+import com.collabeditor.backend.model.CrdtChar;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of a document's CrdtChar sequence.
+ *
+ * Layout: magic "CS", version, site table (each siteId once), char count,
+ * then per char a flag byte followed by only the fields the flags say are
+ * needed. Ids are (site index, counter) varints; a parent is usually "the
+ * previous char" (a flag, zero bytes) or a backwards distance in the sequence.
+ * Anything that doesn't fit the pattern (odd ids, parents removed by GC) is
+ * written out as a plain string, so every state round-trips exactly.
+ *
+ * Version 2 adds, after the chars, the ids GC has collected: a count, then
+ * per range its site index, first counter and length. States with nothing
+ * collected are still written as version 1.
+ *
+ * Version 3 adds, after those, where the collected chars sat: a count, then
+ * per forward a flag byte, the collected id and the id it sat after, each as
+ * site index + counter or, if it isn't "site-counter", a plain string.
+ * Written only when there are forwards to keep.
+ */
+public final class CrdtStateCodec {
+
+    private static final byte MAGIC_0 = 'C';
+    private static final byte MAGIC_1 = 'S';
+    private static final byte VERSION = 1;
+    private static final byte VERSION_COLLECTED = 2;
+    private static final byte VERSION_FORWARDS = 3;
+
+    private static final int TOMBSTONE = 1;
+    private static final int ID_STRUCTURED = 1 << 1;   // id == siteId + "-" + counter
+    private static final int CLOCK_IS_COUNTER = 1 << 2;
+    private static final int PARENT_PREVIOUS = 1 << 3;  // parent is the char right before
+    private static final int PARENT_RELATIVE = 1 << 4;  // parent is N chars back
+    private static final int PARENT_RAW = 1 << 5;       // parent id spelled out (e.g. collected)
+    private static final int PARENT_EMPTY = 1 << 6;     // "" rather than null
+
+    // Forward flags
+    private static final int FORWARD_ID_STRUCTURED = 1;
+    private static final int FORWARD_AFTER_STRUCTURED = 1 << 1;
+    private static final int FORWARD_AFTER_FRONT = 1 << 2;  // sat at the front of the document
+
+    /** A decoded state: the sequence, the ids collected from it, and where those sat. */
+    public record State(List<CrdtChar> chars, List<CrdtDocument.CollectedRange> collected,
+                        List<CrdtDocument.CollectedForward> forwards) {}
+
+    private CrdtStateCodec() {}
+
+    public static byte[] encode(List<CrdtChar> chars) {
+        return encode(chars, List.of());
+    }
+
+    public static byte[] encode(List<CrdtChar> chars, List<CrdtDocument.CollectedRange> collected) {
+        return encode(chars, collected, List.of());
+    }
+
+    /** Every char needs an id and a site id; throws IllegalArgumentException for one without. */
+    public static byte[] encode(List<CrdtChar> chars, List<CrdtDocument.CollectedRange> collected,
+                                List<CrdtDocument.CollectedForward> forwards) {
+        Map<String, Integer> siteIndex = new HashMap<>();
+        List<String> sites = new ArrayList<>();
+        for (int i = 0; i < chars.size(); i++) {
+            CrdtChar c = chars.get(i);
+            if (c.getId() == null || c.getSiteId() == null) {
+                throw new IllegalArgumentException("Char " + i + " has no " + (c.getId() == null ? "id" : "site id"));
+            }
+            if (siteIndex.putIfAbsent(c.getSiteId(), sites.size()) == null) {
+                sites.add(c.getSiteId());
+            }
+        }
+        for (CrdtDocument.CollectedRange range : collected) {
+            if (siteIndex.putIfAbsent(range.site(), sites.size()) == null) {
+                sites.add(range.site());
+            }
+        }
+        for (CrdtDocument.CollectedForward forward : forwards) {
+            for (String id : new String[] {forward.id(), forward.after()}) {
+                String site = structuredSite(id);
+                if (site != null && siteIndex.putIfAbsent(site, sites.size()) == null) {
+                    sites.add(site);
+                }
+            }
+        }
+
+        Writer out = new Writer(chars.size() * 4 + collected.size() * 4 + forwards.size() * 8 + 64);
+        out.buf.write(MAGIC_0);
+        out.buf.write(MAGIC_1);
+        out.buf.write(!forwards.isEmpty() ? VERSION_FORWARDS : !collected.isEmpty() ? VERSION_COLLECTED : VERSION);
+        out.varint(sites.size());
+        for (String site : sites) {
+            out.string(site);
+        }
+        out.varint(chars.size());
+
+        Map<String, Integer> positions = new HashMap<>(chars.size() * 2);
+        for (int i = 0; i < chars.size(); i++) {
+            CrdtChar c = chars.get(i);
+            int counter = structuredCounter(c);
+            String parentId = c.getParentId();
+            Integer parentPos = parentId == null || parentId.isEmpty() ? null : positions.get(parentId);
+
+            int flags = 0;
+            if (c.isTombstone()) flags |= TOMBSTONE;
+            if (counter >= 0) {
+                flags |= ID_STRUCTURED;
+                if (c.getClock() == counter) flags |= CLOCK_IS_COUNTER;
+            }
+            if (parentId != null) {
+                if (parentId.isEmpty()) flags |= PARENT_EMPTY;
+                else if (parentPos == null) flags |= PARENT_RAW;
+                else if (parentPos == i - 1) flags |= PARENT_PREVIOUS;
+                else flags |= PARENT_RELATIVE;
+            }
+
+            out.buf.write(flags);
+            out.varint(siteIndex.get(c.getSiteId()));
+            if (counter >= 0) {
+                out.varint(counter);
+            } else {
+                out.string(c.getId());
+            }
+            if ((flags & CLOCK_IS_COUNTER) == 0) {
+                out.varint(c.getClock());
+            }
+            if ((flags & PARENT_RELATIVE) != 0) {
+                out.varint(i - parentPos);
+            } else if ((flags & PARENT_RAW) != 0) {
+                out.string(parentId);
+            }
+            out.varint(c.getValue());
+
+            positions.put(c.getId(), i);
+        }
+        if (!collected.isEmpty() || !forwards.isEmpty()) {
+            out.varint(collected.size());
+            for (CrdtDocument.CollectedRange range : collected) {
+                out.varint(siteIndex.get(range.site()));
+                out.varlong(range.from());
+                out.varlong(range.to() - range.from());
+            }
+        }
+        if (!forwards.isEmpty()) {
+            out.varint(forwards.size());
+            for (CrdtDocument.CollectedForward forward : forwards) {
+                String idSite = structuredSite(forward.id());
+                String afterSite = forward.after().isEmpty() ? null : structuredSite(forward.after());
+                int flags = 0;
+                if (idSite != null) flags |= FORWARD_ID_STRUCTURED;
+                if (forward.after().isEmpty()) flags |= FORWARD_AFTER_FRONT;
+                else if (afterSite != null) flags |= FORWARD_AFTER_STRUCTURED;
+                out.buf.write(flags);
+                out.id(forward.id(), idSite, siteIndex);
+                if ((flags & FORWARD_AFTER_FRONT) == 0) {
+                    out.id(forward.after(), afterSite, siteIndex);
+                }
+            }
+        }
+        return out.buf.toByteArray();
+    }
+
+    /** Just the sequence; see decodeState for the collected ids too. */
+    public static List<CrdtChar> decode(byte[] data) {
+        return decodeState(data).chars();
+    }
+
+    public static State decodeState(byte[] data) {
+        Reader in = new Reader(data);
+        if (in.u8() != MAGIC_0 || in.u8() != MAGIC_1) {
+            throw new IllegalArgumentException("Not a CRDT state blob");
+        }
+        int version = in.u8();
+        if (version != VERSION && version != VERSION_COLLECTED && version != VERSION_FORWARDS) {
+            throw new IllegalArgumentException("Unsupported CRDT state version " + version);
+        }
+
+        String[] sites = new String[in.varint()];
+        for (int i = 0; i < sites.length; i++) {
+            sites[i] = in.string();
+        }
+        int count = in.varint();
+        List<CrdtChar> chars = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int flags = in.u8();
+            String siteId = sites[in.varint()];
+
+            String id;
+            int counter = -1;
+            if ((flags & ID_STRUCTURED) != 0) {
+                counter = in.varint();
+                id = siteId + "-" + counter;
+            } else {
+                id = in.string();
+            }
+            int clock = (flags & CLOCK_IS_COUNTER) != 0 ? counter : in.varint();
+
+            String parentId = null;
+            if ((flags & PARENT_EMPTY) != 0) parentId = "";
+            else if ((flags & PARENT_PREVIOUS) != 0) parentId = chars.get(i - 1).getId();
+            else if ((flags & PARENT_RELATIVE) != 0) parentId = chars.get(i - in.varint()).getId();
+            else if ((flags & PARENT_RAW) != 0) parentId = in.string();
+
+            char value = (char) in.varint();
+            chars.add(new CrdtChar(id, value, parentId, clock, siteId, (flags & TOMBSTONE) != 0));
+        }
+
+        List<CrdtDocument.CollectedRange> collected = new ArrayList<>();
+        if (version >= VERSION_COLLECTED) {
+            int ranges = in.varint();
+            for (int i = 0; i < ranges; i++) {
+                String site = sites[in.varint()];
+                long from = in.varlong();
+                long length = in.varlong();
+                if (from < 0 || length < 0 || from + length > SiteRegistry.OPAQUE) {
+                    throw new IllegalArgumentException("Bad collected range in CRDT state");
+                }
+                collected.add(new CrdtDocument.CollectedRange(site, from, from + length));
+            }
+        }
+        List<CrdtDocument.CollectedForward> forwards = new ArrayList<>();
+        if (version == VERSION_FORWARDS) {
+            int entries = in.varint();
+            for (int i = 0; i < entries; i++) {
+                int flags = in.u8();
+                String id = in.id((flags & FORWARD_ID_STRUCTURED) != 0, sites);
+                String after = (flags & FORWARD_AFTER_FRONT) != 0 ? ""
+                    : in.id((flags & FORWARD_AFTER_STRUCTURED) != 0, sites);
+                forwards.add(new CrdtDocument.CollectedForward(id, after));
+            }
+        }
+        return new State(chars, collected, forwards);
+    }
+
+    /**
+     * About what one char adds to an encoded state, without encoding the
+     * sequence: its flag byte, site index, id, clock and value, plus a byte
+     * for the parent, which is usually the previous char or a short hop back.
+     */
+    public static int estimateCharBytes(CrdtChar c) {
+        int counter = structuredCounter(c);
+        int bytes = 1 + 1 + 1;  // flags, site index (one byte below 128 sites), parent
+        bytes += counter >= 0 ? varintSize(counter) : stringSize(c.getId());
+        if (counter < 0 || c.getClock() != counter) {
+            bytes += varintSize(c.getClock());
+        }
+        return bytes + varintSize(c.getValue());
+    }
+
+    private static int varintSize(int v) {
+        int size = 1;
+        while ((v & ~0x7F) != 0) {
+            v >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int stringSize(String s) {
+        int length = s.getBytes(StandardCharsets.UTF_8).length;
+        return varintSize(length) + length;
+    }
+
+    /** The counter in "siteId-counter", or -1 if the id isn't in that form. */
+    private static int structuredCounter(CrdtChar c) {
+        String id = c.getId();
+        String site = c.getSiteId();
+        if (site == null || id.length() <= site.length() + 1 || !id.startsWith(site)
+                || id.charAt(site.length()) != '-') {
+            return -1;
+        }
+        int counter = 0;
+        for (int i = site.length() + 1; i < id.length(); i++) {
+            char ch = id.charAt(i);
+            if (ch < '0' || ch > '9' || counter > (Integer.MAX_VALUE - 9) / 10) return -1;
+            counter = counter * 10 + (ch - '0');
+        }
+        // Leading zeros wouldn't survive the round trip
+        return Integer.toString(counter).length() == id.length() - site.length() - 1 ? counter : -1;
+    }
+
+    /** The site of a "site-counter" id, as SiteRegistry splits it; null for any other id. */
+    private static String structuredSite(String id) {
+        int dash = id.lastIndexOf('-');
+        return dash > 0 && SiteRegistry.parseCounter(id, dash + 1) >= 0 ? id.substring(0, dash) : null;
+    }
+
+    private static final class Writer {
+        final ByteArrayOutputStream buf;
+
+        Writer(int sizeHint) {
+            buf = new ByteArrayOutputStream(sizeHint);
+        }
+
+        void varint(int v) {
+            while ((v & ~0x7F) != 0) {
+                buf.write((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf.write(v);
+        }
+
+        void varlong(long v) {
+            while ((v & ~0x7FL) != 0) {
+                buf.write((int) (v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf.write((int) v);
+        }
+
+        void string(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            varint(bytes.length);
+            buf.write(bytes, 0, bytes.length);
+        }
+
+        /** A forward's id: site index + counter when `site` is its structuredSite, else the string. */
+        void id(String id, String site, Map<String, Integer> siteIndex) {
+            if (site == null) {
+                string(id);
+            } else {
+                varint(siteIndex.get(site));
+                varlong(Long.parseLong(id.substring(site.length() + 1)));
+            }
+        }
+    }
+
+    private static final class Reader {
+        final byte[] data;
+        int pos;
+
+        Reader(byte[] data) {
+            this.data = data;
+        }
+
+        int u8() {
+            if (pos >= data.length) throw new IllegalArgumentException("Truncated CRDT state");
+            return data[pos++] & 0xFF;
+        }
+
+        int varint() {
+            int result = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = u8();
+                result |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return result;
+            }
+            throw new IllegalArgumentException("Malformed varint in CRDT state");
+        }
+
+        long varlong() {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = u8();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return result;
+            }
+            throw new IllegalArgumentException("Malformed varint in CRDT state");
+        }
+
+        String string() {
+            int len = varint();
+            if (len < 0 || pos + len > data.length) throw new IllegalArgumentException("Truncated CRDT state");
+            String s = new String(data, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+
+        String id(boolean structured, String[] sites) {
+            if (!structured) return string();
+            return sites[varint()] + "-" + varlong();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.collabeditor.backend.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the resident documents within a heap budget.
+ *
+ * Each sweep unloads documents nobody has touched for idle-ms, then, if the
+ * estimated heap (see CrdtDocument.estimatedHeapBytes) is still over budget,
+ * the least recently used ones until it fits. Documents with a connected
+ * session are pinned. Evictions run on the document's edit lane, so they
+ * can't interleave with an edit, and dirty documents are snapshotted first.
+ */
+@Component
+public class DocumentEvictor {
+
+    private static final Logger log = LoggerFactory.getLogger(DocumentEvictor.class);
+
+    private final DocumentService documentService;
+    private final SessionManager sessionManager;
+    private final DocumentExecutor documentExecutor;
+    private final long budgetBytes;
+    private final long idleMillis;
+
+    private final Set<String> unloading = ConcurrentHashMap.newKeySet();  // evictions queued on a lane
+    private final Set<String> evictedLanes = ConcurrentHashMap.newKeySet();  // lanes to drop once drained
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong residentBytes = new AtomicLong();
+
+    public DocumentEvictor(DocumentService documentService,
+                           SessionManager sessionManager,
+                           DocumentExecutor documentExecutor,
+                           @Value("${collab.cache.heap-budget-mb:512}") long budgetMb,
+                           @Value("${collab.cache.idle-ms:600000}") long idleMillis) {
+        this.documentService = documentService;
+        this.sessionManager = sessionManager;
+        this.documentExecutor = documentExecutor;
+        this.budgetBytes = budgetMb * 1024 * 1024;
+        this.idleMillis = idleMillis;
+    }
+
+    @Scheduled(fixedDelayString = "${collab.cache.sweep-ms:10000}")
+    public void sweep() {
+        for (String documentId : evictedLanes) {
+            evictedLanes.remove(documentId);
+            documentExecutor.release(documentId);
+        }
+
+        long now = System.currentTimeMillis();
+        long resident = 0;
+        List<CrdtDocument> candidates = new ArrayList<>();
+        for (CrdtDocument doc : documentService.getActiveDocuments()) {
+            resident += doc.estimatedHeapBytes();
+            if (!sessionManager.hasUsers(doc.getDocumentId()) && !unloading.contains(doc.getDocumentId())) {
+                candidates.add(doc);
+            }
+        }
+        residentBytes.set(resident);
+
+        // Oldest first: idle documents all come before the rest
+        candidates.sort(Comparator.comparingLong(CrdtDocument::getLastAccessMillis));
+        for (CrdtDocument doc : candidates) {
+            boolean idle = now - doc.getLastAccessMillis() >= idleMillis;
+            if (!idle && resident <= budgetBytes) break;
+            resident -= doc.estimatedHeapBytes();
+            unload(doc.getDocumentId());
+        }
+    }
+
+    private void unload(String documentId) {
+        unloading.add(documentId);
+        documentExecutor.execute(documentId, () -> {
+            try {
+                // Someone may have joined since the sweep looked
+                if (!sessionManager.hasUsers(documentId) && documentService.evictDocument(documentId)) {
+                    evictions.incrementAndGet();
+                    evictedLanes.add(documentId);
+                    log.debug("Evicted document {}", documentId);
+                }
+            } finally {
+                unloading.remove(documentId);
+            }
+        });
+    }
+
+    public long getEvictionCount() { return evictions.get(); }
+
+    /** Estimated heap of the resident documents, as of the last sweep. */
+    public long getResidentBytes() { return residentBytes.get(); }
+
+    public long getBudgetBytes() { return budgetBytes; }
+}
@@ -0,0 +1,196 @@
+package com.collabeditor.backend.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Single-writer-per-document execution.
+ *
+ * Each document gets its own bounded queue (a "lane"). A lane is drained by
+ * at most one worker at a time, so tasks for a document run one after another
+ * in submission order, while different documents run in parallel across the
+ * worker pool. A hot document can only ever occupy one worker, so it can't
+ * starve the rest.
+ *
+ * A lane can also wait for something, typically its document loading: tasks
+ * keep queueing in order, but the lane holds no worker until it's done.
+ */
+@Component
+public class DocumentExecutor {
+
+    private static final Logger log = LoggerFactory.getLogger(DocumentExecutor.class);
+
+    // Tasks a lane runs before giving its worker back, so busy lanes take turns
+    private static final int MAX_TASKS_PER_TURN = 64;
+    private static final long ENQUEUE_TIMEOUT_MS = 5000;
+
+    private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+    private final ExecutorService workers;
+    private final int queueCapacity;
+    private final AtomicLong droppedTasks = new AtomicLong();
+
+    public DocumentExecutor(@Value("${collab.executor.threads:0}") int threads,
+                            @Value("${collab.executor.queue-capacity:10000}") int queueCapacity) {
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(poolSize, r -> {
+            Thread t = new Thread(r, "doc-lane-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Queue a task on the document's lane and return.
+     * If the lane is full the caller waits (backpressure) and, past a timeout,
+     * gets a RejectedExecutionException.
+     */
+    public void execute(String documentId, Runnable task) {
+        execute(documentId, null, task);
+    }
+
+    /**
+     * Like execute, but the lane runs nothing further until `ready`
+     * completes — this task and anything queued after it wait, in order,
+     * without taking a worker. If `ready` fails (the document didn't load),
+     * the task is dropped rather than run: it would only load the document
+     * itself, blocking the worker. Whatever comes next for the document
+     * starts a load of its own.
+     */
+    public void execute(String documentId, CompletableFuture<?> ready, Runnable task) {
+        Lane lane = lanes.computeIfAbsent(documentId, Lane::new);
+        // Before the task is visible: a worker draining the lane right now must not run it early
+        if (ready != null && !ready.isDone()) {
+            lane.waitFor(ready);
+        }
+        Runnable queued = ready == null ? task : () -> {
+            if (ready.isCompletedExceptionally()) {
+                droppedTasks.incrementAndGet();
+                log.debug("Dropped a task for document {}: its load failed", documentId);
+                return;
+            }
+            task.run();
+        };
+        try {
+            if (!lane.queue.offer(queued, ENQUEUE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new RejectedExecutionException("Edit queue full for document " + documentId);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while queueing for document " + documentId, e);
+        }
+        lane.schedule();
+    }
+
+    /** Tasks waiting on a document's lane. */
+    public int getQueueDepth(String documentId) {
+        Lane lane = lanes.get(documentId);
+        return lane == null ? 0 : lane.queue.size();
+    }
+
+    /** Tasks waiting across all lanes. */
+    public int getTotalQueueDepth() {
+        int depth = 0;
+        for (Lane lane : lanes.values()) {
+            depth += lane.queue.size();
+        }
+        return depth;
+    }
+
+    public int getLaneCount() {
+        return lanes.size();
+    }
+
+    /** Tasks never run because what they waited for failed. */
+    public long getDroppedTaskCount() {
+        return droppedTasks.get();
+    }
+
+    /** Forget an idle document's lane (e.g. after it's been unloaded). */
+    public void release(String documentId) {
+        lanes.computeIfPresent(documentId, (id, lane) -> lane.queue.isEmpty() && !lane.scheduled.get() ? null : lane);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(10, TimeUnit.SECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            workers.shutdownNow();
+        }
+    }
+
+    private final class Lane implements Runnable {
+        final String documentId;
+        final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>(queueCapacity);
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        final AtomicReference<CompletableFuture<?>> waitingFor = new AtomicReference<>();
+
+        Lane(String documentId) {
+            this.documentId = documentId;
+        }
+
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                workers.execute(this);
+            }
+        }
+
+        void waitFor(CompletableFuture<?> ready) {
+            if (waitingFor.getAndSet(ready) != ready) {
+                ready.whenComplete((result, error) -> schedule());
+            }
+        }
+
+        /** Whether the lane is held up; forgets what it waited for once that's done. */
+        boolean waiting() {
+            CompletableFuture<?> ready = waitingFor.get();
+            if (ready == null) return false;
+            if (!ready.isDone()) return true;
+            waitingFor.compareAndSet(ready, null);
+            return false;
+        }
+
+        @Override
+        public void run() {
+            // Checked before every task, since a task that has to wait may be queued mid-turn
+            for (int i = 0; i < MAX_TASKS_PER_TURN && !waiting(); i++) {
+                Runnable task = queue.poll();
+                if (task == null) break;
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    log.error("Task failed on lane for document {}", documentId, e);
+                }
+            }
+            scheduled.set(false);
+            // A producer may have enqueued after our last poll but before the flag cleared,
+            // or what we waited for completed with its schedule() bounced off our flag
+            if (!queue.isEmpty() && !waiting()) {
+                schedule();
+            }
+        }
+    }
+}
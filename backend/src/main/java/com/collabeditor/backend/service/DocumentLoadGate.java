@@ -0,0 +1,17 @@
+package com.collabeditor.backend.service;
+
+/**
+ * Hook run before DocumentService loads a document that isn't resident.
+ * The cluster uses it to make sure the previous owner has flushed the
+ * document before this node reads it back from the database.
+ */
+public interface DocumentLoadGate {
+
+    /** Block until the document may be loaded here; throw if it may not be yet. */
+    void awaitLoadable(String documentId);
+
+    /** Whether the document belongs on this node; warm-up skips the rest. */
+    default boolean isLocal(String documentId) {
+        return true;
+    }
+}
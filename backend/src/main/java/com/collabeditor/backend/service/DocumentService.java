@@ -1,5 +1,6 @@
 package com.collabeditor.backend.service;
 
+import com.collabeditor.backend.metrics.EditMetrics;
 import com.collabeditor.backend.model.CrdtChar;
 import com.collabeditor.backend.model.CrdtOperation;
 import com.collabeditor.backend.model.DocumentEntity;
@@ -7,96 +8,474 @@ import com.collabeditor.backend.repository.DocumentRepository;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Service
 public class DocumentService {
 
+    private static final Logger log = LoggerFactory.getLogger(DocumentService.class);
+
     private final Map<String, CrdtDocument> activeDocuments = new ConcurrentHashMap<>();
-    private final Set<String> dirtyDocuments = ConcurrentHashMap.newKeySet();
+    // Loads in flight; everyone asking for a document while it loads shares its future
+    private final Map<String, CompletableFuture<CrdtDocument>> loading = new ConcurrentHashMap<>();
+    // Changes not in the snapshot yet: documentId → when it first became dirty (millis)
+    private final Map<String, Long> dirtyDocuments = new ConcurrentHashMap<>();
+    // Saves of one document are serialized; stripes keep this from growing with the document count
+    private final ReentrantLock[] saveLocks = new ReentrantLock[64];
+    private final Map<String, Long> snapshotRevisions = new ConcurrentHashMap<>();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
     private final DocumentRepository repository;
+    private final OperationLog operationLog;
+    private final EditMetrics metrics;
     private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ExecutorService loaders;
+    private final int maxPendingOps;
+    private final long pendingTtlMillis;
+    private volatile DocumentLoadGate loadGate = documentId -> {};
+    private volatile VersionHistory history;  // null = no history, the log is truncated on every snapshot
+
+    @Value("${collab.oplog.compact-min-ops:1000}")
+    private long compactMinOps;
+
+    @Value("${collab.oplog.compact-ratio:0.25}")
+    private double compactRatio;
+
+    @Value("${collab.storage.columnar-threshold:" + CrdtDocument.DEFAULT_COLUMNAR_THRESHOLD + "}")
+    private int columnarThreshold;
+
+    @Value("${collab.loader.warmup-count:0}")
+    private int warmupCount;
+
+    @Value("${collab.loader.warmup-window-ms:86400000}")
+    private long warmupWindowMillis;
 
-    public DocumentService(DocumentRepository repository) {
+    public DocumentService(DocumentRepository repository,
+                           OperationLog operationLog,
+                           EditMetrics metrics,
+                           @Value("${collab.pending.max-ops:" + CrdtDocument.DEFAULT_MAX_PENDING_OPS + "}") int maxPendingOps,
+                           @Value("${collab.pending.ttl-ms:" + CrdtDocument.DEFAULT_PENDING_TTL_MS + "}") long pendingTtlMillis,
+                           @Value("${collab.loader.threads:4}") int loaderThreads) {
         this.repository = repository;
+        this.operationLog = operationLog;
+        this.metrics = metrics;
+        this.maxPendingOps = maxPendingOps;
+        this.pendingTtlMillis = pendingTtlMillis;
+        for (int i = 0; i < saveLocks.length; i++) {
+            saveLocks[i] = new ReentrantLock();
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        this.loaders = Executors.newFixedThreadPool(Math.max(1, loaderThreads), r -> {
+            Thread t = new Thread(r, "doc-loader-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * One-time fix for rows written before DocumentEntity had a version:
+     * saving one as it is would INSERT it again. Runs before anything loads.
+     */
+    @PostConstruct
+    public void fillMissingVersions() {
+        int filled = repository.fillMissingVersions();
+        if (filled > 0) log.info("Set a version on {} documents saved before versioning", filled);
     }
 
+    /**
+     * The document, loading it first if it isn't resident. Blocks for the
+     * load; callers that mustn't (inbound threads, lanes) use loadDocument.
+     */
     public CrdtDocument getOrLoadDocument(String documentId) {
-        return activeDocuments.computeIfAbsent(documentId, id -> {
-            // Try loading from database
-            return repository.findById(id)
-                .map(entity -> {
-                    CrdtDocument doc = new CrdtDocument(id);
-                    loadState(doc, entity.getCrdtState());
-                    return doc;
-                })
-                .orElse(new CrdtDocument(id));
-        });
+        CrdtDocument resident = activeDocuments.get(documentId);
+        if (resident != null) {
+            cacheHits.incrementAndGet();
+            resident.touch();
+            return resident;
+        }
+        try {
+            return loadDocument(documentId).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+    }
+
+    /**
+     * The document once it's resident; already complete if it is. The load
+     * (gate, snapshot read, log replay) runs on the loader pool, and only
+     * once however many callers ask for it meanwhile — the map is never
+     * locked while the database works. A failed load is forgotten, so the
+     * next caller tries again.
+     */
+    public CompletableFuture<CrdtDocument> loadDocument(String documentId) {
+        CrdtDocument resident = activeDocuments.get(documentId);
+        if (resident != null) {
+            resident.touch();
+            return CompletableFuture.completedFuture(resident);
+        }
+        CompletableFuture<CrdtDocument> created = new CompletableFuture<>();
+        CompletableFuture<CrdtDocument> inFlight = loading.putIfAbsent(documentId, created);
+        if (inFlight != null) return inFlight;
+        try {
+            loaders.execute(() -> runLoad(documentId, created));
+        } catch (RuntimeException e) {
+            loading.remove(documentId, created);
+            created.completeExceptionally(e);
+        }
+        return created;
+    }
+
+    private void runLoad(String documentId, CompletableFuture<CrdtDocument> future) {
+        try {
+            // Loaded meanwhile (the previous load finished between our lookup and putIfAbsent)
+            CrdtDocument doc = activeDocuments.get(documentId);
+            if (doc == null) {
+                loadGate.awaitLoadable(documentId);
+                doc = read(documentId);
+                activeDocuments.put(documentId, doc);
+            }
+            loading.remove(documentId, future);
+            future.complete(doc);
+        } catch (RuntimeException e) {
+            log.error("Failed to load document {}", documentId, e);
+            loading.remove(documentId, future);
+            future.completeExceptionally(e);
+        }
     }
 
-    public boolean applyOperation(String documentId, CrdtOperation op) {
+    /** Load = last snapshot + replay of the operation log after it. */
+    private CrdtDocument read(String documentId) {
+        cacheMisses.incrementAndGet();
+        CrdtDocument doc = newDocument(documentId);
+        long snapshotRevision = repository.findById(documentId)
+            .map(entity -> {
+                loadState(doc, entity, entity.getLastRevision());
+                return entity.getLastRevision();
+            })
+            .orElse(0L);
+        for (OperationLog.ReplayEntry entry : operationLog.readAfter(documentId, snapshotRevision)) {
+            doc.replay(entry.operation(), entry.revision());
+        }
+        snapshotRevisions.put(documentId, snapshotRevision);
+        return doc;
+    }
+
+    /**
+     * Preload the warmup-count documents most recently written to (within
+     * warmup-window-ms), so the first users back after a restart don't all
+     * wait on cold loads. Off by default. In a cluster only the documents
+     * this node owns are loaded.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        if (warmupCount <= 0) return;
+        long since = System.currentTimeMillis() - warmupWindowMillis;
+        // Logged ops are the freshest sign of activity; snapshots cover documents whose log was truncated
+        Set<String> recent = new LinkedHashSet<>(operationLog.findActiveSince(since, warmupCount));
+        recent.addAll(repository.findIdsUpdatedSince(since, PageRequest.of(0, warmupCount)));
+        int started = 0;
+        for (String documentId : recent) {
+            if (started == warmupCount) break;
+            if (!loadGate.isLocal(documentId)) continue;
+            loadDocument(documentId);
+            started++;
+        }
+        log.info("Warming up {} recently active documents", started);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        loaders.shutdown();
+    }
+
+    public void setLoadGate(DocumentLoadGate loadGate) {
+        this.loadGate = loadGate;
+    }
+
+    public void setHistory(VersionHistory history) {
+        this.history = history;
+    }
+
+    private CrdtDocument newDocument(String documentId) {
+        CrdtDocument doc = new CrdtDocument(documentId, maxPendingOps, pendingTtlMillis, columnarThreshold);
+        doc.setScanObserver(metrics.siblingScans());
+        return doc;
+    }
+
+    /**
+     * Apply an op and return everything that landed because of it — the op
+     * itself plus any buffered ops it released — with their revisions.
+     * Empty if it was a duplicate or is waiting for a missing parent.
+     */
+    public List<CrdtDocument.Applied> applyOperation(String documentId, CrdtOperation op) {
         CrdtDocument doc = getOrLoadDocument(documentId);
-        boolean applied = doc.applyOperation(op);
-        if (applied) {
-            dirtyDocuments.add(documentId);
+        List<CrdtDocument.Applied> applied = doc.apply(op);
+        if (!applied.isEmpty()) {
+            operationLog.append(documentId, applied);
+            markDirty(documentId);
         }
         return applied;
     }
 
-    @Scheduled(fixedRate = 30000) // every 30 seconds
-    public void persistDirtyDocuments() {
-        for (String docId : dirtyDocuments) {
-            try {
-                saveDocument(docId);
-                dirtyDocuments.remove(docId);
-            } catch (Exception e) {
-                System.err.println("Failed to save document " + docId + ": " + e.getMessage());
-            }
+    /** Batch variant of applyOperation — the whole batch goes in under one document lock. */
+    public List<CrdtDocument.Applied> applyOperations(String documentId, List<CrdtOperation> ops) {
+        CrdtDocument doc = getOrLoadDocument(documentId);
+        List<CrdtDocument.Applied> applied = doc.applyAll(ops);
+        if (!applied.isEmpty()) {
+            operationLog.append(documentId, applied);
+            markDirty(documentId);
         }
+        return applied;
     }
 
-    public void saveDocument(String documentId) {
+    public Collection<CrdtDocument> getActiveDocuments() {
+        return activeDocuments.values();
+    }
+
+    public boolean isResident(String documentId) {
+        return activeDocuments.containsKey(documentId);
+    }
+
+    /** The document if it is loaded, without loading it or counting as a use. */
+    public CrdtDocument getResidentDocument(String documentId) {
+        return activeDocuments.get(documentId);
+    }
+
+    public void markDirty(String documentId) {
+        if (!dirtyDocuments.containsKey(documentId)) {
+            dirtyDocuments.putIfAbsent(documentId, System.currentTimeMillis());
+        }
+    }
+
+    /** Dirty documents and when each became dirty. Read-only. */
+    public Map<String, Long> getDirtyDocuments() {
+        return Collections.unmodifiableMap(dirtyDocuments);
+    }
+
+    /** Documents with changes their snapshot doesn't have yet. */
+    public int getDirtyCount() { return dirtyDocuments.size(); }
+
+    public long getCacheHits() { return cacheHits.get(); }
+    public long getCacheMisses() { return cacheMisses.get(); }
+
+    /**
+     * Drop a resident document, writing a snapshot first if it has changes
+     * the snapshot doesn't. Run it on the document's lane so no edit is in
+     * flight; the next lookup loads it back from the snapshot.
+     */
+    public boolean evictDocument(String documentId) {
+        if (!activeDocuments.containsKey(documentId)) return false;
+        if (dirtyDocuments.containsKey(documentId)) {
+            saveDocument(documentId);
+        }
+        activeDocuments.remove(documentId);
+        snapshotRevisions.remove(documentId);
+        return true;
+    }
+
+    /** Idle documents never see another apply(), so expire their buffered ops here. */
+    @Scheduled(fixedDelay = 5000)
+    public void expirePendingOperations() {
+        long now = System.currentTimeMillis();
+        for (CrdtDocument doc : activeDocuments.values()) {
+            doc.expirePending(now);
+        }
+    }
+
+    /**
+     * Edits are already durable in the operation log, so a snapshot only
+     * compacts. It's worth writing once the log tail is long compared to the
+     * document (compact-ratio × size, at least compact-min-ops), so the cost
+     * of rewriting it stays proportional to the edits. SnapshotWriter decides
+     * when to ask.
+     */
+    public boolean needsSnapshot(String documentId) {
         CrdtDocument doc = activeDocuments.get(documentId);
-        if (doc == null) return;
+        if (doc == null) return false;
+        long tail = doc.getRevision() - snapshotRevisions.getOrDefault(documentId, 0L);
+        return tail >= Math.max(compactMinOps, (long) (doc.size() * compactRatio));
+    }
 
-        String json = serializeState(doc.getFullState());
+    /** Write a full snapshot and drop the log entries it covers. */
+    public void saveDocument(String documentId) {
+        ReentrantLock lock = saveLock(documentId);
+        lock.lock();
+        try {
+            write(List.of(documentId));
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        DocumentEntity entity = repository.findById(documentId)
-            .orElse(new DocumentEntity(documentId, ""));
-        entity.setCrdtState(json);
-        repository.save(entity);
+    /**
+     * Snapshot several documents in one transaction (one JDBC batch).
+     * Documents another thread is saving right now are skipped and stay
+     * dirty. Returns how many were written.
+     */
+    public int saveDocuments(Collection<String> documentIds) {
+        List<ReentrantLock> held = new ArrayList<>(documentIds.size());
+        List<String> mine = new ArrayList<>(documentIds.size());
+        try {
+            for (String documentId : documentIds) {
+                ReentrantLock lock = saveLock(documentId);
+                if (lock.tryLock()) {
+                    held.add(lock);
+                    mine.add(documentId);
+                }
+            }
+            return write(mine);
+        } finally {
+            for (ReentrantLock lock : held) {
+                lock.unlock();
+            }
+        }
     }
 
-    private String serializeState(List<CrdtChar> state) {
+    /**
+     * Copy each document under its lock, then encode and write with no
+     * document lock held, so edits carry on while the database works.
+     * Caller holds the save locks.
+     */
+    private int write(List<String> documentIds) {
+        long start = System.nanoTime();
+        Map<String, CrdtDocument.Snapshot> snapshots = new LinkedHashMap<>();
+        for (String documentId : documentIds) {
+            CrdtDocument doc = activeDocuments.get(documentId);
+            Long dirtySince = dirtyDocuments.remove(documentId);  // before the copy, so later edits re-mark it
+            if (doc == null) continue;
+            try {
+                snapshots.put(documentId, doc.snapshot());
+            } catch (RuntimeException e) {
+                if (dirtySince != null) dirtyDocuments.putIfAbsent(documentId, dirtySince);
+                throw e;
+            }
+        }
+        if (snapshots.isEmpty()) return 0;
+
+        Map<String, DocumentEntity> entities = new HashMap<>();
+        for (DocumentEntity entity : repository.findAllById(snapshots.keySet())) {
+            entities.put(entity.getId(), entity);
+        }
+        int bytes = 0;
+        Map<String, byte[]> states = new HashMap<>();
+        for (Map.Entry<String, CrdtDocument.Snapshot> e : snapshots.entrySet()) {
+            CrdtDocument.Snapshot snapshot = e.getValue();
+            byte[] state = CrdtStateCodec.encode(snapshot.chars(), snapshot.collected(), snapshot.forwards());
+            bytes += state.length;
+            states.put(e.getKey(), state);
+            DocumentEntity entity = entities.computeIfAbsent(e.getKey(), id -> new DocumentEntity(id, null));
+            entity.setCrdtStateBinary(state);
+            entity.setCrdtState(null);  // superseded by the binary snapshot
+            entity.setLastRevision(e.getValue().revision());
+            entity.setUpdatedAt(System.currentTimeMillis());
+        }
         try {
-            return objectMapper.writeValueAsString(state);
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException("Failed to serialize CRDT state", e);
+            repository.saveAll(entities.values());
+        } catch (RuntimeException e) {
+            for (String documentId : snapshots.keySet()) {
+                markDirty(documentId);  // try again later; the log still has everything
+            }
+            throw e;
         }
+
+        operationLog.flush();  // so nothing a snapshot covers is written after the truncate
+        for (Map.Entry<String, CrdtDocument.Snapshot> e : snapshots.entrySet()) {
+            snapshotRevisions.put(e.getKey(), e.getValue().revision());
+            VersionHistory versions = history;
+            if (versions != null) {
+                // The log doubles as history; VersionHistory trims it by age instead
+                versions.snapshotWritten(e.getKey(), e.getValue().revision(), states.get(e.getKey()));
+            } else {
+                operationLog.truncate(e.getKey(), e.getValue().revision());
+            }
+        }
+        metrics.recordSnapshot(System.nanoTime() - start, snapshots.size(), bytes);
+        return snapshots.size();
+    }
+
+    private ReentrantLock saveLock(String documentId) {
+        return saveLocks[Math.floorMod(documentId.hashCode(), saveLocks.length)];
     }
 
-    private void loadState(CrdtDocument doc, String json) {
-        if (json == null || json.isEmpty()) return;
+    private void loadState(CrdtDocument doc, DocumentEntity entity, long snapshotRevision) {
+        if (entity.getCrdtStateBinary() != null) {
+            CrdtStateCodec.State state = CrdtStateCodec.decodeState(entity.getCrdtStateBinary());
+            doc.loadFromState(state.chars(), snapshotRevision, state.collected(), state.forwards());
+            return;
+        }
+        // Rows written before the binary format; rewritten as binary on the next snapshot
+        String json = entity.getCrdtState();
+        if (json == null || json.isEmpty()) {
+            doc.loadFromState(List.of(), snapshotRevision);
+            return;
+        }
         try {
             List<CrdtChar> chars = objectMapper.readValue(json, new TypeReference<>() {});
-            doc.loadFromState(chars);
+            doc.loadFromState(fillLegacyIds(chars), snapshotRevision);
         } catch (JsonProcessingException e) {
             throw new RuntimeException("Failed to load CRDT state", e);
         }
     }
 
+    /**
+     * Old JSON rows can hold chars with no site id or no id, which neither
+     * the binary snapshot nor the id index can take. A missing site comes
+     * from a "siteId-counter" id; a char with no id can't be named by any op,
+     * so it gets one no client generates.
+     */
+    private static List<CrdtChar> fillLegacyIds(List<CrdtChar> chars) {
+        for (int i = 0; i < chars.size(); i++) {
+            CrdtChar c = chars.get(i);
+            if (c.getId() == null) {
+                c.setId("legacy:" + i);
+            }
+            if (c.getSiteId() == null) {
+                int dash = c.getId().lastIndexOf('-');
+                c.setSiteId(dash > 0 ? c.getId().substring(0, dash) : "");
+            }
+        }
+        return chars;
+    }
+
     public void clearDocument(String documentId) {
         // Remove from active documents
         activeDocuments.remove(documentId);
         dirtyDocuments.remove(documentId);
+        snapshotRevisions.remove(documentId);
         // Delete from database
+        operationLog.deleteDocument(documentId);
+        VersionHistory versions = history;
+        if (versions != null) {
+            versions.deleteDocument(documentId);
+        }
         repository.deleteById(documentId);
     }
 }
\ No newline at end of file
@@ -0,0 +1,118 @@
+package com.collabeditor.backend.service;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from primitive long keys to non-negative ints.
+ *
+ * Keys and values sit in two flat arrays — no Entry objects and no boxing,
+ * which is most of what a HashMap<String, Node> costs per char.
+ */
+final class LongIntMap {
+
+    /** get() result for a missing key. */
+    static final int MISSING = -1;
+
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] keys;
+    private int[] values;  // MISSING = empty slot
+    private int size;
+    private int mask;
+    private int resizeAt;
+
+    LongIntMap() {
+        this(16);
+    }
+
+    LongIntMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expected / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    int size() {
+        return size;
+    }
+
+    int get(long key) {
+        for (int i = slot(key); values[i] != MISSING; i = (i + 1) & mask) {
+            if (keys[i] == key) return values[i];
+        }
+        return MISSING;
+    }
+
+    boolean containsKey(long key) {
+        return get(key) != MISSING;
+    }
+
+    void put(long key, int value) {
+        int i = slot(key);
+        for (; values[i] != MISSING; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > resizeAt) {
+            rehash(values.length << 1);
+        }
+    }
+
+    void remove(long key) {
+        int i = slot(key);
+        while (values[i] != MISSING && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (values[i] == MISSING) return;
+
+        // Backward-shift deletion: pull later entries of the probe run into the hole
+        int hole = i;
+        for (int j = (i + 1) & mask; values[j] != MISSING; j = (j + 1) & mask) {
+            int home = slot(keys[j]);
+            boolean movable = hole <= j ? (home <= hole || home > j) : (home <= hole && home > j);
+            if (movable) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        values[hole] = MISSING;
+        size--;
+    }
+
+    void clear() {
+        Arrays.fill(values, MISSING);
+        size = 0;
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, MISSING);
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != MISSING) {
+                int j = slot(oldKeys[i]);
+                while (values[j] != MISSING) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+}
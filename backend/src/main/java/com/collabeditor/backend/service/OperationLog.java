@@ -0,0 +1,163 @@
+package com.collabeditor.backend.service;
+
+import com.collabeditor.backend.metrics.EditMetrics;
+import com.collabeditor.backend.model.CrdtOperation;
+import com.collabeditor.backend.model.OperationLogEntry;
+import com.collabeditor.backend.repository.OperationLogRepository;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Append-only persistence of applied ops.
+ *
+ * Ops are serialized when they're applied and written in batches every
+ * collab.oplog.flush-ms. Write volume is proportional to edits; the
+ * full snapshot is only rewritten when DocumentService compacts.
+ *
+ * If the database falls behind and more than max-unflushed entries pile up,
+ * append() flushes on the caller's thread. That holds up the document's
+ * lane, which fills, which in turn slows the inbound channel, instead of
+ * letting the backlog grow without bound.
+ */
+@Component
+public class OperationLog {
+
+    private static final Logger log = LoggerFactory.getLogger(OperationLog.class);
+
+    private final OperationLogRepository repository;
+    private final EditMetrics metrics;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Queue<OperationLogEntry> unflushed = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger unflushedCount = new AtomicInteger();  // size() is O(n) on this queue
+    private final int maxUnflushed;
+
+    public OperationLog(OperationLogRepository repository, EditMetrics metrics,
+                        @Value("${collab.oplog.max-unflushed:50000}") int maxUnflushed) {
+        this.repository = repository;
+        this.metrics = metrics;
+        this.maxUnflushed = maxUnflushed;
+    }
+
+    public void append(String documentId, List<CrdtDocument.Applied> applied) {
+        long now = System.currentTimeMillis();
+        for (CrdtDocument.Applied a : applied) {
+            unflushed.add(new OperationLogEntry(documentId, a.revision(), serialize(a.operation()), now));
+        }
+        if (unflushedCount.addAndGet(applied.size()) > maxUnflushed) {
+            flush();
+        }
+    }
+
+    /** Entries appended but not written yet. */
+    public int getUnflushedCount() {
+        return unflushedCount.get();
+    }
+
+    /** Write everything appended so far. Saves go out as JDBC batches. */
+    @Scheduled(fixedDelayString = "${collab.oplog.flush-ms:1000}")
+    public synchronized void flush() {
+        List<OperationLogEntry> batch = new ArrayList<>();
+        OperationLogEntry entry;
+        while ((entry = unflushed.poll()) != null) {
+            batch.add(entry);
+        }
+        if (batch.isEmpty()) return;
+        unflushedCount.addAndGet(-batch.size());
+        try {
+            long start = System.nanoTime();
+            repository.saveAll(batch);
+            metrics.recordOplogFlush(System.nanoTime() - start, batch.size());
+        } catch (RuntimeException e) {
+            // Put them back so the next tick retries; order is restored by revision on replay
+            unflushed.addAll(batch);
+            unflushedCount.addAndGet(batch.size());
+            log.error("Failed to flush {} operation log entries", batch.size(), e);
+        }
+    }
+
+    /** Logged ops after the snapshot revision, in revision order. */
+    public List<ReplayEntry> readAfter(String documentId, long revision) {
+        List<ReplayEntry> ops = new ArrayList<>();
+        for (OperationLogEntry e : repository.findByDocumentIdAndRevisionGreaterThanOrderByRevisionAsc(documentId, revision)) {
+            ops.add(new ReplayEntry(deserialize(e.getOperation()), e.getRevision()));
+        }
+        return ops;
+    }
+
+    /** Logged ops in (after, upTo], in revision order. */
+    public List<ReplayEntry> readRange(String documentId, long after, long upTo) {
+        List<ReplayEntry> ops = new ArrayList<>();
+        for (OperationLogEntry e : repository.findByDocumentIdAndRevisionGreaterThanAndRevisionLessThanEqualOrderByRevisionAsc(
+                documentId, after, upTo)) {
+            ops.add(new ReplayEntry(deserialize(e.getOperation()), e.getRevision()));
+        }
+        return ops;
+    }
+
+    /** Revision of the last op logged at or before the time (epoch millis); -1 if none. */
+    public long revisionAt(String documentId, long time) {
+        Long revision = repository.findLastRevisionAt(documentId, time);
+        return revision != null ? revision : -1;
+    }
+
+    /** Revision of the last op written; -1 if none. */
+    public long lastRevision(String documentId) {
+        Long revision = repository.findLastRevision(documentId);
+        return revision != null ? revision : -1;
+    }
+
+    /** Documents with ops applied since the time (epoch millis), most recent first. */
+    public List<String> findActiveSince(long since, int limit) {
+        return repository.findDocumentIdsActiveSince(since, PageRequest.of(0, limit));
+    }
+
+    /** Drop entries a snapshot now covers. */
+    public void truncate(String documentId, long upToRevision) {
+        repository.deleteUpTo(documentId, upToRevision);
+    }
+
+    public void deleteDocument(String documentId) {
+        unflushed.removeIf(e -> {
+            if (!e.getDocumentId().equals(documentId)) return false;
+            unflushedCount.decrementAndGet();
+            return true;
+        });
+        repository.deleteByDocument(documentId);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+
+    public record ReplayEntry(CrdtOperation operation, long revision) {}
+
+    private String serialize(CrdtOperation op) {
+        try {
+            return objectMapper.writeValueAsString(op);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Failed to serialize CRDT operation", e);
+        }
+    }
+
+    private CrdtOperation deserialize(String json) {
+        try {
+            return objectMapper.readValue(json, CrdtOperation.class);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Failed to read CRDT operation", e);
+        }
+    }
+}
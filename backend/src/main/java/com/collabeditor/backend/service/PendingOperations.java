@@ -0,0 +1,141 @@
+package com.collabeditor.backend.service;
+
+import com.collabeditor.backend.model.CrdtOperation;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Causal buffer for ops that arrived before the char they depend on
+ * (an insert's parent, or the target of a delete).
+ *
+ * Ops are keyed by the id they're waiting for, so when that char is inserted
+ * its dependents come out in one map lookup — nothing rescans the buffer.
+ * Memory is bounded by maxOps (oldest dropped first) and by a TTL.
+ *
+ * Not thread-safe: CrdtDocument only touches it under its own lock.
+ */
+class PendingOperations {
+
+    private static final class Entry {
+        final CrdtOperation op;
+        final String waitingFor;
+        final long bufferedAt;
+        boolean done;  // released or dropped; still sitting in the arrival queue
+
+        Entry(CrdtOperation op, String waitingFor, long bufferedAt) {
+            this.op = op;
+            this.waitingFor = waitingFor;
+            this.bufferedAt = bufferedAt;
+        }
+    }
+
+    private final int maxOps;
+    private final long ttlMillis;
+
+    private final Map<String, List<Entry>> waitingOn = new HashMap<>();
+    private final Deque<Entry> arrivalOrder = new ArrayDeque<>();
+    private int size;
+
+    private long bufferedCount;
+    private long releasedCount;
+    private long expiredCount;
+    private long overflowCount;
+
+    PendingOperations(int maxOps, long ttlMillis) {
+        this.maxOps = maxOps;
+        this.ttlMillis = ttlMillis;
+    }
+
+    void buffer(CrdtOperation op, String waitingFor, long now) {
+        expire(now);
+        if (size >= maxOps) {
+            dropOldest();
+            overflowCount++;
+        }
+        if (arrivalOrder.size() > 2 * maxOps) {
+            // Released entries stuck behind an old one — sweep them out
+            arrivalOrder.removeIf(e -> e.done);
+        }
+        Entry entry = new Entry(op, waitingFor, now);
+        waitingOn.computeIfAbsent(waitingFor, k -> new ArrayList<>(2)).add(entry);
+        arrivalOrder.addLast(entry);
+        size++;
+        bufferedCount++;
+    }
+
+    /** Remove and return the ops waiting for this char id, in arrival order. */
+    List<CrdtOperation> release(String charId) {
+        if (size == 0) return List.of();
+        List<Entry> entries = waitingOn.remove(charId);
+        if (entries == null) return List.of();
+
+        List<CrdtOperation> ops = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            entry.done = true;
+            ops.add(entry.op);
+        }
+        size -= entries.size();
+        releasedCount += entries.size();
+        compactHead();
+        return ops;
+    }
+
+    /** Drop ops buffered longer than the TTL. Returns how many were dropped. */
+    int expire(long now) {
+        int expired = 0;
+        compactHead();
+        while (!arrivalOrder.isEmpty() && now - arrivalOrder.peekFirst().bufferedAt > ttlMillis) {
+            dropOldest();
+            expired++;
+        }
+        expiredCount += expired;
+        return expired;
+    }
+
+    /** Remove and return everything still waiting, oldest first. */
+    List<CrdtOperation> drain() {
+        List<CrdtOperation> ops = new ArrayList<>(size);
+        for (Entry entry : arrivalOrder) {
+            if (!entry.done) {
+                entry.done = true;
+                ops.add(entry.op);
+            }
+        }
+        arrivalOrder.clear();
+        waitingOn.clear();
+        size = 0;
+        return ops;
+    }
+
+    int size() { return size; }
+    long getBufferedCount() { return bufferedCount; }
+    long getReleasedCount() { return releasedCount; }
+    long getExpiredCount() { return expiredCount; }
+    long getOverflowCount() { return overflowCount; }
+
+    private void dropOldest() {
+        compactHead();
+        Entry oldest = arrivalOrder.pollFirst();
+        if (oldest == null) return;
+        oldest.done = true;
+        List<Entry> siblings = waitingOn.get(oldest.waitingFor);
+        siblings.remove(oldest);
+        if (siblings.isEmpty()) {
+            waitingOn.remove(oldest.waitingFor);
+        }
+        size--;
+        compactHead();
+    }
+
+    /** Released entries are only flagged; skip past them lazily. */
+    private void compactHead() {
+        while (!arrivalOrder.isEmpty() && arrivalOrder.peekFirst().done) {
+            arrivalOrder.pollFirst();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.collabeditor.backend.service;
+
+import java.util.Arrays;
+
+/**
+ * Ordered char storage behind CrdtDocument.
+ *
+ * Chars are addressed by int handles that stay put while the char is in the
+ * store (NONE = no char). CrdtSequence keeps one object per run of
+ * sequential chars; the columnar store keeps the same fields per char in
+ * parallel primitive arrays and is what large documents switch to. Ids are
+ * SiteRegistry longs either way.
+ */
+interface SequenceStore {
+
+    int NONE = -1;
+
+    int size();
+
+    /** Number of non-tombstone chars. */
+    int visibleSize();
+
+    int first();
+
+    /** In-order successor, or NONE at the end. */
+    int next(int handle);
+
+    /** In-order predecessor, or NONE at the front. */
+    int prev(int handle);
+
+    /** Position in the sequence, tombstones included. */
+    int indexOf(int handle);
+
+    /** Visible chars before this one — for a tombstone, where the caret collapses to. */
+    int visibleIndexOf(int handle);
+
+    int nodeAtVisible(int visibleIndex);
+
+    /** Insert right after prev (NONE = front). Returns the new char's handle. */
+    int insertAfter(int prev, long id, long parentId, int site, int clock, char value, boolean live);
+
+    /**
+     * Insert a run right after prev: char i gets id + i and clock + i, and
+     * every char after the first is parented to the one before it. Returns
+     * the first char's handle; the rest follow it in order.
+     */
+    default int insertRunAfter(int prev, long id, long parentId, int site, int clock, CharSequence text, boolean live) {
+        int first = insertAfter(prev, id, parentId, site, clock, text.charAt(0), live);
+        int last = first;
+        for (int i = 1; i < text.length(); i++) {
+            last = insertAfter(last, id + i, id + i - 1, site, clock + i, text.charAt(i), live);
+        }
+        return first;
+    }
+
+    void remove(int handle);
+
+    boolean isLive(int handle);
+
+    void setLive(int handle, boolean live);
+
+    long id(int handle);
+
+    long parentId(int handle);
+
+    int site(int handle);
+
+    int clock(int handle);
+
+    char value(int handle);
+
+    /** Replace the contents with already-ordered chars; char i gets handle i. */
+    void load(Chars chars);
+
+    /** Growable parallel arrays, for bulk loads and for moving between stores. */
+    final class Chars {
+        int count;
+        long[] ids;
+        long[] parentIds;
+        int[] sites;
+        int[] clocks;
+        char[] values;
+        boolean[] live;
+
+        Chars(int expected) {
+            int capacity = Math.max(16, expected);
+            ids = new long[capacity];
+            parentIds = new long[capacity];
+            sites = new int[capacity];
+            clocks = new int[capacity];
+            values = new char[capacity];
+            live = new boolean[capacity];
+        }
+
+        void add(long id, long parentId, int site, int clock, char value, boolean isLive) {
+            if (count == ids.length) {
+                int capacity = count + (count >> 1);
+                ids = Arrays.copyOf(ids, capacity);
+                parentIds = Arrays.copyOf(parentIds, capacity);
+                sites = Arrays.copyOf(sites, capacity);
+                clocks = Arrays.copyOf(clocks, capacity);
+                values = Arrays.copyOf(values, capacity);
+                live = Arrays.copyOf(live, capacity);
+            }
+            ids[count] = id;
+            parentIds[count] = parentId;
+            sites[count] = site;
+            clocks[count] = clock;
+            values[count] = value;
+            live[count] = isLive;
+            count++;
+        }
+    }
+}
@@ -1,46 +1,386 @@
 package com.collabeditor.backend.service;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Who is in which document, plus the presence changes not yet sent out.
+ *
+ * Every join, leave and rename gets the document's next presence sequence
+ * number and goes on a pending list that PresenceBroadcaster drains — so
+ * clients get small deltas, and can tell from a gap in the numbers that
+ * they missed one and need a snapshot. Changes and snapshots are taken
+ * under the same lock, so their numbers line up.
+ *
+ * Colors come from a free bitmask (the least used one when all are taken),
+ * so a color is reused as soon as its user leaves.
+ */
 @Service
 public class SessionManager {
 
     private static final String[] COLORS = {
-        "#e06c75", "#61afef", "#98c379", "#e5c07b", 
+        "#e06c75", "#61afef", "#98c379", "#e5c07b",
         "#c678dd", "#56b6c2", "#be5046", "#d19a66"
     };
+    private static final int ALL_COLORS_FREE = (1 << COLORS.length) - 1;
 
-    // documentId → { siteId → user info }
-    private final Map<String, Map<String, UserInfo>> documentUsers = new ConcurrentHashMap<>();
+    // Past this many unsent changes a document just sends a snapshot next
+    private static final int MAX_PENDING_CHANGES = 256;
 
-    public void userJoined(String documentId, String siteId, String userName) {
-        Map<String, UserInfo> users = documentUsers.computeIfAbsent(documentId, k -> new ConcurrentHashMap<>());
-        int colorIndex = users.size() % COLORS.length;
-        users.put(siteId, new UserInfo(siteId, userName, COLORS[colorIndex]));
+    public static final long DEFAULT_STATE_GRACE_MS = 60_000;
+
+    // documentId → its users and presence log
+    private final Map<String, Presence> documents = new ConcurrentHashMap<>();
+    // documentId → revisions /state was served at lately, for clients that haven't joined yet
+    private final Map<String, RecentStates> servedStates = new ConcurrentHashMap<>();
+    private final long stateGraceMillis;
+
+    public SessionManager(@Value("${collab.gc.state-grace-ms:" + DEFAULT_STATE_GRACE_MS + "}") long stateGraceMillis) {
+        this.stateGraceMillis = stateGraceMillis;
+    }
+
+    /**
+     * loadedRevision is the revision of the state the user loaded before
+     * joining (not the document's revision now — deletes in between are
+     * news to them), so it counts as their first ack.
+     * Joining again (a reconnect) keeps the user's color.
+     */
+    public UserInfo userJoined(String documentId, String siteId, String userName, long loadedRevision) {
+        while (true) {
+            Presence presence = documents.computeIfAbsent(documentId, Presence::new);
+            synchronized (presence) {
+                if (presence.removed) continue;  // emptied and dropped meanwhile
+                UserInfo user = presence.users.get(siteId);
+                if (user == null) {
+                    int colorIndex = presence.takeColor();
+                    user = new UserInfo(siteId, userName, COLORS[colorIndex]);
+                    user.colorIndex = colorIndex;
+                    user.ackedRevision = loadedRevision;
+                    presence.users.put(siteId, user);
+                    presence.record(Change.JOIN, user);
+                } else {
+                    if (!Objects.equals(user.userName, userName)) {
+                        user.userName = userName;
+                        presence.record(Change.UPDATE, user);
+                    }
+                    user.ackedRevision = Math.max(user.ackedRevision, loadedRevision);
+                }
+                user.lastSeen = System.currentTimeMillis();
+                return user;
+            }
+        }
+    }
+
+    /** A client reports it has received every broadcast up to this revision. */
+    public void acknowledge(String documentId, String siteId, long revision) {
+        UserInfo user = find(documentId, siteId);
+        if (user != null) {
+            user.lastSeen = System.currentTimeMillis();
+            if (revision > user.ackedRevision) {
+                user.ackedRevision = revision;
+            }
+        }
+    }
+
+    /** Any sign of life from the user; false if they aren't (or are no longer) in the document. */
+    public boolean touch(String documentId, String siteId) {
+        UserInfo user = find(documentId, siteId);
+        if (user == null) return false;
+        user.lastSeen = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Highest revision every connected site has acknowledged, and no higher
+     * than any state served in the last stateGraceMillis (see stateServed).
+     * With nobody connected and nothing served lately, everything up to
+     * currentRevision is stable.
+     */
+    public long getStableRevision(String documentId, long currentRevision) {
+        Presence presence = documents.get(documentId);
+        long stable = currentRevision;
+        if (presence != null) {
+            for (UserInfo user : presence.users.values()) {
+                stable = Math.min(stable, user.ackedRevision);
+            }
+        }
+        RecentStates recent = servedStates.get(documentId);
+        if (recent != null) {
+            synchronized (recent) {
+                long lowest = recent.lowest(System.currentTimeMillis() - stateGraceMillis);
+                if (lowest >= 0) {
+                    stable = Math.min(stable, lowest);
+                } else {
+                    recent.removed = true;
+                    servedStates.remove(documentId, recent);
+                }
+            }
+        }
+        return stable;
+    }
+
+    /**
+     * The document's state went out as of this revision. Whoever loaded it
+     * joins with that revision as its first ack, but until it does nobody
+     * is holding GC back for it: tombstones it still has as chars would be
+     * collected under it. So for stateGraceMillis the revision counts as
+     * one more ack.
+     */
+    public void stateServed(String documentId, long revision) {
+        while (true) {
+            RecentStates recent = servedStates.computeIfAbsent(documentId, k -> new RecentStates());
+            synchronized (recent) {
+                if (recent.removed) continue;  // emptied and dropped meanwhile
+                recent.add(revision, System.currentTimeMillis());
+                return;
+            }
+        }
+    }
+
+    /** The user that left, or null if they weren't there. */
+    public UserInfo userLeft(String documentId, String siteId) {
+        Presence presence = documents.get(documentId);
+        if (presence == null) return null;
+        synchronized (presence) {
+            UserInfo user = presence.users.remove(siteId);
+            if (user != null) {
+                presence.leave(user);
+            }
+            return user;
+        }
     }
 
-    public void userLeft(String documentId, String siteId) {
-        Map<String, UserInfo> users = documentUsers.get(documentId);
-        if (users != null) {
-            users.remove(siteId);
-            if (users.isEmpty()) {
-                documentUsers.remove(documentId);
+    /**
+     * Remove all of a document's users without recording them as leaving —
+     * the document is moving to another node, which takes them over.
+     */
+    public List<Member> takeUsers(String documentId) {
+        Presence presence = documents.get(documentId);
+        if (presence == null) return List.of();
+        synchronized (presence) {
+            List<Member> members = new ArrayList<>(presence.users.size());
+            for (UserInfo user : presence.users.values()) {
+                members.add(new Member(user.siteId, user.userName, user.ackedRevision));
+                if (--presence.colorUse[user.colorIndex] == 0) {
+                    presence.freeColors |= 1 << user.colorIndex;
+                }
             }
+            presence.users.clear();
+            presence.drop();
+            return members;
         }
     }
 
-    public List<UserInfo> getUsers(String documentId) {
-        Map<String, UserInfo> users = documentUsers.get(documentId);
-        return users != null ? new ArrayList<>(users.values()) : new ArrayList<>();
+    /**
+     * Users taken over with a document from its previous owner. One who has
+     * joined here meanwhile keeps the lower ack of the two, so GC never
+     * collects what either node hasn't seen them acknowledge.
+     */
+    public void adoptUsers(String documentId, List<Member> members) {
+        if (members.isEmpty()) return;
+        while (true) {
+            Presence presence = documents.computeIfAbsent(documentId, Presence::new);
+            synchronized (presence) {
+                if (presence.removed) continue;
+                for (Member member : members) {
+                    UserInfo user = presence.users.get(member.siteId());
+                    if (user == null) {
+                        int colorIndex = presence.takeColor();
+                        user = new UserInfo(member.siteId(), member.userName(), COLORS[colorIndex]);
+                        user.colorIndex = colorIndex;
+                        user.ackedRevision = member.ackedRevision();
+                        presence.users.put(member.siteId(), user);
+                        presence.record(Change.JOIN, user);
+                    } else {
+                        user.ackedRevision = Math.min(user.ackedRevision, member.ackedRevision());
+                    }
+                    user.lastSeen = System.currentTimeMillis();
+                }
+                return;
+            }
+        }
     }
 
+    /**
+     * Drop everyone not heard from since seenBefore (epoch millis) — users
+     * whose connection vanished without a disconnect ever reaching us.
+     * Returns documentId → users dropped.
+     */
+    public Map<String, List<UserInfo>> expire(long seenBefore) {
+        Map<String, List<UserInfo>> expired = new HashMap<>();
+        for (Map.Entry<String, Presence> entry : documents.entrySet()) {
+            Presence presence = entry.getValue();
+            synchronized (presence) {
+                for (Iterator<UserInfo> it = presence.users.values().iterator(); it.hasNext(); ) {
+                    UserInfo user = it.next();
+                    if (user.lastSeen < seenBefore) {
+                        it.remove();
+                        presence.leave(user);
+                        expired.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).add(user);
+                    }
+                }
+            }
+        }
+        return expired;
+    }
+
+    /** Whether anyone is connected to the document. */
+    public boolean hasUsers(String documentId) {
+        Presence presence = documents.get(documentId);
+        return presence != null && !presence.users.isEmpty();
+    }
+
+    public int getUserCount(String documentId) {
+        Presence presence = documents.get(documentId);
+        return presence != null ? presence.users.size() : 0;
+    }
+
+    /** Changes since the last drain, oldest first; null if the log overflowed and a snapshot should go out instead. */
+    public List<Change> drainChanges(String documentId) {
+        Presence presence = documents.get(documentId);
+        if (presence == null) return List.of();
+        synchronized (presence) {
+            List<Change> changes = presence.overflowed ? null : presence.pending;
+            if (changes != null && changes.isEmpty()) {
+                presence.drop();
+                return List.of();
+            }
+            presence.pending = new ArrayList<>();
+            presence.overflowed = false;
+            presence.drop();
+            return changes;
+        }
+    }
+
+    /** Everyone in the document, as of the given sequence number. Clears the pending changes it covers. */
+    public Snapshot snapshot(String documentId) {
+        Presence presence = documents.get(documentId);
+        if (presence == null) return new Snapshot(System.currentTimeMillis() * 1000, List.of());
+        synchronized (presence) {
+            presence.pending = new ArrayList<>();
+            presence.overflowed = false;
+            Snapshot snapshot = new Snapshot(presence.seq, new ArrayList<>(presence.users.values()));
+            presence.drop();
+            return snapshot;
+        }
+    }
+
+    public Set<String> getDocumentIds() {
+        return documents.keySet();
+    }
+
+    private UserInfo find(String documentId, String siteId) {
+        Presence presence = documents.get(documentId);
+        return presence != null ? presence.users.get(siteId) : null;
+    }
+
+    private final class Presence {
+        final String documentId;
+        final Map<String, UserInfo> users = new ConcurrentHashMap<>();
+        final int[] colorUse = new int[COLORS.length];
+        int freeColors = ALL_COLORS_FREE;
+        // Starts from the clock, so numbers keep going up when a document empties
+        // and fills again, or the server restarts, under clients that stayed subscribed
+        long seq = System.currentTimeMillis() * 1000;
+        List<Change> pending = new ArrayList<>();
+        boolean overflowed;
+        boolean removed;
+
+        Presence(String documentId) {
+            this.documentId = documentId;
+        }
+
+        int takeColor() {
+            int index;
+            if (freeColors != 0) {
+                index = Integer.numberOfTrailingZeros(freeColors);
+            } else {
+                index = 0;
+                for (int i = 1; i < COLORS.length; i++) {
+                    if (colorUse[i] < colorUse[index]) index = i;
+                }
+            }
+            colorUse[index]++;
+            freeColors &= ~(1 << index);
+            return index;
+        }
+
+        void leave(UserInfo user) {
+            if (--colorUse[user.colorIndex] == 0) {
+                freeColors |= 1 << user.colorIndex;
+            }
+            record(Change.LEAVE, user);
+        }
+
+        void record(String type, UserInfo user) {
+            seq++;
+            if (overflowed) return;
+            if (pending.size() >= MAX_PENDING_CHANGES) {
+                pending = new ArrayList<>();
+                overflowed = true;
+                return;
+            }
+            pending.add(new Change(type, seq, user.siteId, user.userName, user.color));
+        }
+
+        /** Forget an empty document once its last changes have been taken. */
+        void drop() {
+            if (users.isEmpty() && pending.isEmpty() && !overflowed) {
+                removed = true;
+                documents.remove(documentId, this);
+            }
+        }
+    }
+
+    /**
+     * Served revisions, oldest first. One served later at the same or a lower
+     * revision holds GC back at least as far and for longer, so it replaces
+     * those: revisions only go up from front to back, and the front is the
+     * lowest still in the window.
+     */
+    private static final class RecentStates {
+        final Deque<long[]> served = new ArrayDeque<>();  // {revision, servedAt}
+        boolean removed;
+
+        void add(long revision, long now) {
+            while (!served.isEmpty() && served.peekLast()[0] >= revision) {
+                served.pollLast();
+            }
+            served.addLast(new long[] {revision, now});
+        }
+
+        /** Lowest revision served at or after `since`; -1 if none. */
+        long lowest(long since) {
+            while (!served.isEmpty() && served.peekFirst()[1] < since) {
+                served.pollFirst();
+            }
+            return served.isEmpty() ? -1 : served.peekFirst()[0];
+        }
+    }
+
+    /** One presence change; a document's changes are numbered consecutively. */
+    public record Change(String type, long seq, String siteId, String userName, String color) {
+        public static final String JOIN = "join";
+        public static final String LEAVE = "leave";
+        public static final String UPDATE = "update";
+    }
+
+    public record Snapshot(long seq, List<UserInfo> users) {}
+
+    /** A user as handed from one node to another with their document. */
+    public record Member(String siteId, String userName, long ackedRevision) {}
+
     public static class UserInfo {
         private String siteId;
-        private String userName;
+        private volatile String userName;
         private String color;
+        // Not part of the presence payload
+        private int colorIndex;
+        private volatile long ackedRevision;
+        private volatile long lastSeen;
 
         public UserInfo(String siteId, String userName, String color) {
             this.siteId = siteId;
@@ -52,4 +392,4 @@ public class SessionManager {
         public String getUserName() { return userName; }
         public String getColor() { return color; }
     }
-}
\ No newline at end of file
+}
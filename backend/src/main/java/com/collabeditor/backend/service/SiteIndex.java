@@ -0,0 +1,155 @@
+package com.collabeditor.backend.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+/**
+ * Every char id a document has seen, grouped by site and sorted by counter,
+ * so "what is past counter N for this site" is a binary search instead of a
+ * scan of the sequence.
+ *
+ * Ids leave when tombstone GC collects their chars, so the index follows
+ * the sequence rather than everything ever inserted; the caller still
+ * checks whether a char is in the sequence. A site's ids usually arrive in counter order. One that arrives
+ * behind a higher counter (it sat in the pending buffer) is also recorded as
+ * late, with its revision. A client can already have the higher counter and
+ * still be missing it.
+ */
+final class SiteIndex {
+
+    private record Late(long id, long revision) {}
+
+    private final List<Ids> bySite = new ArrayList<>();
+    private final Deque<Late> late = new ArrayDeque<>();  // in revision order
+
+    private static final class Ids {
+        long[] ids = new long[8];
+        int count;
+
+        void add(long id) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count + (count >> 1));
+            }
+            ids[count++] = id;
+        }
+
+        /** Remove the ids in remove[from, to), sorted; shrinks the array once it's mostly empty. */
+        void removeSorted(long[] remove, int from, int to) {
+            int kept = 0;
+            int r = from;
+            for (int i = 0; i < count; i++) {
+                while (r < to && remove[r] < ids[i]) r++;
+                if (r < to && remove[r] == ids[i]) continue;
+                ids[kept++] = ids[i];
+            }
+            count = kept;
+            if (ids.length > 8 && count < ids.length / 4) {
+                ids = Arrays.copyOf(ids, Math.max(8, count * 2));
+            }
+        }
+
+        /** First position whose id is above `id`. */
+        int after(long id) {
+            int lo = 0;
+            int hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ids[mid] <= id) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    /** Record an applied insert. */
+    void add(long id, long revision) {
+        Ids ids = site(id);
+        if (ids.count == 0 || ids.ids[ids.count - 1] < id) {
+            ids.add(id);
+            return;
+        }
+        int at = ids.after(id);
+        if (at > 0 && ids.ids[at - 1] == id) return;
+        ids.add(id);
+        System.arraycopy(ids.ids, at, ids.ids, at + 1, ids.count - 1 - at);
+        ids.ids[at] = id;
+        late.addLast(new Late(id, revision));
+    }
+
+    /** Rebuild from a loaded state, in any order. Nothing loaded counts as late. */
+    void load(long[] ids, int count) {
+        clear();
+        for (int i = 0; i < count; i++) {
+            site(ids[i]).add(ids[i]);
+        }
+        for (Ids site : bySite) {
+            Arrays.sort(site.ids, 0, site.count);
+        }
+    }
+
+    void clear() {
+        bySite.clear();
+        late.clear();
+    }
+
+    /**
+     * Ids a replica is missing: per site, everything above the counter it has
+     * seen (`seen[site]`, -1 for none), plus late arrivals after `sinceRevision`
+     * that fall at or below it.
+     */
+    void missing(long[] seen, long sinceRevision, LongConsumer out) {
+        for (int s = 0; s < bySite.size(); s++) {
+            Ids ids = bySite.get(s);
+            long bound = s < seen.length ? seen[s] : -1;
+            int from = bound < 0 ? 0 : ids.after(((long) s << 32) | bound);
+            for (int i = from; i < ids.count; i++) {
+                out.accept(ids.ids[i]);
+            }
+        }
+        for (Late l : late) {
+            if (l.revision() <= sinceRevision) continue;
+            int s = (int) (l.id() >>> 32);
+            long bound = s < seen.length ? seen[s] : -1;
+            if ((l.id() & 0xFFFF_FFFFL) <= bound) {
+                out.accept(l.id());
+            }
+        }
+    }
+
+    /**
+     * Drop collected ids, one pass per site touched rather than a shift per
+     * id. Sorts `ids`. Late entries for them go with dropLateThrough.
+     */
+    void removeAll(long[] ids, int count) {
+        Arrays.sort(ids, 0, count);
+        int i = 0;
+        while (i < count) {
+            int s = (int) (ids[i] >>> 32);
+            int end = i;
+            while (end < count && (int) (ids[end] >>> 32) == s) end++;
+            if (s < bySite.size()) {
+                bySite.get(s).removeSorted(ids, i, end);
+            }
+            i = end;
+        }
+    }
+
+    /** Forget late arrivals at or before the revision; nobody asks about them any more. */
+    void dropLateThrough(long revision) {
+        while (!late.isEmpty() && late.peekFirst().revision() <= revision) {
+            late.pollFirst();
+        }
+    }
+
+    private Ids site(long id) {
+        int s = (int) (id >>> 32);
+        while (bySite.size() <= s) {
+            bySite.add(new Ids());
+        }
+        return bySite.get(s);
+    }
+}
@@ -0,0 +1,121 @@
+package com.collabeditor.backend.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-document interning of site ids, and the packed long form of char ids.
+ *
+ * A char id "siteId-counter" becomes (site index << 32) | counter, so the
+ * document can key its maps by primitive longs and compare parents with ==.
+ * Ids that aren't in that form are interned whole and get OPAQUE as their
+ * counter. Either way idString() gives back exactly the string that came in.
+ */
+final class SiteRegistry {
+
+    /** Parent id was null. */
+    static final long NO_PARENT = -1;
+    /** Parent id was "" — also the front of the document, kept apart so it round-trips. */
+    static final long EMPTY_PARENT = -2;
+    /** findId() result for an id this document has never interned. */
+    static final long UNKNOWN = -3;
+
+    /** Counter of an id that isn't "siteId-counter"; sorts after every real counter. */
+    static final long OPAQUE = 0xFFFF_FFFFL;
+
+    private final Map<String, Integer> indexes = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    int internSite(String site) {
+        Integer index = indexes.get(site);
+        if (index == null) {
+            index = names.size();
+            indexes.put(site, index);
+            names.add(site);
+        }
+        return index;
+    }
+
+    int size() {
+        return names.size();
+    }
+
+    String siteName(int index) {
+        return names.get(index);
+    }
+
+    /** Order of two interned sites by their string ids — the sibling tie-break. */
+    int compareSites(int a, int b) {
+        return a == b ? 0 : names.get(a).compareTo(names.get(b));
+    }
+
+    long internId(String id) {
+        if (id == null) return NO_PARENT;
+        if (id.isEmpty()) return EMPTY_PARENT;
+        int dash = id.lastIndexOf('-');
+        long counter = dash > 0 ? parseCounter(id, dash + 1) : -1;
+        if (counter < 0) {
+            return pack(internSite(id), OPAQUE);
+        }
+        return pack(internSite(id.substring(0, dash)), counter);
+    }
+
+    /** Like internId, but never grows the registry — UNKNOWN if the id can't be in the document. */
+    long findId(String id) {
+        if (id == null) return NO_PARENT;
+        if (id.isEmpty()) return EMPTY_PARENT;
+        int dash = id.lastIndexOf('-');
+        long counter = dash > 0 ? parseCounter(id, dash + 1) : -1;
+        Integer site = counter < 0 ? indexes.get(id) : indexes.get(id.substring(0, dash));
+        if (site == null) return UNKNOWN;
+        return pack(site, counter < 0 ? OPAQUE : counter);
+    }
+
+    String idString(long id) {
+        if (id == NO_PARENT) return null;
+        if (id == EMPTY_PARENT) return "";
+        return idString(names.get((int) (id >>> 32)), id);
+    }
+
+    /** Site names by index as of now, for reading ids back without the document lock. */
+    String[] names() {
+        return names.toArray(new String[0]);
+    }
+
+    /** idString against a copy from names(). */
+    static String idString(long id, String[] names) {
+        if (id == NO_PARENT) return null;
+        if (id == EMPTY_PARENT) return "";
+        return idString(names[(int) (id >>> 32)], id);
+    }
+
+    private static String idString(String site, long id) {
+        long counter = id & 0xFFFF_FFFFL;
+        return counter == OPAQUE ? site : site + "-" + counter;
+    }
+
+    static boolean isRoot(long parentId) {
+        return parentId == NO_PARENT || parentId == EMPTY_PARENT;
+    }
+
+    private static long pack(int site, long counter) {
+        return ((long) site << 32) | counter;
+    }
+
+    /** Decimal counter starting at `from`, or -1 if it wouldn't print back the same way. */
+    static long parseCounter(String id, int from) {
+        int len = id.length() - from;
+        if (len == 0 || len > 10 || (len > 1 && id.charAt(from) == '0')) {
+            return -1;
+        }
+        long counter = 0;
+        for (int i = from; i < id.length(); i++) {
+            char ch = id.charAt(i);
+            if (ch < '0' || ch > '9') return -1;
+            counter = counter * 10 + (ch - '0');
+        }
+        return counter < OPAQUE ? counter : -1;
+    }
+}
@@ -0,0 +1,160 @@
+package com.collabeditor.backend.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Write-behind snapshots.
+ *
+ * Each tick looks at the dirty documents. One is due once nobody has
+ * touched it for debounce-ms, or once it has been dirty for max-delay-ms
+ * even if it's still being edited, and it needs a snapshot at all (see
+ * DocumentService.needsSnapshot). Due documents go on a bounded queue.
+ * A pool of writers takes them off batch-size at a time and saves each batch
+ * in one transaction.
+ *
+ * When the queue is full the database is behind, and the tick stops adding
+ * until it drains. Edits are unaffected, since they're durable in the
+ * operation log; that log has its own bound (collab.oplog.max-unflushed).
+ * On shutdown every dirty document is saved, due or not.
+ */
+@Component
+public class SnapshotWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(SnapshotWriter.class);
+
+    private final DocumentService documentService;
+    private final long debounceMillis;
+    private final long maxDelayMillis;
+    private final int batchSize;
+    private final BlockingQueue<String> queue;
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();  // on the queue or being written
+    private final ExecutorService writers;
+    private volatile boolean running = true;
+
+    public SnapshotWriter(DocumentService documentService,
+                          @Value("${collab.persistence.threads:4}") int threads,
+                          @Value("${collab.persistence.batch-size:100}") int batchSize,
+                          @Value("${collab.persistence.queue-capacity:1000}") int queueCapacity,
+                          @Value("${collab.persistence.debounce-ms:2000}") long debounceMillis,
+                          @Value("${collab.persistence.max-delay-ms:30000}") long maxDelayMillis) {
+        this.documentService = documentService;
+        this.debounceMillis = debounceMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.batchSize = Math.max(1, batchSize);
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        AtomicInteger threadCount = new AtomicInteger();
+        this.writers = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "snapshot-writer-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        for (int i = 0; i < Math.max(1, threads); i++) {
+            writers.execute(this::writeLoop);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${collab.persistence.tick-ms:500}")
+    public void tick() {
+        if (!running) return;
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Long> dirty : documentService.getDirtyDocuments().entrySet()) {
+            String documentId = dirty.getKey();
+            if (queued.contains(documentId)) continue;
+            CrdtDocument doc = documentService.getResidentDocument(documentId);
+            if (doc == null) continue;
+
+            boolean quiet = now - doc.getLastAccessMillis() >= debounceMillis;
+            boolean overdue = now - dirty.getValue() >= maxDelayMillis;
+            if (!(quiet || overdue) || !documentService.needsSnapshot(documentId)) continue;
+
+            queued.add(documentId);
+            if (!queue.offer(documentId)) {
+                queued.remove(documentId);
+                log.debug("Snapshot queue full; {} waits for the next tick", documentId);
+                return;
+            }
+        }
+    }
+
+    private void writeLoop() {
+        List<String> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                String first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                documentService.saveDocuments(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.warn("Failed to save {} document snapshots", batch.size(), e);
+            } finally {
+                batch.forEach(queued::remove);
+                batch.clear();
+            }
+        }
+    }
+
+    /** Documents waiting for a writer. */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /** Stop the writers and save every dirty document, due or not. */
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        writers.shutdown();
+        try {
+            if (!writers.awaitTermination(30, TimeUnit.SECONDS)) {
+                log.warn("Snapshot writers still busy after 30s");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        queue.clear();
+        drain();
+    }
+
+    private void drain() {
+        List<String> remaining = new ArrayList<>(documentService.getDirtyDocuments().keySet());
+        for (int from = 0; from < remaining.size(); from += batchSize) {
+            List<String> batch = remaining.subList(from, Math.min(from + batchSize, remaining.size()));
+            try {
+                documentService.saveDocuments(batch);
+            } catch (Exception e) {
+                log.warn("Failed to save {} document snapshots on shutdown", batch.size(), e);
+            }
+        }
+        // Anything skipped was mid-save elsewhere (an eviction); wait for it and save what's left
+        for (String documentId : documentService.getDirtyDocuments().keySet()) {
+            try {
+                documentService.saveDocument(documentId);
+            } catch (Exception e) {
+                log.warn("Failed to save document {} on shutdown", documentId, e);
+            }
+        }
+        if (!remaining.isEmpty()) {
+            log.info("Saved {} dirty documents on shutdown", remaining.size());
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.collabeditor.backend.service;
+
+import com.collabeditor.backend.model.CrdtChar;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background tombstone GC.
+ *
+ * For each resident document, works out the highest revision every connected
+ * site has acknowledged (see SessionManager) and lets the document drop the
+ * tombstones deleted at or before it.
+ */
+@Component
+public class TombstoneCollector {
+
+    private static final Logger log = LoggerFactory.getLogger(TombstoneCollector.class);
+
+    private final DocumentService documentService;
+    private final SessionManager sessionManager;
+
+    private final AtomicLong charsCollected = new AtomicLong();
+    private final AtomicLong bytesReclaimed = new AtomicLong();
+
+    public TombstoneCollector(DocumentService documentService, SessionManager sessionManager) {
+        this.documentService = documentService;
+        this.sessionManager = sessionManager;
+    }
+
+    @Scheduled(fixedDelayString = "${collab.gc.interval-ms:60000}")
+    public void collectAll() {
+        for (CrdtDocument doc : documentService.getActiveDocuments()) {
+            try {
+                collect(doc);
+            } catch (Exception e) {
+                log.warn("Tombstone GC failed for document {}", doc.getDocumentId(), e);
+            }
+        }
+    }
+
+    /** Collect one document's stable tombstones. Returns how many chars were removed. */
+    public int collect(CrdtDocument doc) {
+        if (doc.getPendingTombstoneCount() == 0) return 0;
+
+        String documentId = doc.getDocumentId();
+        long stable = sessionManager.getStableRevision(documentId, doc.getRevision());
+        List<CrdtChar> collected = doc.collectTombstones(stable);
+        if (collected.isEmpty()) return 0;
+
+        long bytes = 0;
+        for (CrdtChar c : collected) {
+            bytes += CrdtStateCodec.estimateCharBytes(c);
+        }
+        charsCollected.addAndGet(collected.size());
+        bytesReclaimed.addAndGet(bytes);
+        documentService.markDirty(documentId);
+
+        log.debug("Collected {} tombstones (~{} bytes) from document {}", collected.size(), bytes, documentId);
+        return collected.size();
+    }
+
+    public long getCharsCollected() {
+        return charsCollected.get();
+    }
+
+    /** Approximate bytes removed from the binary snapshot so far. */
+    public long getBytesReclaimed() {
+        return bytesReclaimed.get();
+    }
+}
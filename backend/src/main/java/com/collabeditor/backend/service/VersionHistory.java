@@ -0,0 +1,234 @@
+package com.collabeditor.backend.service;
+
+import com.collabeditor.backend.model.DocumentCheckpoint;
+import com.collabeditor.backend.repository.DocumentCheckpointRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Past versions of documents, for reading a document as of a revision or
+ * a point in time.
+ *
+ * With history on, the operation log is no longer truncated when a
+ * snapshot covers it. Every checkpoint-ops revisions a snapshot is also
+ * kept as a checkpoint. The version at revision N is the last checkpoint
+ * at or before N with the logged ops after it replayed on top. That is
+ * about checkpoint-ops ops however long the document's history is. Recent
+ * reads are kept in a small LRU, since audits tend to step around the same
+ * few versions.
+ *
+ * Retention, run every sweep-ms:
+ * - ops older than op-retention-ms are dropped up to a checkpoint, so
+ *   older versions are only available where a checkpoint was kept;
+ * - checkpoints are thinned by age: retention=1d:1h,7d:1d keeps one per
+ *   hour once they are a day old, and one per day after a week;
+ * - checkpoints older than max-age-ms (0 = keep) are dropped.
+ */
+@Component
+public class VersionHistory {
+
+    private static final Logger log = LoggerFactory.getLogger(VersionHistory.class);
+
+    private final DocumentCheckpointRepository checkpoints;
+    private final OperationLog operationLog;
+    private final boolean enabled;
+    private final long checkpointOps;
+    private final long opRetentionMillis;
+    private final long maxAgeMillis;
+    private final List<Tier> tiers = new ArrayList<>();
+    private final Map<Key, Version> cache;
+    // documentId → revision of its latest checkpoint
+    private final Map<String, Long> lastCheckpoints = new ConcurrentHashMap<>();
+
+    public VersionHistory(DocumentService documentService,
+                          DocumentCheckpointRepository checkpoints,
+                          OperationLog operationLog,
+                          @Value("${collab.history.enabled:false}") boolean enabled,
+                          @Value("${collab.history.checkpoint-ops:1000}") long checkpointOps,
+                          @Value("${collab.history.op-retention-ms:604800000}") long opRetentionMillis,
+                          @Value("${collab.history.max-age-ms:0}") long maxAgeMillis,
+                          @Value("${collab.history.retention:1d:1h,7d:1d}") String retention,
+                          @Value("${collab.history.cache-size:32}") int cacheSize) {
+        this.checkpoints = checkpoints;
+        this.operationLog = operationLog;
+        this.enabled = enabled;
+        this.checkpointOps = checkpointOps;
+        this.opRetentionMillis = opRetentionMillis;
+        this.maxAgeMillis = maxAgeMillis;
+        for (String tier : retention.split(",")) {
+            if (tier.isBlank()) continue;
+            String[] parts = tier.trim().split(":");
+            tiers.add(new Tier(DurationStyle.detectAndParse(parts[0].trim()).toMillis(),
+                DurationStyle.detectAndParse(parts[1].trim()).toMillis()));
+        }
+        tiers.sort(Comparator.comparingLong(Tier::age));
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Version> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        if (enabled) {
+            documentService.setHistory(this);
+        }
+    }
+
+    /** Text of a past version; exact is false if the ops after `revision`'s checkpoint have been dropped. */
+    public record Version(String documentId, long revision, boolean exact, String text) {}
+
+    private record Key(String documentId, long revision) {}
+
+    private record Tier(long age, long spacing) {}
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The document at the given revision (or its latest, if that's further
+     * than it got). Null if history is off or doesn't reach that far back.
+     */
+    public Version versionAt(String documentId, long revision) {
+        if (!enabled || revision < 0) return null;
+        operationLog.flush();  // the last second of edits, so recent revisions can be read too
+        Long lastCheckpoint = checkpoints.findLastRevision(documentId);
+        long latest = Math.max(operationLog.lastRevision(documentId), lastCheckpoint != null ? lastCheckpoint : -1);
+        if (latest < 0) return null;
+        long target = Math.min(revision, latest);
+
+        Key key = new Key(documentId, target);
+        synchronized (cache) {
+            Version cached = cache.get(key);
+            if (cached != null) return cached;
+        }
+
+        CrdtDocument doc = new CrdtDocument(documentId);
+        DocumentCheckpoint base = checkpoints
+            .findFirstByDocumentIdAndRevisionLessThanEqualOrderByRevisionDesc(documentId, target).orElse(null);
+        long reached = 0;
+        if (base != null) {
+            reached = base.getRevision();
+            CrdtStateCodec.State state = CrdtStateCodec.decodeState(base.getState());
+            doc.loadFromState(state.chars(), reached, state.collected(), state.forwards());
+        }
+        for (OperationLog.ReplayEntry entry : operationLog.readRange(documentId, reached, target)) {
+            if (entry.revision() != reached + 1) break;  // dropped by retention; the checkpoint is as close as it gets
+            doc.replay(entry.operation(), entry.revision());
+            reached = entry.revision();
+        }
+        if (base == null && reached == 0 && target > 0) return null;  // from before anything that's left
+
+        Version version = new Version(documentId, reached, reached == target, doc.getText());
+        synchronized (cache) {
+            cache.put(key, version);
+        }
+        return version;
+    }
+
+    /** The document as it was at the given time (epoch millis); null if history doesn't go back that far. */
+    public Version versionAtTime(String documentId, long time) {
+        if (!enabled) return null;
+        operationLog.flush();
+        Long checkpointRevision = checkpoints.findLastRevisionAt(documentId, time);
+        long revision = Math.max(operationLog.revisionAt(documentId, time),
+            checkpointRevision != null ? checkpointRevision : -1);
+        return revision < 0 ? null : versionAt(documentId, revision);
+    }
+
+    /** The document's checkpoints, oldest first, without their state. */
+    public List<DocumentCheckpointRepository.Info> getCheckpoints(String documentId) {
+        return enabled ? checkpoints.findInfoByDocumentId(documentId) : List.of();
+    }
+
+    /**
+     * DocumentService wrote a snapshot; keep it as a checkpoint if the last
+     * one is far enough back. A document's first snapshot always is, so
+     * state loaded from before history was on has a base too.
+     */
+    void snapshotWritten(String documentId, long revision, byte[] state) {
+        long last = lastCheckpointRevision(documentId);
+        if (last >= 0 && revision - last < checkpointOps) return;
+        try {
+            checkpoints.save(new DocumentCheckpoint(documentId, revision, System.currentTimeMillis(), state));
+            lastCheckpoints.put(documentId, revision);
+        } catch (RuntimeException e) {
+            // The next snapshot tries again; the log still has everything
+            log.error("Failed to write checkpoint of {} at revision {}", documentId, revision, e);
+        }
+    }
+
+    void deleteDocument(String documentId) {
+        checkpoints.deleteByDocument(documentId);
+        lastCheckpoints.remove(documentId);
+        synchronized (cache) {
+            cache.keySet().removeIf(key -> key.documentId().equals(documentId));
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${collab.history.sweep-ms:3600000}")
+    public void sweep() {
+        if (!enabled) return;
+        long now = System.currentTimeMillis();
+        for (String documentId : checkpoints.findDocumentIds()) {
+            try {
+                applyRetention(documentId, now);
+            } catch (RuntimeException e) {
+                log.error("Failed to apply history retention to {}", documentId, e);
+            }
+        }
+    }
+
+    /** Thin out the document's checkpoints, then drop ops old enough that a kept checkpoint covers them. */
+    public void applyRetention(String documentId, long now) {
+        List<DocumentCheckpointRepository.Info> infos = checkpoints.findInfoByDocumentId(documentId);
+        List<Long> dropped = new ArrayList<>();
+        Set<String> buckets = new HashSet<>();
+        long opBase = -1;
+        // Newest first, so each bucket keeps its latest checkpoint
+        for (int i = infos.size() - 1; i >= 0; i--) {
+            DocumentCheckpointRepository.Info checkpoint = infos.get(i);
+            long age = now - checkpoint.createdAt();
+            if (maxAgeMillis > 0 && age > maxAgeMillis) {
+                dropped.add(checkpoint.id());
+                continue;
+            }
+            Tier tier = tierFor(age);
+            if (tier != null && !buckets.add(tier.age() + "/" + checkpoint.createdAt() / tier.spacing())) {
+                dropped.add(checkpoint.id());
+                continue;
+            }
+            if (opBase < 0 && age > opRetentionMillis) {
+                opBase = checkpoint.revision();
+            }
+        }
+        if (!dropped.isEmpty()) {
+            checkpoints.deleteByIds(dropped);
+        }
+        if (opBase > 0) {
+            operationLog.truncate(documentId, opBase);
+        }
+    }
+
+    private Tier tierFor(long age) {
+        Tier found = null;
+        for (Tier tier : tiers) {
+            if (age < tier.age()) break;
+            if (tier.spacing() > 0) found = tier;
+        }
+        return found;
+    }
+
+    private long lastCheckpointRevision(String documentId) {
+        return lastCheckpoints.computeIfAbsent(documentId, id -> {
+            Long revision = checkpoints.findLastRevision(id);
+            return revision != null ? revision : -1L;
+        });
+    }
+}
@@ -0,0 +1,289 @@
+package com.collabeditor.backend;
+
+import com.collabeditor.backend.cluster.ClusterService;
+import com.collabeditor.backend.cluster.HashRing;
+import com.collabeditor.backend.config.CrdtMessageConverter;
+import com.collabeditor.backend.controller.DocumentController;
+import com.collabeditor.backend.handler.WireFormats;
+import com.collabeditor.backend.model.CrdtChar;
+import com.collabeditor.backend.model.CrdtOperation;
+import com.collabeditor.backend.service.DocumentExecutor;
+import com.collabeditor.backend.service.DocumentService;
+import com.collabeditor.backend.service.SessionManager;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.messaging.converter.CompositeMessageConverter;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
+import org.springframework.web.socket.WebSocketHttpHeaders;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+import org.springframework.web.socket.sockjs.client.SockJsClient;
+import org.springframework.web.socket.sockjs.client.WebSocketTransport;
+
+import java.lang.reflect.Type;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Two nodes in one JVM, talking over the loopback transport and sharing one database. */
+class ClusterIntegrationTest {
+
+    private static ConfigurableApplicationContext nodeA;
+    private static ConfigurableApplicationContext nodeB;
+    private static WebSocketStompClient stompClient;
+
+    @BeforeAll
+    static void startNodes() {
+        nodeA = start("a");
+        nodeB = start("b");
+        stompClient = new WebSocketStompClient(new SockJsClient(List.of(new WebSocketTransport(new StandardWebSocketClient()))));
+        stompClient.setMessageConverter(new MappingJackson2MessageConverter());
+    }
+
+    @AfterAll
+    static void stopNodes() {
+        nodeB.close();
+        nodeA.close();
+    }
+
+    private static ConfigurableApplicationContext start(String nodeId) {
+        return new SpringApplicationBuilder(BackendApplication.class).run(
+            "--server.port=0",
+            "--spring.datasource.url=jdbc:h2:mem:cluster-test;DB_CLOSE_DELAY=-1",
+            "--collab.cluster.enabled=true",
+            "--collab.cluster.node-id=" + nodeId,
+            "--collab.cluster.members=a,b",
+            "--collab.broadcast.window-ms=0");
+    }
+
+    @Test
+    void testEditsThroughEitherNodeReachBothAndSurviveHandoff() throws Exception {
+        HashRing ring = new HashRing(List.of("a", "b"));
+        String doc = "cluster-doc-0";
+        for (int i = 1; !"a".equals(ring.ownerOf(doc)); i++) {
+            doc = "cluster-doc-" + i;
+        }
+
+        StompSession onA = connect(nodeA);
+        StompSession onB = connect(nodeB);
+        BlockingQueue<JsonNode> framesA = subscribe(onA, "/topic/document/" + doc);
+        BlockingQueue<JsonNode> framesB = subscribe(onB, "/topic/document/" + doc);
+
+        // Typed on b, applied on a, seen by subscribers on both
+        type(onB, doc, "HELLO", null, 0);
+        assertEquals(5, opsIn(framesA, 5));
+        assertEquals(5, opsIn(framesB, 5));
+        assertTrue(service(nodeA).isResident(doc));
+        assertFalse(service(nodeB).isResident(doc));
+        assertTrue(getState(nodeB, doc).contains("\"H\""));
+
+        // a leaves: b takes the document over, with nothing lost
+        cluster(nodeB).setMembers(List.of("b"));
+        type(onB, doc, " WORLD", "A-5", 5);
+        assertEquals(6, opsIn(framesB, 6));
+        cluster(nodeA).setMembers(List.of("b"));
+
+        assertEquals("HELLO WORLD", service(nodeB).getOrLoadDocument(doc).getText());
+        assertFalse(service(nodeA).isResident(doc));
+
+        onA.disconnect();
+        onB.disconnect();
+        service(nodeB).clearDocument(doc);
+    }
+
+    @Test
+    void testEditQueuedAcrossAMembersChangeGoesToTheNewOwner() throws Exception {
+        HashRing ring = new HashRing(List.of("a", "b"));
+        String doc = "cluster-queued-0";
+        for (int i = 1; !"a".equals(ring.ownerOf(doc)); i++) {
+            doc = "cluster-queued-" + i;
+        }
+        cluster(nodeA).setMembers(List.of("a", "b"));
+        cluster(nodeB).setMembers(List.of("a", "b"));
+        StompSession onA = connect(nodeA);
+        BlockingQueue<JsonNode> framesA = subscribe(onA, "/topic/document/" + doc);
+        type(onA, doc, "HI", null, 0);
+        assertEquals(2, opsIn(framesA, 2));
+
+        // Hold a's lane so b's release request and the next edit queue up behind it
+        CountDownLatch blocked = new CountDownLatch(1);
+        executor(nodeA).execute(doc, () -> {
+            try {
+                blocked.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        cluster(nodeB).setMembers(List.of("b"));
+        service(nodeB).loadDocument(doc);
+        type(onA, doc, "!", "A-2", 2);
+        for (int i = 0; i < 100 && executor(nodeA).getQueueDepth(doc) < 2; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(2, executor(nodeA).getQueueDepth(doc));
+        cluster(nodeA).setMembers(List.of("b"));
+        blocked.countDown();
+
+        // a lets go, and the edit it still had follows the document instead of loading it back
+        assertEquals(1, opsIn(framesA, 1));
+        assertEquals("HI!", service(nodeB).getOrLoadDocument(doc).getText());
+        assertFalse(service(nodeA).isResident(doc));
+
+        onA.disconnect();
+        service(nodeB).clearDocument(doc);
+        cluster(nodeA).setMembers(List.of("a", "b"));
+        cluster(nodeB).setMembers(List.of("a", "b"));
+    }
+
+    @Test
+    void testUsersAndTheirAcksMoveWithTheDocument() {
+        HashRing ring = new HashRing(List.of("a", "b"));
+        String doc = "cluster-users-0";
+        for (int i = 1; !"a".equals(ring.ownerOf(doc)); i++) {
+            doc = "cluster-users-" + i;
+        }
+        cluster(nodeA).setMembers(List.of("a", "b"));
+        cluster(nodeB).setMembers(List.of("a", "b"));
+        service(nodeA).getOrLoadDocument(doc);
+        sessions(nodeA).userJoined(doc, "A", "alice", 3);
+
+        cluster(nodeB).setMembers(List.of("b"));
+        cluster(nodeA).setMembers(List.of("b"));
+        service(nodeB).getOrLoadDocument(doc);
+
+        // b's GC must still hold back for what alice hasn't acknowledged
+        assertEquals(0, sessions(nodeA).getUserCount(doc));
+        assertEquals(1, sessions(nodeB).getUserCount(doc));
+        assertEquals(3, sessions(nodeB).getStableRevision(doc, 10));
+
+        sessions(nodeB).userLeft(doc, "A");
+        service(nodeB).clearDocument(doc);
+        cluster(nodeA).setMembers(List.of("a", "b"));
+        cluster(nodeB).setMembers(List.of("a", "b"));
+    }
+
+    @Test
+    void testBinaryEditsOnANonOwnerAreForwarded() throws Exception {
+        HashRing ring = new HashRing(List.of("a", "b"));
+        String doc = "cluster-binary-0";
+        for (int i = 1; !"a".equals(ring.ownerOf(doc)); i++) {
+            doc = "cluster-binary-" + i;
+        }
+
+        // A raw WebSocket client on b that opted into binary frames
+        int port = ((WebServerApplicationContext) nodeB).getWebServer().getPort();
+        WebSocketStompClient rawClient = new WebSocketStompClient(new StandardWebSocketClient());
+        rawClient.setMessageConverter(new CompositeMessageConverter(List.of(
+            new CrdtMessageConverter(), new MappingJackson2MessageConverter())));
+        StompHeaders connect = new StompHeaders();
+        connect.set(WireFormats.CODEC_HEADER, WireFormats.BINARY);
+        StompSession binary = rawClient.connectAsync("ws://localhost:" + port + "/ws/websocket",
+            new WebSocketHttpHeaders(), connect, new StompSessionHandlerAdapter() {}).get(10, TimeUnit.SECONDS);
+        StompSession onA = connect(nodeA);
+        BlockingQueue<JsonNode> framesA = subscribe(onA, "/topic/document/" + doc);
+
+        DocumentController.EditMessage edit = new DocumentController.EditMessage();
+        edit.setDocumentId(doc);
+        edit.setOperation(new CrdtOperation(CrdtOperation.Type.INSERT,
+            new CrdtChar("A-1", 'H', null, 1, "A", false), doc, "A", 1));
+        StompHeaders send = new StompHeaders();
+        send.setDestination("/app/document.edit");
+        send.setContentType(WireFormats.MIME_TYPE);
+        binary.send(send, edit);
+
+        // Applied by the owner, not by b on a copy of its own
+        assertEquals(1, opsIn(framesA, 1));
+        assertEquals("H", service(nodeA).getOrLoadDocument(doc).getText());
+        assertFalse(service(nodeB).isResident(doc));
+
+        binary.disconnect();
+        onA.disconnect();
+        service(nodeA).clearDocument(doc);
+    }
+
+    private static StompSession connect(ConfigurableApplicationContext node) throws Exception {
+        int port = ((WebServerApplicationContext) node).getWebServer().getPort();
+        return stompClient.connectAsync("ws://localhost:" + port + "/ws", new StompSessionHandlerAdapter() {})
+            .get(10, TimeUnit.SECONDS);
+    }
+
+    private static BlockingQueue<JsonNode> subscribe(StompSession session, String destination) throws InterruptedException {
+        BlockingQueue<JsonNode> frames = new LinkedBlockingQueue<>();
+        session.subscribe(destination, new StompFrameHandler() {
+            @Override
+            public Type getPayloadType(StompHeaders headers) {
+                return JsonNode.class;
+            }
+
+            @Override
+            public void handleFrame(StompHeaders headers, Object payload) {
+                frames.add((JsonNode) payload);
+            }
+        });
+        Thread.sleep(200);  // SUBSCRIBE has no receipt here
+        return frames;
+    }
+
+    /** Sends one edit per char, from site A, each after the previous one. */
+    private static void type(StompSession session, String doc, String text, String parent, int clock) {
+        for (CrdtOperation op : TestDocuments.typing(doc, "A", text, parent, clock)) {
+            DocumentController.EditMessage edit = new DocumentController.EditMessage();
+            edit.setDocumentId(doc);
+            edit.setOperation(op);
+            session.send("/app/document.edit", edit);
+        }
+    }
+
+    /** Waits for frames carrying `expected` ops in all, single edits or batches. */
+    private static int opsIn(BlockingQueue<JsonNode> frames, int expected) throws InterruptedException {
+        int ops = 0;
+        while (ops < expected) {
+            JsonNode frame = frames.poll(10, TimeUnit.SECONDS);
+            if (frame == null) break;
+            ops += frame.has("operations") ? frame.get("operations").size() : 1;
+        }
+        return ops;
+    }
+
+    private static String getState(ConfigurableApplicationContext node, String doc) throws Exception {
+        int port = ((WebServerApplicationContext) node).getWebServer().getPort();
+        HttpResponse<String> response = HttpClient.newHttpClient().send(
+            HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/api/documents/" + doc + "/state")).build(),
+            HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, response.statusCode());
+        return response.body();
+    }
+
+    private static DocumentService service(ConfigurableApplicationContext node) {
+        return node.getBean(DocumentService.class);
+    }
+
+    private static DocumentExecutor executor(ConfigurableApplicationContext node) {
+        return node.getBean(DocumentExecutor.class);
+    }
+
+    private static SessionManager sessions(ConfigurableApplicationContext node) {
+        return node.getBean(SessionManager.class);
+    }
+
+    private static ClusterService cluster(ConfigurableApplicationContext node) {
+        return node.getBean(ClusterService.class);
+    }
+}
@@ -3,8 +3,16 @@ package com.collabeditor.backend;
 import com.collabeditor.backend.model.CrdtChar;
 import com.collabeditor.backend.model.CrdtOperation;
 import com.collabeditor.backend.service.CrdtDocument;
+import com.collabeditor.backend.service.CrdtStateCodec;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class CrdtDocumentTest {
@@ -84,4 +92,699 @@ class CrdtDocumentTest {
         // Both must produce the same text
         assertEquals(doc1.getText(), doc2.getText());
     }
-}
\ No newline at end of file
+
+    @Test
+    void testIndexOf() {
+        CrdtDocument doc = new CrdtDocument("test");
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("A-1", 'C', null, 1, "A", false), "test", "A", 1));
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("A-2", 'T', "A-1", 2, "A", false), "test", "A", 2));
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("A-3", 'A', "A-1", 3, "A", false), "test", "A", 3));
+
+        assertEquals(0, doc.indexOf("A-1"));
+        assertEquals(1, doc.indexOf("A-3"));
+        assertEquals(2, doc.indexOf("A-2"));
+        assertEquals(-1, doc.indexOf("Z-9"));
+    }
+
+    @Test
+    void testIdsRoundTripExactly() {
+        // Ids are stored packed; odd shapes must still come back byte-for-byte
+        List<CrdtChar> chars = List.of(
+            new CrdtChar("user-1a2b-7", 'a', null, 7, "user-1a2b", false),
+            new CrdtChar("legacy", 'b', "user-1a2b-7", 1, "L", false),
+            new CrdtChar("B-007", 'c', "", 3, "B", true),
+            new CrdtChar("C-12", 'd', "gone-4", 12, "C", false));
+        CrdtDocument doc = new CrdtDocument("test");
+        doc.loadFromState(chars);
+
+        List<CrdtChar> state = doc.getFullState();
+        for (int i = 0; i < chars.size(); i++) {
+            assertEquals(chars.get(i).getId(), state.get(i).getId());
+            assertEquals(chars.get(i).getParentId(), state.get(i).getParentId());
+            assertEquals(chars.get(i).getSiteId(), state.get(i).getSiteId());
+            assertEquals(chars.get(i).isTombstone(), state.get(i).isTombstone());
+        }
+        assertEquals(1, doc.indexOf("legacy"));
+        assertEquals(-1, doc.indexOf("B-7"));
+        assertEquals("abd", doc.getText());
+    }
+
+    @Test
+    void testVisibleIndexProjection() {
+        CrdtDocument doc = new CrdtDocument("test");
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("A-1", 'H', null, 1, "A", false), "test", "A", 1));
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("A-2", 'E', "A-1", 2, "A", false), "test", "A", 2));
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("A-3", 'Y', "A-2", 3, "A", false), "test", "A", 3));
+        assertEquals("HEY", doc.getText());
+
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.DELETE, new CrdtChar("A-2", 'E', "A-1", 2, "A", true), "test", "A", 2));
+
+        assertEquals("HY", doc.getText());
+        assertEquals(2, doc.getVisibleLength());
+        assertEquals(0, doc.visibleIndexOf("A-1"));
+        assertEquals(1, doc.visibleIndexOf("A-2")); // tombstone collapses onto the next visible offset
+        assertEquals(1, doc.visibleIndexOf("A-3"));
+        assertEquals("A-1", doc.charIdAtVisible(0));
+        assertEquals("A-3", doc.charIdAtVisible(1));
+        assertNull(doc.charIdAtVisible(2));
+        assertNull(doc.charIdAtVisible(-1));
+    }
+
+    @Test
+    void testTombstoneCollection() {
+        CrdtDocument doc = new CrdtDocument("test");
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("A-1", 'C', null, 1, "A", false), "test", "A", 1));
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("A-2", 'X', "A-1", 2, "A", false), "test", "A", 2));
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("A-3", 'T', "A-2", 3, "A", false), "test", "A", 3));
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.DELETE, new CrdtChar("A-2", 'X', "A-1", 2, "A", true), "test", "A", 2));
+        assertEquals(4, doc.getRevision());
+
+        // Not yet acknowledged by everyone
+        assertTrue(doc.collectTombstones(3).isEmpty());
+        assertEquals(3, doc.size());
+
+        assertEquals(1, doc.collectTombstones(4).size());
+        assertEquals(2, doc.size());
+        assertEquals("CT", doc.getText());
+        assertEquals(-1, doc.indexOf("A-2"));
+
+        // A straggler insert still naming the collected char lands where it used to be
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("B-4", 'A', "A-2", 4, "B", false), "test", "B", 4));
+        assertEquals("CAT", doc.getText());
+
+        // Re-delivery of the collected char is still recognised as a duplicate
+        assertFalse(doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("A-2", 'X', "A-1", 2, "A", false), "test", "A", 2)));
+    }
+
+    @Test
+    void testCollectedIdsOutliveTheirForwards() {
+        CrdtDocument doc = new CrdtDocument("test");
+        String parent = null;
+        for (int i = 1; i <= 6; i++) {
+            doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("A-" + i, "CXYZAT".charAt(i - 1), parent, i, "A", false), "test", "A", i));
+            parent = "A-" + i;
+        }
+        for (int i = 2; i <= 4; i++) {
+            doc.applyOperation(new CrdtOperation(CrdtOperation.Type.DELETE, new CrdtChar("A-" + i, 'X', "A-" + (i - 1), i, "A", true), "test", "A", i));
+        }
+        assertEquals(3, doc.collectTombstones(doc.getRevision()).size());
+        // Consecutive counters collapse into one range
+        assertEquals(List.of(new CrdtDocument.CollectedRange("A", 2, 4)), doc.getCollected());
+
+        CrdtDocument.Snapshot snapshot = doc.snapshot();
+        CrdtDocument legacy = new CrdtDocument("test");
+        legacy.loadFromState(snapshot.chars(), snapshot.revision(), snapshot.collected());
+        assertEquals("CAT", legacy.getText());
+
+        // Re-delivered insert of a collected char: still a duplicate, not a resurrection
+        assertFalse(legacy.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("A-3", 'Y', "A-2", 3, "A", false), "test", "A", 3)));
+        // Saved without where A-3 sat: a straggler naming it is rejected, not buffered or guessed at
+        assertFalse(legacy.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("B-7", '!', "A-3", 7, "B", false), "test", "B", 7)));
+        assertEquals(1, legacy.getRejectedOpCount());
+        assertEquals(0, legacy.getPendingCount());
+        assertEquals("CAT", legacy.getText());
+        assertEquals(-1, legacy.caretAfter("A-3"));
+
+        // With the forwards saved too, a reload places it where the live document does
+        CrdtDocument reloaded = new CrdtDocument("test");
+        reloaded.loadFromState(snapshot.chars(), snapshot.revision(), snapshot.collected(), snapshot.forwards());
+        assertTrue(reloaded.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("B-7", '!', "A-3", 7, "B", false), "test", "B", 7)));
+        assertTrue(doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("B-7", '!', "A-3", 7, "B", false), "test", "B", 7)));
+        assertEquals("C!AT", doc.getText());
+        assertEquals("C!AT", reloaded.getText());
+        assertEquals(0, reloaded.getRejectedOpCount());
+    }
+
+    @Test
+    void testDeltaAfterCollectionSkipsCollectedIds() {
+        CrdtDocument doc = new CrdtDocument("test");
+        String parent = null;
+        for (int i = 1; i <= 100; i++) {
+            doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("A-" + i, 'x', parent, i, "A", false), "test", "A", i));
+            parent = "A-" + i;
+        }
+        for (int i = 1; i <= 90; i++) {
+            doc.applyOperation(new CrdtOperation(CrdtOperation.Type.DELETE, new CrdtChar("A-" + i, 'x', null, i, "A", true), "test", "A", i));
+        }
+        long collectedAt = doc.getRevision();
+        doc.collectTombstones(collectedAt);
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("B-101", 'y', "A-100", 101, "B", false), "test", "B", 101));
+
+        CrdtDocument.Delta delta = doc.deltaSince(Map.of("A", 95L), collectedAt);
+        assertFalse(delta.full());
+        assertEquals(List.of("A-96", "A-97", "A-98", "A-99", "A-100", "B-101"),
+            delta.inserts().stream().map(i -> i.character().getId()).toList());
+    }
+
+    @Test
+    void testColumnarStorageKeepsTombstonesCollectable() {
+        CrdtDocument doc = new CrdtDocument("test", CrdtDocument.DEFAULT_MAX_PENDING_OPS,
+            CrdtDocument.DEFAULT_PENDING_TTL_MS, 3);
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("A-1", 'C', null, 1, "A", false), "test", "A", 1));
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("A-2", 'X', "A-1", 2, "A", false), "test", "A", 2));
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.DELETE, new CrdtChar("A-2", 'X', "A-1", 2, "A", true), "test", "A", 2));
+        assertFalse(doc.isColumnar());
+
+        // Third char crosses the threshold; the queued tombstone has to follow it
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("A-3", 'T', "A-2", 3, "A", false), "test", "A", 3));
+        assertTrue(doc.isColumnar());
+        assertEquals("CT", doc.getText());
+
+        assertEquals("A-2", doc.collectTombstones(doc.getRevision()).get(0).getId());
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("B-4", 'A', "A-2", 4, "B", false), "test", "B", 4));
+        assertEquals("CAT", doc.getText());
+        assertEquals(3, doc.size());
+
+        CrdtDocument reloaded = new CrdtDocument("test", CrdtDocument.DEFAULT_MAX_PENDING_OPS,
+            CrdtDocument.DEFAULT_PENDING_TTL_MS, 3);
+        reloaded.loadFromState(doc.getFullState());
+        assertTrue(reloaded.isColumnar());
+        assertEquals(1, reloaded.visibleIndexOf("B-4"));
+    }
+
+    @Test
+    void testLongRunsStayInObjectStorage() {
+        CrdtDocument doc = new CrdtDocument("test", CrdtDocument.DEFAULT_MAX_PENDING_OPS,
+            CrdtDocument.DEFAULT_PENDING_TTL_MS, 1000);
+        String paste = "x".repeat(50_000);
+        assertTrue(doc.applyOperation(run("A", 1, null, paste)));
+        // Well past the threshold, but one run is far smaller than 50k columnar rows
+        assertFalse(doc.isColumnar());
+        assertEquals(1, doc.getRunCount());
+
+        CrdtDocument reloaded = new CrdtDocument("test", CrdtDocument.DEFAULT_MAX_PENDING_OPS,
+            CrdtDocument.DEFAULT_PENDING_TTL_MS, 1000);
+        reloaded.loadFromState(doc.getFullState());
+        assertFalse(reloaded.isColumnar());
+
+        // Scattered single-char edits split it up until the arrays win
+        Random random = new Random(1);
+        for (int clock = 1; !doc.isColumnar(); clock++) {
+            String parent = doc.charIdAtVisible(random.nextInt(doc.getVisibleLength()));
+            doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT,
+                new CrdtChar("B-" + clock, 'y', parent, clock, "B", false), "test", "B", clock));
+            assertTrue(clock < 20_000, "never switched");
+        }
+        assertEquals(doc.getVisibleLength(), doc.getText().length());
+    }
+
+    @Test
+    void testMalformedOpsChangeNothing() {
+        CrdtDocument doc = new CrdtDocument("test");
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT,
+            new CrdtChar("A-1", 'H', null, 1, "A", false), "test", "A", 1));
+
+        assertFalse(doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT,
+            new CrdtChar(null, 'x', "A-1", 2, "A", false), "test", "A", 2)));
+        assertFalse(doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT,
+            new CrdtChar("B-1", 'x', "A-1", 1, null, false), "test", null, 1)));
+        assertFalse(doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, null, "test", "A", 3)));
+        assertFalse(doc.applyOperation(new CrdtOperation(null,
+            new CrdtChar("A-4", 'x', "A-1", 4, "A", false), "test", "A", 4)));
+
+        assertEquals("H", doc.getText());
+        assertEquals(1, doc.getRevision());
+        assertEquals(4, doc.getRejectedOpCount());
+        // Still snapshots, and still takes good ops
+        assertEquals(1, CrdtStateCodec.decode(CrdtStateCodec.encode(doc.getFullState())).size());
+        assertTrue(doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT,
+            new CrdtChar("A-2", 'i', "A-1", 2, "A", false), "test", "A", 2)));
+        assertEquals("Hi", doc.getText());
+    }
+
+    @Test
+    void testOutOfOrderOpsAreBufferedUntilParentArrives() {
+        CrdtDocument doc = new CrdtDocument("test");
+        CrdtChar c = new CrdtChar("A-1", 'C', null, 1, "A", false);
+        CrdtChar a = new CrdtChar("A-2", 'A', "A-1", 2, "A", false);
+        CrdtChar t = new CrdtChar("A-3", 'T', "A-2", 3, "A", false);
+
+        // T and a delete of A arrive before their dependencies
+        assertFalse(doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, t, "test", "A", 3)));
+        assertFalse(doc.applyOperation(new CrdtOperation(CrdtOperation.Type.DELETE,
+            new CrdtChar("A-2", 'A', "A-1", 2, "A", true), "test", "A", 2)));
+        assertEquals(2, doc.getPendingCount());
+
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, c, "test", "A", 1));
+        assertEquals("C", doc.getText());
+
+        // A unblocks both T and the delete of A
+        List<CrdtDocument.Applied> applied = doc.apply(new CrdtOperation(CrdtOperation.Type.INSERT, a, "test", "A", 2));
+        assertEquals(3, applied.size());
+        assertEquals("A-2", applied.get(0).operation().getCharacter().getId());
+        assertEquals(4, applied.get(2).revision());
+        assertEquals("CT", doc.getText());
+        assertEquals(0, doc.getPendingCount());
+        assertEquals(2, doc.getBufferedOpCount());
+        assertEquals(2, doc.getReleasedOpCount());
+    }
+
+    @Test
+    void testBufferedOpsExpire() {
+        CrdtDocument doc = new CrdtDocument("test", 2, 1000);
+        for (int i = 1; i <= 3; i++) {
+            doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT,
+                new CrdtChar("B-" + i, 'x', "missing-" + i, i, "B", false), "test", "B", i));
+        }
+        // Size cap of 2 pushed the oldest out
+        assertEquals(2, doc.getPendingCount());
+        assertEquals(1, doc.getExpiredOpCount());
+
+        assertEquals(2, doc.expirePending(System.currentTimeMillis() + 5000));
+        assertEquals(0, doc.getPendingCount());
+        assertEquals(3, doc.getExpiredOpCount());
+    }
+
+    @Test
+    void testPagesResumeAfterCollectedCursor() {
+        CrdtDocument doc = new CrdtDocument("test");
+        String parent = null;
+        for (int i = 1; i <= 5; i++) {
+            doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("A-" + i, "HELLO".charAt(i - 1), parent, i, "A", false), "test", "A", i));
+            parent = "A-" + i;
+        }
+        CrdtDocument.Page page = doc.page(null, 2);
+        assertEquals(List.of("A-1", "A-2"), page.chars().stream().map(CrdtChar::getId).toList());
+        assertTrue(page.more());
+
+        // The cursor char goes away between pages
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.DELETE, new CrdtChar("A-2", 'E', "A-1", 2, "A", true), "test", "A", 2));
+        doc.collectTombstones(doc.getRevision());
+        page = doc.page("A-2", 10);
+        assertEquals(List.of("A-3", "A-4", "A-5"), page.chars().stream().map(CrdtChar::getId).toList());
+        assertFalse(page.more());
+
+        assertNull(doc.page("B-1", 10));
+    }
+
+    @Test
+    void testFrozenStateIgnoresLaterEdits() {
+        CrdtDocument doc = new CrdtDocument("test");
+        String parent = null;
+        for (int i = 1; i <= 5; i++) {
+            doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("A-" + i, "HELLO".charAt(i - 1), parent, i, "A", false), "test", "A", i));
+            parent = "A-" + i;
+        }
+        CrdtDocument.Frozen all = doc.freeze(null);
+        CrdtDocument.Frozen tail = doc.freeze("A-3");
+
+        // Edits and GC after the freeze don't show through
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.DELETE, new CrdtChar("A-4", 'L', "A-3", 4, "A", true), "test", "A", 4));
+        doc.collectTombstones(doc.getRevision());
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("B-6", '!', "A-5", 6, "B", false), "test", "B", 6));
+
+        assertEquals(5, all.revision());
+        assertEquals(5, all.size());
+        assertEquals('H', all.get(0).getValue());
+        assertNull(all.get(0).getParentId());
+        assertEquals("A-4", all.get(3).getId());
+        assertEquals("A-3", all.get(3).getParentId());
+        assertFalse(all.get(3).isTombstone());
+        assertEquals(List.of("A-4", "A-5"), List.of(tail.get(0).getId(), tail.get(1).getId()));
+        assertEquals(2, tail.size());
+
+        assertNull(doc.freeze("Z-1"));
+    }
+
+    @Test
+    void testDeltaCarriesOnlyWhatTheReplicaMissed() {
+        CrdtDocument doc = new CrdtDocument("test");
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("A-1", 'C', null, 1, "A", false), "test", "A", 1));
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("A-2", 'A', "A-1", 2, "A", false), "test", "A", 2));
+        // Replica synced here: A up to 2, revision 2
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("B-3", 'T', "A-2", 3, "B", false), "test", "B", 3));
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.DELETE, new CrdtChar("A-1", 'C', null, 1, "A", true), "test", "A", 1));
+        // B-2 was held back for a parent and lands behind B-3
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("B-2", 'S', "C-1", 2, "B", false), "test", "B", 2));
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("C-1", 'X', "B-3", 1, "C", false), "test", "C", 1));
+        assertEquals("ATXS", doc.getText());
+
+        CrdtDocument.Delta delta = doc.deltaSince(Map.of("A", 2L), 2);
+        assertFalse(delta.full());
+        assertEquals(List.of("B-3", "C-1", "B-2"), delta.inserts().stream().map(i -> i.character().getId()).toList());
+        assertEquals(Arrays.asList("A-2", "B-3", "C-1"), delta.inserts().stream().map(CrdtDocument.Insert::after).toList());
+        assertEquals(List.of("A-1"), delta.deletes());
+        assertEquals(6, delta.revision());
+
+        // Seen B-3 already, but not the late B-2 that came after revision 5
+        delta = doc.deltaSince(Map.of("A", 2L, "B", 3L, "C", 1L), 5);
+        assertEquals(List.of("B-2"), delta.inserts().stream().map(i -> i.character().getId()).toList());
+        assertTrue(delta.deletes().isEmpty());
+
+        // Up to date
+        delta = doc.deltaSince(Map.of("A", 2L, "B", 3L, "C", 1L), 6);
+        assertTrue(delta.inserts().isEmpty());
+        assertTrue(delta.deletes().isEmpty());
+    }
+
+    @Test
+    void testDeltaFallsBackToFullStateAfterCollection() {
+        CrdtDocument doc = new CrdtDocument("test");
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("A-1", 'C', null, 1, "A", false), "test", "A", 1));
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("A-2", 'X', "A-1", 2, "A", false), "test", "A", 2));
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.DELETE, new CrdtChar("A-2", 'X', "A-1", 2, "A", true), "test", "A", 2));
+        doc.collectTombstones(3);
+
+        // A replica from before the collection might still show A-2
+        CrdtDocument.Delta delta = doc.deltaSince(Map.of("A", 2L), 2);
+        assertTrue(delta.full());
+        assertEquals(1, delta.inserts().size());
+
+        assertFalse(doc.deltaSince(Map.of("A", 2L), 3).full());
+        // Revision from some other incarnation of the document
+        assertTrue(doc.deltaSince(Map.of(), 99).full());
+    }
+
+    @Test
+    void testRandomizedDeltaSyncConverges() {
+        for (long seed = 0; seed < 10; seed++) {
+            Random random = new Random(seed);
+            CrdtDocument doc = new CrdtDocument("test");
+            CrdtDocument replica = new CrdtDocument("replica");
+            List<String> ids = new ArrayList<>();
+            int clock = 0;
+            long since = 0;  // last server revision the replica has
+            for (int round = 0; round < 3; round++) {
+                // Replica follows along for a while, then drops off for the rest of the round
+                int follow = random.nextInt(50);
+                for (int i = 0; i < 100; i++) {
+                    String site = "s" + random.nextInt(3);
+                    CrdtOperation op;
+                    if (!ids.isEmpty() && random.nextInt(4) == 0) {
+                        String target = ids.get(random.nextInt(ids.size()));
+                        op = new CrdtOperation(CrdtOperation.Type.DELETE, new CrdtChar(target, 'x', null, 0, site, true), "test", site, 0);
+                    } else {
+                        clock++;
+                        String parent = ids.isEmpty() || random.nextInt(10) == 0 ? null : ids.get(random.nextInt(ids.size()));
+                        String id = site + "-" + clock;
+                        ids.add(id);
+                        op = new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar(id, (char) ('a' + random.nextInt(26)), parent, clock, site, false), "test", site, clock);
+                    }
+                    for (CrdtDocument.Applied applied : doc.apply(op)) {
+                        if (i < follow) {
+                            replica.applyOperation(copyOf(applied.operation()));
+                            since = applied.revision();
+                        }
+                    }
+                }
+
+                Map<String, Long> vector = new HashMap<>();
+                for (CrdtChar c : replica.getFullState()) {
+                    vector.merge(c.getSiteId(), (long) c.getClock(), Math::max);
+                }
+                CrdtDocument.Delta delta = doc.deltaSince(vector, since);
+                assertFalse(delta.full());
+
+                // Splice the delta in the way a client would
+                List<CrdtChar> state = new ArrayList<>(replica.getFullState());
+                for (CrdtDocument.Insert insert : delta.inserts()) {
+                    int at = 0;
+                    if (insert.after() != null) {
+                        while (!state.get(at).getId().equals(insert.after())) at++;
+                        at++;
+                    }
+                    state.add(at, insert.character());
+                }
+                for (String id : delta.deletes()) {
+                    state.stream().filter(c -> c.getId().equals(id)).forEach(c -> c.setTombstone(true));
+                }
+                List<CrdtChar> expected = doc.getFullState();
+                assertEquals(expected.stream().map(c -> c.getId() + c.isTombstone()).toList(),
+                    state.stream().map(c -> c.getId() + c.isTombstone()).toList(), "seed " + seed);
+
+                replica.loadFromState(state, delta.revision());
+                since = delta.revision();
+            }
+        }
+    }
+
+    @Test
+    void testPastedRunIsOneNode() {
+        CrdtDocument doc = new CrdtDocument("test");
+        String text = "0123456789".repeat(5_000);
+        assertTrue(doc.applyOperation(run("A", 1, null, text)));
+        assertEquals(text, doc.getText());
+        assertEquals(1, doc.getRunCount());
+        assertEquals(25_000, doc.indexOf("A-25001"));
+        assertEquals("A-40000", doc.charIdAtVisible(39_999));
+
+        // Typing on the end of the paste carries on the same run
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("A-50001", '!', "A-50000", 50_001, "A", false), "test", "A", 50_001));
+        assertEquals(1, doc.getRunCount());
+        assertTrue(doc.getText().endsWith("9!"));
+
+        // Re-delivery, or a run overlapping ids already here, is a duplicate
+        assertFalse(doc.applyOperation(run("A", 1, null, text)));
+        assertFalse(doc.applyOperation(run("A", 0, null, "xy")));
+    }
+
+    @Test
+    void testRunIsSplitByEditsInsideIt() {
+        CrdtDocument doc = new CrdtDocument("test");
+        doc.applyOperation(run("A", 1, null, "HELLO"));
+
+        // Concurrent insert after the second char lands mid-run
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("B-9", 'X', "A-2", 9, "B", false), "test", "B", 9));
+        assertEquals("HEXLLO", doc.getText());
+        assertEquals(3, doc.getRunCount());
+        assertEquals(3, doc.indexOf("A-3"));
+
+        // Deleting inside a run only marks the char
+        doc.applyOperation(new CrdtOperation(CrdtOperation.Type.DELETE, new CrdtChar("A-4", 'L', "A-3", 4, "A", true), "test", "A", 4));
+        assertEquals("HEXLO", doc.getText());
+        assertEquals(3, doc.getRunCount());
+        assertEquals(4, doc.visibleIndexOf("A-4"));
+
+        // Collecting it takes it out of the middle of A-3..A-5
+        assertEquals("A-4", doc.collectTombstones(doc.getRevision()).get(0).getId());
+        assertEquals("HEXLO", doc.getText());
+        assertEquals(4, doc.getRunCount());
+        assertEquals("A-4", doc.getFullState().get(4).getParentId());
+
+        // A reload coalesces whatever is still sequential
+        CrdtDocument reloaded = new CrdtDocument("test");
+        reloaded.loadFromState(doc.getFullState());
+        assertEquals("HEXLO", reloaded.getText());
+        assertEquals(4, reloaded.getRunCount());
+        reloaded.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("A-6", '!', "A-5", 6, "A", false), "test", "A", 6));
+        assertEquals("HEXLO!", reloaded.getText());
+        assertEquals(4, reloaded.getRunCount());
+    }
+
+    @Test
+    void testOpsWaitingOnRunCharsAreReleased() {
+        CrdtDocument doc = new CrdtDocument("test");
+        assertTrue(doc.apply(new CrdtOperation(CrdtOperation.Type.INSERT, new CrdtChar("B-7", '-', "A-3", 7, "B", false), "test", "B", 7)).isEmpty());
+
+        List<CrdtDocument.Applied> applied = doc.apply(run("A", 1, null, "abcd"));
+        assertEquals(2, applied.size());
+        assertEquals("abc-d", doc.getText());
+    }
+
+    @Test
+    void testRandomizedRunsMatchCharByCharInserts() {
+        for (long seed = 0; seed < 10; seed++) {
+            Random random = new Random(seed);
+            CrdtDocument runs = new CrdtDocument("test");
+            // Columnar storage from the first char: one entry per char, no runs
+            CrdtDocument chars = new CrdtDocument("test", CrdtDocument.DEFAULT_MAX_PENDING_OPS,
+                CrdtDocument.DEFAULT_PENDING_TTL_MS, 1);
+            String[] sites = {"A", "B", "C"};
+            Map<String, Integer> counters = new HashMap<>();
+
+            for (int step = 0; step < 500; step++) {
+                String site = sites[random.nextInt(sites.length)];
+                int visible = runs.getVisibleLength();
+                int roll = random.nextInt(10);
+                if (visible > 0 && roll < 3) {
+                    String id = runs.charIdAtVisible(random.nextInt(visible));
+                    CrdtOperation delete = new CrdtOperation(CrdtOperation.Type.DELETE,
+                        new CrdtChar(id, '?', null, 0, site, true), "test", site, 0);
+                    runs.applyOperation(delete);
+                    chars.applyOperation(copyOf(delete));
+                } else if (roll == 3) {
+                    runs.collectTombstones(runs.getRevision());
+                    chars.collectTombstones(chars.getRevision());
+                } else {
+                    int length = 1 + random.nextInt(roll < 6 ? 3 : 40);
+                    int counter = counters.merge(site, length, Integer::sum) - length + 1;
+                    String parent = visible == 0 ? null : runs.charIdAtVisible(random.nextInt(visible));
+                    StringBuilder text = new StringBuilder();
+                    for (int i = 0; i < length; i++) {
+                        text.append((char) ('a' + random.nextInt(26)));
+                    }
+                    assertTrue(runs.applyOperation(run(site, counter, parent, text.toString())));
+                    for (int i = 0; i < length; i++) {
+                        String id = site + "-" + (counter + i);
+                        assertTrue(chars.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT,
+                            new CrdtChar(id, text.charAt(i), parent, counter + i, site, false), "test", site, counter + i)));
+                        parent = id;
+                    }
+                }
+            }
+
+            assertEquals(chars.getText(), runs.getText(), "seed " + seed);
+            List<CrdtChar> expected = chars.getFullState();
+            List<CrdtChar> actual = runs.getFullState();
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                CrdtChar c = expected.get(i);
+                assertEquals(c.getId(), actual.get(i).getId(), "seed " + seed + " index " + i);
+                assertEquals(c.getParentId(), actual.get(i).getParentId());
+                assertEquals(c.getClock(), actual.get(i).getClock());
+                assertEquals(c.isTombstone(), actual.get(i).isTombstone());
+                assertEquals(i, runs.indexOf(c.getId()));
+                assertEquals(chars.visibleIndexOf(c.getId()), runs.visibleIndexOf(c.getId()));
+            }
+            assertTrue(runs.getRunCount() < expected.size(), "seed " + seed);
+        }
+    }
+
+    private static CrdtOperation run(String site, int counter, String parent, String text) {
+        return new CrdtOperation(CrdtOperation.Type.INSERT_RUN,
+            new CrdtChar(site + "-" + counter, text.charAt(0), parent, counter, site, false), "test", site, counter, text);
+    }
+
+    @Test
+    void testRandomizedEquivalenceWithListImplementation() {
+        for (long seed = 0; seed < 20; seed++) {
+            Random random = new Random(seed);
+            // Odd seeds cross into columnar storage partway through
+            CrdtDocument doc = new CrdtDocument("test", CrdtDocument.DEFAULT_MAX_PENDING_OPS,
+                CrdtDocument.DEFAULT_PENDING_TTL_MS, seed % 2 == 1 ? 500 : 0);
+            ListDocument reference = new ListDocument();
+            String[] sites = {"A", "B", "C", "D"};
+            Map<String, Integer> counters = new HashMap<>();
+            List<String> ids = new ArrayList<>();
+
+            for (int step = 0; step < 2000; step++) {
+                String site = sites[random.nextInt(sites.length)];
+                CrdtOperation op;
+
+                if (!ids.isEmpty() && random.nextInt(5) == 0) {
+                    // Delete (sometimes of an already-deleted char)
+                    String id = ids.get(random.nextInt(ids.size()));
+                    op = new CrdtOperation(CrdtOperation.Type.DELETE,
+                        new CrdtChar(id, '?', null, 0, site, true), "test", site, 0);
+                } else {
+                    // Insert — shared clocks across sites create lots of sibling ties
+                    int clock = counters.merge(site, 1 + random.nextInt(3), Integer::sum);
+                    String parentId;
+                    int roll = random.nextInt(20);
+                    if (ids.isEmpty() || roll == 0) {
+                        parentId = null;
+                    } else if (roll == 1) {
+                        parentId = "missing-" + step;
+                    } else {
+                        parentId = ids.get(random.nextInt(ids.size()));
+                    }
+                    String id = site + "-" + clock;
+                    op = new CrdtOperation(CrdtOperation.Type.INSERT,
+                        new CrdtChar(id, (char) ('a' + random.nextInt(26)), parentId, clock % 7, site, false),
+                        "test", site, clock);
+                }
+
+                boolean expected = reference.apply(copyOf(op));
+                boolean actual = doc.applyOperation(copyOf(op));
+                assertEquals(expected, actual, "seed " + seed + " step " + step);
+                if (actual && op.getType() == CrdtOperation.Type.INSERT) {
+                    ids.add(op.getCharacter().getId());
+                }
+                if (step % 97 == 0) {
+                    // Exercise the text cache mid-stream, not just at the end
+                    assertEquals(reference.getText(), doc.getText(), "seed " + seed + " step " + step);
+                }
+            }
+
+            assertEquals(reference.getText(), doc.getText(), "seed " + seed);
+            assertEquals(seed % 2 == 1, doc.isColumnar());
+            List<CrdtChar> state = doc.getFullState();
+            assertEquals(reference.sequence.size(), state.size());
+            for (int i = 0; i < state.size(); i++) {
+                assertEquals(reference.sequence.get(i).getId(), state.get(i).getId());
+                assertEquals(i, doc.indexOf(state.get(i).getId()));
+            }
+
+            int visible = 0;
+            for (CrdtChar c : reference.sequence) {
+                assertEquals(visible, doc.visibleIndexOf(c.getId()));
+                if (c.isVisible()) {
+                    assertEquals(c.getId(), doc.charIdAtVisible(visible));
+                    visible++;
+                }
+            }
+            assertEquals(visible, doc.getVisibleLength());
+            assertNull(doc.charIdAtVisible(visible));
+        }
+    }
+
+    private static CrdtOperation copyOf(CrdtOperation op) {
+        CrdtChar c = op.getCharacter();
+        CrdtChar copy = new CrdtChar(c.getId(), c.getValue(), c.getParentId(), c.getClock(), c.getSiteId(), c.isTombstone());
+        return new CrdtOperation(op.getType(), copy, op.getDocumentId(), op.getSiteId(), op.getClock(), op.getText());
+    }
+
+    /** The original ArrayList + full re-index implementation, kept as the ordering oracle. */
+    private static class ListDocument {
+        final List<CrdtChar> sequence = new ArrayList<>();
+        final Map<String, Integer> idIndex = new HashMap<>();
+
+        boolean apply(CrdtOperation op) {
+            return op.getType() == CrdtOperation.Type.INSERT ? insert(op.getCharacter()) : delete(op.getCharacter());
+        }
+
+        boolean insert(CrdtChar newChar) {
+            if (idIndex.containsKey(newChar.getId())) return false;
+            int insertIdx;
+            if (newChar.getParentId() == null || newChar.getParentId().isEmpty()) {
+                insertIdx = 0;
+                while (insertIdx < sequence.size()) {
+                    CrdtChar existing = sequence.get(insertIdx);
+                    if (existing.getParentId() != null && !existing.getParentId().isEmpty()) break;
+                    if (goesBefore(newChar, existing)) break;
+                    insertIdx++;
+                }
+            } else {
+                Integer parentIdx = idIndex.get(newChar.getParentId());
+                if (parentIdx == null) return false;
+                insertIdx = parentIdx + 1;
+                while (insertIdx < sequence.size()) {
+                    CrdtChar existing = sequence.get(insertIdx);
+                    if (!newChar.getParentId().equals(existing.getParentId())) break;
+                    if (goesBefore(newChar, existing)) break;
+                    insertIdx++;
+                }
+            }
+            sequence.add(insertIdx, newChar);
+            idIndex.clear();
+            for (int i = 0; i < sequence.size(); i++) {
+                idIndex.put(sequence.get(i).getId(), i);
+            }
+            return true;
+        }
+
+        boolean goesBefore(CrdtChar newChar, CrdtChar existing) {
+            if (newChar.getClock() != existing.getClock()) {
+                return newChar.getClock() > existing.getClock();
+            }
+            return newChar.getSiteId().compareTo(existing.getSiteId()) > 0;
+        }
+
+        boolean delete(CrdtChar deleteChar) {
+            Integer idx = idIndex.get(deleteChar.getId());
+            if (idx == null) return false;
+            CrdtChar existing = sequence.get(idx);
+            if (existing.isTombstone()) return false;
+            existing.setTombstone(true);
+            return true;
+        }
+
+        String getText() {
+            StringBuilder sb = new StringBuilder();
+            for (CrdtChar c : sequence) {
+                if (c.isVisible()) sb.append(c.getValue());
+            }
+            return sb.toString();
+        }
+    }
+}
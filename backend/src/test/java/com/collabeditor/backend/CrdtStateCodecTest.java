@@ -0,0 +1,151 @@
+package com.collabeditor.backend;
+
+import com.collabeditor.backend.model.CrdtChar;
+import com.collabeditor.backend.model.CrdtOperation;
+import com.collabeditor.backend.service.CrdtDocument;
+import com.collabeditor.backend.service.CrdtStateCodec;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CrdtStateCodecTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void testRoundTripOfEdgeCases() {
+        List<CrdtChar> chars = List.of(
+            new CrdtChar("user-ab12-1", 'H', null, 1, "user-ab12", false),   // siteId containing '-'
+            new CrdtChar("user-ab12-2", 'i', "user-ab12-1", 2, "user-ab12", true),
+            new CrdtChar("B-7", '\n', "", 3, "B", false),                    // empty parent, clock != counter
+            new CrdtChar("odd id", 'é', "user-ab12-1", 9, "B", false),       // unstructured id, relative parent
+            new CrdtChar("B-07", '€', "gone-5", 7, "B", false),              // leading zero, collected parent
+            new CrdtChar("C-99", '\uD83D', "B-7", -1, "C", false)          // lone surrogate, negative clock
+        );
+        assertStateEquals(chars, CrdtStateCodec.decode(CrdtStateCodec.encode(chars)));
+    }
+
+    @Test
+    void testRoundTripOfRandomDocuments() {
+        for (long seed = 0; seed < 10; seed++) {
+            List<CrdtChar> chars = randomDocument(new Random(seed), 5000);
+            assertStateEquals(chars, CrdtStateCodec.decode(CrdtStateCodec.encode(chars)));
+        }
+    }
+
+    @Test
+    void testRoundTripOfCollectedIds() {
+        List<CrdtChar> chars = randomDocument(new Random(3), 100);
+        List<CrdtDocument.CollectedRange> collected = List.of(
+            new CrdtDocument.CollectedRange("A", 2, 40),
+            new CrdtDocument.CollectedRange("A", 42, 42),
+            new CrdtDocument.CollectedRange("gone", 0xFFFF_FFFFL, 0xFFFF_FFFFL),  // site only collected chars had
+            new CrdtDocument.CollectedRange("Z", 3_000_000_000L, 3_000_000_005L));
+        CrdtStateCodec.State state = CrdtStateCodec.decodeState(CrdtStateCodec.encode(chars, collected));
+        assertStateEquals(chars, state.chars());
+        assertEquals(collected, state.collected());
+
+        // Nothing collected: the version 1 layout, byte for byte
+        assertArrayEquals(CrdtStateCodec.encode(chars), CrdtStateCodec.encode(chars, List.of()));
+        assertTrue(CrdtStateCodec.decodeState(CrdtStateCodec.encode(chars)).collected().isEmpty());
+    }
+
+    @Test
+    void testRoundTripOfCollectedForwards() {
+        List<CrdtChar> chars = randomDocument(new Random(4), 50);
+        List<CrdtDocument.CollectedRange> collected = List.of(new CrdtDocument.CollectedRange("A", 60, 63));
+        List<CrdtDocument.CollectedForward> forwards = List.of(
+            new CrdtDocument.CollectedForward("A-60", ""),            // sat at the front
+            new CrdtDocument.CollectedForward("A-61", "A-60"),
+            new CrdtDocument.CollectedForward("A-62", "B-7"),
+            new CrdtDocument.CollectedForward("odd", "A-0010"),       // neither id is site-counter
+            new CrdtDocument.CollectedForward("gone-3000000000", "odd"));
+        CrdtStateCodec.State state = CrdtStateCodec.decodeState(CrdtStateCodec.encode(chars, collected, forwards));
+        assertStateEquals(chars, state.chars());
+        assertEquals(collected, state.collected());
+        assertEquals(forwards, state.forwards());
+
+        // Forwards alone still write the (empty) collected section they follow
+        assertEquals(forwards, CrdtStateCodec.decodeState(CrdtStateCodec.encode(chars, List.of(), forwards)).forwards());
+        assertTrue(CrdtStateCodec.decodeState(CrdtStateCodec.encode(chars, collected)).forwards().isEmpty());
+    }
+
+    @Test
+    void testRejectsGarbage() {
+        assertThrows(IllegalArgumentException.class, () -> CrdtStateCodec.decode(new byte[]{'{', '}'}));
+        byte[] valid = CrdtStateCodec.encode(randomDocument(new Random(1), 10));
+        byte[] truncated = Arrays.copyOf(valid, valid.length - 3);
+        assertThrows(IllegalArgumentException.class, () -> CrdtStateCodec.decode(truncated));
+    }
+
+    @Test
+    void testRejectsCharsWithoutIds() {
+        CrdtChar noSite = new CrdtChar("A-1", 'a', null, 1, null, false);
+        CrdtChar noId = new CrdtChar(null, 'b', null, 2, "A", false);
+        assertThrows(IllegalArgumentException.class, () -> CrdtStateCodec.encode(List.of(noSite)));
+        assertThrows(IllegalArgumentException.class, () -> CrdtStateCodec.encode(List.of(noId)));
+    }
+
+    @Test
+    void testCharEstimateTracksEncodedSize() {
+        List<CrdtChar> chars = randomDocument(new Random(7), 20_000);
+        long estimate = 0;
+        for (CrdtChar c : chars) {
+            estimate += CrdtStateCodec.estimateCharBytes(c);
+        }
+        // Ignores the header and site table, and guesses the parent; it should still be close
+        long actual = CrdtStateCodec.encode(chars).length;
+        assertTrue(estimate > actual * 0.75 && estimate < actual * 1.5, "estimate " + estimate + " vs " + actual);
+    }
+
+    @Test
+    void testMuchSmallerThanJson() throws Exception {
+        List<CrdtChar> chars = randomDocument(new Random(42), 100_000);
+        byte[] json = objectMapper.writeValueAsBytes(chars);
+        byte[] binary = CrdtStateCodec.encode(chars);
+        assertTrue(binary.length * 10 < json.length, "binary " + binary.length + " vs json " + json.length);
+    }
+
+    /** Two sites typing in runs, jumping around and deleting, like real editing sessions. */
+    private static List<CrdtChar> randomDocument(Random random, int ops) {
+        CrdtDocument doc = new CrdtDocument("codec");
+        String[] sites = {"user-k3j9x2", "user-p0q8w1"};
+        int[] counters = new int[sites.length];
+        for (int i = 0; i < ops; i++) {
+            int s = random.nextInt(10) == 0 ? 1 - (i % 2) : i % 2;
+            int visible = doc.getVisibleLength();
+            if (visible > 0 && random.nextInt(6) == 0) {
+                String target = doc.charIdAtVisible(random.nextInt(visible));
+                doc.applyOperation(new CrdtOperation(CrdtOperation.Type.DELETE,
+                    new CrdtChar(target, '?', null, 0, sites[s], true), "codec", sites[s], 0));
+                continue;
+            }
+            int clock = ++counters[s];
+            String parent = visible == 0 ? null : doc.charIdAtVisible(
+                random.nextInt(20) == 0 ? random.nextInt(visible) : visible - 1);
+            doc.applyOperation(new CrdtOperation(CrdtOperation.Type.INSERT,
+                new CrdtChar(sites[s] + "-" + clock, (char) (' ' + random.nextInt(95)), parent, clock, sites[s], false),
+                "codec", sites[s], clock));
+        }
+        return doc.getFullState();
+    }
+
+    private static void assertStateEquals(List<CrdtChar> expected, List<CrdtChar> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            CrdtChar e = expected.get(i);
+            CrdtChar a = actual.get(i);
+            assertEquals(e.getId(), a.getId());
+            assertEquals(e.getValue(), a.getValue());
+            assertEquals(e.getParentId(), a.getParentId());
+            assertEquals(e.getClock(), a.getClock());
+            assertEquals(e.getSiteId(), a.getSiteId());
+            assertEquals(e.isTombstone(), a.isTombstone());
+        }
+    }
+}
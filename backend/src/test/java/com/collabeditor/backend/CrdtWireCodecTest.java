@@ -0,0 +1,187 @@
+package com.collabeditor.backend;
+
+import com.collabeditor.backend.config.CrdtMessageConverter;
+import com.collabeditor.backend.controller.CrdtWireCodec;
+import com.collabeditor.backend.controller.DocumentController;
+import com.collabeditor.backend.handler.WireFormats;
+import com.collabeditor.backend.model.CrdtChar;
+import com.collabeditor.backend.model.CrdtOperation;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.messaging.converter.ByteArrayMessageConverter;
+import org.springframework.messaging.converter.CompositeMessageConverter;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
+import org.springframework.web.socket.WebSocketHttpHeaders;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+import org.springframework.web.socket.sockjs.client.SockJsClient;
+import org.springframework.web.socket.sockjs.client.WebSocketTransport;
+
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CrdtWireCodecTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void testRoundTripOfEdgeCases() throws Exception {
+        List<CrdtOperation> ops = List.of(
+            op(CrdtOperation.Type.INSERT, new CrdtChar("user-ab12-7", 'H', "user-ab12-6", 7, "user-ab12", false), "doc", 7),
+            op(CrdtOperation.Type.INSERT, new CrdtChar("B-3", 'i', "user-ab12-7", 9, "B", false), "doc", 9),  // other site's parent, clock != counter
+            op(CrdtOperation.Type.INSERT, new CrdtChar("B-4", '€', "B-12", 4, "B", false), "doc", 4),          // parent after the char
+            op(CrdtOperation.Type.INSERT, new CrdtChar("odd id", '\uD83D', "", -1, "B", false), "other", 3),    // raw ids, other document
+            op(CrdtOperation.Type.INSERT, new CrdtChar("B-07", 'x', "gone", 7, null, false), null, 7),          // leading zero, no site
+            op(CrdtOperation.Type.DELETE, new CrdtChar("B-3", 'i', null, 0, "B", true), "doc", 0),
+            new CrdtOperation(CrdtOperation.Type.INSERT_RUN, new CrdtChar("C-1", 'p', null, 1, "C", false), "doc", "C", 1, "paste\n✓"));
+
+        DocumentController.EditBatchMessage batch = new DocumentController.EditBatchMessage();
+        batch.setDocumentId("doc");
+        batch.setOperations(ops);
+        batch.setRevision(1L << 40);
+        assertRoundTrips(batch);
+
+        for (CrdtOperation op : ops) {
+            DocumentController.EditMessage edit = new DocumentController.EditMessage();
+            edit.setDocumentId("doc");
+            edit.setOperation(op);
+            edit.setRevision(42);
+            assertRoundTrips(edit);
+        }
+
+        assertRoundTrips(List.of(cursor("user-ab12", "user-ab12-7", 5), cursor("B", "user-ab12-7", 0),
+            cursor("C", null, -1), cursor("D", "not an id", 3)));
+    }
+
+    @Test
+    void testKeystrokeFrameIsAFractionOfTheJson() throws Exception {
+        DocumentController.EditMessage edit = new DocumentController.EditMessage();
+        edit.setDocumentId("6f1c2d0e-9a4b-4c1e-8f7a-2b3c4d5e6f70");
+        edit.setOperation(op(CrdtOperation.Type.INSERT,
+            new CrdtChar("user-k3j9x2-1042", 'a', "user-k3j9x2-1041", 1042, "user-k3j9x2", false), edit.getDocumentId(), 1042));
+        edit.setRevision(20311);
+
+        int binary = CrdtWireCodec.encode(edit).length;
+        int json = objectMapper.writeValueAsBytes(edit).length;
+        assertTrue(binary * 3 < json, binary + " bytes vs " + json + " as JSON");
+    }
+
+    @Test
+    void testRawWebSocketClientsCanOptIntoBinaryFrames() throws Exception {
+        ConfigurableApplicationContext app = new SpringApplicationBuilder(BackendApplication.class).run(
+            "--server.port=0",
+            "--spring.datasource.url=jdbc:h2:mem:wire-test;DB_CLOSE_DELAY=-1",
+            "--collab.broadcast.window-ms=0",
+            "--collab.cursor.interval-ms=0");
+        try {
+            int port = ((WebServerApplicationContext) app).getWebServer().getPort();
+            StompHeaders binaryConnect = new StompHeaders();
+            binaryConnect.set(WireFormats.CODEC_HEADER, WireFormats.BINARY);
+
+            // Raw WebSocket, opted in
+            WebSocketStompClient rawClient = new WebSocketStompClient(new StandardWebSocketClient());
+            rawClient.setMessageConverter(new CompositeMessageConverter(List.of(
+                new CrdtMessageConverter(), new ByteArrayMessageConverter(), new MappingJackson2MessageConverter())));
+            StompSession binary = rawClient.connectAsync("ws://localhost:" + port + "/ws/websocket",
+                new WebSocketHttpHeaders(), binaryConnect, new StompSessionHandlerAdapter() {}).get(10, TimeUnit.SECONDS);
+
+            // SockJS asking for binary too: it can't carry it, so it keeps getting JSON
+            WebSocketStompClient sockJsClient = new WebSocketStompClient(
+                new SockJsClient(List.of(new WebSocketTransport(new StandardWebSocketClient()))));
+            sockJsClient.setMessageConverter(new MappingJackson2MessageConverter());
+            StompSession json = sockJsClient.connectAsync("ws://localhost:" + port + "/ws",
+                new WebSocketHttpHeaders(), binaryConnect, new StompSessionHandlerAdapter() {}).get(10, TimeUnit.SECONDS);
+
+            BlockingQueue<Object[]> binaryEdits = subscribe(binary, "/topic/document/wire-doc", byte[].class);
+            BlockingQueue<Object[]> jsonEdits = subscribe(json, "/topic/document/wire-doc", JsonNode.class);
+            BlockingQueue<Object[]> binaryCursors = subscribe(binary, "/topic/cursor/wire-doc", byte[].class);
+            Thread.sleep(200);  // SUBSCRIBE has no receipt here
+
+            // The binary client edits in binary
+            DocumentController.EditMessage edit = new DocumentController.EditMessage();
+            edit.setDocumentId("wire-doc");
+            edit.setOperation(op(CrdtOperation.Type.INSERT, new CrdtChar("A-1", 'H', null, 1, "A", false), "wire-doc", 1));
+            StompHeaders send = new StompHeaders();
+            send.setDestination("/app/document.edit");
+            send.setContentType(WireFormats.MIME_TYPE);
+            binary.send(send, edit);
+
+            Object[] binaryFrame = binaryEdits.poll(10, TimeUnit.SECONDS);
+            assertNotNull(binaryFrame);
+            assertTrue(WireFormats.MIME_TYPE.equalsTypeAndSubtype(((StompHeaders) binaryFrame[0]).getContentType()));
+            DocumentController.EditMessage received = (DocumentController.EditMessage) CrdtWireCodec.decode((byte[]) binaryFrame[1]);
+            assertEquals("A-1", received.getOperation().getCharacter().getId());
+            assertEquals(1, received.getRevision());
+
+            Object[] jsonFrame = jsonEdits.poll(10, TimeUnit.SECONDS);
+            assertNotNull(jsonFrame);
+            assertEquals("A-1", ((JsonNode) jsonFrame[1]).path("operation").path("character").path("id").asText());
+
+            // Cursor in, cursor table out
+            StompHeaders cursorSend = new StompHeaders();
+            cursorSend.setDestination("/app/document.cursor");
+            cursorSend.setContentType(WireFormats.MIME_TYPE);
+            binary.send(cursorSend, cursor("A", "A-1", 1));
+            Object[] cursorFrame = binaryCursors.poll(10, TimeUnit.SECONDS);
+            assertNotNull(cursorFrame);
+            List<?> cursors = (List<?>) CrdtWireCodec.decode((byte[]) cursorFrame[1]);
+            assertEquals("A-1", ((DocumentController.CursorMessage) cursors.get(0)).getAnchorId());
+            assertEquals(1, ((DocumentController.CursorMessage) cursors.get(0)).getPosition());
+
+            binary.disconnect();
+            json.disconnect();
+        } finally {
+            app.close();
+        }
+    }
+
+    private void assertRoundTrips(Object frame) throws Exception {
+        Object decoded = CrdtWireCodec.decode(CrdtWireCodec.encode(frame));
+        assertEquals(objectMapper.writeValueAsString(frame), objectMapper.writeValueAsString(decoded));
+    }
+
+    private static CrdtOperation op(CrdtOperation.Type type, CrdtChar c, String documentId, int clock) {
+        return new CrdtOperation(type, c, documentId, c.getSiteId(), clock);
+    }
+
+    private static DocumentController.CursorMessage cursor(String siteId, String anchorId, int position) {
+        DocumentController.CursorMessage cursor = new DocumentController.CursorMessage();
+        cursor.setDocumentId("wire-doc");
+        cursor.setSiteId(siteId);
+        cursor.setUserName("user " + siteId);
+        cursor.setColor("#4ECDC4");
+        cursor.setAnchorId(anchorId);
+        cursor.setPosition(position);
+        return cursor;
+    }
+
+    /** Frames as {headers, payload}. */
+    private static BlockingQueue<Object[]> subscribe(StompSession session, String destination, Class<?> payloadType) {
+        BlockingQueue<Object[]> frames = new LinkedBlockingQueue<>();
+        session.subscribe(destination, new StompFrameHandler() {
+            @Override
+            public Type getPayloadType(StompHeaders headers) {
+                return payloadType;
+            }
+
+            @Override
+            public void handleFrame(StompHeaders headers, Object payload) {
+                frames.add(new Object[] {headers, payload});
+            }
+        });
+        return frames;
+    }
+}
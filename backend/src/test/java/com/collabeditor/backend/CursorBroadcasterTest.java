@@ -0,0 +1,149 @@
+package com.collabeditor.backend;
+
+import com.collabeditor.backend.controller.CursorBroadcaster;
+import com.collabeditor.backend.controller.DocumentController;
+import com.collabeditor.backend.handler.WireFormats;
+import com.collabeditor.backend.metrics.EditMetrics;
+import com.collabeditor.backend.service.CrdtDocument;
+import com.collabeditor.backend.service.DocumentService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CursorBroadcasterTest {
+
+    private static final String DOC = "cursor-doc";
+
+    private final CrdtDocument doc = new CrdtDocument(DOC);
+    private final BlockingQueue<Message<?>> sent = new LinkedBlockingQueue<>();
+    private final CursorBroadcaster broadcaster = new CursorBroadcaster(
+        new SimpMessagingTemplate((message, timeout) -> sent.add(message)),
+        new DocumentService(null, null, new EditMetrics(new SimpleMeterRegistry()), CrdtDocument.DEFAULT_MAX_PENDING_OPS, CrdtDocument.DEFAULT_PENDING_TTL_MS, 1) {
+            @Override
+            public CrdtDocument getResidentDocument(String documentId) {
+                return doc;
+            }
+        },
+        new WireFormats(),
+        50);
+
+    @AfterEach
+    void tearDown() {
+        broadcaster.shutdown();
+    }
+
+    @Test
+    void testMovesWithinAnIntervalGoOutAsOneFrame() throws InterruptedException {
+        type("A", "HELLO", null, 0);
+        for (int position = 0; position <= 5; position++) {
+            broadcaster.update(cursor("A", position));
+            broadcaster.update(cursor("B", 5 - position));
+        }
+
+        List<DocumentController.CursorMessage> frame = nextFrame();
+        assertEquals(2, frame.size());
+        assertEquals(5, frame.get(0).getPosition());
+        assertEquals("A-5", frame.get(0).getAnchorId());
+        assertEquals(0, frame.get(1).getPosition());
+        assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void testCursorFollowsItsAnchorThroughEdits() throws InterruptedException {
+        type("A", "WORLD", null, 0);
+        broadcaster.update(cursor("A", 2));  // after "WO"
+        broadcaster.update(cursor("B", 5));  // at the end
+        assertEquals(2, nextFrame().size());
+
+        // Someone types in front of both; only offsets that shifted are re-sent
+        type("C", "HI ", null, 10);
+        broadcaster.documentChanged(DOC);
+        List<DocumentController.CursorMessage> frame = nextFrame();
+        assertEquals(2, frame.size());
+        assertEquals(5, frame.get(0).getPosition());
+        assertEquals(8, frame.get(1).getPosition());
+
+        // Typing at the very end moves nobody's anchor
+        type("C", "!", "A-5", 20);
+        broadcaster.documentChanged(DOC);
+        assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void testCursorOnAColdDocumentDoesNotWaitForTheLoad() throws InterruptedException {
+        type("A", "HELLO", null, 0);
+        CompletableFuture<CrdtDocument> load = new CompletableFuture<>();
+        AtomicBoolean resident = new AtomicBoolean();
+        CursorBroadcaster cold = new CursorBroadcaster(
+            new SimpMessagingTemplate((message, timeout) -> sent.add(message)),
+            new DocumentService(null, null, new EditMetrics(new SimpleMeterRegistry()), CrdtDocument.DEFAULT_MAX_PENDING_OPS, CrdtDocument.DEFAULT_PENDING_TTL_MS, 1) {
+                @Override
+                public CrdtDocument getResidentDocument(String documentId) {
+                    return resident.get() ? doc : null;
+                }
+
+                @Override
+                public CompletableFuture<CrdtDocument> loadDocument(String documentId) {
+                    return load;
+                }
+
+                @Override
+                public CrdtDocument getOrLoadDocument(String documentId) {
+                    return load.join();
+                }
+            },
+            new WireFormats(),
+            50);
+        try {
+            // The load never finishes on its own; the caller still gets straight back
+            assertTimeoutPreemptively(Duration.ofSeconds(1), () -> cold.update(cursor("A", 3)));
+            List<DocumentController.CursorMessage> frame = nextFrame();
+            assertEquals(3, frame.get(0).getPosition());
+            assertNull(frame.get(0).getAnchorId());
+
+            // Loaded: the offset gets its anchor, and follows it from then on
+            resident.set(true);
+            load.complete(doc);
+            type("C", "HI ", null, 10);
+            cold.documentChanged(DOC);
+            frame = nextFrame();
+            assertEquals(6, frame.get(0).getPosition());
+            assertEquals("A-3", frame.get(0).getAnchorId());
+        } finally {
+            cold.shutdown();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<DocumentController.CursorMessage> nextFrame() throws InterruptedException {
+        Message<?> message = sent.poll(5, TimeUnit.SECONDS);
+        assertNotNull(message);
+        assertEquals("/topic/cursor/" + DOC, message.getHeaders().get("simpDestination"));
+        return (List<DocumentController.CursorMessage>) message.getPayload();
+    }
+
+    private static DocumentController.CursorMessage cursor(String site, int position) {
+        DocumentController.CursorMessage message = new DocumentController.CursorMessage();
+        message.setDocumentId(DOC);
+        message.setSiteId(site);
+        message.setPosition(position);
+        return message;
+    }
+
+    /** Insert text after `parent` (null = front), one char per op, clocks starting after `clock`. */
+    private void type(String site, String text, String parent, int clock) {
+        TestDocuments.typing(DOC, site, text, parent, clock).forEach(doc::applyOperation);
+    }
+}
@@ -0,0 +1,75 @@
+package com.collabeditor.backend;
+
+import com.collabeditor.backend.service.CrdtDocument;
+import com.collabeditor.backend.service.DocumentEvictor;
+import com.collabeditor.backend.service.DocumentService;
+import com.collabeditor.backend.service.SessionManager;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// idle-ms=0: every unpinned document is idle, so each sweep unloads all of them
+@SpringBootTest(properties = {
+    "spring.datasource.url=jdbc:h2:mem:evictor-test;DB_CLOSE_DELAY=-1",
+    "collab.cache.idle-ms=0",
+    "collab.cache.sweep-ms=3600000"
+})
+class DocumentEvictorTest {
+
+    @Autowired
+    private DocumentService documentService;
+
+    @Autowired
+    private DocumentEvictor documentEvictor;
+
+    @Autowired
+    private SessionManager sessionManager;
+
+    @Test
+    void testIdleDocumentIsSavedAndUnloaded() throws InterruptedException {
+        String docId = "evict-1";
+        TestDocuments.type(documentService, docId, "A", "HELLO");
+        long misses = documentService.getCacheMisses();
+
+        long evicted = documentEvictor.getEvictionCount();
+        documentEvictor.sweep();
+        awaitEvictions(evicted + 1);
+        assertFalse(documentService.isResident(docId));
+
+        CrdtDocument reloaded = documentService.getOrLoadDocument(docId);
+        assertEquals("HELLO", reloaded.getText());
+        assertEquals(5, reloaded.getRevision());
+        assertEquals(misses + 1, documentService.getCacheMisses());
+
+        documentService.clearDocument(docId);
+    }
+
+    @Test
+    void testDocumentWithSessionIsPinned() throws InterruptedException {
+        String pinned = "evict-pinned";
+        String idle = "evict-idle";
+        TestDocuments.type(documentService, pinned, "A", "KEEP");
+        TestDocuments.type(documentService, idle, "B", "DROP");
+        sessionManager.userJoined(pinned, "A", "alice", 4);
+
+        long evicted = documentEvictor.getEvictionCount();
+        documentEvictor.sweep();
+        awaitEvictions(evicted + 1);
+        assertTrue(documentService.isResident(pinned));
+        assertFalse(documentService.isResident(idle));
+
+        sessionManager.userLeft(pinned, "A");
+        documentService.clearDocument(pinned);
+        documentService.clearDocument(idle);
+    }
+
+    private void awaitEvictions(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (documentEvictor.getEvictionCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(documentEvictor.getEvictionCount() >= count);
+    }
+}
@@ -0,0 +1,215 @@
+package com.collabeditor.backend;
+
+import com.collabeditor.backend.service.DocumentExecutor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DocumentExecutorTest {
+
+    private static final int THREADS = 4;
+
+    private final DocumentExecutor executor = new DocumentExecutor(THREADS, 10_000);
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    void testTasksForOneDocumentRunInSubmissionOrder() throws InterruptedException {
+        List<Integer> seen = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1000);
+        for (int i = 0; i < 1000; i++) {
+            int n = i;
+            executor.execute("doc", () -> {
+                seen.add(n);
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, seen.get(i));
+        }
+    }
+
+    @Test
+    void testDocumentsRunInParallel() throws InterruptedException {
+        // Each task only finishes once all of them have started, so they must run at the same time
+        CountDownLatch started = new CountDownLatch(THREADS);
+        CountDownLatch done = new CountDownLatch(THREADS);
+        AtomicInteger together = new AtomicInteger();
+        for (int d = 0; d < THREADS; d++) {
+            executor.execute("doc-" + d, () -> {
+                started.countDown();
+                if (await(started)) together.incrementAndGet();
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(THREADS, together.get());
+    }
+
+    @Test
+    void testHotDocumentDoesNotStarveOthers() throws InterruptedException {
+        // The hot lane is stuck on its first task with plenty more queued behind it
+        CountDownLatch unblock = new CountDownLatch(1);
+        CountDownLatch hotDone = new CountDownLatch(500);
+        for (int i = 0; i < 500; i++) {
+            executor.execute("hot", () -> {
+                await(unblock);
+                hotDone.countDown();
+            });
+        }
+
+        // More cold documents than workers, all served meanwhile
+        CountDownLatch coldDone = new CountDownLatch(THREADS * 4);
+        for (int d = 0; d < THREADS * 4; d++) {
+            executor.execute("cold-" + d, coldDone::countDown);
+        }
+        assertTrue(coldDone.await(5, TimeUnit.SECONDS));
+        assertEquals(500, hotDone.getCount());
+
+        unblock.countDown();
+        assertTrue(hotDone.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void testTaskQueuedMidTurnWaitsForItsLoad() throws InterruptedException {
+        // One worker, so the other lane's task below only runs once this lane's turn is over
+        DocumentExecutor single = new DocumentExecutor(1, 100);
+        try {
+            CompletableFuture<Void> load = new CompletableFuture<>();
+            CountDownLatch ran = new CountDownLatch(1);
+            AtomicBoolean ranAfterLoad = new AtomicBoolean();
+            // Queued from the lane's own worker, which goes on to poll the queue in the same turn
+            single.execute("doc", () -> single.execute("doc", load, () -> {
+                ranAfterLoad.set(load.isDone());
+                ran.countDown();
+            }));
+            CountDownLatch turnOver = new CountDownLatch(1);
+            single.execute("other", turnOver::countDown);
+
+            assertTrue(turnOver.await(5, TimeUnit.SECONDS));
+            load.complete(null);
+            assertTrue(ran.await(5, TimeUnit.SECONDS));
+            assertTrue(ranAfterLoad.get());
+        } finally {
+            single.shutdown();
+        }
+    }
+
+    @Test
+    void testLaneWaitingOnLoadHoldsNoWorker() throws InterruptedException {
+        // Every lane waits on a load, more lanes than workers; edits pile up in order
+        List<CompletableFuture<Void>> loads = new ArrayList<>();
+        List<List<Integer>> seen = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(THREADS * 2 * 10);
+        for (int d = 0; d < THREADS * 2; d++) {
+            CompletableFuture<Void> load = new CompletableFuture<>();
+            List<Integer> applied = Collections.synchronizedList(new ArrayList<>());
+            loads.add(load);
+            seen.add(applied);
+            for (int i = 0; i < 10; i++) {
+                int n = i;
+                executor.execute("loading-" + d, load, () -> {
+                    applied.add(n);
+                    done.countDown();
+                });
+            }
+        }
+
+        // Still loading: nothing ran, and the workers are free for everyone else
+        CountDownLatch otherDone = new CountDownLatch(1);
+        executor.execute("resident", otherDone::countDown);
+        assertTrue(otherDone.await(1, TimeUnit.SECONDS));
+        assertEquals(THREADS * 2 * 10, done.getCount());
+        assertEquals(THREADS * 2 * 10, executor.getTotalQueueDepth());
+
+        loads.forEach(load -> load.complete(null));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (List<Integer> applied : seen) {
+            assertEquals(List.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), applied);
+        }
+    }
+
+    @Test
+    void testFailedLoadDropsTheTasksWaitingOnIt() throws InterruptedException {
+        CompletableFuture<Void> load = new CompletableFuture<>();
+        AtomicInteger ran = new AtomicInteger();
+        for (int i = 0; i < 10; i++) {
+            executor.execute("doc", load, ran::incrementAndGet);
+        }
+        load.completeExceptionally(new IllegalStateException("database down"));
+
+        // The next frame brings a load of its own, and runs once that one is in
+        CountDownLatch next = new CountDownLatch(1);
+        executor.execute("doc", CompletableFuture.completedFuture(null), next::countDown);
+        assertTrue(next.await(5, TimeUnit.SECONDS));
+        assertEquals(0, ran.get());
+        assertEquals(10, executor.getDroppedTaskCount());
+    }
+
+    @Test
+    void testThroughputUnderLoad() throws Exception {
+        // Many producers over more documents than workers, as inbound threads would feed it
+        int producers = THREADS * 2;
+        int documents = THREADS * 16;
+        int perDocument = 5_000;
+        List<List<Integer>> seen = new ArrayList<>();
+        for (int d = 0; d < documents; d++) {
+            seen.add(Collections.synchronizedList(new ArrayList<>()));
+        }
+        CountDownLatch done = new CountDownLatch(documents * perDocument);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            Thread thread = new Thread(() -> {
+                // Each producer owns some of the documents, so each lane has one submission order
+                for (int i = 0; i < perDocument; i++) {
+                    for (int d = producer; d < documents; d += producers) {
+                        int doc = d;
+                        int n = i;
+                        executor.execute("load-" + d, () -> {
+                            seen.get(doc).add(n);
+                            done.countDown();
+                        });
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        for (List<Integer> applied : seen) {
+            assertEquals(perDocument, applied.size());
+            for (int i = 0; i < perDocument; i++) {
+                assertEquals(i, applied.get(i));
+            }
+        }
+        assertEquals(0, executor.getTotalQueueDepth());
+    }
+
+    private static boolean await(CountDownLatch latch) {
+        try {
+            return latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.collabeditor.backend;
+
+import com.collabeditor.backend.metrics.EditMetrics;
+import com.collabeditor.backend.model.CrdtChar;
+import com.collabeditor.backend.model.CrdtOperation;
+import com.collabeditor.backend.model.DocumentEntity;
+import com.collabeditor.backend.repository.DocumentRepository;
+import com.collabeditor.backend.repository.OperationLogRepository;
+import com.collabeditor.backend.service.CrdtDocument;
+import com.collabeditor.backend.service.DocumentService;
+import com.collabeditor.backend.service.OperationLog;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Without history, so snapshots truncate the log (VersionHistoryTest covers it kept)
+@SpringBootTest(properties = {
+    "spring.datasource.url=jdbc:h2:mem:persistence-test;DB_CLOSE_DELAY=-1",
+    "collab.history.enabled=false"
+})
+class DocumentPersistenceTest {
+
+    @Autowired
+    private DocumentService documentService;
+
+    @Autowired
+    private DocumentRepository documentRepository;
+
+    @Autowired
+    private OperationLog operationLog;
+
+    @Autowired
+    private OperationLogRepository operationLogRepository;
+
+    @Autowired
+    private EditMetrics editMetrics;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Test
+    void testReloadReplaysOperationLogAfterSnapshot() {
+        String docId = "persist-1";
+        TestDocuments.type(documentService, docId, "A", "CAT");
+        documentService.saveDocument(docId);   // snapshot at revision 3
+        assertEquals(0, operationLogRepository.count());
+
+        TestDocuments.type(documentService, docId, "B", "S");  // tail: one insert after the snapshot
+        documentService.applyOperation(docId, new CrdtOperation(CrdtOperation.Type.DELETE,
+            new CrdtChar("A-2", 'A', "A-1", 2, "A", true), docId, "A", 2));
+        operationLog.flush();
+        assertEquals(2, operationLogRepository.count());
+
+        CrdtDocument reloaded = freshNode().getOrLoadDocument(docId);
+        assertEquals("CTS", reloaded.getText());
+        assertEquals(5, reloaded.getRevision());
+
+        documentService.clearDocument(docId);
+    }
+
+    @Test
+    void testLogAloneRecoversDocumentWithoutSnapshot() {
+        String docId = "persist-2";
+        TestDocuments.type(documentService, docId, "A", "HELLO");
+        operationLog.flush();
+        assertTrue(documentRepository.findById(docId).isEmpty());
+
+        CrdtDocument reloaded = freshNode().getOrLoadDocument(docId);
+        assertEquals("HELLO", reloaded.getText());
+        assertEquals(5, reloaded.getRevision());
+
+        documentService.clearDocument(docId);
+    }
+
+    @Test
+    void testConcurrentLookupsShareOneLoad() throws Exception {
+        String docId = "persist-3";
+        TestDocuments.type(documentService, docId, "A", "HELLO");
+        documentService.saveDocument(docId);
+
+        DocumentService node = freshNode();
+        List<CompletableFuture<CrdtDocument>> lookups = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            lookups.add(CompletableFuture.supplyAsync(() -> node.getOrLoadDocument(docId)));
+        }
+        CrdtDocument loaded = node.loadDocument(docId).get(5, TimeUnit.SECONDS);
+        for (CompletableFuture<CrdtDocument> lookup : lookups) {
+            assertSame(loaded, lookup.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals("HELLO", loaded.getText());
+        assertEquals(1, node.getCacheMisses());
+
+        documentService.clearDocument(docId);
+    }
+
+    @Test
+    void testLegacyJsonRowWithoutIdsLoadsAndSnapshots() {
+        String docId = "persist-4";
+        // Written before chars always carried both ids
+        documentRepository.save(new DocumentEntity(docId,
+            "[{\"id\":\"user-ab12-1\",\"value\":\"H\",\"parentId\":null,\"clock\":1,\"tombstone\":false},"
+                + "{\"value\":\"i\",\"parentId\":\"user-ab12-1\",\"clock\":2,\"siteId\":\"user-ab12\",\"tombstone\":false}]"));
+
+        DocumentService node = freshNode();
+        CrdtDocument loaded = node.getOrLoadDocument(docId);
+        assertEquals("Hi", loaded.getText());
+        assertEquals("user-ab12", loaded.getFullState().get(0).getSiteId());
+
+        node.saveDocument(docId);  // binary from here on
+        assertNull(documentRepository.findById(docId).orElseThrow().getCrdtState());
+        assertEquals("Hi", freshNode().getOrLoadDocument(docId).getText());
+
+        documentService.clearDocument(docId);
+    }
+
+    @Test
+    void testRowFromBeforeVersioningIsUpdatedInPlace() {
+        String docId = "persist-5";
+        jdbcTemplate.update("insert into documents (id, crdt_state) values (?, ?)", docId, "[]");
+        assertNull(documentRepository.findById(docId).orElseThrow().getVersion());
+
+        DocumentService node = freshNode();
+        node.fillMissingVersions();  // @PostConstruct on the real one
+        assertEquals("", node.getOrLoadDocument(docId).getText());
+        node.saveDocument(docId);
+        assertEquals(1, documentRepository.findById(docId).orElseThrow().getVersion());
+
+        documentService.clearDocument(docId);
+    }
+
+    @Test
+    void testMalformedOpDoesNotBlockSnapshots() {
+        String docId = "persist-6";
+        TestDocuments.type(documentService, docId, "A", "OK");
+        assertTrue(documentService.applyOperation(docId, new CrdtOperation(CrdtOperation.Type.INSERT,
+            new CrdtChar("B-1", 'x', "A-2", 1, null, false), docId, null, 1)).isEmpty());
+
+        documentService.saveDocument(docId);
+        assertEquals(0, operationLogRepository.count());
+        assertEquals("OK", freshNode().getOrLoadDocument(docId).getText());
+
+        documentService.clearDocument(docId);
+    }
+
+    /** A second service over the same database, standing in for a restarted node. */
+    private DocumentService freshNode() {
+        return new DocumentService(documentRepository, operationLog, editMetrics,
+            CrdtDocument.DEFAULT_MAX_PENDING_OPS, CrdtDocument.DEFAULT_PENDING_TTL_MS, 4);
+    }
+}
@@ -0,0 +1,147 @@
+package com.collabeditor.backend;
+
+import com.collabeditor.backend.model.CrdtChar;
+import com.collabeditor.backend.model.CrdtOperation;
+import com.collabeditor.backend.service.CrdtStateCodec;
+import com.collabeditor.backend.service.DocumentService;
+import com.collabeditor.backend.service.SessionManager;
+import com.collabeditor.backend.service.TombstoneCollector;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@SpringBootTest(properties = "spring.datasource.url=jdbc:h2:mem:state-endpoint-test;DB_CLOSE_DELAY=-1")
+@AutoConfigureMockMvc
+class DocumentStateEndpointTest {
+
+    private static final String DOC = "endpoint-doc";
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private DocumentService documentService;
+
+    @Autowired
+    private SessionManager sessionManager;
+
+    @Autowired
+    private TombstoneCollector tombstoneCollector;
+
+    @BeforeEach
+    void setUp() {
+        documentService.clearDocument(DOC);
+        String parent = null;
+        for (int i = 1; i <= 5; i++) {
+            String id = "A-" + i;
+            documentService.applyOperation(DOC, new CrdtOperation(CrdtOperation.Type.INSERT,
+                new CrdtChar(id, "HELLO".charAt(i - 1), parent, i, "A", false), DOC, "A", i));
+            parent = id;
+        }
+    }
+
+    @Test
+    void testDefaultStateIsJson() throws Exception {
+        MvcResult streaming = mockMvc.perform(get("/api/documents/" + DOC + "/state"))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+        mockMvc.perform(asyncDispatch(streaming))
+            .andExpect(status().isOk())
+            .andExpect(header().string("X-Document-Revision", "5"))
+            .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+            .andExpect(jsonPath("$.length()").value(5))
+            .andExpect(jsonPath("$[0].id").value("A-1"));
+    }
+
+    @Test
+    void testStateReadHoldsBackTombstoneGc() throws Exception {
+        mockMvc.perform(get("/api/documents/" + DOC + "/state").accept(MediaType.APPLICATION_OCTET_STREAM))
+            .andExpect(status().isOk());
+        documentService.applyOperation(DOC, new CrdtOperation(CrdtOperation.Type.DELETE,
+            new CrdtChar("A-2", 'E', "A-1", 2, "A", true), DOC, "A", 2));
+
+        // Nobody has joined, but whoever read revision 5 still has A-2 as a char
+        assertEquals(5, sessionManager.getStableRevision(DOC, 6));
+        assertEquals(0, tombstoneCollector.collect(documentService.getOrLoadDocument(DOC)));
+
+        // Only for so long: a client that never joins doesn't hold GC back for good
+        SessionManager brief = new SessionManager(50);
+        brief.stateServed(DOC, 5);
+        assertEquals(5, brief.getStableRevision(DOC, 6));
+        Thread.sleep(100);
+        assertEquals(6, brief.getStableRevision(DOC, 6));
+    }
+
+    @Test
+    void testBinaryStateOnRequest() throws Exception {
+        byte[] body = mockMvc.perform(get("/api/documents/" + DOC + "/state").accept(MediaType.APPLICATION_OCTET_STREAM))
+            .andExpect(status().isOk())
+            .andExpect(content().contentType(MediaType.APPLICATION_OCTET_STREAM))
+            .andReturn().getResponse().getContentAsByteArray();
+
+        List<CrdtChar> chars = CrdtStateCodec.decode(body);
+        assertEquals(5, chars.size());
+        assertEquals("A-4", chars.get(4).getParentId());
+    }
+
+    @Test
+    void testStatePagesFollowTheCursor() throws Exception {
+        MvcResult first = mockMvc.perform(get("/api/documents/" + DOC + "/state").param("limit", "2"))
+            .andExpect(header().string("X-Next-Cursor", "A-2"))
+            .andReturn();
+        mockMvc.perform(asyncDispatch(first))
+            .andExpect(jsonPath("$.length()").value(2))
+            .andExpect(jsonPath("$[1].id").value("A-2"));
+
+        MvcResult last = mockMvc.perform(get("/api/documents/" + DOC + "/state").param("after", "A-3").param("limit", "10"))
+            .andExpect(header().doesNotExist("X-Next-Cursor"))
+            .andReturn();
+        mockMvc.perform(asyncDispatch(last))
+            .andExpect(jsonPath("$.length()").value(2))
+            .andExpect(jsonPath("$[0].id").value("A-4"));
+
+        mockMvc.perform(get("/api/documents/" + DOC + "/state").param("after", "Z-9").param("limit", "10"))
+            .andExpect(status().isNotFound());
+    }
+
+    @Test
+    void testStreamedStateIsAsOfItsRevision() throws Exception {
+        MvcResult streaming = mockMvc.perform(get("/api/documents/" + DOC + "/state").param("after", "A-2"))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+        // Lands after the state was read, before the body is written: not in it
+        documentService.applyOperation(DOC, new CrdtOperation(CrdtOperation.Type.INSERT,
+            new CrdtChar("B-6", '!', "A-5", 6, "B", false), DOC, "B", 6));
+        mockMvc.perform(asyncDispatch(streaming))
+            .andExpect(header().string("X-Document-Revision", "5"))
+            .andExpect(jsonPath("$.length()").value(3))
+            .andExpect(jsonPath("$[0].id").value("A-3"))
+            .andExpect(jsonPath("$[2].id").value("A-5"));
+    }
+
+    @Test
+    void testSyncReturnsOnlyMissingChars() throws Exception {
+        mockMvc.perform(post("/api/documents/" + DOC + "/sync")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"vector\": {\"A\": 3}, \"since\": 3}"))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.full").value(false))
+            .andExpect(jsonPath("$.revision").value(5))
+            .andExpect(jsonPath("$.inserts.length()").value(2))
+            .andExpect(jsonPath("$.inserts[0].character.id").value("A-4"))
+            .andExpect(jsonPath("$.inserts[0].after").value("A-3"));
+    }
+}
@@ -0,0 +1,64 @@
+package com.collabeditor.backend;
+
+import com.collabeditor.backend.controller.DocumentController;
+import com.collabeditor.backend.controller.EditBroadcaster;
+import com.collabeditor.backend.handler.WireFormats;
+import com.collabeditor.backend.metrics.EditMetrics;
+import com.collabeditor.backend.model.CrdtChar;
+import com.collabeditor.backend.model.CrdtOperation;
+import com.collabeditor.backend.service.CrdtDocument;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EditBroadcasterTest {
+
+    private final BlockingQueue<Message<?>> sent = new LinkedBlockingQueue<>();
+    private final EditBroadcaster broadcaster = new EditBroadcaster(
+        new SimpMessagingTemplate((message, timeout) -> sent.add(message)),
+        new EditMetrics(new SimpleMeterRegistry()), new WireFormats(), 50, 64);
+
+    @AfterEach
+    void tearDown() {
+        broadcaster.shutdown();
+    }
+
+    @Test
+    void testOpsInOneWindowGoOutAsOneBatchAndTheBufferIsDropped() throws InterruptedException {
+        for (int i = 1; i <= 3; i++) {
+            broadcaster.broadcast("doc-a", List.of(applied("doc-a", i)));
+        }
+        broadcaster.broadcast("doc-b", List.of(applied("doc-b", 1)));
+        assertEquals(2, broadcaster.getOutboxCount());
+
+        Message<?> first = sent.poll(5, TimeUnit.SECONDS);
+        Message<?> second = sent.poll(5, TimeUnit.SECONDS);
+        assertNotNull(first);
+        assertNotNull(second);
+        Message<?> batch = first.getPayload() instanceof DocumentController.EditBatchMessage ? first : second;
+        assertEquals(3, ((DocumentController.EditBatchMessage) batch.getPayload()).getRevision());
+        assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+
+        // Flushed and idle: nothing is kept per document until it's edited again
+        assertEquals(0, broadcaster.getOutboxCount());
+        broadcaster.broadcast("doc-a", List.of(applied("doc-a", 4)));
+        Message<?> next = sent.poll(5, TimeUnit.SECONDS);
+        assertNotNull(next);
+        assertEquals(4, ((DocumentController.EditMessage) next.getPayload()).getRevision());
+    }
+
+    private static CrdtDocument.Applied applied(String docId, int clock) {
+        String parent = clock == 1 ? null : "A-" + (clock - 1);
+        return new CrdtDocument.Applied(new CrdtOperation(CrdtOperation.Type.INSERT,
+            new CrdtChar("A-" + clock, 'x', parent, clock, "A", false), docId, "A", clock), clock);
+    }
+}
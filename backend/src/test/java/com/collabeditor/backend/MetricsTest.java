@@ -0,0 +1,63 @@
+package com.collabeditor.backend;
+
+import com.collabeditor.backend.metrics.DocumentMetrics;
+import com.collabeditor.backend.model.CrdtChar;
+import com.collabeditor.backend.model.CrdtOperation;
+import com.collabeditor.backend.service.DocumentService;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+    "spring.datasource.url=jdbc:h2:mem:metrics-test;DB_CLOSE_DELAY=-1",
+    "collab.metrics.refresh-ms=3600000"
+})
+class MetricsTest {
+
+    private static final String DOC = "metrics-doc";
+
+    @Autowired
+    private DocumentService documentService;
+
+    @Autowired
+    private DocumentMetrics documentMetrics;
+
+    @Autowired
+    private MeterRegistry registry;
+
+    @Test
+    void testEditsShowUpInTheMeters() {
+        long scans = registry.get("collab.crdt.sibling.scan").summary().count();
+
+        // One scan per insert; deletes don't scan
+        for (int clock = 1; clock <= 3; clock++) {
+            insert("A-" + clock, 'x', null, clock, "A");
+        }
+        delete("A-2", 4);
+        assertEquals(scans + 3, registry.get("collab.crdt.sibling.scan").summary().count());
+
+        documentService.saveDocument(DOC);
+        assertTrue(registry.get("collab.snapshot.save").timer().count() >= 1);
+        assertTrue(registry.get("collab.snapshot.bytes").summary().totalAmount() > 0);
+
+        documentMetrics.refresh();
+        assertEquals(3, registry.get("collab.document.chars").tag("document", DOC).gauge().value());
+        assertEquals(1.0 / 3, registry.get("collab.document.tombstone.ratio").tag("document", DOC).gauge().value(), 1e-9);
+        assertTrue(registry.get("collab.tombstones").gauge().value() >= 1);
+
+        documentService.clearDocument(DOC);
+    }
+
+    private void insert(String id, char value, String parent, int clock, String site) {
+        documentService.applyOperation(DOC, new CrdtOperation(CrdtOperation.Type.INSERT,
+            new CrdtChar(id, value, parent, clock, site, false), DOC, site, clock));
+    }
+
+    private void delete(String id, int clock) {
+        documentService.applyOperation(DOC, new CrdtOperation(CrdtOperation.Type.DELETE,
+            new CrdtChar(id, 'x', null, clock, "A", true), DOC, "A", clock));
+    }
+}
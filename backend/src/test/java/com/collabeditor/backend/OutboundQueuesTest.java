@@ -0,0 +1,221 @@
+package com.collabeditor.backend;
+
+import com.collabeditor.backend.handler.OutboundQueues;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutboundQueuesTest {
+
+    private static final int FRAMES = 500;
+    // A busy document: a coalesced edit frame every 200us
+    private static final long FRAME_INTERVAL_NANOS = 200_000;
+
+    @Test
+    void testStalledSubscriberIsDroppedAndTheOthersGetEveryEdit() throws Exception {
+        fanOut(false);
+        fanOut(true);
+    }
+
+    @Test
+    void testSendersAreNotHeldByStuckWrites() throws Exception {
+        // Twice as many sessions stuck in a write as there are senders; nothing closes them on time
+        int senders = 2;
+        OutboundQueues queues = new OutboundQueues(senders, 1000, 1 << 20, 60_000, 50, 16, "/topic/cursor/");
+        Capture handler = new Capture();
+        WebSocketHandler decorated = queues.decorate(handler);
+        List<StubSession> stuck = new ArrayList<>();
+        for (int i = 0; i < senders * 2; i++) {
+            StubSession session = new StubSession("stuck-" + i, true);
+            stuck.add(session);
+            decorated.afterConnectionEstablished(session);
+        }
+        StubSession healthy = new StubSession("healthy", false);
+        decorated.afterConnectionEstablished(healthy);
+
+        for (int i = 0; i < 100; i++) {
+            for (WebSocketSession session : handler.sessions) {
+                session.sendMessage(frame("/topic/document/doc", i + 1));
+            }
+        }
+        for (int i = 0; i < 200 && healthy.received.size() < 100; i++) {
+            Thread.sleep(25);
+        }
+        assertEquals(100, healthy.received.size(), "the healthy session is still served");
+
+        // Overflowing a stuck session closes it, without waiting for a sender either
+        for (int i = 0; i < 1000; i++) {
+            handler.sessions.get(0).sendMessage(frame("/topic/document/doc", i));
+        }
+        assertEquals(OutboundQueues.RESYNC, stuck.get(0).awaitClose());
+        for (StubSession session : stuck) {
+            session.close(CloseStatus.NORMAL);
+        }
+        queues.shutdown();
+    }
+
+    @Test
+    void testSessionStuckInAWriteIsClosed() throws Exception {
+        OutboundQueues queues = new OutboundQueues(2, 1000, 1 << 20, 50, 1000, 16, "/topic/cursor/");
+        Capture handler = new Capture();
+        StubSession stuck = new StubSession("stuck", true);
+        queues.decorate(handler).afterConnectionEstablished(stuck);
+
+        handler.sessions.get(0).sendMessage(frame("/topic/document/doc", 0));
+        Thread.sleep(100);
+        queues.sweep();
+        assertEquals(OutboundQueues.RESYNC, stuck.awaitClose());
+        queues.shutdown();
+    }
+
+    /**
+     * One thread fans FRAMES frames out to four healthy subscribers (and a
+     * stalled one), like the broker does, one every FRAME_INTERVAL_NANOS.
+     * Every healthy subscriber gets every edit, in order.
+     */
+    private void fanOut(boolean withStalledSubscriber) throws Exception {
+        OutboundQueues queues = new OutboundQueues(4, 200, 1 << 20, 60_000, 1000, 16, "/topic/cursor/,/topic/presence/");
+        Capture handler = new Capture();
+        WebSocketHandler decorated = queues.decorate(handler);
+        List<StubSession> healthy = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            StubSession session = new StubSession("healthy-" + i, false);
+            healthy.add(session);
+            decorated.afterConnectionEstablished(session);
+        }
+        StubSession stalled = new StubSession("stalled", true);
+        if (withStalledSubscriber) {
+            decorated.afterConnectionEstablished(stalled);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < FRAMES; i++) {
+            String destination = i % 5 == 0 ? "/topic/cursor/doc" : "/topic/document/doc";
+            for (WebSocketSession session : handler.sessions) {
+                session.sendMessage(frame(destination, i));
+            }
+            LockSupport.parkNanos(FRAME_INTERVAL_NANOS);
+        }
+        // Without per-session queues this loop would block behind the stalled write forever
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+
+        for (StubSession session : healthy) {
+            session.awaitEdits(FRAMES - FRAMES / 5);
+            List<Integer> edits = session.received.stream().filter(i -> i % 5 != 0).toList();
+            assertEquals(FRAMES - FRAMES / 5, edits.size(), "no edit is dropped");
+            for (int n = 0; n < edits.size(); n++) {
+                assertEquals(n + 1 + n / 4, edits.get(n), "edits arrive in order");
+            }
+        }
+
+        if (withStalledSubscriber) {
+            // 200 frames behind: cursor frames went first, then the session was told to resync
+            assertEquals(OutboundQueues.RESYNC, stalled.awaitClose());
+            assertEquals(1, queues.getTerminatedCount());
+            assertTrue(queues.getDroppedCount() > 0);
+        } else {
+            assertEquals(0, queues.getTerminatedCount());
+        }
+        queues.shutdown();
+    }
+
+    private static TextMessage frame(String destination, int index) {
+        return new TextMessage("MESSAGE\ndestination:" + destination + "\nsubscription:sub-0\n\n" + index + "\0");
+    }
+
+    private static int indexOf(WebSocketMessage<?> message) {
+        String payload = ((TextMessage) message).getPayload();
+        return Integer.parseInt(payload.substring(payload.indexOf("\n\n") + 2, payload.length() - 1));
+    }
+
+    /** The handler behind the decorator: keeps the sessions it was given, as the broker would. */
+    private static class Capture extends AbstractWebSocketHandler {
+        final List<WebSocketSession> sessions = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void afterConnectionEstablished(WebSocketSession session) {
+            sessions.add(session);
+        }
+    }
+
+    /** A socket. A stalled one blocks in its first write until the session is closed. */
+    private static class StubSession implements WebSocketSession {
+        final String id;
+        final boolean stalled;
+        final List<Integer> received = new CopyOnWriteArrayList<>();
+        final CountDownLatch closed = new CountDownLatch(1);
+        volatile CloseStatus closeStatus;
+
+        StubSession(String id, boolean stalled) {
+            this.id = id;
+            this.stalled = stalled;
+        }
+
+        @Override
+        public void sendMessage(WebSocketMessage<?> message) throws IOException {
+            if (stalled) {
+                try {
+                    closed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IOException("closed");
+            }
+            received.add(indexOf(message));
+        }
+
+        void awaitEdits(int count) throws InterruptedException {
+            for (int i = 0; i < 200 && received.stream().filter(n -> n % 5 != 0).count() < count; i++) {
+                Thread.sleep(25);
+            }
+        }
+
+        CloseStatus awaitClose() throws InterruptedException {
+            assertTrue(closed.await(5, TimeUnit.SECONDS), id + " was not closed");
+            return closeStatus;
+        }
+
+        @Override
+        public void close(CloseStatus status) {
+            closeStatus = status;
+            closed.countDown();
+        }
+
+        @Override public void close() { close(CloseStatus.NORMAL); }
+        @Override public boolean isOpen() { return closed.getCount() > 0; }
+        @Override public String getId() { return id; }
+        @Override public URI getUri() { return URI.create("ws://localhost/ws"); }
+        @Override public HttpHeaders getHandshakeHeaders() { return new HttpHeaders(); }
+        @Override public Map<String, Object> getAttributes() { return new HashMap<>(); }
+        @Override public Principal getPrincipal() { return null; }
+        @Override public InetSocketAddress getLocalAddress() { return null; }
+        @Override public InetSocketAddress getRemoteAddress() { return null; }
+        @Override public String getAcceptedProtocol() { return null; }
+        @Override public void setTextMessageSizeLimit(int messageSizeLimit) {}
+        @Override public int getTextMessageSizeLimit() { return Integer.MAX_VALUE; }
+        @Override public void setBinaryMessageSizeLimit(int messageSizeLimit) {}
+        @Override public int getBinaryMessageSizeLimit() { return Integer.MAX_VALUE; }
+        @Override public List<WebSocketExtension> getExtensions() { return List.of(); }
+    }
+}
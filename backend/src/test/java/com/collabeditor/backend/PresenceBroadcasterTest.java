@@ -0,0 +1,128 @@
+package com.collabeditor.backend;
+
+import com.collabeditor.backend.controller.CursorBroadcaster;
+import com.collabeditor.backend.controller.DocumentController;
+import com.collabeditor.backend.controller.PresenceBroadcaster;
+import com.collabeditor.backend.handler.WireFormats;
+import com.collabeditor.backend.service.SessionManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PresenceBroadcasterTest {
+
+    private static final String DOC = "presence-doc";
+
+    private final SessionManager sessionManager = new SessionManager(SessionManager.DEFAULT_STATE_GRACE_MS);
+    private final BlockingQueue<Message<?>> sent = new LinkedBlockingQueue<>();
+    private final SimpMessagingTemplate template = new SimpMessagingTemplate((message, timeout) -> sent.add(message));
+    private final CursorBroadcaster cursorBroadcaster = new CursorBroadcaster(template, null, new WireFormats(), 50);
+    // Sent right away, snapshots at most every 300ms, silent after 200ms
+    private final PresenceBroadcaster broadcaster = new PresenceBroadcaster(
+        template, sessionManager, cursorBroadcaster, 0, 300, 30_000, 200);
+
+    @AfterEach
+    void tearDown() {
+        broadcaster.shutdown();
+        cursorBroadcaster.shutdown();
+    }
+
+    @Test
+    void testJoinWaveGetsOneSnapshotAndLeavesGoOutAsDeltas() throws InterruptedException {
+        join("A");
+        DocumentController.PresenceFrame first = nextFrame();  // A's own join delta
+        assertEquals(DocumentController.PresenceFrame.DELTA, first.getType());
+        DocumentController.PresenceFrame snapshot = nextFrame();
+        assertEquals(DocumentController.PresenceFrame.SNAPSHOT, snapshot.getType());
+        assertEquals(1, snapshot.getUsers().size());
+        assertEquals(first.getSeq(), snapshot.getSeq());
+
+        // Joins inside the snapshot window: the first goes out as a delta, the rest wait for the one snapshot
+        for (String site : List.of("B", "C", "D", "E")) {
+            join(site);
+        }
+        DocumentController.PresenceFrame delta = nextFrame();
+        assertEquals(DocumentController.PresenceFrame.DELTA, delta.getType());
+        assertEquals("B", delta.getChanges().get(0).siteId());
+        DocumentController.PresenceFrame wave = nextFrame();
+        assertEquals(DocumentController.PresenceFrame.SNAPSHOT, wave.getType());
+        assertEquals(5, wave.getUsers().size());
+        assertEquals(snapshot.getSeq() + 4, wave.getSeq());
+        assertNull(sent.poll(400, TimeUnit.MILLISECONDS));
+
+        sessionManager.userLeft(DOC, "C");
+        broadcaster.changed(DOC);
+        DocumentController.PresenceFrame leave = nextFrame();
+        assertEquals(DocumentController.PresenceFrame.DELTA, leave.getType());
+        assertEquals(1, leave.getChanges().size());
+        assertEquals(SessionManager.Change.LEAVE, leave.getChanges().get(0).type());
+        assertEquals("C", leave.getChanges().get(0).siteId());
+        assertEquals(wave.getSeq() + 1, leave.getSeq());
+    }
+
+    @Test
+    void testUsersThatStopSendingHeartbeatsAreSwept() throws InterruptedException {
+        sessionManager.userJoined(DOC, "A", "alice", 0);
+        sessionManager.userJoined(DOC, "B", "bob", 0);
+        sessionManager.drainChanges(DOC);
+
+        Thread.sleep(300);
+        assertTrue(sessionManager.touch(DOC, "B"));
+        broadcaster.sweep();
+
+        DocumentController.PresenceFrame frame = nextFrame();
+        assertEquals(1, frame.getChanges().size());
+        assertEquals(SessionManager.Change.LEAVE, frame.getChanges().get(0).type());
+        assertEquals("A", frame.getChanges().get(0).siteId());
+        assertFalse(sessionManager.touch(DOC, "A"));
+        assertEquals(1, sessionManager.getUserCount(DOC));
+    }
+
+    @Test
+    void testColorsAreReusedOnceFree() {
+        Set<String> colors = new HashSet<>();
+        for (int i = 0; i < 8; i++) {
+            colors.add(sessionManager.userJoined(DOC, "S" + i, "user " + i, 0).getColor());
+        }
+        assertEquals(8, colors.size());
+
+        // A freed color goes to the next joiner, even after lots of churn
+        String freed = sessionManager.userLeft(DOC, "S3").getColor();
+        assertEquals(freed, sessionManager.userJoined(DOC, "T", "late", 0).getColor());
+        for (int i = 0; i < 20; i++) {
+            String color = sessionManager.userLeft(DOC, "S5").getColor();
+            assertEquals(color, sessionManager.userJoined(DOC, "S5", "again", 0).getColor());
+        }
+
+        // A rejoin keeps its color; a rename is an update
+        String own = sessionManager.userJoined(DOC, "S0", "renamed", 5).getColor();
+        List<SessionManager.Change> changes = sessionManager.drainChanges(DOC);
+        SessionManager.Change last = changes.get(changes.size() - 1);
+        assertEquals(SessionManager.Change.UPDATE, last.type());
+        assertEquals(own, last.color());
+        assertEquals(changes.get(0).seq() + changes.size() - 1, last.seq());
+    }
+
+    private void join(String site) {
+        sessionManager.userJoined(DOC, site, "user " + site, 0);
+        broadcaster.changed(DOC);
+        broadcaster.snapshotRequested(DOC);
+    }
+
+    private DocumentController.PresenceFrame nextFrame() throws InterruptedException {
+        Message<?> message = sent.poll(5, TimeUnit.SECONDS);
+        assertNotNull(message);
+        assertEquals("/topic/presence/" + DOC, message.getHeaders().get("simpDestination"));
+        return (DocumentController.PresenceFrame) message.getPayload();
+    }
+}
@@ -0,0 +1,66 @@
+package com.collabeditor.backend;
+
+import com.collabeditor.backend.repository.DocumentRepository;
+import com.collabeditor.backend.service.DocumentService;
+import com.collabeditor.backend.service.SnapshotWriter;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// compact-min-ops=1: any edit makes a snapshot worthwhile; ticks only run when the test calls them
+@SpringBootTest(properties = {
+    "spring.datasource.url=jdbc:h2:mem:snapshot-writer-test;DB_CLOSE_DELAY=-1",
+    "collab.oplog.compact-min-ops=1",
+    "collab.persistence.debounce-ms=0",
+    "collab.persistence.tick-ms=3600000"
+})
+class SnapshotWriterTest {
+
+    @Autowired
+    private DocumentService documentService;
+
+    @Autowired
+    private SnapshotWriter snapshotWriter;
+
+    @Autowired
+    private DocumentRepository documentRepository;
+
+    @Test
+    void testQuietDocumentsAreWrittenInTheBackground() throws InterruptedException {
+        TestDocuments.type(documentService, "writer-1", "A", "HELLO");
+        TestDocuments.type(documentService, "writer-2", "A", "WORLD!");
+
+        snapshotWriter.tick();
+        awaitClean("writer-1");
+        awaitClean("writer-2");
+        assertEquals(5, documentRepository.findById("writer-1").orElseThrow().getLastRevision());
+        assertEquals(6, documentRepository.findById("writer-2").orElseThrow().getLastRevision());
+
+        documentService.clearDocument("writer-1");
+        documentService.clearDocument("writer-2");
+    }
+
+    @Test
+    void testShutdownSavesDocumentsThatWereNotDueYet() {
+        // Debounce of an hour: nothing is ever due, only the shutdown drain writes
+        SnapshotWriter writer = new SnapshotWriter(documentService, 1, 10, 10, 3_600_000, 3_600_000);
+        TestDocuments.type(documentService, "writer-3", "A", "LATER");
+        writer.tick();
+        assertTrue(documentService.getDirtyDocuments().containsKey("writer-3"));
+
+        writer.shutdown();
+        assertFalse(documentService.getDirtyDocuments().containsKey("writer-3"));
+        assertEquals(5, documentRepository.findById("writer-3").orElseThrow().getLastRevision());
+
+        documentService.clearDocument("writer-3");
+    }
+
+    private void awaitClean(String docId) throws InterruptedException {
+        for (int i = 0; i < 100 && documentService.getDirtyDocuments().containsKey(docId); i++) {
+            Thread.sleep(50);
+        }
+        assertFalse(documentService.getDirtyDocuments().containsKey(docId));
+    }
+}
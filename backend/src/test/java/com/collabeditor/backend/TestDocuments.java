@@ -0,0 +1,37 @@
+package com.collabeditor.backend;
+
+import com.collabeditor.backend.model.CrdtChar;
+import com.collabeditor.backend.model.CrdtOperation;
+import com.collabeditor.backend.service.CrdtDocument;
+import com.collabeditor.backend.service.DocumentService;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Typing fixtures shared by the tests. */
+final class TestDocuments {
+
+    private TestDocuments() {}
+
+    /** One INSERT per char of `text`, each after the one before, the first after `parent` (null = front); clocks start after `clock`. */
+    static List<CrdtOperation> typing(String docId, String site, String text, String parent, int clock) {
+        List<CrdtOperation> ops = new ArrayList<>(text.length());
+        for (char ch : text.toCharArray()) {
+            clock++;
+            String id = site + "-" + clock;
+            ops.add(new CrdtOperation(CrdtOperation.Type.INSERT,
+                new CrdtChar(id, ch, parent, clock, site, false), docId, site, clock));
+            parent = id;
+        }
+        return ops;
+    }
+
+    /** Types `text` at the end of the document through the service, clocks following its revision. */
+    static void type(DocumentService documentService, String docId, String site, String text) {
+        CrdtDocument doc = documentService.getOrLoadDocument(docId);
+        String parent = doc.getVisibleLength() == 0 ? null : doc.charIdAtVisible(doc.getVisibleLength() - 1);
+        for (CrdtOperation op : typing(docId, site, text, parent, (int) doc.getRevision())) {
+            documentService.applyOperation(docId, op);
+        }
+    }
+}
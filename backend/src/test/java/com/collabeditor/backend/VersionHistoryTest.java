@@ -0,0 +1,105 @@
+package com.collabeditor.backend;
+
+import com.collabeditor.backend.service.CrdtDocument;
+import com.collabeditor.backend.service.DocumentService;
+import com.collabeditor.backend.service.VersionHistory;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@SpringBootTest(properties = {
+    "spring.datasource.url=jdbc:h2:mem:history-test;DB_CLOSE_DELAY=-1",
+    "collab.history.enabled=true",
+    "collab.history.checkpoint-ops=5"
+})
+@AutoConfigureMockMvc
+class VersionHistoryTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private DocumentService documentService;
+
+    @Autowired
+    private VersionHistory versionHistory;
+
+    @Test
+    void testReadsTextAtRevisionOrTime() throws Exception {
+        String docId = "history-1";
+        TestDocuments.type(documentService, docId, "A", "HELLO");
+        documentService.saveDocument(docId);  // first snapshot: checkpoint at 5
+        Thread.sleep(20);
+        Instant afterHello = Instant.now();
+        Thread.sleep(20);
+        TestDocuments.type(documentService, docId, "B", " WORLD");
+        documentService.saveDocument(docId);  // 6 more: checkpoint at 11
+
+        mockMvc.perform(get("/api/documents/" + docId + "/history/checkpoints"))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.length()").value(2))
+            .andExpect(jsonPath("$[1].revision").value(11));
+
+        expectVersion(docId, "revision=3", 3, true, "HEL");
+        expectVersion(docId, "revision=8", 8, true, "HELLO WO");
+        expectVersion(docId, "revision=100", 11, true, "HELLO WORLD");
+        expectVersion(docId, "at=" + afterHello, 5, true, "HELLO");
+        expectVersion(docId, "at=" + afterHello.toEpochMilli(), 5, true, "HELLO");
+
+        mockMvc.perform(get("/api/documents/" + docId + "/history"))
+            .andExpect(status().isBadRequest());
+        mockMvc.perform(get("/api/documents/" + docId + "/history").param("at", "yesterday"))
+            .andExpect(status().isBadRequest());
+        mockMvc.perform(get("/api/documents/" + docId + "/history").param("at", "1970-01-01T00:00:00Z"))
+            .andExpect(status().isNotFound());
+
+        documentService.clearDocument(docId);
+    }
+
+    @Test
+    void testRetentionThinsCheckpointsAndDropsOldOps() throws Exception {
+        String docId = "history-2";
+        TestDocuments.type(documentService, docId, "A", "HELLO");
+        documentService.saveDocument(docId);
+        TestDocuments.type(documentService, docId, "B", " WORLD");
+        documentService.saveDocument(docId);
+        TestDocuments.type(documentService, docId, "C", "!");
+        documentService.saveDocument(docId);  // only one op since the last checkpoint: none here
+
+        // Eight days on, both checkpoints share a day; only the later one is kept, and it covers the ops before it
+        versionHistory.applyRetention(docId, System.currentTimeMillis() + TimeUnit.DAYS.toMillis(8));
+
+        mockMvc.perform(get("/api/documents/" + docId + "/history/checkpoints"))
+            .andExpect(jsonPath("$.length()").value(1))
+            .andExpect(jsonPath("$[0].revision").value(11));
+        expectVersion(docId, "revision=12", 12, true, "HELLO WORLD!");
+        expectVersion(docId, "revision=11", 11, true, "HELLO WORLD");
+        mockMvc.perform(get("/api/documents/" + docId + "/history").param("revision", "8"))
+            .andExpect(status().isNotFound());
+
+        // The live document still loads from its snapshot
+        documentService.evictDocument(docId);
+        CrdtDocument reloaded = documentService.getOrLoadDocument(docId);
+        assertEquals("HELLO WORLD!", reloaded.getText());
+
+        documentService.clearDocument(docId);
+    }
+
+    private void expectVersion(String docId, String query, long revision, boolean exact, String text) throws Exception {
+        String[] param = query.split("=", 2);
+        mockMvc.perform(get("/api/documents/" + docId + "/history").param(param[0], param[1]))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.revision").value(revision))
+            .andExpect(jsonPath("$.exact").value(exact))
+            .andExpect(jsonPath("$.text").value(text));
+    }
+}
@@ -139,10 +139,12 @@ export const Editor: React.FC<EditorProps> = ({
               if (op) onOperation(op);
             }
 
+            // A paste or multi-char replace goes out as one run
             const text = inserted ? inserted.toString() : '';
-            for (let i = 0; i < text.length; i++) {
-              const op = crdt.generateInsert(text[i], fromA + i - 1);
-              onOperation(op);
+            if (text.length === 1) {
+              onOperation(crdt.generateInsert(text, fromA - 1));
+            } else if (text.length > 1) {
+              onOperation(crdt.generateInsertRun(text, fromA - 1));
             }
           });
         }),
@@ -6,7 +6,7 @@ import { Document, Packer, Paragraph, TextRun } from 'docx';
 import { saveAs } from 'file-saver';
 import { Editor } from '../components/Editor';
 import { PresenceBar } from '../components/PresenceBar';
-import { CrdtEngine, CrdtOperation } from '../utils/crdt';
+import { CrdtEngine, CrdtOperation, SyncDelta } from '../utils/crdt';
 
 interface User {
   siteId: string;
@@ -14,6 +14,19 @@ interface User {
   color: string;
 }
 
+interface PresenceChange extends User {
+  type: 'join' | 'leave' | 'update';
+  seq: number;
+}
+
+// Deltas carry changes; a snapshot (on join, on request, now and then) the whole list
+interface PresenceFrame {
+  type: 'delta' | 'snapshot';
+  seq: number;
+  changes?: PresenceChange[];
+  users?: User[];
+}
+
 interface CursorInfo {
   siteId: string;
   userName: string;
@@ -38,20 +51,40 @@ export function DocumentPage() {
   const [myColor, setMyColor] = useState('#58a6ff');
   const [ready, setReady] = useState(false);
 
-  const sendOperation = useCallback((op: CrdtOperation) => {
-    if (clientRef.current?.active) {
+  // Ops generated in the same tick (a paste, a multi-char replace) go out as one batch frame
+  const outgoingOps = useRef<CrdtOperation[]>([]);
+
+  const flushOperations = useCallback(() => {
+    const ops = outgoingOps.current;
+    outgoingOps.current = [];
+    if (ops.length === 0 || !clientRef.current?.active) return;
+    if (ops.length === 1) {
       clientRef.current.publish({
         destination: '/app/document.edit',
-        body: JSON.stringify({ documentId, operation: op }),
+        body: JSON.stringify({ documentId, operation: ops[0] }),
+      });
+    } else {
+      clientRef.current.publish({
+        destination: '/app/document.editBatch',
+        body: JSON.stringify({ documentId, operations: ops }),
       });
     }
   }, [documentId]);
 
+  const sendOperation = useCallback((op: CrdtOperation) => {
+    outgoingOps.current.push(op);
+    if (outgoingOps.current.length === 1) {
+      queueMicrotask(flushOperations);
+    }
+  }, [flushOperations]);
+
   const sendCursor = useCallback((position: number) => {
     if (clientRef.current?.active) {
+      // Anchor to the char before the caret so the server can keep it in place as others type
+      const anchorId = position > 0 ? crdtRef.current?.getVisibleChars()[position - 1]?.id ?? null : null;
       clientRef.current.publish({
         destination: '/app/document.cursor',
-        body: JSON.stringify({ documentId, siteId, userName, color: myColor, position }),
+        body: JSON.stringify({ documentId, siteId, userName, color: myColor, position, anchorId }),
       });
     }
   }, [documentId, siteId, userName, myColor]);
@@ -100,8 +133,35 @@ export function DocumentPage() {
     const crdt = new CrdtEngine(siteId, documentId);
     crdtRef.current = crdt;
 
+    // Highest server revision received, acked periodically so the server can GC tombstones
+    let receivedRevision = 0;
+    let ackedRevision = 0;
+    const ackTimer = setInterval(() => {
+      if (receivedRevision > ackedRevision && clientRef.current?.active) {
+        ackedRevision = receivedRevision;
+        clientRef.current.publish({
+          destination: '/app/document.ack',
+          body: JSON.stringify({ documentId, siteId, revision: ackedRevision }),
+        });
+      }
+    }, 2000);
+
+    // The server drops users it hasn't heard from for a while (30s by default)
+    const heartbeatTimer = setInterval(() => {
+      if (clientRef.current?.connected) {
+        clientRef.current.publish({
+          destination: '/app/document.heartbeat',
+          body: JSON.stringify({ documentId, siteId }),
+        });
+      }
+    }, 10000);
+
     fetch(`/api/documents/${documentId}/state`)
-      .then(res => res.json())
+      .then(res => {
+        // The state is as of this revision; the join reports it so GC keeps what we haven't seen
+        receivedRevision = Number(res.headers.get('X-Document-Revision')) || 0;
+        return res.json();
+      })
       .then(chars => {
         crdt.loadFromState(chars);
         if (chars.length > 0) {
@@ -114,6 +174,63 @@ export function DocumentPage() {
         connectWebSocket(crdt);
       });
 
+    let connectedBefore = false;
+
+    // Presence as of presenceSeq; -1 until the first snapshot, deltas before it are ignored
+    let presenceSeq = -1;
+    let snapshotRequested = false;
+    const present = new Map<string, User>();
+
+    function applyPresence(client: Client, frame: PresenceFrame) {
+      if (frame.type === 'snapshot') {
+        if (frame.seq < presenceSeq) return;
+        present.clear();
+        frame.users!.forEach(u => present.set(u.siteId, u));
+        presenceSeq = frame.seq;
+        snapshotRequested = false;
+      } else {
+        if (presenceSeq < 0) return;
+        for (const change of frame.changes!) {
+          if (change.seq <= presenceSeq) continue;
+          if (change.seq > presenceSeq + 1 && !snapshotRequested) {
+            // Missed a frame: keep going, and ask for the full list
+            snapshotRequested = true;
+            client.publish({ destination: '/app/document.presence', body: JSON.stringify({ documentId, siteId }) });
+          }
+          if (change.type === 'leave') {
+            present.delete(change.siteId);
+          } else {
+            present.set(change.siteId, { siteId: change.siteId, userName: change.userName, color: change.color });
+          }
+          presenceSeq = change.seq;
+          // Swept as gone while still here (a long stall): join again
+          if (change.type === 'leave' && change.siteId === siteId) {
+            client.publish({ destination: '/app/document.join', body: JSON.stringify({ documentId, siteId, userName, revision: receivedRevision }) });
+          }
+        }
+      }
+      setUsers(Array.from(present.values()));
+      const me = present.get(siteId);
+      if (me) setMyColor(me.color);
+    }
+
+    function resync(crdt: CrdtEngine) {
+      fetch(`/api/documents/${documentId}/sync`, {
+        method: 'POST',
+        headers: { 'Content-Type': 'application/json' },
+        body: JSON.stringify({ vector: crdt.getVersionVector(), since: receivedRevision }),
+      })
+        .then(res => res.json())
+        .then((delta: SyncDelta) => {
+          receivedRevision = Math.max(receivedRevision, delta.revision);
+          const applied = crdt.applyDelta(delta);
+          if (applied.length > 0) {
+            setRemoteOps(prev => [...prev, ...applied]);
+          }
+        })
+        .catch(err => console.error('Failed to resync document:', err));
+    }
+
     function connectWebSocket(crdt: CrdtEngine) {
       const client = new Client({
         webSocketFactory: () => new SockJS('/ws'),
@@ -122,25 +239,27 @@ export function DocumentPage() {
 
           client.subscribe('/topic/document/' + documentId, (message) => {
             const data = JSON.parse(message.body);
-            const applied = crdt.applyRemoteOperation(data.operation);
-            if (applied) {
-              setRemoteOps(prev => [...prev, data.operation]);
+            receivedRevision = Math.max(receivedRevision, data.revision || 0);
+            // The server coalesces bursts into { operations: [...] } frames
+            const ops: CrdtOperation[] = data.operations ?? [data.operation];
+            const applied = ops.filter(op => crdt.applyRemoteOperation(op));
+            if (applied.length > 0) {
+              setRemoteOps(prev => [...prev, ...applied]);
             }
           });
 
           client.subscribe('/topic/presence/' + documentId, (message) => {
-            const userList: User[] = JSON.parse(message.body);
-            setUsers(userList);
-            const me = userList.find(u => u.siteId === siteId);
-            if (me) setMyColor(me.color);
+            applyPresence(client, JSON.parse(message.body));
           });
 
+          // The server batches cursor moves: one frame lists the latest position of each moved cursor
           client.subscribe('/topic/cursor/' + documentId, (message) => {
-            const cursor: CursorInfo = JSON.parse(message.body);
-            if (cursor.siteId !== siteId) {
+            const data = JSON.parse(message.body);
+            const moved: CursorInfo[] = (Array.isArray(data) ? data : [data]).filter(c => c.siteId !== siteId);
+            if (moved.length > 0) {
               setCursors(prev => {
                 const next = new Map(prev);
-                next.set(cursor.siteId, cursor);
+                moved.forEach(cursor => next.set(cursor.siteId, cursor));
                 return next;
               });
             }
@@ -148,9 +267,14 @@ export function DocumentPage() {
 
           client.publish({
             destination: '/app/document.join',
-            body: JSON.stringify({ documentId, siteId, userName }),
+            body: JSON.stringify({ documentId, siteId, userName, revision: receivedRevision }),
           });
 
+          // Frames may have been missed while disconnected (the server also closes
+          // connections that fall too far behind, with 4000 "resync"): catch up
+          if (connectedBefore) resync(crdt);
+          connectedBefore = true;
+
           setReady(true);
         },
         onWebSocketClose: () => setStatus('disconnected'),
@@ -161,6 +285,8 @@ export function DocumentPage() {
     }
 
     return () => {
+      clearInterval(ackTimer);
+      clearInterval(heartbeatTimer);
       if (clientRef.current?.active) {
         clientRef.current.publish({
           destination: '/app/document.leave',
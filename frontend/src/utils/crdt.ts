@@ -8,11 +8,21 @@ export interface CrdtChar {
 }
 
 export interface CrdtOperation {
-  type: 'INSERT' | 'DELETE';
+  type: 'INSERT' | 'DELETE' | 'INSERT_RUN';
   character: CrdtChar;
   documentId: string;
   siteId: string;
   clock: number;
+  // INSERT_RUN: character is text[0]; char i has counter + i, clock + i and sits after char i - 1
+  text?: string;
+}
+
+/** Response of POST /api/documents/{id}/sync: what this replica is missing. */
+export interface SyncDelta {
+  inserts: { character: CrdtChar; after: string | null }[];
+  deletes: string[];
+  revision: number;
+  full: boolean;
 }
 
 export class CrdtEngine {
@@ -59,6 +69,36 @@ export class CrdtEngine {
     };
   }
 
+  /**
+   * LOCAL user pasted (or otherwise inserted) several characters at once.
+   * One INSERT_RUN op instead of one INSERT per character.
+   */
+  generateInsertRun(text: string, afterIndex: number): CrdtOperation {
+    const visibleChars = this.getVisibleChars();
+    let parentId = afterIndex >= 0 && afterIndex < visibleChars.length
+      ? visibleChars[afterIndex].id
+      : null;
+
+    const chars: CrdtChar[] = [];
+    // UTF-16 units, like the server's String
+    for (let i = 0; i < text.length; i++) {
+      this.counter++;
+      const id = `${this.siteId}-${this.counter}`;
+      chars.push({ id, value: text[i], parentId, clock: this.counter, siteId: this.siteId, tombstone: false });
+      parentId = id;
+    }
+    this.applyRun(chars);
+
+    return {
+      type: 'INSERT_RUN',
+      character: chars[0],
+      documentId: this.documentId,
+      siteId: this.siteId,
+      clock: chars[0].clock,
+      text,
+    };
+  }
+
   /**
    * LOCAL user deleted a character.
    */
@@ -85,11 +125,13 @@ export class CrdtEngine {
     if (op.siteId === this.siteId) return false; // skip our own
 
     // Lamport timestamp: update our clock to maintain causal ordering
-    this.counter = Math.max(this.counter, op.clock);
+    const length = op.type === 'INSERT_RUN' ? (op.text ?? '').length : 1;
+    this.counter = Math.max(this.counter, op.clock + length - 1);
 
     switch (op.type) {
       case 'INSERT': return this.applyInsert(op.character);
       case 'DELETE': return this.applyDelete(op.character.id);
+      case 'INSERT_RUN': return this.applyRun(expandRun(op));
     }
   }
 
@@ -106,6 +148,57 @@ export class CrdtEngine {
     this.counter = Math.max(this.counter, maxClock);
   }
 
+  /** Highest counter seen per site, for POST /sync. */
+  getVersionVector(): Record<string, number> {
+    const vector: Record<string, number> = {};
+    for (const c of this.sequence) {
+      const dash = c.id.lastIndexOf('-');
+      const counter = Number(c.id.substring(dash + 1));
+      const site = c.id.substring(0, dash);
+      if (dash > 0 && Number.isInteger(counter) && counter > (vector[site] ?? -1)) {
+        vector[site] = counter;
+      }
+    }
+    return vector;
+  }
+
+  /**
+   * Catch up after missing frames (e.g. the server closed a lagging connection).
+   * Inserts are spliced in right after the char the server has them after.
+   * Returns the changes as ops, like applyRemoteOperation's results.
+   */
+  applyDelta(delta: SyncDelta): CrdtOperation[] {
+    const op = (type: 'INSERT' | 'DELETE', character: CrdtChar): CrdtOperation =>
+      ({ type, character, documentId: this.documentId, siteId: character.siteId, clock: character.clock });
+
+    if (delta.full) {
+      this.loadFromState(delta.inserts.map(i => i.character));
+      return delta.inserts.map(i => op('INSERT', i.character));
+    }
+
+    const applied: CrdtOperation[] = [];
+    for (const { character, after } of delta.inserts) {
+      if (this.idIndex.has(character.id)) continue;
+      let at = 0;
+      if (after !== null) {
+        const idx = this.idIndex.get(after);
+        if (idx === undefined) continue;
+        at = idx + 1;
+      }
+      this.sequence.splice(at, 0, character);
+      this.rebuildIndex();
+      this.counter = Math.max(this.counter, character.clock);
+      applied.push(op('INSERT', character));
+    }
+    for (const id of delta.deletes) {
+      const idx = this.idIndex.get(id);
+      if (idx !== undefined && this.applyDelete(id)) {
+        applied.push(op('DELETE', this.sequence[idx]));
+      }
+    }
+    return applied;
+  }
+
   getText(): string {
     return this.sequence.filter(c => !c.tombstone).map(c => c.value).join('');
   }
@@ -149,6 +242,16 @@ export class CrdtEngine {
     return true;
   }
 
+  /** The first char goes through the insert rule; the rest follow it directly. */
+  private applyRun(chars: CrdtChar[]): boolean {
+    if (chars.length === 0 || chars.some(c => this.idIndex.has(c.id))) return false;
+    if (!this.applyInsert(chars[0])) return false;
+    const at = this.idIndex.get(chars[0].id)!;
+    this.sequence.splice(at + 1, 0, ...chars.slice(1));
+    this.rebuildIndex();
+    return true;
+  }
+
   private shouldGoBeforeExisting(newChar: CrdtChar, existing: CrdtChar): boolean {
     if (newChar.clock !== existing.clock) {
       return newChar.clock > existing.clock;
@@ -168,4 +271,21 @@ export class CrdtEngine {
     this.idIndex.clear();
     this.sequence.forEach((c, i) => this.idIndex.set(c.id, i));
   }
-}
\ No newline at end of file
+}
+
+/** The per-char form of an INSERT_RUN op. */
+function expandRun(op: CrdtOperation): CrdtChar[] {
+  const first = op.character;
+  const dash = first.id.lastIndexOf('-');
+  const site = first.id.substring(0, dash);
+  const counter = Number(first.id.substring(dash + 1));
+  const chars: CrdtChar[] = [];
+  let parentId = first.parentId;
+  const text = op.text ?? '';
+  for (let i = 0; i < text.length; i++) {
+    const id = `${site}-${counter + i}`;
+    chars.push({ ...first, id, value: text[i], parentId, clock: first.clock + i });
+    parentId = id;
+  }
+  return chars;
+}